@@ -0,0 +1,162 @@
+package com.fasterxml.transistore.basic;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.storemate.shared.StorableKey;
+
+/**
+ * Helper class that defines the length-prefixed binary format used for
+ * batch (multi-entry) requests and responses.
+ *<p>
+ * Batch GET request consists of entry count (32-bit int), followed by
+ * keys; each key as length (32-bit int) and raw key bytes.
+ * Response consists of entry count, followed by one item per requested
+ * key (in request order): a status byte, and for found entries,
+ * length-prefixed (uncompressed) contents. If entry info was requested,
+ * items for entries that exist (included or not) also have content hash
+ * (32-bit int) and expiration time (64-bit long, milliseconds since epoch)
+ * after the status byte.
+ *<p>
+ * Batch PUT request consists of entry count, followed by entries; each
+ * entry as length-prefixed raw key bytes and length-prefixed contents.
+ * Response consists of entry count, followed by one status byte per
+ * entry (in request order).
+ */
+public class BasicTSBatchFormat
+{
+    public final static String CONTENT_TYPE = "application/x-ts-batch";
+
+    /**
+     * Status for items included in the response
+     */
+    public final static byte STATUS_OK = 0;
+
+    /**
+     * Status for items that do not exist (or have been deleted or expired)
+     */
+    public final static byte STATUS_NOT_FOUND = 1;
+
+    /**
+     * Status for items that exist, but are too big to be included
+     * in batch response, and need to be fetched individually.
+     */
+    public final static byte STATUS_NOT_INCLUDED = 2;
+
+    /**
+     * Status for items that could not be accessed due to an error
+     */
+    public final static byte STATUS_ERROR = 3;
+
+    /**
+     * Status for items that could not be stored since an entry with
+     * different contents already exists.
+     */
+    public final static byte STATUS_CONFLICT = 4;
+
+    /**
+     * Maximum length of a single key; used for sanity checking
+     */
+    protected final static int MAX_KEY_LENGTH = 0xFFFF;
+
+    /*
+    /**********************************************************************
+    /* Keys
+    /**********************************************************************
+     */
+
+    public static void writeKeys(DataOutputStream out, List<StorableKey> keys) throws IOException
+    {
+        out.writeInt(keys.size());
+        for (StorableKey key : keys) {
+            byte[] b = key.asBytes();
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    /**
+     * @param maxKeys Maximum number of keys allowed
+     */
+    public static List<StorableKey> readKeys(DataInputStream in, int maxKeys) throws IOException
+    {
+        final int count = in.readInt();
+        if (count < 0 || count > maxKeys) {
+            throw new IOException("Invalid key count ("+count+"): must be between 0 and "+maxKeys);
+        }
+        List<StorableKey> keys = new ArrayList<StorableKey>(count);
+        for (int i = 0; i < count; ++i) {
+            keys.add(readKey(in));
+        }
+        return keys;
+    }
+
+    /**
+     * Method for reading key of an entry.
+     */
+    public static StorableKey readKey(DataInputStream in) throws IOException {
+        return new StorableKey(readBytes(in, MAX_KEY_LENGTH));
+    }
+
+    /*
+    /**********************************************************************
+    /* Items
+    /**********************************************************************
+     */
+
+    public static void writeItem(DataOutputStream out, byte status, byte[] data) throws IOException
+    {
+        out.writeByte(status);
+        if (status == STATUS_OK) {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    /**
+     * Method for writing an item of batch GET response, when entry info
+     * was requested.
+     */
+    public static void writeItemWithInfo(DataOutputStream out, byte status, byte[] data,
+            int contentHash, long expiration) throws IOException
+    {
+        out.writeByte(status);
+        if (status == STATUS_OK || status == STATUS_NOT_INCLUDED) {
+            out.writeInt(contentHash);
+            out.writeLong(expiration);
+        }
+        if (status == STATUS_OK) {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    /**
+     * Method for writing an entry to add with batch PUT.
+     */
+    public static void writeEntry(DataOutputStream out, StorableKey key, byte[] data) throws IOException
+    {
+        byte[] b = key.asBytes();
+        out.writeInt(b.length);
+        out.write(b);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Method for reading length-prefixed byte array.
+     *
+     * @param maxLength Maximum length to accept
+     */
+    public static byte[] readBytes(DataInputStream in, int maxLength) throws IOException
+    {
+        final int len = in.readInt();
+        if (len < 0 || len > maxLength) {
+            throw new IOException("Invalid length ("+len+"): must be between 0 and "+maxLength);
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+}
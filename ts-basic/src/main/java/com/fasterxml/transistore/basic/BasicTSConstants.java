@@ -10,4 +10,23 @@ public interface BasicTSConstants
      * used for grouping files for expiration purposes.
      */
     public final static String TS_QUERY_PARAM_PARTITION_ID = "partition";
+
+    /**
+     * Query parameter used to pass id of a server-side prefix deletion job,
+     * when requesting its status.
+     */
+    public final static String TS_QUERY_PARAM_DELETE_JOB = "deleteJob";
+
+    /**
+     * Query parameter used to request listing of keyspace segment entries
+     * in priority order (multiple frames, most urgent entries first),
+     * instead of a single frame.
+     */
+    public final static String TS_QUERY_PARAM_PRIORITY = "priority";
+
+    /**
+     * Query parameter used to request content hash and expiration time
+     * of entries to be included in batch GET responses.
+     */
+    public final static String TS_QUERY_PARAM_ENTRY_INFO = "info";
 }
@@ -0,0 +1,84 @@
+package com.fasterxml.transistore.basic;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Helper class for content negotiation between JSON and Smile (binary
+ * JSON) for responses that may be large, such as streaming listings.
+ * Both formats use the same data model, so same data-binding (and
+ * same <code>ObjectMapper</code>) can be used for both, and only the
+ * underlying parser or generator differs.
+ */
+public class BasicTSContentTypes
+{
+    public final static String CONTENT_TYPE_JSON = "application/json";
+
+    public final static String CONTENT_TYPE_SMILE = "application/x-jackson-smile";
+
+    /**
+     * Value of "Accept" header sent by clients that prefer Smile, but
+     * also accept JSON (from servers that do not support Smile)
+     */
+    public final static String ACCEPT_SMILE_OR_JSON = CONTENT_TYPE_SMILE+", "+CONTENT_TYPE_JSON+";q=0.5";
+
+    private BasicTSContentTypes() { }
+
+    /**
+     * Method for checking whether given "Accept" header value indicates
+     * that Smile is acceptable.
+     */
+    public static boolean acceptsSmile(String acceptHeader) {
+        return accepts(acceptHeader, CONTENT_TYPE_SMILE);
+    }
+
+    /**
+     * Method for checking whether given "Accept" header value explicitly
+     * lists given content type as acceptable: that is, includes it with
+     * quality value other than 0 ("q=0" means "not acceptable").
+     * Wildcards are not considered, since they are only used for choosing
+     * non-default encodings.
+     */
+    public static boolean accepts(String acceptHeader, String contentType)
+    {
+        if (acceptHeader == null) {
+            return false;
+        }
+        for (String type : acceptHeader.split(",")) {
+            type = type.trim().toLowerCase();
+            int ix = type.indexOf(';');
+            String params = "";
+            if (ix >= 0) {
+                params = type.substring(ix+1).replace(" ", "");
+                type = type.substring(0, ix).trim();
+            }
+            if (contentType.equals(type)) {
+                for (String param : params.split(";")) {
+                    if (param.matches("q=0(\\.0*)?")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method for checking whether given "Content-Type" header value
+     * indicates Smile-encoded content.
+     */
+    public static boolean isSmile(String contentType) {
+        return (contentType != null) && contentType.toLowerCase().startsWith(CONTENT_TYPE_SMILE);
+    }
+
+    /**
+     * Method for constructing parser/generator factory to use for
+     * Smile content, using given codec (usually <code>ObjectMapper</code>
+     * used for JSON) for data-binding.
+     */
+    public static JsonFactory smileFactory(ObjectCodec codec) {
+        return new SmileFactory(codec);
+    }
+}
@@ -0,0 +1,74 @@
+package com.fasterxml.transistore.basic;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * Status of a server-side prefix deletion job, as returned by a server
+ * node when a job is started, and when its status is requested.
+ */
+@JsonPropertyOrder({
+    "id", "prefix", "state", "scanned", "deleted", "started", "ended", "failure"
+})
+public class BasicTSDeleteJobStatus
+{
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, CANCELLED, FAILED;
+    }
+
+    /**
+     * Server-assigned id of the job; unique within the server node.
+     */
+    public long id;
+
+    /**
+     * Description of the key prefix of entries to delete
+     */
+    public String prefix;
+
+    public State state;
+
+    /**
+     * Number of entries (including tombstones) traversed so far
+     */
+    public long scanned;
+
+    /**
+     * Number of entries deleted so far
+     */
+    public long deleted;
+
+    /**
+     * Start time of the job, in usual JDK milliseconds since epoch.
+     */
+    public long started;
+
+    /**
+     * End time of the job if it has finished; 0 if not.
+     */
+    public long ended;
+
+    /**
+     * Description of the problem if job failed; null otherwise.
+     */
+    public String failure;
+
+    // just for deserialization
+    protected BasicTSDeleteJobStatus() { }
+
+    public BasicTSDeleteJobStatus(long id, String prefix, State state,
+            long scanned, long deleted, long started, long ended, String failure)
+    {
+        this.id = id;
+        this.prefix = prefix;
+        this.state = state;
+        this.scanned = scanned;
+        this.deleted = deleted;
+        this.started = started;
+        this.ended = ended;
+        this.failure = failure;
+    }
+
+    public boolean isFinished() {
+        return (state != State.QUEUED) && (state != State.RUNNING);
+    }
+}
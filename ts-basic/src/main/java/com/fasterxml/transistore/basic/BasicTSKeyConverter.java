@@ -267,4 +267,31 @@ public class BasicTSKeyConverter
     public IncrementalHasher32 createStreamingContentHasher() {
         return new IncrementalMurmur3Hasher();
     }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    /**
+     * Helper method for checking whether given raw key starts with given
+     * raw prefix (both including key header); used for operations on all
+     * entries with a key prefix, like listing and deletion.
+     */
+    public static boolean hasPrefix(StorableKey key, StorableKey prefix)
+    {
+        final int len = prefix.length();
+        if (key.length() < len) {
+            return false;
+        }
+        byte[] k = key.asBytes();
+        byte[] p = prefix.asBytes();
+        for (int i = 0; i < len; ++i) {
+            if (k[i] != p[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,102 @@
+package com.fasterxml.transistore.basic;
+
+import com.fasterxml.storemate.shared.StorableKey;
+
+/**
+ * Helper class that defines the format used for streaming listings,
+ * in which all entries with given prefix are returned in a single
+ * (incrementally generated) response, instead of bounded pages.
+ *<p>
+ * Response is a single object, with two properties: <code>items</code>,
+ * array of list items (in key order), and <code>cursor</code>, which
+ * is null if all entries were listed; or, if listing was truncated,
+ * continuation token that may be passed back to continue listing
+ * after the last entry returned.
+ * Since continuation token is just the encoded raw key of the last
+ * entry, client can also construct one itself to resume listing
+ * after partial failure, using {@link #cursorFor}.
+ *<p>
+ * If server fails to read entries after the response has been started,
+ * listing is truncated, and response also contains property
+ * <code>error</code> with description of the problem: clients must
+ * check for it, to tell failures apart from listing truncated due to
+ * maximum number of entries.
+ */
+public class BasicTSListStream
+{
+    /**
+     * Query parameter used to request streaming listing
+     */
+    public final static String QUERY_PARAM_STREAM = "stream";
+
+    /**
+     * Query parameter used to pass continuation token, to start listing
+     * after entry it refers to.
+     */
+    public final static String QUERY_PARAM_CURSOR = "cursor";
+
+    /**
+     * Query parameter used to pass maximum number of entries to list;
+     * if missing, all entries with given prefix are listed.
+     */
+    public final static String QUERY_PARAM_MAX = "max";
+
+    public final static String FIELD_ITEMS = "items";
+
+    public final static String FIELD_CURSOR = "cursor";
+
+    public final static String FIELD_ERROR = "error";
+
+    private final static char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private BasicTSListStream() { }
+
+    /**
+     * Method for constructing continuation token for listing entries that
+     * follow entry with given key.
+     */
+    public static String cursorFor(StorableKey lastKey)
+    {
+        byte[] raw = lastKey.asBytes();
+        char[] result = new char[raw.length * 2];
+        for (int i = 0, ix = 0; i < raw.length; ++i) {
+            int b = raw[i] & 0xFF;
+            result[ix++] = HEX_CHARS[b >> 4];
+            result[ix++] = HEX_CHARS[b & 0xF];
+        }
+        return new String(result);
+    }
+
+    /**
+     * Method for decoding key of the last entry listed from given
+     * continuation token.
+     *
+     * @throws IllegalArgumentException If token is not valid
+     */
+    public static StorableKey keyFromCursor(String cursor)
+    {
+        final int len = cursor.length();
+        if ((len & 1) != 0) {
+            throw new IllegalArgumentException("Invalid cursor: odd length ("+len+")");
+        }
+        byte[] raw = new byte[len >> 1];
+        for (int i = 0, ix = 0; i < len; i += 2) {
+            raw[ix++] = (byte) ((_hexValue(cursor.charAt(i)) << 4) + _hexValue(cursor.charAt(i+1)));
+        }
+        return new StorableKey(raw);
+    }
+
+    private static int _hexValue(char c)
+    {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return 10 + (c - 'a');
+        }
+        if (c >= 'A' && c <= 'F') {
+            return 10 + (c - 'A');
+        }
+        throw new IllegalArgumentException("Invalid cursor: unexpected character '"+c+"'");
+    }
+}
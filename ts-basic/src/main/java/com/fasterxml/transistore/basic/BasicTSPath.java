@@ -9,6 +9,7 @@ public enum BasicTSPath
     STORE_ENTRY, // single-entry CRUD
     STORE_ENTRY_INFO, // metadata about single entry
     STORE_ENTRIES, // multi-entry listings
+    STORE_ENTRIES_BATCH, // multi-entry access by explicit keys
     STORE_STATUS, // diagnostics interface
 
     // re-routing store access
@@ -23,6 +24,7 @@ public enum BasicTSPath
     // access to (local) sync information
     SYNC_LIST, // request for change list (ids)
     SYNC_PULL, // request for specific (changed/new) entries
+    SYNC_TREE, // request for keyspace hash tree (or entries of its segments)
 
     // access to remote sync information
     REMOTE_STATUS, // alias for "NODE_STATUS"
@@ -14,6 +14,7 @@ import com.fasterxml.clustermate.api.RequestPathStrategy;
  *  <ul>
  *    <li>".../store/entry" for single-entry access</li>
  *    <li>".../store/entries" for range (ordered multi-entry) access</li>
+ *    <li>".../store/entriesBatch" for batch access to entries by key</li>
  *    <li>".../store/status" for store status (admin interface)</li>
  *    <li>".../store/findEntry" for redirecting single-entry</li>
  *    <li>".../store/findList" for redirecting range access</li>
@@ -30,6 +31,7 @@ import com.fasterxml.clustermate.api.RequestPathStrategy;
  *  <ul>
  *    <li>".../sync/list" for accessing metadata for changes</li>
  *    <li>".../sync/pull" for pulling entries to sync</li>
+ *    <li>".../sync/tree" for keyspace hash tree used for anti-entropy</li>
  *  </ul>
  * <li>Intra-cluster (remotely-called) entries under ".../remote/":
  *  <ul>
@@ -49,6 +51,7 @@ public class BasicTSPaths extends RequestPathStrategy<BasicTSPath>
     protected final static String SEGMENT_ENTRY = "entry";
     protected final static String SEGMENT_ENTRY_INFO = "entryInfo";
     protected final static String SEGMENT_ENTRIES = "entries";
+    protected final static String SEGMENT_ENTRIES_BATCH = "entriesBatch";
     protected final static String SEGMENT_STATUS = "status";
     protected final static String SEGMENT_FIND_ENTRY = "findEntry";
     protected final static String SEGMENT_FIND_ENTRIES = "findEntries";
@@ -58,6 +61,7 @@ public class BasicTSPaths extends RequestPathStrategy<BasicTSPath>
 
     protected final static String SEGMENT_LIST = "list";
     protected final static String SEGMENT_PULL = "pull";
+    protected final static String SEGMENT_TREE = "tree";
 
     /*
     /**********************************************************************
@@ -80,6 +84,8 @@ public class BasicTSPaths extends RequestPathStrategy<BasicTSPath>
             return appendStoreEntryInfoPath(basePath);
         case STORE_ENTRIES:
             return appendStoreListPath(basePath);
+        case STORE_ENTRIES_BATCH:
+            return _storePath(basePath).addPathSegment(SEGMENT_ENTRIES_BATCH);
 
         case STORE_FIND_ENTRY:
             return _storePath(basePath).addPathSegment(SEGMENT_FIND_ENTRY);
@@ -92,6 +98,8 @@ public class BasicTSPaths extends RequestPathStrategy<BasicTSPath>
             return appendSyncListPath(basePath);
         case SYNC_PULL:
             return appendSyncPullPath(basePath);
+        case SYNC_TREE:
+            return _localSyncPath(basePath).addPathSegment(SEGMENT_TREE);
 
         case REMOTE_STATUS:
             return appendNodeStatusPath(basePath);
@@ -185,6 +193,9 @@ public class BasicTSPaths extends RequestPathStrategy<BasicTSPath>
             if (pathDecoder.matchPathSegment(SEGMENT_ENTRY_INFO)) {
                 return BasicTSPath.STORE_ENTRY_INFO;
             }
+            if (pathDecoder.matchPathSegment(SEGMENT_ENTRIES_BATCH)) {
+                return BasicTSPath.STORE_ENTRIES_BATCH;
+            }
         } else if (pathDecoder.matchPathSegment(FIRST_SEGMENT_NODE)) {
             if (pathDecoder.matchPathSegment(SEGMENT_STATUS)) {
                 return BasicTSPath.NODE_STATUS;
@@ -199,6 +210,9 @@ public class BasicTSPaths extends RequestPathStrategy<BasicTSPath>
             if (pathDecoder.matchPathSegment(SEGMENT_PULL)) {
                 return BasicTSPath.SYNC_PULL;
             }
+            if (pathDecoder.matchPathSegment(SEGMENT_TREE)) {
+                return BasicTSPath.SYNC_TREE;
+            }
         } else if (pathDecoder.matchPathSegment(FIRST_SEGMENT_REMOTE)) {
             if (pathDecoder.matchPathSegment(SEGMENT_SYNC)) {
                 if (pathDecoder.matchPathSegment(SEGMENT_LIST)) {
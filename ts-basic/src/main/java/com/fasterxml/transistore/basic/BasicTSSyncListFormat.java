@@ -0,0 +1,316 @@
+package com.fasterxml.transistore.basic;
+
+import java.io.*;
+import java.util.*;
+
+import com.fasterxml.storemate.shared.StorableKey;
+
+/**
+ * Helper class that defines compact columnar binary encoding for lists of
+ * entries to synchronize: considerably more compact than one JSON (or
+ * Smile) object per entry, which matters for catch-up synchronization
+ * over slower links.
+ *<p>
+ * Entries are sorted by key (in unsigned byte order), and encoded as
+ * a single frame that consists of:
+ *<ol>
+ * <li>Header: 32-bit magic value, version byte, and 32-bit length of
+ *   the rest of the frame
+ *  </li>
+ * <li>Entry count, as variable-length int
+ *  </li>
+ * <li>Keys, front-coded: for each key, length of the prefix shared with
+ *   the preceding key, length of the rest, and bytes of the rest
+ *   (lengths as variable-length ints)
+ *  </li>
+ * <li>Last-modified timestamps: first as is, the rest as differences to
+ *   the preceding timestamp (zigzag-encoded variable-length longs, since
+ *   key order is not time order)
+ *  </li>
+ * <li>Content hashes, as fixed 4-byte ints
+ *  </li>
+ * <li>Content lengths, as variable-length longs; tombstones (deleted
+ *   entries) are indicated with length of {@link #DELETED_LENGTH}
+ *  </li>
+ *</ol>
+ *<p>
+ * Sync list endpoints use this format if the client lists
+ * {@link #CONTENT_TYPE} in its "Accept" header: response then consists of
+ * a sequence of frames, ended by an empty frame, followed by a JSON object
+ * with the other properties of the standard sync list response (see
+ * {@link #decodeResponse}). Frames may be listed in priority order, in
+ * which case the receiver should process them in the order received.
+ */
+public class BasicTSSyncListFormat
+{
+    public final static String CONTENT_TYPE = "application/x-ts-sync-list";
+
+    public final static int MAGIC = 0x5453534C; // "TSSL"
+
+    public final static byte VERSION = 1;
+
+    /**
+     * Content length used for tombstones (deleted entries), since their
+     * deletion status matters for synchronization but length does not.
+     */
+    public final static long DELETED_LENGTH = -1L;
+
+    /**
+     * Maximum length of a single key; used for sanity checking
+     */
+    protected final static int MAX_KEY_LENGTH = 0xFFFF;
+
+    /**
+     * Comparator for ordering entries by raw key bytes, compared as
+     * unsigned values.
+     */
+    public final static Comparator<Entry> KEY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            byte[] b1 = e1.key.asBytes();
+            byte[] b2 = e2.key.asBytes();
+            for (int i = 0, end = Math.min(b1.length, b2.length); i < end; ++i) {
+                int diff = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return b1.length - b2.length;
+        }
+    };
+
+    private BasicTSSyncListFormat() { }
+
+    /*
+    /**********************************************************************
+    /* Encoding
+    /**********************************************************************
+     */
+
+    /**
+     * Method for encoding given entries as a single frame. Entries need not
+     * be in any specific order; they are sorted by key before encoding.
+     */
+    public static byte[] encode(Collection<Entry> entries) throws IOException
+    {
+        List<Entry> sorted = new ArrayList<Entry>(entries);
+        Collections.sort(sorted, KEY_ORDER);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 20 * sorted.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        // header; length is filled in when known
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(0);
+
+        _writeVInt(out, sorted.size());
+        byte[] prev = new byte[0];
+        for (Entry entry : sorted) {
+            byte[] key = entry.key.asBytes();
+            int shared = _sharedPrefix(prev, key);
+            _writeVInt(out, shared);
+            _writeVInt(out, key.length - shared);
+            out.write(key, shared, key.length - shared);
+            prev = key;
+        }
+        long prevTime = 0L;
+        for (Entry entry : sorted) {
+            _writeVLong(out, _zigzag(entry.lastModified - prevTime));
+            prevTime = entry.lastModified;
+        }
+        for (Entry entry : sorted) {
+            out.writeInt(entry.hash);
+        }
+        for (Entry entry : sorted) {
+            _writeVLong(out, entry.length);
+        }
+        out.flush();
+
+        byte[] result = bytes.toByteArray();
+        int len = result.length - 9;
+        result[5] = (byte) (len >> 24);
+        result[6] = (byte) (len >> 16);
+        result[7] = (byte) (len >> 8);
+        result[8] = (byte) len;
+        return result;
+    }
+
+    /*
+    /**********************************************************************
+    /* Decoding
+    /**********************************************************************
+     */
+
+    /**
+     * Method for decoding a single frame from given input.
+     *
+     * @param maxEntries Maximum number of entries to accept
+     *
+     * @return Entries decoded, in key order
+     */
+    public static List<Entry> decode(DataInputStream in, int maxEntries) throws IOException
+    {
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("Invalid sync list frame: unexpected magic value 0x"
+                    +Integer.toHexString(magic));
+        }
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported sync list frame version "+version);
+        }
+        in.readInt(); // frame length, not needed when reading sequentially
+
+        final int count = _readVInt(in);
+        if (count < 0 || count > maxEntries) {
+            throw new IOException("Invalid entry count ("+count+"): must be between 0 and "+maxEntries);
+        }
+        byte[][] keys = new byte[count][];
+        byte[] prev = new byte[0];
+        for (int i = 0; i < count; ++i) {
+            int shared = _readVInt(in);
+            int rest = _readVInt(in);
+            if (shared < 0 || shared > prev.length || rest < 0 || (shared + rest) > MAX_KEY_LENGTH) {
+                throw new IOException("Invalid key #"+i+": shared prefix "+shared+", rest "+rest);
+            }
+            byte[] key = new byte[shared + rest];
+            System.arraycopy(prev, 0, key, 0, shared);
+            in.readFully(key, shared, rest);
+            keys[i] = key;
+            prev = key;
+        }
+        long[] times = new long[count];
+        long prevTime = 0L;
+        for (int i = 0; i < count; ++i) {
+            prevTime += _unzigzag(_readVLong(in));
+            times[i] = prevTime;
+        }
+        int[] hashes = new int[count];
+        for (int i = 0; i < count; ++i) {
+            hashes[i] = in.readInt();
+        }
+        List<Entry> result = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; ++i) {
+            result.add(new Entry(new StorableKey(keys[i]), times[i], hashes[i], _readVLong(in)));
+        }
+        return result;
+    }
+
+    /**
+     * Method for decoding a sync list response in this format: frames are
+     * decoded up to and including the empty end marker frame, and the rest
+     * of the response is left to be read (as JSON) from the input.
+     *
+     * @param maxEntries Maximum number of entries to accept, in all frames
+     *
+     * @return Entries decoded, frames in the order received (and entries
+     *   of each frame in key order)
+     */
+    public static List<Entry> decodeResponse(InputStream in, int maxEntries) throws IOException
+    {
+        // must not read past the frames, so no buffering here
+        DataInputStream data = new DataInputStream(in);
+        List<Entry> result = new ArrayList<Entry>();
+        while (true) {
+            List<Entry> frame = decode(data, maxEntries - result.size());
+            if (frame.isEmpty()) {
+                return result;
+            }
+            result.addAll(frame);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    protected static int _sharedPrefix(byte[] b1, byte[] b2)
+    {
+        int i = 0;
+        for (int end = Math.min(b1.length, b2.length); i < end && b1[i] == b2[i]; ++i) { }
+        return i;
+    }
+
+    protected static long _zigzag(long l) {
+        return (l << 1) ^ (l >> 63);
+    }
+
+    protected static long _unzigzag(long l) {
+        return (l >>> 1) ^ -(l & 1);
+    }
+
+    protected static void _writeVInt(DataOutputStream out, int i) throws IOException {
+        _writeVLong(out, i & 0xFFFFFFFFL);
+    }
+
+    protected static void _writeVLong(DataOutputStream out, long l) throws IOException
+    {
+        while ((l & ~0x7FL) != 0L) {
+            out.writeByte((int) ((l & 0x7F) | 0x80));
+            l >>>= 7;
+        }
+        out.writeByte((int) l);
+    }
+
+    protected static int _readVInt(DataInputStream in) throws IOException
+    {
+        long l = _readVLong(in);
+        if (l > 0xFFFFFFFFL) {
+            throw new IOException("Invalid variable-length int: value too big");
+        }
+        return (int) l;
+    }
+
+    protected static long _readVLong(DataInputStream in) throws IOException
+    {
+        long result = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= ((long) (b & 0x7F)) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Invalid variable-length long: too many bytes");
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Information on a single entry included in sync list.
+     */
+    public static class Entry
+    {
+        public final StorableKey key;
+
+        /**
+         * Last-modified time of entry, in usual JDK milliseconds since epoch.
+         */
+        public final long lastModified;
+
+        public final int hash;
+
+        /**
+         * Uncompressed content length; {@link #DELETED_LENGTH} for tombstones.
+         */
+        public final long length;
+
+        public Entry(StorableKey key, long lastModified, int hash, long length)
+        {
+            this.key = key;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.length = length;
+        }
+
+        public boolean isDeleted() {
+            return length == DELETED_LENGTH;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.fasterxml.transistore.basic;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.StorableKey;
+
+public class BasicTSBatchFormatTest extends TestCase
+{
+    protected final BasicTSKeyConverter _keyConverter = BasicTSKeyConverter.defaultInstance();
+
+    public void testKeys() throws IOException
+    {
+        List<StorableKey> keys = Arrays.asList(
+                _keyConverter.construct("p", "/a").asStorableKey(),
+                _keyConverter.construct("/b/c").asStorableKey());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        BasicTSBatchFormat.writeKeys(out, keys);
+        out.close();
+
+        List<StorableKey> result = BasicTSBatchFormat.readKeys(_input(bytes), 10);
+        assertEquals(keys, result);
+
+        // and should enforce the limit
+        try {
+            BasicTSBatchFormat.readKeys(_input(bytes), 1);
+            fail("Should not pass");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Invalid key count"));
+        }
+    }
+
+    public void testItems() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        BasicTSBatchFormat.writeItem(out, BasicTSBatchFormat.STATUS_OK, new byte[] { 1, 2, 3 });
+        BasicTSBatchFormat.writeItem(out, BasicTSBatchFormat.STATUS_NOT_FOUND, null);
+        out.close();
+
+        DataInputStream in = _input(bytes);
+        assertEquals(BasicTSBatchFormat.STATUS_OK, in.readByte());
+        assertEquals(3, BasicTSBatchFormat.readBytes(in, 100).length);
+        assertEquals(BasicTSBatchFormat.STATUS_NOT_FOUND, in.readByte());
+        assertEquals(-1, in.read());
+    }
+
+    public void testItemsWithInfo() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        BasicTSBatchFormat.writeItemWithInfo(out, BasicTSBatchFormat.STATUS_OK, new byte[] { 1, 2 }, 123, 4567L);
+        BasicTSBatchFormat.writeItemWithInfo(out, BasicTSBatchFormat.STATUS_NOT_INCLUDED, null, -5, 89L);
+        BasicTSBatchFormat.writeItemWithInfo(out, BasicTSBatchFormat.STATUS_NOT_FOUND, null, 0, 0L);
+        out.close();
+
+        DataInputStream in = _input(bytes);
+        assertEquals(BasicTSBatchFormat.STATUS_OK, in.readByte());
+        assertEquals(123, in.readInt());
+        assertEquals(4567L, in.readLong());
+        assertEquals(2, BasicTSBatchFormat.readBytes(in, 100).length);
+        assertEquals(BasicTSBatchFormat.STATUS_NOT_INCLUDED, in.readByte());
+        assertEquals(-5, in.readInt());
+        assertEquals(89L, in.readLong());
+        assertEquals(BasicTSBatchFormat.STATUS_NOT_FOUND, in.readByte());
+        assertEquals(-1, in.read());
+    }
+
+    protected DataInputStream _input(ByteArrayOutputStream bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
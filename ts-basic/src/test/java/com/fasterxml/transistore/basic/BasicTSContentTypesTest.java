@@ -0,0 +1,46 @@
+package com.fasterxml.transistore.basic;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class BasicTSContentTypesTest extends TestCase
+{
+    public void testNegotiation()
+    {
+        assertTrue(BasicTSContentTypes.acceptsSmile(BasicTSContentTypes.ACCEPT_SMILE_OR_JSON));
+        assertTrue(BasicTSContentTypes.acceptsSmile("Application/X-Jackson-Smile"));
+        assertFalse(BasicTSContentTypes.acceptsSmile("application/json"));
+        assertFalse(BasicTSContentTypes.acceptsSmile(null));
+        // quality values: "q=0" means "not acceptable"
+        assertTrue(BasicTSContentTypes.acceptsSmile("application/json, application/x-jackson-smile;q=0.1"));
+        assertFalse(BasicTSContentTypes.acceptsSmile("application/x-jackson-smile;q=0, application/json"));
+        assertFalse(BasicTSContentTypes.acceptsSmile("application/x-jackson-smile; level=1; q=0.00"));
+        // must match whole type, and wildcards do not count
+        assertFalse(BasicTSContentTypes.acceptsSmile("application/x-jackson-smile-ext"));
+        assertFalse(BasicTSContentTypes.acceptsSmile("*/*"));
+
+        assertTrue(BasicTSContentTypes.isSmile("application/x-jackson-smile"));
+        assertFalse(BasicTSContentTypes.isSmile("application/json; charset=UTF-8"));
+        assertFalse(BasicTSContentTypes.isSmile(null));
+    }
+
+    public void testSmileRoundtrip() throws Exception
+    {
+        ObjectMapper mapper = new ObjectMapper();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonGenerator gen = BasicTSContentTypes.smileFactory(mapper).createGenerator(bytes);
+        mapper.writeValue(gen, new int[] { 1, 2, 3 });
+        gen.close();
+
+        JsonParser p = BasicTSContentTypes.smileFactory(mapper).createParser(bytes.toByteArray());
+        int[] result = mapper.readValue(p, int[].class);
+        p.close();
+        assertEquals(3, result.length);
+        assertEquals(3, result[2]);
+    }
+}
@@ -55,4 +55,19 @@ public class BasicTSKeyTest  extends TestCase
         assertNull(key.getPartitionId());
         assertEquals("/dir/file2", key.getPath());
     }
+
+    public void testHasPrefix()
+    {
+        BasicTSKey prefix = _keyConverter.construct("team1", "/dir/");
+        assertTrue(BasicTSKeyConverter.hasPrefix(_keyConverter.construct("team1", "/dir/file").asStorableKey(),
+                prefix.asStorableKey()));
+        assertTrue(BasicTSKeyConverter.hasPrefix(prefix.asStorableKey(), prefix.asStorableKey()));
+        assertFalse(BasicTSKeyConverter.hasPrefix(_keyConverter.construct("team1", "/dir").asStorableKey(),
+                prefix.asStorableKey()));
+        assertFalse(BasicTSKeyConverter.hasPrefix(_keyConverter.construct("team1", "/dis/file").asStorableKey(),
+                prefix.asStorableKey()));
+        // partition id is part of the prefix, including its length in key header
+        assertFalse(BasicTSKeyConverter.hasPrefix(_keyConverter.construct("team12", "/dir/file").asStorableKey(),
+                prefix.asStorableKey()));
+    }
 }
@@ -0,0 +1,36 @@
+package com.fasterxml.transistore.basic;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.StorableKey;
+
+public class BasicTSListStreamTest extends TestCase
+{
+    protected final BasicTSKeyConverter _keyConverter = BasicTSKeyConverter.defaultInstance();
+
+    public void testCursorRoundtrip()
+    {
+        StorableKey key = _keyConverter.construct("part", "/a/b c").asStorableKey();
+        String cursor = BasicTSListStream.cursorFor(key);
+        assertEquals(key.length() * 2, cursor.length());
+        assertEquals(key, BasicTSListStream.keyFromCursor(cursor));
+        // upper case also accepted
+        assertEquals(key, BasicTSListStream.keyFromCursor(cursor.toUpperCase()));
+    }
+
+    public void testInvalidCursor()
+    {
+        try {
+            BasicTSListStream.keyFromCursor("abc");
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("odd length"));
+        }
+        try {
+            BasicTSListStream.keyFromCursor("0g");
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("unexpected character"));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.fasterxml.transistore.basic;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.StorableKey;
+
+public class BasicTSSyncListFormatTest extends TestCase
+{
+    protected final BasicTSKeyConverter _keyConverter = BasicTSKeyConverter.defaultInstance();
+
+    public void testRoundtrip() throws IOException
+    {
+        List<BasicTSSyncListFormat.Entry> entries = new ArrayList<BasicTSSyncListFormat.Entry>();
+        long time = 1400000000000L;
+        for (int i = 0; i < 100; ++i) {
+            // time stamps not in key order, to verify negative deltas
+            long modTime = time + ((i * 37) % 100) * 1000L;
+            entries.add(new BasicTSSyncListFormat.Entry(_key("partition", "/logs/2014/entry-"+(100-i)),
+                    modTime, i * 0x01020304, i * 1000L));
+        }
+        entries.add(new BasicTSSyncListFormat.Entry(_key("a", ""), 0L, -1, 0L));
+        entries.add(new BasicTSSyncListFormat.Entry(_key("b", "/deleted"), time, 3,
+                BasicTSSyncListFormat.DELETED_LENGTH));
+        byte[] encoded = BasicTSSyncListFormat.encode(entries);
+
+        List<BasicTSSyncListFormat.Entry> result = BasicTSSyncListFormat.decode(
+                new DataInputStream(new ByteArrayInputStream(encoded)), 1000);
+        assertEquals(entries.size(), result.size());
+
+        List<BasicTSSyncListFormat.Entry> exp = new ArrayList<BasicTSSyncListFormat.Entry>(entries);
+        Collections.sort(exp, BasicTSSyncListFormat.KEY_ORDER);
+        for (int i = 0; i < exp.size(); ++i) {
+            BasicTSSyncListFormat.Entry e1 = exp.get(i);
+            BasicTSSyncListFormat.Entry e2 = result.get(i);
+            assertEquals(e1.key, e2.key);
+            assertEquals(e1.lastModified, e2.lastModified);
+            assertEquals(e1.hash, e2.hash);
+            assertEquals(e1.length, e2.length);
+            assertEquals(e1.isDeleted(), e2.isDeleted());
+            assertEquals(e1.key.equals(_key("b", "/deleted")), e2.isDeleted());
+        }
+
+        // front-coding should make this much smaller than plain keys
+        int keyBytes = 0;
+        for (BasicTSSyncListFormat.Entry entry : entries) {
+            keyBytes += entry.key.length();
+        }
+        assertTrue(encoded.length < keyBytes);
+
+        // and frame length should match
+        int frameLength = new DataInputStream(new ByteArrayInputStream(encoded, 5, 4)).readInt();
+        assertEquals(encoded.length - 9, frameLength);
+    }
+
+    public void testInvalid() throws IOException
+    {
+        byte[] encoded = BasicTSSyncListFormat.encode(Arrays.asList(
+                new BasicTSSyncListFormat.Entry(_key("p", "/a"), 1L, 1, 1L),
+                new BasicTSSyncListFormat.Entry(_key("p", "/b"), 2L, 2, 2L)));
+        try {
+            BasicTSSyncListFormat.decode(new DataInputStream(new ByteArrayInputStream(encoded)), 1);
+            fail("Should not pass");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Invalid entry count"));
+        }
+        encoded[0] = 0;
+        try {
+            BasicTSSyncListFormat.decode(new DataInputStream(new ByteArrayInputStream(encoded)), 10);
+            fail("Should not pass");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("magic"));
+        }
+    }
+
+    public void testResponse() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(BasicTSSyncListFormat.encode(Arrays.asList(
+                new BasicTSSyncListFormat.Entry(_key("p", "/b"), 1L, 1, 1L),
+                new BasicTSSyncListFormat.Entry(_key("p", "/a"), 2L, 2, 2L))));
+        bytes.write(BasicTSSyncListFormat.encode(Arrays.asList(
+                new BasicTSSyncListFormat.Entry(_key("p", "/0"), 3L, 3, 3L))));
+        bytes.write(BasicTSSyncListFormat.encode(Collections.<BasicTSSyncListFormat.Entry>emptyList()));
+        bytes.write("{\"lastSeen\":3}".getBytes("UTF-8"));
+        InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        List<BasicTSSyncListFormat.Entry> entries = BasicTSSyncListFormat.decodeResponse(in, 10);
+        // frames in order received, entries within frames in key order
+        assertEquals(3, entries.size());
+        assertEquals(_key("p", "/a"), entries.get(0).key);
+        assertEquals(_key("p", "/b"), entries.get(1).key);
+        assertEquals(_key("p", "/0"), entries.get(2).key);
+        // rest of response must be left for caller to read
+        byte[] rest = new byte[100];
+        int count = in.read(rest);
+        assertEquals("{\"lastSeen\":3}", new String(rest, 0, count, "UTF-8"));
+
+        // and limit applies to all frames
+        try {
+            BasicTSSyncListFormat.decodeResponse(new ByteArrayInputStream(bytes.toByteArray()), 2);
+            fail("Should not pass");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Invalid entry count"));
+        }
+    }
+
+    private StorableKey _key(String partition, String path) {
+        return _keyConverter.construct(partition, path).asStorableKey();
+    }
+}
@@ -0,0 +1,748 @@
+package com.fasterxml.transistore.client.ahc;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.Response;
+
+import com.fasterxml.storemate.shared.IpAndPort;
+
+import com.fasterxml.clustermate.client.NodesForKey;
+import com.fasterxml.clustermate.client.operation.OperationConfig;
+
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.client.BasicTSClient;
+import com.fasterxml.transistore.client.BasicTSClientConfig;
+import com.fasterxml.transistore.client.NodeLatencyTracker;
+import com.fasterxml.transistore.client.TSFuture;
+import com.fasterxml.transistore.client.TSHedgingPolicy;
+import com.fasterxml.transistore.client.TSPutCallParameters;
+
+/**
+ * Asynchronous variant of basic single-entry GET and PUT operations,
+ * built directly on non-blocking AHC requests: calls return a
+ * {@link TSFuture} right away, so that a single thread can drive
+ * thousands of concurrent operations, instead of needing one thread
+ * per operation as with blocking operations of {@link BasicTSClient}.
+ *<p>
+ * Number of requests in flight for each server node is bounded; requests
+ * beyond that are queued (without blocking the caller), and sent as
+ * earlier requests complete. Routing uses cluster view of the
+ * {@link BasicTSClient} given, and configured minimal/optimal success
+ * counts are used for PUTs.
+ *<p>
+ * Reads may also be hedged (see {@link TSHedgingPolicy}): if the first
+ * server node has not responded within a delay, the same read is sent
+ * to the next replica, the first response is used and the other request
+ * cancelled.
+ */
+public class AsyncTSClient
+{
+    public final static int DEFAULT_MAX_IN_FLIGHT_PER_NODE = 20;
+
+    protected final BasicTSClient _client;
+
+    protected final BasicTSClientConfig _config;
+
+    protected final AsyncHttpClient _httpClient;
+
+    protected final int _maxInFlightPerNode;
+
+    protected final ConcurrentHashMap<IpAndPort,NodeQueue> _queues
+        = new ConcurrentHashMap<IpAndPort,NodeQueue>();
+
+    /**
+     * Hedging policy used for reads, unless overridden per call; null
+     * for no hedging.
+     */
+    protected final TSHedgingPolicy _hedging;
+
+    protected final NodeLatencyTracker _latencies;
+
+    /**
+     * Timer used for sending hedged reads
+     */
+    protected final ScheduledExecutorService _hedgeTimer;
+
+    /*
+    /**********************************************************************
+    /* Metrics
+    /**********************************************************************
+     */
+
+    protected final AtomicLong _reads = new AtomicLong();
+
+    protected final AtomicLong _hedgedReads = new AtomicLong();
+
+    protected final AtomicLong _hedgeWins = new AtomicLong();
+
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    public AsyncTSClient(BasicTSClient client, BasicTSClientConfig config) {
+        this(client, config, DEFAULT_MAX_IN_FLIGHT_PER_NODE, null);
+    }
+
+    public AsyncTSClient(BasicTSClient client, BasicTSClientConfig config,
+            int maxInFlightPerNode) {
+        this(client, config, maxInFlightPerNode, null);
+    }
+
+    /**
+     * @param hedging Hedging policy to use for reads; null for no hedging
+     */
+    public AsyncTSClient(BasicTSClient client, BasicTSClientConfig config,
+            int maxInFlightPerNode, TSHedgingPolicy hedging)
+    {
+        if (maxInFlightPerNode < 1) {
+            throw new IllegalArgumentException("Invalid maxInFlightPerNode ("+maxInFlightPerNode+")");
+        }
+        _client = client;
+        _config = config;
+        _maxInFlightPerNode = maxInFlightPerNode;
+        _hedging = hedging;
+        _latencies = client.getLatencyTracker();
+        _hedgeTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TSClientHedge");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // since requests are queued per node, need a connection for each request in flight
+        _httpClient = new AsyncHttpClient(new AsyncHttpClientConfig.Builder()
+                .setMaximumConnectionsTotal(-1)
+                .setMaximumConnectionsPerHost(maxInFlightPerNode)
+                .build());
+    }
+
+    public void stop() {
+        _hedgeTimer.shutdownNow();
+        _httpClient.close();
+    }
+
+    /**
+     * @return Number of reads (GETs) started
+     */
+    public long getReadCount() {
+        return _reads.get();
+    }
+
+    /**
+     * @return Number of hedged reads sent (to a second replica)
+     */
+    public long getHedgedReadCount() {
+        return _hedgedReads.get();
+    }
+
+    /**
+     * @return Number of hedged reads that completed before the original
+     *    read
+     */
+    public long getHedgeWinCount() {
+        return _hedgeWins.get();
+    }
+
+    /**
+     * @return Ratio of reads for which hedged read was sent
+     */
+    public double getHedgeRate() {
+        long reads = _reads.get();
+        return (reads == 0L) ? 0.0 : ((double) _hedgedReads.get()) / reads;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Method for fetching contents of given entry. Server nodes are tried
+     * in order until one returns the entry; if none has it, future
+     * completes with null; if all fail, with the last failure.
+     * Default hedging policy of this client is used, if any.
+     */
+    public TSFuture<byte[]> getContentAsBytes(BasicTSKey key) {
+        return getContentAsBytes(_hedging, key);
+    }
+
+    /**
+     * Method for fetching contents of given entry, using specified hedging
+     * policy (or none, if null).
+     */
+    public TSFuture<byte[]> getContentAsBytes(TSHedgingPolicy hedging, BasicTSKey key)
+    {
+        TSFuture<byte[]> result = new TSFuture<byte[]>();
+        NodesForKey nodes = _client.getCluster().getNodesFor(key);
+        if (nodes.size() == 0) {
+            result.fail(new IOException("No server nodes found for key "+key));
+            return result;
+        }
+        _reads.incrementAndGet();
+        ReadState state = new ReadState(key, nodes, _latencies.readOrder(nodes),
+                (nodes.size() > 1) ? hedging : null, result);
+        _read(state, false);
+        return result;
+    }
+
+    /**
+     * Method for adding given entry: it is sent to optimal number of
+     * server nodes concurrently (and if some fail, to other nodes for
+     * the key, if any). Future completes with number of nodes that
+     * stored the entry, if at least minimal number did; otherwise
+     * it fails.
+     */
+    public TSFuture<Integer> putContent(TSPutCallParameters params, BasicTSKey key, byte[] data)
+    {
+        TSFuture<Integer> result = new TSFuture<Integer>();
+        NodesForKey nodes = _client.getCluster().getNodesFor(key);
+        OperationConfig opConfig = _config.getOperationConfig();
+        int count = Math.min(nodes.size(), opConfig.getOptimalOks());
+        if (count < opConfig.getMinimalOksToSucceed()) {
+            result.fail(new IOException("Only "+nodes.size()+" server nodes found for key "+key
+                    +", need at least "+opConfig.getMinimalOksToSucceed()));
+            return result;
+        }
+        String query = (params == null) ? null : params.asQueryString();
+        PutState state = new PutState(key, data, query, nodes, count,
+                opConfig.getMinimalOksToSucceed(), result);
+        for (int i = 0; i < count; ++i) {
+            _put(state, i);
+        }
+        return result;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method for sending read to the next node for the key, if any are left;
+     * nodes are tried in order determined by {@link NodeLatencyTracker#readOrder},
+     * so that the first read usually goes to the node expected to respond
+     * fastest.
+     *
+     * @return True if read was sent; false if no nodes were left
+     */
+    protected boolean _read(final ReadState state, final boolean hedge)
+    {
+        final int index = state.nextNode.getAndIncrement();
+        if (index >= state.nodes.size()) {
+            return false;
+        }
+        state.outstanding.incrementAndGet();
+        final IpAndPort server = state.nodes.node(state.order[index]).getAddress();
+        final ReadAttempt attempt = new ReadAttempt(server, _queueFor(server), _latencies, hedge);
+        state.attempts.add(attempt);
+        attempt.queue.submit(new Runnable() {
+            @Override
+            public void run() {
+                // may have been completed while queued
+                if (state.result.isDone()) {
+                    attempt.release(false);
+                    _readDone(state);
+                    return;
+                }
+                try {
+                    attempt.start();
+                    attempt.request = _httpClient.prepareGet(_client.entryUrl(server, state.key))
+                            .execute(new AsyncCompletionHandler<Void>() {
+                        @Override
+                        public Void onCompleted(Response resp) throws IOException {
+                            int status = resp.getStatusCode();
+                            attempt.release(status == 200 || status == 404);
+                            _readCompleted(state, attempt, resp);
+                            return null;
+                        }
+
+                        @Override
+                        public void onThrowable(Throwable t) {
+                            attempt.release(false);
+                            _readFailed(state, t);
+                        }
+                    });
+                } catch (IOException e) {
+                    attempt.release(false);
+                    _readFailed(state, e);
+                    return;
+                }
+                if (state.hedging != null && index == 0) {
+                    _scheduleHedge(state, state.hedging.delayFor(_latencies, server));
+                }
+            }
+        });
+        return true;
+    }
+
+    protected void _readCompleted(ReadState state, ReadAttempt attempt, Response resp)
+        throws IOException
+    {
+        final int status = resp.getStatusCode();
+        if (status == 200) {
+            if (state.result.complete(resp.getResponseBodyAsBytes())) {
+                if (attempt.hedge) {
+                    _hedgeWins.incrementAndGet();
+                }
+                state.cancelOthers(attempt);
+            }
+            _readDone(state);
+        } else if (status == 404) {
+            _readFailed(state, null);
+        } else {
+            _readFailed(state, new IOException("GET from "+attempt.server+" failed with status "+status));
+        }
+    }
+
+    /**
+     * Method called when read from a node fails, or node does not have
+     * the entry: read is sent to the next node, if any are left.
+     */
+    protected void _readFailed(ReadState state, Throwable fail)
+    {
+        if (!state.result.isDone()) {
+            if (fail != null) {
+                state.lastFail = fail;
+            }
+            _read(state, false);
+        }
+        _readDone(state);
+    }
+
+    protected void _readDone(ReadState state)
+    {
+        if (state.outstanding.decrementAndGet() == 0) {
+            Throwable fail = state.lastFail;
+            if (fail == null) {
+                state.result.complete(null);
+            } else {
+                state.result.fail(fail);
+            }
+        }
+    }
+
+    protected void _scheduleHedge(final ReadState state, int delayMsecs)
+    {
+        try {
+            _hedgeTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!state.result.isDone() && _allowHedge(state.hedging)) {
+                        if (!_read(state, true)) { // no nodes left after all
+                            _hedgedReads.decrementAndGet();
+                        }
+                    }
+                }
+            }, delayMsecs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) { // client stopped
+        }
+    }
+
+    /**
+     * Hedges are only allowed up to the maximum ratio of all reads; if
+     * allowed, hedge is counted right away.
+     */
+    protected boolean _allowHedge(TSHedgingPolicy hedging) {
+        return hedging.tryHedge(_hedgedReads, _reads.get());
+    }
+
+    protected void _put(final PutState state, int index)
+    {
+        final IpAndPort server = state.nodes.node(index).getAddress();
+        String url;
+        try {
+            url = _client.entryUrl(server, state.key);
+        } catch (IOException e) {
+            state.failed(e);
+            return;
+        }
+        if (state.query != null) {
+            url = url + (url.endsWith("?") ? "" : "&") + state.query;
+        }
+        final String putUrl = url;
+        final NodeQueue queue = _queueFor(server);
+        queue.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    _httpClient.preparePut(putUrl).setBody(state.data)
+                        .execute(new AsyncCompletionHandler<Void>() {
+                        @Override
+                        public Void onCompleted(Response resp) {
+                            queue.done();
+                            int status = resp.getStatusCode();
+                            if (status == 200) {
+                                state.succeeded();
+                            } else {
+                                IOException fail = new IOException("PUT to "+server+" failed with status "+status);
+                                // no point in sending invalid (or conflicting) request to other nodes
+                                if (_isClientError(status)) {
+                                    state.rejected(fail);
+                                } else {
+                                    _putFailed(state, fail);
+                                }
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public void onThrowable(Throwable t) {
+                            queue.done();
+                            _putFailed(state, t);
+                        }
+                    });
+                } catch (IOException e) {
+                    queue.done();
+                    _putFailed(state, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Failed PUTs are retried on other nodes for the key, if any are left,
+     * unless the operation has already failed.
+     */
+    protected void _putFailed(PutState state, Throwable t)
+    {
+        if (state.result.isDone()) {
+            state.failed(t);
+            return;
+        }
+        int next = state.nextNode.getAndIncrement();
+        if (next < state.nodes.size()) {
+            state.lastFail = t;
+            _put(state, next);
+        } else {
+            state.failed(t);
+        }
+    }
+
+    /**
+     * Helper method for checking whether given status code indicates a
+     * problem with the request itself (like 409 for conflicting content),
+     * in which case it should not be retried with other nodes. Timeouts
+     * (408) and throttling (429) are not considered such problems.
+     */
+    protected static boolean _isClientError(int status) {
+        return (status >= 400 && status < 500) && (status != 408) && (status != 429);
+    }
+
+    protected NodeQueue _queueFor(IpAndPort server)
+    {
+        NodeQueue queue = _queues.get(server);
+        if (queue == null) {
+            queue = new NodeQueue(_maxInFlightPerNode);
+            NodeQueue old = _queues.putIfAbsent(server, queue);
+            if (old != null) {
+                queue = old;
+            }
+        }
+        return queue;
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Queue of requests for a single server node: only up to specified
+     * number of requests are in flight at any given time, rest are
+     * kept queued until earlier ones complete.
+     *<p>
+     * Queued requests are sent by the thread that submits a request or
+     * completes one, but in a loop: if sending a request fails right away
+     * (and calls {@link #done}), the next one is sent by the loop instead
+     * of a nested call, so that the stack does not grow with the number
+     * of queued requests.
+     */
+    protected static class NodeQueue
+    {
+        protected final int _maxInFlight;
+
+        protected final ArrayDeque<Runnable> _pending = new ArrayDeque<Runnable>();
+
+        protected int _inFlight;
+
+        /**
+         * Whether some thread is currently sending queued requests
+         */
+        protected boolean _sending;
+
+        public NodeQueue(int maxInFlight) {
+            _maxInFlight = maxInFlight;
+        }
+
+        public void submit(Runnable request)
+        {
+            synchronized (this) {
+                _pending.add(request);
+            }
+            _sendPending();
+        }
+
+        /**
+         * Method called when a request completes, to send the next
+         * queued request (if any).
+         */
+        public void done()
+        {
+            synchronized (this) {
+                --_inFlight;
+            }
+            _sendPending();
+        }
+
+        public synchronized int getPendingCount() {
+            return _pending.size();
+        }
+
+        public synchronized int getInFlightCount() {
+            return _inFlight;
+        }
+
+        protected void _sendPending()
+        {
+            synchronized (this) {
+                if (_sending) { // whoever is sending will also send this one
+                    return;
+                }
+                _sending = true;
+            }
+            while (true) {
+                Runnable next;
+                synchronized (this) {
+                    if (_inFlight >= _maxInFlight || (next = _pending.poll()) == null) {
+                        _sending = false;
+                        return;
+                    }
+                    ++_inFlight;
+                }
+                boolean sent = false;
+                try {
+                    next.run();
+                    sent = true;
+                } finally {
+                    if (!sent) { // unexpected exception; let caller see it, but keep queue usable
+                        synchronized (this) {
+                            --_inFlight;
+                            _sending = false;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * State of a single read operation, possibly sent to multiple nodes
+     */
+    protected static class ReadState
+    {
+        public final BasicTSKey key;
+        public final NodesForKey nodes;
+
+        /**
+         * Indexes of nodes (in {@link #nodes}) in order in which to try them
+         */
+        public final int[] order;
+
+        public final TSHedgingPolicy hedging;
+        public final TSFuture<byte[]> result;
+
+        /**
+         * Index of the next node to send read to
+         */
+        public final AtomicInteger nextNode = new AtomicInteger();
+
+        /**
+         * Number of reads sent (or queued) but not yet completed
+         */
+        public final AtomicInteger outstanding = new AtomicInteger();
+
+        public final List<ReadAttempt> attempts
+            = Collections.synchronizedList(new ArrayList<ReadAttempt>(2));
+
+        public volatile Throwable lastFail;
+
+        public ReadState(BasicTSKey key, NodesForKey nodes, int[] order,
+                TSHedgingPolicy hedging, TSFuture<byte[]> result)
+        {
+            this.key = key;
+            this.nodes = nodes;
+            this.order = order;
+            this.hedging = hedging;
+            this.result = result;
+        }
+
+        /**
+         * Method called once a read succeeds, to cancel other reads still
+         * in flight.
+         */
+        public void cancelOthers(ReadAttempt winner)
+        {
+            synchronized (attempts) {
+                for (ReadAttempt attempt : attempts) {
+                    if (attempt != winner) {
+                        attempt.cancel();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Single read request sent to a single node
+     */
+    protected static class ReadAttempt
+    {
+        public final IpAndPort server;
+        public final NodeQueue queue;
+        public final boolean hedge;
+
+        protected final NodeLatencyTracker _latencies;
+
+        protected final AtomicBoolean _released = new AtomicBoolean();
+
+        /**
+         * Time request was sent, from {@link System#nanoTime}; 0 if not
+         * (yet) sent
+         */
+        protected volatile long _startNanos;
+
+        public volatile ListenableFuture<Void> request;
+
+        public ReadAttempt(IpAndPort server, NodeQueue queue,
+                NodeLatencyTracker latencies, boolean hedge)
+        {
+            this.server = server;
+            this.queue = queue;
+            _latencies = latencies;
+            this.hedge = hedge;
+        }
+
+        public void start()
+        {
+            _latencies.requestStarted(server);
+            _startNanos = System.nanoTime();
+        }
+
+        /**
+         * Method for releasing the slot of node queue this request used,
+         * and recording its latency if it was sent; only the first call
+         * has effect.
+         *
+         * @param success Whether node responded successfully
+         */
+        public void release(boolean success)
+        {
+            if (_released.compareAndSet(false, true)) {
+                queue.done();
+                final long start = _startNanos;
+                if (start != 0L) {
+                    _latencies.requestFinished(server,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), success);
+                }
+            }
+        }
+
+        public void cancel()
+        {
+            ListenableFuture<Void> f = request;
+            if (f != null && !_released.get()) {
+                f.cancel(true);
+                release(false);
+            }
+        }
+    }
+
+    /**
+     * State of a single PUT operation sent to multiple nodes
+     */
+    protected static class PutState
+    {
+        public final BasicTSKey key;
+        public final byte[] data;
+        public final String query;
+        public final NodesForKey nodes;
+        public final int minOks;
+        public final TSFuture<Integer> result;
+
+        /**
+         * Index of next node to try if a PUT fails
+         */
+        public final AtomicInteger nextNode;
+
+        /**
+         * Number of nodes for which PUT is still in progress
+         */
+        protected final AtomicInteger _pending;
+
+        protected final AtomicInteger _oks = new AtomicInteger();
+
+        public volatile Throwable lastFail;
+
+        public PutState(BasicTSKey key, byte[] data, String query, NodesForKey nodes,
+                int count, int minOks, TSFuture<Integer> result)
+        {
+            this.key = key;
+            this.data = data;
+            this.query = query;
+            this.nodes = nodes;
+            this.minOks = minOks;
+            this.result = result;
+            nextNode = new AtomicInteger(count);
+            _pending = new AtomicInteger(count);
+        }
+
+        public void succeeded() {
+            _oks.incrementAndGet();
+            _finishOne();
+        }
+
+        public void failed(Throwable t) {
+            lastFail = t;
+            _finishOne();
+        }
+
+        /**
+         * Method called when a node rejects the request as invalid: operation
+         * fails right away, without waiting for other nodes.
+         */
+        public void rejected(Throwable t) {
+            lastFail = t;
+            result.fail(t);
+            _finishOne();
+        }
+
+        protected void _finishOne()
+        {
+            if (_pending.decrementAndGet() > 0) {
+                return;
+            }
+            int oks = _oks.get();
+            if (oks >= minOks) {
+                result.complete(oks);
+            } else {
+                result.fail(new IOException("PUT of "+key+" succeeded on only "+oks
+                        +" nodes, needed "+minOks, lastFail));
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.fasterxml.transistore.client.ahc;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.transistore.client.TSFuture;
+
+/**
+ * Tests for the parts of {@link AsyncTSClient} that do not need
+ * server nodes: per-node request queues, and completion of PUTs.
+ */
+public class TestAsyncTSClient extends TestCase
+{
+    public void testQueueBoundsInFlight() throws Exception
+    {
+        AsyncTSClient.NodeQueue queue = new AsyncTSClient.NodeQueue(2);
+        List<Integer> sent = new ArrayList<Integer>();
+        for (int i = 0; i < 5; ++i) {
+            queue.submit(new Request(sent, i));
+        }
+        assertEquals(Arrays.asList(0, 1), sent);
+        assertEquals(2, queue.getInFlightCount());
+        assertEquals(3, queue.getPendingCount());
+
+        // each completion sends the next one, in order submitted
+        queue.done();
+        assertEquals(Arrays.asList(0, 1, 2), sent);
+        queue.done();
+        queue.done();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), sent);
+        assertEquals(2, queue.getInFlightCount());
+        assertEquals(0, queue.getPendingCount());
+        queue.done();
+        queue.done();
+        assertEquals(0, queue.getInFlightCount());
+    }
+
+    public void testSynchronousFailuresDoNotRecurse() throws Exception
+    {
+        final AsyncTSClient.NodeQueue queue = new AsyncTSClient.NodeQueue(1);
+        final AtomicInteger sent = new AtomicInteger();
+        final int[] maxDepth = new int[1];
+        final int baseDepth = Thread.currentThread().getStackTrace().length;
+        // first request stays in flight, so that the rest get queued
+        queue.submit(new Runnable() {
+            @Override
+            public void run() { }
+        });
+        final int count = 100000;
+        for (int i = 0; i < count; ++i) {
+            queue.submit(new Runnable() {
+                @Override
+                public void run() {
+                    sent.incrementAndGet();
+                    maxDepth[0] = Math.max(maxDepth[0], Thread.currentThread().getStackTrace().length);
+                    // as if sending failed right away
+                    queue.done();
+                }
+            });
+        }
+        assertEquals(count, queue.getPendingCount());
+        queue.done();
+        assertEquals(count, sent.get());
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(0, queue.getInFlightCount());
+        // stack depth must not depend on number of requests
+        assertTrue("Stack depth "+maxDepth[0], maxDepth[0] < baseDepth + 20);
+    }
+
+    public void testConcurrentCompletions() throws Exception
+    {
+        final int maxInFlight = 4;
+        final AsyncTSClient.NodeQueue queue = new AsyncTSClient.NodeQueue(maxInFlight);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxSeen = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final int count = 2000;
+        final ExecutorService exec = Executors.newFixedThreadPool(8);
+        try {
+            final CountDownLatch done = new CountDownLatch(count);
+            for (int i = 0; i < count; ++i) {
+                queue.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        int now = inFlight.incrementAndGet();
+                        maxSeen.set(Math.max(maxSeen.get(), now));
+                        // completed by another thread, as with actual requests
+                        exec.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                inFlight.decrementAndGet();
+                                completed.incrementAndGet();
+                                queue.done();
+                                done.countDown();
+                            }
+                        });
+                    }
+                });
+            }
+            assertTrue(done.await(30L, TimeUnit.SECONDS));
+        } finally {
+            exec.shutdown();
+        }
+        assertEquals(count, completed.get());
+        assertTrue(maxSeen.get() <= maxInFlight);
+        assertEquals(0, queue.getInFlightCount());
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    public void testPutCompletion() throws Exception
+    {
+        // 2 nodes, need 1: one failure is fine
+        TSFuture<Integer> result = new TSFuture<Integer>();
+        AsyncTSClient.PutState state = new AsyncTSClient.PutState(null, new byte[1], null, null, 2, 1, result);
+        state.failed(new IOException("Connection refused"));
+        assertFalse(result.isDone());
+        state.succeeded();
+        assertEquals(Integer.valueOf(1), result.get());
+
+        // but not if none succeed
+        result = new TSFuture<Integer>();
+        state = new AsyncTSClient.PutState(null, new byte[1], null, null, 2, 1, result);
+        state.failed(new IOException("Connection refused"));
+        state.failed(new IOException("Timeout"));
+        try {
+            result.get();
+            fail("Should not pass");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("succeeded on only 0 nodes"));
+            assertEquals("Timeout", e.getCause().getCause().getMessage());
+        }
+    }
+
+    public void testPutRejectedFailsFast() throws Exception
+    {
+        TSFuture<Integer> result = new TSFuture<Integer>();
+        AsyncTSClient.PutState state = new AsyncTSClient.PutState(null, new byte[1], null, null, 2, 1, result);
+        IOException conflict = new IOException("PUT failed with status 409");
+        state.rejected(conflict);
+        // fails right away, without waiting for the other node
+        assertTrue(result.isDone());
+        try {
+            result.get();
+            fail("Should not pass");
+        } catch (ExecutionException e) {
+            assertSame(conflict, e.getCause());
+        }
+        state.succeeded();
+        assertFalse(result.complete(1));
+
+        assertTrue(AsyncTSClient._isClientError(400));
+        assertTrue(AsyncTSClient._isClientError(409));
+        assertFalse(AsyncTSClient._isClientError(408));
+        assertFalse(AsyncTSClient._isClientError(429));
+        assertFalse(AsyncTSClient._isClientError(500));
+        assertFalse(AsyncTSClient._isClientError(503));
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    static class Request implements Runnable
+    {
+        protected final List<Integer> _sent;
+
+        protected final int _id;
+
+        public Request(List<Integer> sent, int id) {
+            _sent = sent;
+            _id = id;
+        }
+
+        @Override
+        public void run() {
+            _sent.add(_id);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.fasterxml.transistore.client.jdkhttp;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.fasterxml.storemate.shared.IpAndPort;
+
+import com.fasterxml.clustermate.client.NodesForKey;
+import com.fasterxml.clustermate.client.operation.OperationConfig;
+
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.client.BasicTSClient;
+import com.fasterxml.transistore.client.BasicTSClientConfig;
+import com.fasterxml.transistore.client.NodeLatencyTracker;
+import com.fasterxml.transistore.client.TSPutCallParameters;
+
+/**
+ * Variant of basic single-entry GET and PUT operations built on JDK 11
+ * {@link HttpClient}: concurrent requests to a server node are multiplexed
+ * over a single HTTP/2 connection (for servers that support HTTP/2;
+ * others are accessed using HTTP/1.1), instead of needing a pooled
+ * connection per request in flight.
+ *<p>
+ * Operations block the calling thread, which keeps code using the client
+ * simple; but since requests themselves do not hold on to threads, callers
+ * may use very large numbers of threads (such as JDK 21 virtual threads)
+ * cheaply. Routing uses cluster view of the {@link BasicTSClient} given,
+ * and configured minimal/optimal success counts are used for PUTs, same
+ * as with the {@link BasicTSClient} itself.
+ *<p>
+ * Requires JDK 11 or later.
+ */
+public class JdkHttpTSClient
+{
+    public final static Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10L);
+
+    public final static Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(60L);
+
+    protected final BasicTSClient _client;
+
+    protected final BasicTSClientConfig _config;
+
+    protected final HttpClient _httpClient;
+
+    protected final NodeLatencyTracker _latencies;
+
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    public JdkHttpTSClient(BasicTSClient client, BasicTSClientConfig config) {
+        this(client, config, null);
+    }
+
+    /**
+     * @param executor Executor that {@link HttpClient} should use for
+     *    dispatching; if null, a default (cached thread pool) is used.
+     *    With JDK 21, virtual-thread-per-task executor may be given.
+     */
+    public JdkHttpTSClient(BasicTSClient client, BasicTSClientConfig config,
+            Executor executor)
+    {
+        _client = client;
+        _config = config;
+        _latencies = client.getLatencyTracker();
+        HttpClient.Builder b = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(DEFAULT_CONNECT_TIMEOUT);
+        if (executor != null) {
+            b = b.executor(executor);
+        }
+        _httpClient = b.build();
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Method for fetching contents of given entry. Server nodes are tried
+     * in order determined by {@link NodeLatencyTracker#readOrder}, until one
+     * returns the entry.
+     *
+     * @return Contents of the entry, if found; null if no node had it
+     *
+     * @throws IOException If reads from all nodes failed
+     */
+    public byte[] getContentAsBytes(BasicTSKey key)
+        throws IOException, InterruptedException
+    {
+        NodesForKey nodes = _client.getCluster().getNodesFor(key);
+        if (nodes.size() == 0) {
+            throw new IOException("No server nodes found for key "+key);
+        }
+        IOException fail = null;
+        for (int index : _latencies.readOrder(nodes)) {
+            IpAndPort server = nodes.node(index).getAddress();
+            HttpRequest request = _request(_client.entryUrl(server, key)).GET().build();
+            _latencies.requestStarted(server);
+            final long start = System.nanoTime();
+            boolean success = false;
+            HttpResponse<byte[]> resp;
+            try {
+                resp = _httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                success = (resp.statusCode() == 200) || (resp.statusCode() == 404);
+            } catch (IOException e) {
+                fail = e;
+                continue;
+            } finally {
+                _latencies.requestFinished(server,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), success);
+            }
+            if (resp.statusCode() == 200) {
+                return resp.body();
+            }
+            if (resp.statusCode() != 404) {
+                fail = new IOException("GET from "+server+" failed with status "+resp.statusCode());
+            }
+        }
+        if (fail != null) {
+            throw fail;
+        }
+        return null;
+    }
+
+    /**
+     * Method for adding given entry: it is sent to optimal number of
+     * server nodes concurrently (and if some fail, to other nodes for
+     * the key, if any).
+     *
+     * @return Number of nodes that stored the entry
+     *
+     * @throws IOException If fewer than minimal number of nodes stored the
+     *    entry, or if a node rejected the request as invalid (4xx status)
+     */
+    public int putContent(TSPutCallParameters params, BasicTSKey key, byte[] data)
+        throws IOException, InterruptedException
+    {
+        NodesForKey nodes = _client.getCluster().getNodesFor(key);
+        OperationConfig opConfig = _config.getOperationConfig();
+        final int minOks = opConfig.getMinimalOksToSucceed();
+        int count = Math.min(nodes.size(), opConfig.getOptimalOks());
+        if (count < minOks) {
+            throw new IOException("Only "+nodes.size()+" server nodes found for key "+key
+                    +", need at least "+minOks);
+        }
+        String query = (params == null) ? null : params.asQueryString();
+
+        // First: send to optimal number of nodes concurrently
+        List<IpAndPort> servers = new ArrayList<IpAndPort>(count);
+        List<CompletableFuture<HttpResponse<Void>>> calls = new ArrayList<CompletableFuture<HttpResponse<Void>>>(count);
+        for (int i = 0; i < count; ++i) {
+            IpAndPort server = nodes.node(i).getAddress();
+            servers.add(server);
+            calls.add(_httpClient.sendAsync(_putRequest(server, key, query, data),
+                    HttpResponse.BodyHandlers.discarding()));
+        }
+        int oks = 0;
+        int failed = 0;
+        IOException fail = null;
+        for (int i = 0; i < count; ++i) {
+            IOException problem = _putResult(servers.get(i), calls.get(i));
+            if (problem == null) {
+                ++oks;
+            } else {
+                fail = problem;
+                ++failed;
+            }
+        }
+        // and then, if any failed, retry with remaining nodes, one at a time
+        for (int i = count; (failed > 0) && (i < nodes.size()); ++i) {
+            IpAndPort server = nodes.node(i).getAddress();
+            IOException problem = _putResult(server,
+                    _httpClient.sendAsync(_putRequest(server, key, query, data),
+                            HttpResponse.BodyHandlers.discarding()));
+            if (problem == null) {
+                ++oks;
+                --failed;
+            } else {
+                fail = problem;
+            }
+        }
+        if (oks < minOks) {
+            throw new IOException("PUT of "+key+" succeeded on only "+oks+" nodes (need "+minOks+")",
+                    fail);
+        }
+        return oks;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected HttpRequest.Builder _request(String url) throws IOException
+    {
+        try {
+            return HttpRequest.newBuilder(new URI(url))
+                    .timeout(DEFAULT_REQUEST_TIMEOUT);
+        } catch (Exception e) {
+            throw new IOException("Invalid URL '"+url+"': "+e.getMessage(), e);
+        }
+    }
+
+    protected HttpRequest _putRequest(IpAndPort server, BasicTSKey key, String query, byte[] data)
+        throws IOException
+    {
+        String url = _client.entryUrl(server, key);
+        if (query != null) {
+            url = url + (url.endsWith("?") ? "" : "&") + query;
+        }
+        return _request(url).PUT(HttpRequest.BodyPublishers.ofByteArray(data)).build();
+    }
+
+    /**
+     * Helper method for waiting for a PUT to complete
+     *
+     * @return Null if PUT succeeded; otherwise exception that indicates
+     *    the problem
+     *
+     * @throws IOException If server rejected request as invalid (like 409
+     *    for conflicting content); such requests are not retried
+     */
+    protected IOException _putResult(IpAndPort server, CompletableFuture<HttpResponse<Void>> call)
+        throws IOException, InterruptedException
+    {
+        int status;
+        try {
+            status = call.get().statusCode();
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            return (t instanceof IOException) ? (IOException) t
+                    : new IOException("PUT to "+server+" failed: "+t, t);
+        }
+        if (status == 200) {
+            return null;
+        }
+        IOException fail = new IOException("PUT to "+server+" failed with status "+status);
+        if (_isClientError(status)) {
+            throw fail;
+        }
+        return fail;
+    }
+
+    /**
+     * Helper method for checking whether given status code indicates a
+     * problem with the request itself, in which case it should not be retried
+     * with other nodes. Timeouts (408) and throttling (429) are not
+     * considered such problems.
+     */
+    protected static boolean _isClientError(int status) {
+        return (status >= 400 && status < 500) && (status != 408) && (status != 429);
+    }
+}
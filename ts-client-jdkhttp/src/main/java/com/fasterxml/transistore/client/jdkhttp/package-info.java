@@ -0,0 +1,7 @@
+/**
+ * Package that contains client implementation for accessing
+ * TStore content using JDK 11 <code>java.net.http.HttpClient</code>,
+ * which multiplexes concurrent requests over HTTP/2 connections
+ * (when server supports it).
+ */
+package com.fasterxml.transistore.client.jdkhttp;
@@ -1,29 +1,101 @@
 package com.fasterxml.transistore.client;
 
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.fasterxml.storemate.shared.IpAndPort;
+import com.fasterxml.storemate.shared.StorableKey;
+
 import com.fasterxml.clustermate.api.ClusterStatusAccessor;
 import com.fasterxml.clustermate.api.msg.ItemInfo;
+import com.fasterxml.clustermate.client.CallConfig;
 import com.fasterxml.clustermate.client.ClusterViewByClient;
 import com.fasterxml.clustermate.client.NetworkClient;
+import com.fasterxml.clustermate.client.NodesForKey;
 import com.fasterxml.clustermate.client.StoreClient;
+import com.fasterxml.clustermate.client.operation.OperationConfig;
+import com.fasterxml.clustermate.client.operation.PutOperationResult;
 
+import com.fasterxml.transistore.basic.BasicTSBatchFormat;
+import com.fasterxml.transistore.basic.BasicTSConstants;
+import com.fasterxml.transistore.basic.BasicTSContentTypes;
+import com.fasterxml.transistore.basic.BasicTSDeleteJobStatus;
 import com.fasterxml.transistore.basic.BasicTSKey;
 import com.fasterxml.transistore.basic.BasicTSListItem;
+import com.fasterxml.transistore.basic.BasicTSListStream;
 
 public class BasicTSClient
     extends StoreClient<BasicTSKey, BasicTSClientConfig, ItemInfo>
 {
+    /**
+     * Maximum number of keys to send in a single batch request
+     */
+    protected final static int MAX_KEYS_PER_BATCH = 500;
+
+    /**
+     * Maximum size of entries to add using batch PUTs; bigger ones are
+     * added individually. Same as default limit of server.
+     */
+    protected final static int MAX_BATCH_PUT_ENTRY_SIZE = 4000;
+
+    /**
+     * Executor used for sending batch requests to multiple server
+     * nodes concurrently.
+     */
+    protected final ExecutorService _batchExecutor;
+
+    /**
+     * Factory for parsing Smile-encoded responses
+     */
+    protected final JsonFactory _smileFactory;
+
+    /**
+     * Recently observed response times of server nodes
+     */
+    protected final NodeLatencyTracker _latencies;
+
+    /**
+     * Client-side cache of entry contents, if enabled
+     */
+    protected final TSEntryCache _cache;
+
     public BasicTSClient(BasicTSClientConfig config,
             ClusterStatusAccessor statusAccessor, ClusterViewByClient<BasicTSKey> clusterView,
             NetworkClient<BasicTSKey> httpClientImpl)
     {
         super(config, BasicTSListItem.class, statusAccessor, clusterView, httpClientImpl,
                 _stdItemInfoConverter(config, ItemInfo.class));
+        _batchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TSClientBatch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        _smileFactory = BasicTSContentTypes.smileFactory(config.getJsonMapper());
+        _latencies = new NodeLatencyTracker();
+        _cache = TSEntryCache.construct(config);
     }
 
     protected BasicTSClient(BasicTSClient base, BasicTSClientConfig newConfig) {
         super(base, newConfig);
+        _batchExecutor = base._batchExecutor;
+        _smileFactory = BasicTSContentTypes.smileFactory(newConfig.getJsonMapper());
+        _latencies = base._latencies;
+        _cache = base._cache;
     }
-    
+
     public BasicTSClient withConfig(BasicTSClientConfig config)
     {
         if (config == _config) { // no change? just return this instance
@@ -31,4 +103,712 @@ public class BasicTSClient
         }
         return new BasicTSClient(this, config);
     }
+
+    public NodeLatencyTracker getLatencyTracker() {
+        return _latencies;
+    }
+
+    /**
+     * @return Client-side cache of entries, if enabled; null if not
+     */
+    public TSEntryCache getCache() {
+        return _cache;
+    }
+
+    /**
+     * Overridden to also release client-side cache, if any, including
+     * its on-disk directory.
+     */
+    @Override
+    public void stop()
+    {
+        super.stop();
+        if (_cache != null) {
+            _cache.close();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Batch access
+    /**********************************************************************
+     */
+
+    /**
+     * Method for fetching contents of multiple entries. Keys are grouped by
+     * the primary server node for each key, and each group is fetched with
+     * batch requests (concurrently for different nodes). Entries not
+     * included in batch responses (too big ones), ones not found on the
+     * node (if there are other replicas), as well as ones for which batch
+     * access fails, are fetched using regular GETs.
+     *<p>
+     * If client-side cache is enabled, cached entries are returned without
+     * server access; and entries fetched are added in cache.
+     *
+     * @return Map from keys to contents of entries found; keys of entries
+     *    that do not exist are not included
+     */
+    public Map<BasicTSKey,byte[]> getContentsAsBytes(final TSReadCallParameters params,
+            Collection<BasicTSKey> keys)
+        throws InterruptedException
+    {
+        final Map<BasicTSKey,byte[]> result = new ConcurrentHashMap<BasicTSKey,byte[]>();
+        final List<BasicTSKey> individual = Collections.synchronizedList(new ArrayList<BasicTSKey>());
+        // content hashes and expiration times of entries, for caching
+        final Map<BasicTSKey,EntryInfo> infos = (_cache == null) ? null
+                : new ConcurrentHashMap<BasicTSKey,EntryInfo>();
+        Collection<BasicTSKey> toFetch = keys;
+        if (_cache != null) {
+            List<BasicTSKey> uncached = new ArrayList<BasicTSKey>(keys.size());
+            for (BasicTSKey key : keys) {
+                byte[] data = _cache.get(key);
+                if (data == null) {
+                    uncached.add(key);
+                } else {
+                    result.put(key, data);
+                }
+            }
+            toFetch = uncached;
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (Map.Entry<IpAndPort,List<BasicTSKey>> group : _groupByNode(toFetch, individual).entrySet()) {
+            final IpAndPort server = group.getKey();
+            final List<BasicTSKey> nodeKeys = group.getValue();
+            for (int i = 0, end = nodeKeys.size(); i < end; i += MAX_KEYS_PER_BATCH) {
+                final List<BasicTSKey> batch = nodeKeys.subList(i, Math.min(end, i + MAX_KEYS_PER_BATCH));
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        try {
+                            _fetchBatch(server, batch, result, individual, infos);
+                        } catch (IOException e) {
+                            getLogger().warn("Batch GET from {} failed, will fetch entries individually: {}",
+                                    server, e.getMessage());
+                            individual.addAll(batch);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        _runBatches(tasks);
+        for (BasicTSKey key : individual) {
+            byte[] data = getContentAsBytes(params, key);
+            if (data != null) {
+                result.put(key, data);
+                EntryInfo info = (infos == null) ? null : infos.get(key);
+                if (info != null) {
+                    _cache.put(key, data, info.contentHash, info.expiration);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method for fetching contents of a single entry, using client-side
+     * cache if enabled (see {@link #getContentsAsBytes}); if not enabled,
+     * same as {@link #getContentAsBytes}.
+     *
+     * @return Contents of the entry, if found; null if not
+     */
+    public byte[] getCachedContentAsBytes(TSReadCallParameters params, BasicTSKey key)
+        throws InterruptedException
+    {
+        if (_cache == null) {
+            return getContentAsBytes(params, key);
+        }
+        return getContentsAsBytes(params, Collections.singletonList(key)).get(key);
+    }
+
+    /**
+     * Method for adding multiple small entries. Each entry is sent to the
+     * optimal number of server nodes for its key, using batch requests
+     * (one or more per node, sent concurrently for different nodes).
+     * Entries that are too big for batch PUTs, as well as ones that could
+     * not be added to minimal number of nodes, are added using regular PUTs.
+     */
+    public TSBatchPutResult putContents(final TSPutCallParameters params,
+            Map<BasicTSKey,byte[]> entries)
+        throws InterruptedException
+    {
+        final OperationConfig opConfig = _config.getOperationConfig();
+        final ConcurrentHashMap<BasicTSKey,AtomicInteger> okCounts
+            = new ConcurrentHashMap<BasicTSKey,AtomicInteger>();
+        final List<BasicTSKey> individual = new ArrayList<BasicTSKey>();
+        Map<IpAndPort,List<BasicTSKey>> groups = new LinkedHashMap<IpAndPort,List<BasicTSKey>>();
+        ClusterViewByClient<BasicTSKey> cluster = getCluster();
+
+        for (Map.Entry<BasicTSKey,byte[]> entry : entries.entrySet()) {
+            BasicTSKey key = entry.getKey();
+            NodesForKey nodes = cluster.getNodesFor(key);
+            if (nodes.size() < opConfig.getMinimalOksToSucceed()
+                    || entry.getValue().length > MAX_BATCH_PUT_ENTRY_SIZE) {
+                individual.add(key);
+                continue;
+            }
+            okCounts.put(key, new AtomicInteger());
+            for (int i = 0, end = Math.min(nodes.size(), opConfig.getOptimalOks()); i < end; ++i) {
+                IpAndPort address = nodes.node(i).getAddress();
+                List<BasicTSKey> list = groups.get(address);
+                if (list == null) {
+                    list = new ArrayList<BasicTSKey>();
+                    groups.put(address, list);
+                }
+                list.add(key);
+            }
+        }
+        final String query = (params == null) ? null : params.asQueryString();
+        final Map<BasicTSKey,byte[]> contents = entries;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (Map.Entry<IpAndPort,List<BasicTSKey>> group : groups.entrySet()) {
+            final IpAndPort server = group.getKey();
+            final List<BasicTSKey> nodeKeys = group.getValue();
+            for (int i = 0, end = nodeKeys.size(); i < end; i += MAX_KEYS_PER_BATCH) {
+                final List<BasicTSKey> batch = nodeKeys.subList(i, Math.min(end, i + MAX_KEYS_PER_BATCH));
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        try {
+                            _putBatch(server, query, batch, contents, okCounts);
+                        } catch (IOException e) {
+                            getLogger().warn("Batch PUT to {} failed: {}", server, e.getMessage());
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        _runBatches(tasks);
+
+        List<BasicTSKey> succeeded = new ArrayList<BasicTSKey>();
+        List<BasicTSKey> failed = new ArrayList<BasicTSKey>();
+        for (Map.Entry<BasicTSKey,AtomicInteger> entry : okCounts.entrySet()) {
+            if (entry.getValue().get() >= opConfig.getMinimalOksToSucceed()) {
+                succeeded.add(entry.getKey());
+            } else {
+                individual.add(entry.getKey());
+            }
+        }
+        for (BasicTSKey key : individual) {
+            PutOperationResult result = putContent(params, key, entries.get(key))
+                    .completeOptimally()
+                    .result();
+            if (result.succeededMinimally()) {
+                succeeded.add(key);
+            } else {
+                failed.add(key);
+            }
+        }
+        return new TSBatchPutResult(succeeded, failed);
+    }
+
+    /*
+    /**********************************************************************
+    /* Streaming listing
+    /**********************************************************************
+     */
+
+    /**
+     * Method for listing entries with given prefix using streaming listing,
+     * in which entries are returned in a single response, instead of
+     * bounded pages. If a server node fails during listing, listing
+     * continues from the next node that has entries for the prefix,
+     * starting after the last entry read.
+     *
+     * @param cursor Continuation token returned by an earlier call, if
+     *   listing is to continue after entries already listed; null to start
+     *   from the beginning
+     * @param maxEntries Maximum number of entries to list; 0 or less to
+     *   list all entries
+     *
+     * @return Continuation token that can be used to continue listing, if
+     *   listing was truncated (due to maximum, or handler stopping it); or
+     *   null if all entries were listed
+     */
+    public String listContentStreaming(BasicTSKey prefix, String cursor, long maxEntries,
+            TSListItemHandler handler)
+        throws IOException
+    {
+        NodesForKey nodes = getCluster().getNodesFor(prefix);
+        if (nodes.size() == 0) {
+            throw new IOException("No server nodes found for prefix "+prefix);
+        }
+        final long max = (maxEntries <= 0L) ? Long.MAX_VALUE : maxEntries;
+        StreamingListState state = new StreamingListState(cursor);
+        IOException fail = null;
+        for (int i = 0, end = nodes.size(); i < end; ++i) {
+            IpAndPort server = nodes.node(i).getAddress();
+            try {
+                return _listStreaming(server, prefix, max, handler, state);
+            } catch (IOException e) {
+                getLogger().warn("Streaming list of {} from {} failed (after {} entries): {}",
+                        prefix, server, state.count, e.getMessage());
+                fail = e;
+            }
+        }
+        throw fail;
+    }
+
+    protected String _listStreaming(IpAndPort server, BasicTSKey prefix, long max,
+            TSListItemHandler handler, StreamingListState state)
+        throws IOException
+    {
+        StringBuilder sb = _entriesUrl(server, prefix);
+        sb.append('&').append(BasicTSListStream.QUERY_PARAM_STREAM).append("=true");
+        if (max != Long.MAX_VALUE) {
+            sb.append('&').append(BasicTSListStream.QUERY_PARAM_MAX).append('=').append(max - state.count);
+        }
+        if (state.cursor != null) {
+            sb.append('&').append(BasicTSListStream.QUERY_PARAM_CURSOR).append('=').append(state.cursor);
+        }
+        // read timeout applies to each read, not the whole listing, so long
+        // listings are fine as long as server keeps on sending entries
+        HttpURLConnection conn = _openConnection(sb.toString(), "GET");
+        conn.setRequestProperty("Accept", BasicTSContentTypes.ACCEPT_SMILE_OR_JSON);
+        int status = conn.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            conn.disconnect();
+            throw new IOException("Streaming list request failed with status "+status);
+        }
+        final ObjectMapper mapper = _config.getJsonMapper();
+        JsonFactory f = BasicTSContentTypes.isSmile(conn.getContentType())
+                ? _smileFactory : mapper.getFactory();
+        JsonParser p = f.createParser(conn.getInputStream());
+        try {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Invalid streaming list response: expected START_OBJECT, got "
+                        +p.getCurrentToken());
+            }
+            String resultCursor = null;
+            String error = null;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                JsonToken t = p.nextToken();
+                if (BasicTSListStream.FIELD_ITEMS.equals(field) && t == JsonToken.START_ARRAY) {
+                    while (p.nextToken() == JsonToken.START_OBJECT) {
+                        BasicTSListItem item = mapper.readValue(p, BasicTSListItem.class);
+                        state.cursor = BasicTSListStream.cursorFor(item.getKey());
+                        ++state.count;
+                        if (!handler.handleItem(item)) {
+                            return state.cursor;
+                        }
+                    }
+                } else if (BasicTSListStream.FIELD_CURSOR.equals(field)) {
+                    resultCursor = (t == JsonToken.VALUE_NULL) ? null : p.getText();
+                } else if (BasicTSListStream.FIELD_ERROR.equals(field)) {
+                    error = p.getText();
+                } else {
+                    p.skipChildren();
+                }
+            }
+            if (p.getCurrentToken() != JsonToken.END_OBJECT) { // truncated response
+                throw new IOException("Invalid streaming list response: expected END_OBJECT, got "
+                        +p.getCurrentToken());
+            }
+            // server failed part way through: state has entries read so far,
+            // so listing can continue from another node
+            if (error != null) {
+                throw new IOException("Streaming list failed on server: "+error);
+            }
+            return resultCursor;
+        } finally {
+            p.close();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Server-side prefix deletion
+    /**********************************************************************
+     */
+
+    /**
+     * Method for requesting server-side deletion of all entries with
+     * given key prefix: deletion job is started on all server nodes that
+     * store entries for the prefix, and deletions are then propagated
+     * between nodes by regular synchronization.
+     * Prefix must have partition id.
+     *
+     * @return Status of deletion jobs started, by server node; nodes for
+     *    which request failed are not included
+     */
+    public Map<IpAndPort,BasicTSDeleteJobStatus> deleteByPrefix(BasicTSKey prefix)
+    {
+        if (!prefix.hasPartitionId()) {
+            throw new IllegalArgumentException("Can not delete by prefix without partition id: "+prefix);
+        }
+        if (_cache != null) {
+            _cache.removeByPrefix(prefix);
+        }
+        Map<IpAndPort,BasicTSDeleteJobStatus> result = new LinkedHashMap<IpAndPort,BasicTSDeleteJobStatus>();
+        NodesForKey nodes = getCluster().getNodesFor(prefix);
+        for (int i = 0, end = nodes.size(); i < end; ++i) {
+            IpAndPort server = nodes.node(i).getAddress();
+            try {
+                result.put(server, _deleteJobRequest(server, "DELETE", prefix, null,
+                        HttpURLConnection.HTTP_ACCEPTED));
+            } catch (IOException e) {
+                getLogger().warn("Prefix DELETE of {} on {} failed: {}",
+                        prefix, server, e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method for checking status of a prefix deletion job started
+     * with {@link #deleteByPrefix}.
+     *
+     * @return Status of the job, if server still has information on it;
+     *    null if not
+     */
+    public BasicTSDeleteJobStatus findDeleteJob(IpAndPort server, BasicTSKey prefix, long jobId)
+        throws IOException
+    {
+        try {
+            return _deleteJobRequest(server, "GET", prefix,
+                    BasicTSConstants.TS_QUERY_PARAM_DELETE_JOB+"="+jobId,
+                    HttpURLConnection.HTTP_OK);
+        } catch (FileNotFoundException e) { // 404
+            return null;
+        }
+    }
+
+    /**
+     * Method for cancelling a prefix deletion job started with
+     * {@link #deleteByPrefix}: job stops after its current batch, and
+     * entries already deleted remain deleted.
+     *
+     * @return Status of the job, if server still has information on it;
+     *    null if not
+     */
+    public BasicTSDeleteJobStatus cancelDeleteJob(IpAndPort server, BasicTSKey prefix, long jobId)
+        throws IOException
+    {
+        try {
+            return _deleteJobRequest(server, "DELETE", prefix,
+                    BasicTSConstants.TS_QUERY_PARAM_DELETE_JOB+"="+jobId,
+                    HttpURLConnection.HTTP_OK);
+        } catch (FileNotFoundException e) { // 404
+            return null;
+        }
+    }
+
+    protected BasicTSDeleteJobStatus _deleteJobRequest(IpAndPort server, String method,
+            BasicTSKey prefix, String query, int expStatus)
+        throws IOException
+    {
+        StringBuilder sb = _entriesUrl(server, prefix);
+        if (query != null) {
+            sb.append('&').append(query);
+        }
+        HttpURLConnection conn = _openConnection(sb.toString(), method);
+        int status = conn.getResponseCode();
+        if (status != expStatus) {
+            conn.disconnect();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new FileNotFoundException(sb.toString());
+            }
+            throw new IOException(method+" request failed with status "+status);
+        }
+        InputStream in = conn.getInputStream();
+        try {
+            return _config.getJsonMapper().readValue(in, BasicTSDeleteJobStatus.class);
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected void _putBatch(IpAndPort server, String query, List<BasicTSKey> keys,
+            Map<BasicTSKey,byte[]> contents, Map<BasicTSKey,AtomicInteger> okCounts)
+        throws IOException
+    {
+        HttpURLConnection conn = _openBatchConnection(server, "PUT", query);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(conn.getOutputStream()));
+        out.writeInt(keys.size());
+        for (BasicTSKey key : keys) {
+            BasicTSBatchFormat.writeEntry(out, key.asStorableKey(), contents.get(key));
+        }
+        out.close();
+
+        DataInputStream in = _batchResponse(conn, keys.size());
+        try {
+            for (BasicTSKey key : keys) {
+                byte status = in.readByte();
+                if (status == BasicTSBatchFormat.STATUS_OK) {
+                    okCounts.get(key).incrementAndGet();
+                } else if (status == BasicTSBatchFormat.STATUS_CONFLICT) {
+                    getLogger().warn("Batch PUT of {} to {} failed due to conflict", key, server);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    protected void _runBatches(List<Callable<Void>> tasks) throws InterruptedException
+    {
+        for (Future<Void> f : _batchExecutor.invokeAll(tasks)) {
+            try {
+                f.get();
+            } catch (ExecutionException e) { // should not occur, but just in case
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Helper method for grouping keys by the server node to read each
+     * key from: this is chosen between replicas based on their expected
+     * response times (see {@link NodeLatencyTracker#readOrder}).
+     * Choice is made once per set of replicas, so that keys of the same
+     * partition are all read from the same node, in a single batch.
+     *
+     * @param unrouted List to add keys for which no server is known
+     */
+    protected Map<IpAndPort,List<BasicTSKey>> _groupByNode(Collection<BasicTSKey> keys,
+            List<BasicTSKey> unrouted)
+    {
+        Map<IpAndPort,List<BasicTSKey>> groups = new LinkedHashMap<IpAndPort,List<BasicTSKey>>();
+        Map<List<IpAndPort>,IpAndPort> chosen = new HashMap<List<IpAndPort>,IpAndPort>();
+        ClusterViewByClient<BasicTSKey> cluster = getCluster();
+        for (BasicTSKey key : keys) {
+            NodesForKey nodes = cluster.getNodesFor(key);
+            if (nodes.size() == 0) {
+                unrouted.add(key);
+                continue;
+            }
+            List<IpAndPort> replicas = new ArrayList<IpAndPort>(nodes.size());
+            for (int i = 0, end = nodes.size(); i < end; ++i) {
+                replicas.add(nodes.node(i).getAddress());
+            }
+            IpAndPort server = chosen.get(replicas);
+            if (server == null) {
+                server = replicas.get(_latencies.readOrder(replicas)[0]);
+                chosen.put(replicas, server);
+            }
+            List<BasicTSKey> list = groups.get(server);
+            if (list == null) {
+                list = new ArrayList<BasicTSKey>();
+                groups.put(server, list);
+            }
+            list.add(key);
+        }
+        return groups;
+    }
+
+    /**
+     * @param infos If not null, entry info is requested, and entries are
+     *    added in cache (and info of entries to fetch individually added
+     *    in this map)
+     */
+    protected void _fetchBatch(IpAndPort server, List<BasicTSKey> keys,
+            Map<BasicTSKey,byte[]> result, List<BasicTSKey> individual,
+            Map<BasicTSKey,EntryInfo> infos)
+        throws IOException
+    {
+        final boolean withInfo = (infos != null);
+        HttpURLConnection conn = _openBatchConnection(server, "POST",
+                withInfo ? (BasicTSConstants.TS_QUERY_PARAM_ENTRY_INFO+"=true") : null);
+        List<StorableKey> rawKeys = new ArrayList<StorableKey>(keys.size());
+        for (BasicTSKey key : keys) {
+            rawKeys.add(key.asStorableKey());
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(conn.getOutputStream()));
+        BasicTSBatchFormat.writeKeys(out, rawKeys);
+        out.close();
+
+        DataInputStream in = _batchResponse(conn, keys.size());
+        try {
+            for (BasicTSKey key : keys) {
+                final byte status = in.readByte();
+                EntryInfo info = null;
+                if (withInfo && (status == BasicTSBatchFormat.STATUS_OK
+                        || status == BasicTSBatchFormat.STATUS_NOT_INCLUDED)) {
+                    info = new EntryInfo(in.readInt(), in.readLong());
+                }
+                switch (status) {
+                case BasicTSBatchFormat.STATUS_OK:
+                    byte[] data = BasicTSBatchFormat.readBytes(in, Integer.MAX_VALUE);
+                    result.put(key, data);
+                    if (info != null) {
+                        _cache.put(key, data, info.contentHash, info.expiration);
+                    }
+                    break;
+                case BasicTSBatchFormat.STATUS_NOT_FOUND:
+                    // other replicas may have it (if this one has not yet synced it);
+                    // regular GET tries them all
+                    if (getCluster().getNodesFor(key).size() > 1) {
+                        individual.add(key);
+                    }
+                    break;
+                default: // not included, or failed; need to GET separately
+                    if (info != null) {
+                        infos.put(key, info);
+                    }
+                    individual.add(key);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    protected HttpURLConnection _openBatchConnection(IpAndPort server, String method,
+            String query)
+        throws IOException
+    {
+        StringBuilder sb = _endpointUrl(server, "store/entriesBatch");
+        if (query != null) {
+            sb.append('?').append(query);
+        }
+        HttpURLConnection conn = _openConnection(sb.toString(), method);
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", BasicTSBatchFormat.CONTENT_TYPE);
+        return conn;
+    }
+
+    protected StringBuilder _endpointUrl(IpAndPort server, String endpoint)
+    {
+        StringBuilder sb = new StringBuilder(server.getEndpoint());
+        for (String segment : _config.getBasePath()) {
+            sb.append('/').append(segment);
+        }
+        return sb.append('/').append(endpoint);
+    }
+
+    /**
+     * Method for constructing URL for accessing a single entry with
+     * given key on given server node; URL will contain query string
+     * with partition id (if any)
+     */
+    public String entryUrl(IpAndPort server, BasicTSKey key) throws IOException {
+        return _keyUrl(server, "store/entry", key).toString();
+    }
+
+    /**
+     * Helper method for constructing URL for listing endpoint for given
+     * prefix; URL will contain query string with partition id (if any)
+     */
+    protected StringBuilder _entriesUrl(IpAndPort server, BasicTSKey prefix)
+        throws IOException
+    {
+        return _keyUrl(server, "store/entries", prefix);
+    }
+
+    protected StringBuilder _keyUrl(IpAndPort server, String endpoint, BasicTSKey prefix)
+        throws IOException
+    {
+        StringBuilder sb = _endpointUrl(server, endpoint);
+        for (String segment : prefix.getPath().split("/")) {
+            if (segment.length() > 0) {
+                sb.append('/').append(URLEncoder.encode(segment, "UTF-8").replace("+", "%20"));
+            }
+        }
+        // trailing slash is significant for prefixes
+        if (prefix.getPath().endsWith("/")) {
+            sb.append('/');
+        }
+        sb.append('?');
+        if (prefix.hasPartitionId()) {
+            sb.append(BasicTSConstants.TS_QUERY_PARAM_PARTITION_ID).append('=')
+                .append(URLEncoder.encode(prefix.getPartitionId(), "UTF-8"));
+        }
+        return sb;
+    }
+
+    /**
+     * Helper method for opening connections for TransiStore-specific endpoints
+     * (batch access, streaming listing, prefix deletion), which are not
+     * supported by {@link NetworkClient}. Timeouts are taken from call
+     * configuration of {@link OperationConfig}, same as used for standard
+     * calls: timeout of GET calls for reads (including batch GETs sent
+     * as POSTs), of PUT and DELETE calls for others.
+     */
+    protected HttpURLConnection _openConnection(String url, String method)
+        throws IOException
+    {
+        CallConfig callConfig = _config.getOperationConfig().getCallConfig();
+        final long readTimeout;
+        if ("PUT".equals(method)) {
+            readTimeout = callConfig.getPutCallTimeoutMsecs();
+        } else if ("DELETE".equals(method)) {
+            readTimeout = callConfig.getDeleteCallTimeoutMsecs();
+        } else {
+            readTimeout = callConfig.getGetCallTimeoutMsecs();
+        }
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout((int) callConfig.getConnectTimeoutMsecs());
+        conn.setReadTimeout((int) readTimeout);
+        conn.setRequestMethod(method);
+        return conn;
+    }
+
+    /**
+     * Helper method for verifying response status of a batch request,
+     * and reading item count of response.
+     *
+     * @return Stream for reading response items
+     */
+    protected DataInputStream _batchResponse(HttpURLConnection conn, int expCount)
+        throws IOException
+    {
+        int status = conn.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            conn.disconnect();
+            throw new IOException("Batch request failed with status "+status);
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
+        int count = in.readInt();
+        if (count != expCount) {
+            in.close();
+            throw new IOException("Batch response had "+count+" items, expected "+expCount);
+        }
+        return in;
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Content hash and expiration time of an entry, as reported by
+     * batch GET
+     */
+    protected static class EntryInfo
+    {
+        public final int contentHash;
+        public final long expiration;
+
+        public EntryInfo(int contentHash, long expiration)
+        {
+            this.contentHash = contentHash;
+            this.expiration = expiration;
+        }
+    }
+
+    /**
+     * Container for progress of a streaming listing, retained across
+     * requests to different server nodes.
+     */
+    protected static class StreamingListState
+    {
+        public String cursor;
+
+        public long count;
+
+        public StreamingListState(String cursor) {
+            this.cursor = cursor;
+        }
+    }
 }
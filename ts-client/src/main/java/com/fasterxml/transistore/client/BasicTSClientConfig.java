@@ -1,5 +1,7 @@
 package com.fasterxml.transistore.client;
 
+import java.io.File;
+
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import com.fasterxml.clustermate.api.EntryKeyConverter;
@@ -15,14 +17,31 @@ public class BasicTSClientConfig
     protected final int _maxHttpConnections;
     protected final int _maxHttpConnectionsPerHost;
 
+    /**
+     * Maximum total size of entries to cache in memory; 0 if not
+     * cached in memory
+     */
+    protected final long _cacheMaxMemoryBytes;
+
+    /**
+     * Directory for caching entries on disk, if any
+     */
+    protected final File _cacheDirectory;
+
+    protected final long _cacheMaxDiskBytes;
+
     protected BasicTSClientConfig(EntryKeyConverter<BasicTSKey> keyConverter,
             String[] basePath, ObjectMapper jsonMapper,
             OperationConfig operConfig,
-            int maxHttpConnections, int maxHttpConnectionsPerHost) {
+            int maxHttpConnections, int maxHttpConnectionsPerHost,
+            long cacheMaxMemoryBytes, File cacheDirectory, long cacheMaxDiskBytes) {
         super(keyConverter, basePath, new BasicTSPaths(),
                 jsonMapper, operConfig);
         _maxHttpConnections = maxHttpConnections;
         _maxHttpConnectionsPerHost = maxHttpConnectionsPerHost;
+        _cacheMaxMemoryBytes = cacheMaxMemoryBytes;
+        _cacheDirectory = cacheDirectory;
+        _cacheMaxDiskBytes = cacheMaxDiskBytes;
     }
 
     @SuppressWarnings("unchecked")
@@ -71,4 +90,16 @@ public class BasicTSClientConfig
     public int getMaxHttpConnectionsPerHost() {
         return _maxHttpConnectionsPerHost;
     }
+
+    public long getCacheMaxMemoryBytes() {
+        return _cacheMaxMemoryBytes;
+    }
+
+    public File getCacheDirectory() {
+        return _cacheDirectory;
+    }
+
+    public long getCacheMaxDiskBytes() {
+        return _cacheMaxDiskBytes;
+    }
 }
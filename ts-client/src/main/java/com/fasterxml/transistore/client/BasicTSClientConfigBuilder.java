@@ -1,5 +1,7 @@
 package com.fasterxml.transistore.client;
 
+import java.io.File;
+
 import com.fasterxml.clustermate.client.StoreClientConfigBuilder;
 
 import com.fasterxml.transistore.basic.BasicTSKey;
@@ -30,7 +32,16 @@ public class BasicTSClientConfigBuilder
     protected int _maxHttpConnections = DEFAULT_MAX_HTTP_CONNECTIONS;
 
     protected int _maxHttpConnectionsPerHost = DEFAULT_MAX_HTTP_CONNECTIONS_PER_HOST;
-    
+
+    /**
+     * Client-side caching of entries is disabled by default
+     */
+    protected long _cacheMaxMemoryBytes = 0L;
+
+    protected File _cacheDirectory;
+
+    protected long _cacheMaxDiskBytes = 0L;
+
     public BasicTSClientConfigBuilder() {
         super(DEFAULT_KEY_CONVERTER, DEFAULT_BASE_PATH,
                 DEFAULT_PATH_STRATEGY);
@@ -40,13 +51,17 @@ public class BasicTSClientConfigBuilder
         super(config);
         _maxHttpConnections = config.getMaxHttpConnections();
         _maxHttpConnectionsPerHost = config.getMaxHttpConnectionsPerHost();
+        _cacheMaxMemoryBytes = config.getCacheMaxMemoryBytes();
+        _cacheDirectory = config.getCacheDirectory();
+        _cacheMaxDiskBytes = config.getCacheMaxDiskBytes();
     }
     
     @Override
     public BasicTSClientConfig build() {
         return new BasicTSClientConfig(_keyConverter, _basePath, _jsonMapper,
                 buildOperationConfig(),
-                _maxHttpConnections, _maxHttpConnectionsPerHost);
+                _maxHttpConnections, _maxHttpConnectionsPerHost,
+                _cacheMaxMemoryBytes, _cacheDirectory, _cacheMaxDiskBytes);
     }
 
     public BasicTSClientConfigBuilder setMaxHttpConnections(int max) {
@@ -58,4 +73,26 @@ public class BasicTSClientConfigBuilder
         _maxHttpConnectionsPerHost = max;
         return this;
     }
+
+    /**
+     * Method for enabling client-side caching of entries in memory
+     * (see {@link TSEntryCache}), with given maximum total size;
+     * 0 to disable.
+     */
+    public BasicTSClientConfigBuilder setCacheMaxMemoryBytes(long max) {
+        _cacheMaxMemoryBytes = max;
+        return this;
+    }
+
+    /**
+     * Method for enabling client-side caching of entries on disk
+     * (see {@link TSEntryCache}), in given directory, with given maximum
+     * total size; null directory to disable. Each cache instance uses a
+     * sub-directory of its own, so directory may be shared by clients.
+     */
+    public BasicTSClientConfigBuilder setCacheDirectory(File dir, long maxBytes) {
+        _cacheDirectory = dir;
+        _cacheMaxDiskBytes = maxBytes;
+        return this;
+    }
 }
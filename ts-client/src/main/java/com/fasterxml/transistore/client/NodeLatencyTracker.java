@@ -0,0 +1,296 @@
+package com.fasterxml.transistore.client;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.fasterxml.storemate.shared.IpAndPort;
+
+import com.fasterxml.clustermate.client.NodesForKey;
+
+/**
+ * Helper class for keeping track of recently observed response times
+ * of server nodes, used for choosing which replica to read from
+ * (see {@link #readOrder}), and for deciding when a read is taking
+ * unusually long (see {@link TSHedgingPolicy}).
+ *<p>
+ * For each node, following information is retained:
+ *<ul>
+ * <li>Latencies of the last {@link #SAMPLE_COUNT} successful responses,
+ *   from which percentiles are calculated on demand
+ *  </li>
+ * <li>Exponentially weighted moving average (EWMA) of latencies of all
+ *   responses (failures are charged at least {@link #FAILURE_PENALTY_MSECS}),
+ *   which decays towards zero while node has no requests outstanding,
+ *   so that nodes that were slow get tried again after a while (but
+ *   nodes that do not respond at all are not)
+ *  </li>
+ * <li>Number of requests currently outstanding
+ *  </li>
+ *</ul>
+ */
+public class NodeLatencyTracker
+{
+    /**
+     * Number of most recent latencies retained per node
+     */
+    public final static int SAMPLE_COUNT = 128;
+
+    /**
+     * Minimum number of samples needed for calculating percentiles
+     */
+    public final static int MIN_SAMPLES = 16;
+
+    /**
+     * Minimum latency charged for failed requests (including timeouts) in
+     * moving average, so that nodes that fail fast do not look fast
+     */
+    public final static int FAILURE_PENALTY_MSECS = 1000;
+
+    /**
+     * Weight of the latest response for EWMA
+     */
+    protected final static double EWMA_ALPHA = 0.25;
+
+    /**
+     * Half-life of EWMA decay, when no requests are outstanding for node
+     */
+    protected final static long EWMA_HALF_LIFE_MSECS = 10000L;
+
+    protected final ConcurrentHashMap<IpAndPort,Samples> _nodes
+        = new ConcurrentHashMap<IpAndPort,Samples>();
+
+    /*
+    /**********************************************************************
+    /* Recording
+    /**********************************************************************
+     */
+
+    /**
+     * Method called when a request is sent to given node
+     */
+    public void requestStarted(IpAndPort node) {
+        _samplesFor(node).started(System.currentTimeMillis());
+    }
+
+    /**
+     * Method called when a request earlier reported with
+     * {@link #requestStarted} completes (or fails).
+     *
+     * @param success Whether request succeeded; latencies of failed
+     *    requests only affect the moving average (at no less than
+     *    {@link #FAILURE_PENALTY_MSECS}), not percentiles
+     */
+    public void requestFinished(IpAndPort node, long msecs, boolean success)
+    {
+        int latency = (int) Math.min(Integer.MAX_VALUE, Math.max(0L, msecs));
+        _samplesFor(node).finished(latency, success, System.currentTimeMillis());
+    }
+
+    /*
+    /**********************************************************************
+    /* Access
+    /**********************************************************************
+     */
+
+    /**
+     * @return Latency at given percentile (like 95) of recent responses
+     *    from given node, in milliseconds; or -1 if there are not yet
+     *    enough samples
+     */
+    public int percentile(IpAndPort node, int pct)
+    {
+        Samples s = _nodes.get(node);
+        return (s == null) ? -1 : s.percentile(pct);
+    }
+
+    /**
+     * @return Expected response time of given node: moving average of
+     *    latency, multiplied by number of requests in flight (plus one);
+     *    0.0 for nodes with no observations
+     */
+    public double expectedLatency(IpAndPort node)
+    {
+        Samples s = _nodes.get(node);
+        return (s == null) ? 0.0 : s.expectedLatency(System.currentTimeMillis());
+    }
+
+    /**
+     * Method for determining order in which replicas should be tried for
+     * reads: first node is chosen using "power of two choices", that is,
+     * out of two randomly chosen nodes, one with lower expected response
+     * time is used; rest of nodes follow in their original (keyspace
+     * ownership) order. If neither of chosen nodes has been observed yet,
+     * original order is used as is.
+     *
+     * @return Indexes of nodes in given list, in order to try
+     */
+    public int[] readOrder(NodesForKey nodes)
+    {
+        final int count = nodes.size();
+        IpAndPort[] addresses = new IpAndPort[count];
+        for (int i = 0; i < count; ++i) {
+            addresses[i] = nodes.node(i).getAddress();
+        }
+        return _readOrder(addresses);
+    }
+
+    /**
+     * Alternative to {@link #readOrder(NodesForKey)} for plain list of
+     * node addresses.
+     */
+    public int[] readOrder(List<IpAndPort> nodes) {
+        return _readOrder(nodes.toArray(new IpAndPort[nodes.size()]));
+    }
+
+    protected int[] _readOrder(IpAndPort[] nodes)
+    {
+        final int count = nodes.length;
+        int[] order = new int[count];
+        for (int i = 0; i < count; ++i) {
+            order[i] = i;
+        }
+        if (count < 2) {
+            return order;
+        }
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int a = rnd.nextInt(count);
+        int b = rnd.nextInt(count - 1);
+        if (b >= a) {
+            ++b;
+        }
+        Samples samplesA = _nodes.get(nodes[a]);
+        Samples samplesB = _nodes.get(nodes[b]);
+        final long now = System.currentTimeMillis();
+        if (!_hasObservations(samplesA) && !_hasObservations(samplesB)) {
+            return order;
+        }
+        double costA = (samplesA == null) ? 0.0 : samplesA.expectedLatency(now);
+        double costB = (samplesB == null) ? 0.0 : samplesB.expectedLatency(now);
+        int first;
+        if (costA == costB) {
+            first = Math.min(a, b);
+        } else {
+            first = (costA < costB) ? a : b;
+        }
+        // move chosen node first, keep relative order of others
+        System.arraycopy(order, 0, order, 1, first);
+        order[0] = first;
+        return order;
+    }
+
+    protected static boolean _hasObservations(Samples s) {
+        return (s != null) && s.hasObservations();
+    }
+
+    protected Samples _samplesFor(IpAndPort node)
+    {
+        Samples s = _nodes.get(node);
+        if (s == null) {
+            s = new Samples();
+            Samples old = _nodes.putIfAbsent(node, s);
+            if (old != null) {
+                s = old;
+            }
+        }
+        return s;
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Latency information for a single node
+     */
+    protected static class Samples
+    {
+        /**
+         * Ring buffer of latencies of recent successful responses
+         */
+        protected final int[] _msecs = new int[SAMPLE_COUNT];
+
+        protected int _count;
+
+        protected int _next;
+
+        protected double _ewma;
+
+        protected long _ewmaUpdated;
+
+        protected int _outstanding;
+
+        public synchronized void started(long now)
+        {
+            // decay stops while requests are outstanding: apply decay so far
+            if (_outstanding == 0 && _ewmaUpdated != 0L) {
+                _ewma = _decayed(now);
+                _ewmaUpdated = now;
+            }
+            ++_outstanding;
+        }
+
+        public synchronized void finished(int msecs, boolean success, long now)
+        {
+            int charged = success ? msecs : Math.max(msecs, FAILURE_PENALTY_MSECS);
+            if (_ewmaUpdated == 0L) {
+                _ewma = charged;
+            } else {
+                _ewma = EWMA_ALPHA * charged + (1.0 - EWMA_ALPHA) * _decayed(now);
+            }
+            _ewmaUpdated = now;
+            if (_outstanding > 0) {
+                --_outstanding;
+            }
+            if (success) {
+                _msecs[_next] = msecs;
+                _next = (_next + 1) % SAMPLE_COUNT;
+                if (_count < SAMPLE_COUNT) {
+                    ++_count;
+                }
+            }
+        }
+
+        public synchronized boolean hasObservations() {
+            return (_ewmaUpdated != 0L);
+        }
+
+        public synchronized double expectedLatency(long now) {
+            return _decayed(now) * (_outstanding + 1);
+        }
+
+        /**
+         * Moving average decayed to given time; but only decays while no
+         * requests are outstanding, since lack of responses then does not
+         * mean that node has gotten any faster.
+         */
+        protected double _decayed(long now)
+        {
+            if (_outstanding > 0) {
+                return _ewma;
+            }
+            long age = now - _ewmaUpdated;
+            if (age <= 0L) {
+                return _ewma;
+            }
+            return _ewma * Math.pow(0.5, (double) age / EWMA_HALF_LIFE_MSECS);
+        }
+
+        public int percentile(int pct)
+        {
+            int[] sorted;
+            synchronized (this) {
+                if (_count < MIN_SAMPLES) {
+                    return -1;
+                }
+                sorted = Arrays.copyOf(_msecs, _count);
+            }
+            Arrays.sort(sorted);
+            int ix = (int) Math.ceil(sorted.length * pct / 100.0) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length-1, ix))];
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.fasterxml.transistore.client;
+
+import java.util.*;
+
+import com.fasterxml.transistore.basic.BasicTSKey;
+
+/**
+ * Result of a batch PUT operation: lists keys of entries that were
+ * successfully added (to at least minimal number of server nodes),
+ * and keys of entries that could not be added.
+ */
+public class TSBatchPutResult
+{
+    protected final List<BasicTSKey> _succeeded;
+
+    protected final List<BasicTSKey> _failed;
+
+    public TSBatchPutResult(List<BasicTSKey> succeeded, List<BasicTSKey> failed)
+    {
+        _succeeded = succeeded;
+        _failed = failed;
+    }
+
+    public boolean succeeded() {
+        return _failed.isEmpty();
+    }
+
+    public List<BasicTSKey> getSucceeded() {
+        return Collections.unmodifiableList(_succeeded);
+    }
+
+    public List<BasicTSKey> getFailed() {
+        return Collections.unmodifiableList(_failed);
+    }
+}
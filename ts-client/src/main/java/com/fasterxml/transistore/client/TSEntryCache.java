@@ -0,0 +1,594 @@
+package com.fasterxml.transistore.client;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.storemate.shared.ByteContainer;
+import com.fasterxml.storemate.shared.StorableKey;
+
+import com.fasterxml.clustermate.api.EntryKeyConverter;
+
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.basic.BasicTSKeyConverter;
+
+/**
+ * Client-side cache for contents of entries. Since entries can not be
+ * modified once added (PUT with different contents fails with a conflict),
+ * a cached copy stays valid until entry expires (reaches its max TTL),
+ * or is deleted.
+ *<p>
+ * Entries are kept in memory, up to configured total size, evicting least
+ * recently used ones; and if a directory is configured, entries evicted
+ * from memory (or too big to keep there) are written to files in that
+ * directory, up to configured total size. Contents are only cached if
+ * their hash matches content hash reported by the server; and contents
+ * read from files are verified again before use.
+ *<p>
+ * Each cache instance uses its own sub-directory of the configured
+ * directory, locked while in use, so that multiple clients (and processes)
+ * may share the directory; sub-directories left by instances that are no
+ * longer running are removed when a cache is constructed.
+ *<p>
+ * Since expiration times come from server nodes, entries are considered
+ * expired {@link #DEFAULT_EXPIRATION_MARGIN_MSECS} before their
+ * expiration time (by default), to allow for clock skew between clients
+ * and servers.
+ *<p>
+ * Note that deletions are not seen by the cache: entries deleted by
+ * other clients may be returned until they expire; and deletions done
+ * using this client (other than with {@link BasicTSClient#deleteByPrefix})
+ * need to be followed by a call to {@link #remove}.
+ */
+public class TSEntryCache
+{
+    /**
+     * Default margin by which entries are considered expired before
+     * their expiration time, to allow for clock skew.
+     */
+    public final static long DEFAULT_EXPIRATION_MARGIN_MSECS = 30L * 1000L;
+
+    /**
+     * Suffix used for files of entries cached on disk
+     */
+    protected final static String FILE_SUFFIX = ".tsc";
+
+    /**
+     * Prefix of per-instance sub-directories of the cache directory
+     */
+    protected final static String SUBDIR_PREFIX = "tscache-";
+
+    /**
+     * Name of lock file, locked by the instance using the sub-directory
+     */
+    protected final static String LOCK_FILE = "in-use.lock";
+
+    /**
+     * Minimum age of unlocked sub-directories to remove as stale
+     */
+    protected final static long STALE_DIRECTORY_MIN_AGE_MSECS = 60L * 1000L;
+
+    /**
+     * Number of additions between removing expired entries
+     */
+    protected final static int PURGE_INTERVAL = 1000;
+
+    protected final EntryKeyConverter<BasicTSKey> _keyConverter;
+
+    protected final long _maxMemoryBytes;
+
+    /**
+     * Directory for entries cached on disk, if any: sub-directory of
+     * configured directory, used only by this instance
+     */
+    protected final File _directory;
+
+    /**
+     * Lock held on lock file of {@link #_directory}, if any
+     */
+    protected final FileLock _directoryLock;
+
+    protected final long _maxDiskBytes;
+
+    protected final long _expirationMargin;
+
+    /**
+     * Entries cached in memory, in access order (least recently used first)
+     */
+    protected final LinkedHashMap<BasicTSKey,MemoryEntry> _memory
+        = new LinkedHashMap<BasicTSKey,MemoryEntry>(64, 0.75f, true);
+
+    /**
+     * Entries cached on disk, in access order (least recently used first)
+     */
+    protected final LinkedHashMap<BasicTSKey,DiskEntry> _disk
+        = new LinkedHashMap<BasicTSKey,DiskEntry>(64, 0.75f, true);
+
+    protected long _memoryBytes;
+
+    protected long _diskBytes;
+
+    protected int _addsSincePurge;
+
+    protected final AtomicLong _fileCounter = new AtomicLong();
+
+    protected final AtomicLong _hits = new AtomicLong();
+
+    protected final AtomicLong _misses = new AtomicLong();
+
+    /**
+     * Number of entries not cached, or dropped, due to content hash mismatch
+     */
+    protected final AtomicLong _invalid = new AtomicLong();
+
+    /**
+     * @param directory Directory for caching entries on disk; null for
+     *    in-memory caching only
+     */
+    public TSEntryCache(EntryKeyConverter<BasicTSKey> keyConverter,
+            long maxMemoryBytes, File directory, long maxDiskBytes)
+    {
+        this(keyConverter, maxMemoryBytes, directory, maxDiskBytes,
+                DEFAULT_EXPIRATION_MARGIN_MSECS);
+    }
+
+    /**
+     * @param directory Directory for caching entries on disk; null for
+     *    in-memory caching only
+     * @param expirationMargin Time (in milliseconds) before expiration
+     *    time reported by server, after which entries are considered expired
+     */
+    public TSEntryCache(EntryKeyConverter<BasicTSKey> keyConverter,
+            long maxMemoryBytes, File directory, long maxDiskBytes,
+            long expirationMargin)
+    {
+        _keyConverter = keyConverter;
+        _maxMemoryBytes = maxMemoryBytes;
+        _maxDiskBytes = (directory == null) ? 0L : maxDiskBytes;
+        _expirationMargin = Math.max(0L, expirationMargin);
+        if (directory == null) {
+            _directory = null;
+            _directoryLock = null;
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Can not create cache directory "+directory.getAbsolutePath());
+        }
+        // no index for files left by earlier instances, so just remove
+        _removeStale(directory);
+        try {
+            _directory = Files.createTempDirectory(directory.toPath(), SUBDIR_PREFIX).toFile();
+            _directoryLock = _tryLock(new File(_directory, LOCK_FILE));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can not create cache directory under "
+                    +directory.getAbsolutePath()+": "+e.getMessage(), e);
+        }
+        if (_directoryLock == null) { // should never occur, but...
+            throw new IllegalArgumentException("Can not lock cache directory "+_directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Factory method for constructing cache as configured; or returning
+     * null if caching is not enabled.
+     */
+    public static TSEntryCache construct(BasicTSClientConfig config)
+    {
+        if (config.getCacheMaxMemoryBytes() <= 0L && config.getCacheDirectory() == null) {
+            return null;
+        }
+        EntryKeyConverter<BasicTSKey> keyConverter = config.getKeyConverter();
+        return new TSEntryCache(keyConverter, config.getCacheMaxMemoryBytes(),
+                config.getCacheDirectory(), config.getCacheMaxDiskBytes());
+    }
+
+    /*
+    /**********************************************************************
+    /* Access
+    /**********************************************************************
+     */
+
+    /**
+     * @return Contents of cached entry (a copy), if entry is cached and has
+     *    not expired; null otherwise
+     */
+    public byte[] get(BasicTSKey key)
+    {
+        final long now = System.currentTimeMillis();
+        DiskEntry onDisk;
+        synchronized (this) {
+            MemoryEntry entry = _memory.get(key);
+            if (entry != null) {
+                if (entry.expiration > now) {
+                    _hits.incrementAndGet();
+                    return entry.data.clone();
+                }
+                _removeFromMemory(key);
+            }
+            onDisk = _disk.get(key);
+            if (onDisk != null && onDisk.expiration <= now) {
+                _removeFromDisk(key);
+                onDisk = null;
+            }
+        }
+        if (onDisk != null) {
+            byte[] data = _read(key, onDisk);
+            if (data != null) {
+                _hits.incrementAndGet();
+                // recently used, so promote back to memory
+                if (data.length <= _maxMemoryBytes) {
+                    _addToMemory(key, new MemoryEntry(data.clone(), onDisk.contentHash, onDisk.expiration));
+                }
+                return data;
+            }
+        }
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Method for adding contents of an entry in cache, if they match
+     * given content hash, and entry has not yet expired.
+     *
+     * @param expiration Time when entry expires, in milliseconds since epoch
+     *
+     * @return True if entry was cached; false if not
+     */
+    public boolean put(BasicTSKey key, byte[] data, int contentHash, long expiration)
+    {
+        // clocks of server and client may differ, so expire a bit early
+        expiration -= _expirationMargin;
+        if (expiration <= System.currentTimeMillis()) {
+            return false;
+        }
+        if (_hashFor(data) != contentHash) {
+            _invalid.incrementAndGet();
+            return false;
+        }
+        if (data.length <= _maxMemoryBytes) {
+            _addToMemory(key, new MemoryEntry(data.clone(), contentHash, expiration));
+            return true;
+        }
+        if (data.length <= _maxDiskBytes) {
+            _writeToDisk(key, data, contentHash, expiration);
+            return true;
+        }
+        return false;
+    }
+
+    public void remove(BasicTSKey key)
+    {
+        synchronized (this) {
+            _removeFromMemory(key);
+            _removeFromDisk(key);
+        }
+    }
+
+    /**
+     * Method for removing all cached entries with keys that start with
+     * given prefix.
+     */
+    public void removeByPrefix(BasicTSKey prefix)
+    {
+        final StorableKey prefixKey = prefix.asStorableKey();
+        synchronized (this) {
+            for (BasicTSKey key : new ArrayList<BasicTSKey>(_memory.keySet())) {
+                if (BasicTSKeyConverter.hasPrefix(key.asStorableKey(), prefixKey)) {
+                    _removeFromMemory(key);
+                }
+            }
+            for (BasicTSKey key : new ArrayList<BasicTSKey>(_disk.keySet())) {
+                if (BasicTSKeyConverter.hasPrefix(key.asStorableKey(), prefixKey)) {
+                    _removeFromDisk(key);
+                }
+            }
+        }
+    }
+
+    public synchronized void clear()
+    {
+        for (BasicTSKey key : new ArrayList<BasicTSKey>(_disk.keySet())) {
+            _removeFromDisk(key);
+        }
+        _memory.clear();
+        _memoryBytes = 0L;
+    }
+
+    /**
+     * Method to call when cache is no longer needed: removes all cached
+     * entries, as well as the directory used by this instance.
+     * Cache should not be used after this call.
+     */
+    public synchronized void close()
+    {
+        clear();
+        if (_directoryLock != null) {
+            try {
+                _directoryLock.channel().close();
+            } catch (IOException e) { }
+            _deleteDirectory(_directory);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Metrics
+    /**********************************************************************
+     */
+
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    /**
+     * @return Number of entries that were not cached, or were dropped,
+     *    because their contents did not match the content hash
+     */
+    public long getInvalidCount() {
+        return _invalid.get();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return _memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return _diskBytes;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected void _addToMemory(BasicTSKey key, MemoryEntry entry)
+    {
+        List<Map.Entry<BasicTSKey,MemoryEntry>> evicted = null;
+        synchronized (this) {
+            _removeFromMemory(key);
+            _memory.put(key, entry);
+            _memoryBytes += entry.data.length;
+            if (++_addsSincePurge >= PURGE_INTERVAL) {
+                _purgeExpired(System.currentTimeMillis());
+            }
+            Iterator<Map.Entry<BasicTSKey,MemoryEntry>> it = _memory.entrySet().iterator();
+            while (_memoryBytes > _maxMemoryBytes && it.hasNext()) {
+                Map.Entry<BasicTSKey,MemoryEntry> lru = it.next();
+                it.remove();
+                _memoryBytes -= lru.getValue().data.length;
+                if (_directory != null && !_disk.containsKey(lru.getKey())) {
+                    if (evicted == null) {
+                        evicted = new ArrayList<Map.Entry<BasicTSKey,MemoryEntry>>();
+                    }
+                    evicted.add(lru);
+                }
+            }
+        }
+        // entries evicted from memory go to disk, if enabled; outside lock
+        if (evicted != null) {
+            final long now = System.currentTimeMillis();
+            for (Map.Entry<BasicTSKey,MemoryEntry> e : evicted) {
+                MemoryEntry me = e.getValue();
+                if (me.expiration > now && me.data.length <= _maxDiskBytes) {
+                    _writeToDisk(e.getKey(), me.data, me.contentHash, me.expiration);
+                }
+            }
+        }
+    }
+
+    protected void _writeToDisk(BasicTSKey key, byte[] data, int contentHash, long expiration)
+    {
+        File file = new File(_directory, "entry-"+_fileCounter.incrementAndGet()+FILE_SUFFIX);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(contentHash);
+                out.writeLong(expiration);
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) { // just means entry is not cached on disk
+            file.delete();
+            return;
+        }
+        synchronized (this) {
+            _removeFromDisk(key);
+            _disk.put(key, new DiskEntry(file, data.length, contentHash, expiration));
+            _diskBytes += data.length;
+            Iterator<Map.Entry<BasicTSKey,DiskEntry>> it = _disk.entrySet().iterator();
+            while (_diskBytes > _maxDiskBytes && it.hasNext()) {
+                DiskEntry lru = it.next().getValue();
+                it.remove();
+                _diskBytes -= lru.length;
+                lru.file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return Contents of cached file, if it could be read and matches
+     *    content hash; null otherwise
+     */
+    protected byte[] _read(BasicTSKey key, DiskEntry entry)
+    {
+        byte[] data = new byte[entry.length];
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry.file)));
+            try {
+                in.readInt();
+                in.readLong();
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) { // most likely evicted concurrently
+            return null;
+        }
+        if (_hashFor(data) != entry.contentHash) {
+            _invalid.incrementAndGet();
+            synchronized (this) {
+                if (_disk.get(key) == entry) {
+                    _removeFromDisk(key);
+                }
+            }
+            return null;
+        }
+        return data;
+    }
+
+    protected void _purgeExpired(long now)
+    {
+        _addsSincePurge = 0;
+        for (Iterator<MemoryEntry> it = _memory.values().iterator(); it.hasNext(); ) {
+            MemoryEntry entry = it.next();
+            if (entry.expiration <= now) {
+                it.remove();
+                _memoryBytes -= entry.data.length;
+            }
+        }
+        for (Iterator<DiskEntry> it = _disk.values().iterator(); it.hasNext(); ) {
+            DiskEntry entry = it.next();
+            if (entry.expiration <= now) {
+                it.remove();
+                _diskBytes -= entry.length;
+                entry.file.delete();
+            }
+        }
+    }
+
+    // NOTE: caller must hold the lock
+    protected void _removeFromMemory(BasicTSKey key)
+    {
+        MemoryEntry old = _memory.remove(key);
+        if (old != null) {
+            _memoryBytes -= old.data.length;
+        }
+    }
+
+    // NOTE: caller must hold the lock
+    protected void _removeFromDisk(BasicTSKey key)
+    {
+        DiskEntry old = _disk.remove(key);
+        if (old != null) {
+            _diskBytes -= old.length;
+            old.file.delete();
+        }
+    }
+
+    /**
+     * Method for removing sub-directories of given cache directory left by
+     * instances no longer using them: ones that are not locked. Recently
+     * created directories are skipped, since their instances may not
+     * have locked them yet.
+     */
+    protected static void _removeStale(File directory)
+    {
+        File[] subdirs = directory.listFiles();
+        if (subdirs == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        for (File dir : subdirs) {
+            if (!dir.isDirectory() || !dir.getName().startsWith(SUBDIR_PREFIX)
+                    || (now - dir.lastModified()) < STALE_DIRECTORY_MIN_AGE_MSECS) {
+                continue;
+            }
+            File lockFile = new File(dir, LOCK_FILE);
+            if (lockFile.exists()) {
+                FileLock lock;
+                try {
+                    lock = _tryLock(lockFile);
+                } catch (IOException e) { // most likely removed concurrently
+                    continue;
+                }
+                if (lock == null) { // in use
+                    continue;
+                }
+                try {
+                    lock.channel().close();
+                } catch (IOException e) { }
+            }
+            _deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * @return Lock for given file, if it could be acquired; null if it
+     *    is held by another instance (in this or another process)
+     */
+    @SuppressWarnings("resource")
+    protected static FileLock _tryLock(File file) throws IOException
+    {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) { // held by this process
+        }
+        if (lock == null) {
+            channel.close();
+        }
+        return lock;
+    }
+
+    protected static void _deleteDirectory(File dir)
+    {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    protected int _hashFor(byte[] data) {
+        return _keyConverter.contentHashFor(ByteContainer.simple(data, 0, data.length));
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    protected static class MemoryEntry
+    {
+        public final byte[] data;
+        public final int contentHash;
+        public final long expiration;
+
+        public MemoryEntry(byte[] data, int contentHash, long expiration)
+        {
+            this.data = data;
+            this.contentHash = contentHash;
+            this.expiration = expiration;
+        }
+    }
+
+    protected static class DiskEntry
+    {
+        public final File file;
+        public final int length;
+        public final int contentHash;
+        public final long expiration;
+
+        public DiskEntry(File file, int length, int contentHash, long expiration)
+        {
+            this.file = file;
+            this.length = length;
+            this.contentHash = contentHash;
+            this.expiration = expiration;
+        }
+    }
+}
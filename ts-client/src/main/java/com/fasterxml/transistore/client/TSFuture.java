@@ -0,0 +1,173 @@
+package com.fasterxml.transistore.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Simple settable {@link Future} used for results of asynchronous
+ * operations: in addition to blocking access, allows registering
+ * listeners that are called when the operation completes, so that
+ * a single thread can drive a large number of concurrent operations.
+ *<p>
+ * Listeners are called by the thread that completes the future (usually
+ * an I/O thread of the HTTP client), or by the registering thread if
+ * the future has already completed; so they should not block.
+ */
+public class TSFuture<T> implements Future<T>
+{
+    /**
+     * Interface for objects notified when a {@link TSFuture} completes
+     * (successfully or not).
+     */
+    public interface Listener<T>
+    {
+        public void completed(T result);
+
+        public void failed(Throwable problem);
+    }
+
+    protected final CountDownLatch _done = new CountDownLatch(1);
+
+    protected List<Listener<T>> _listeners;
+
+    protected boolean _completed;
+
+    protected boolean _cancelled;
+
+    protected T _result;
+
+    protected Throwable _problem;
+
+    /*
+    /**********************************************************************
+    /* Completion
+    /**********************************************************************
+     */
+
+    /**
+     * @return True if this call completed the future; false if it had
+     *    already been completed (or cancelled)
+     */
+    public boolean complete(T result) {
+        return _finish(result, null, false);
+    }
+
+    /**
+     * @return True if this call completed the future; false if it had
+     *    already been completed (or cancelled)
+     */
+    public boolean fail(Throwable problem) {
+        return _finish(null, problem, false);
+    }
+
+    /**
+     * Method that completes the future (unless already completed) and
+     * calls listeners; all state, including cancellation, is set within
+     * the same critical section, so that state seen by callers is
+     * always consistent.
+     */
+    protected boolean _finish(T result, Throwable problem, boolean cancelled)
+    {
+        List<Listener<T>> listeners;
+        synchronized (this) {
+            if (_completed) {
+                return false;
+            }
+            _completed = true;
+            _cancelled = cancelled;
+            _result = result;
+            _problem = problem;
+            listeners = _listeners;
+            _listeners = null;
+        }
+        _done.countDown();
+        if (listeners != null) {
+            for (Listener<T> l : listeners) {
+                if (problem != null) {
+                    l.failed(problem);
+                } else {
+                    l.completed(result);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method for registering a listener to call when this future completes;
+     * if already completed, listener is called right away.
+     */
+    public TSFuture<T> addListener(Listener<T> listener)
+    {
+        synchronized (this) {
+            if (!_completed) {
+                if (_listeners == null) {
+                    _listeners = new ArrayList<Listener<T>>(2);
+                }
+                _listeners.add(listener);
+                return this;
+            }
+        }
+        if (_problem != null) {
+            listener.failed(_problem);
+        } else {
+            listener.completed(_result);
+        }
+        return this;
+    }
+
+    /*
+    /**********************************************************************
+    /* Future impl
+    /**********************************************************************
+     */
+
+    /**
+     * Cancellation only marks the future as failed with a
+     * {@link CancellationException}; operation itself may still
+     * complete.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return _finish(null, new CancellationException(), true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return _cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return _completed;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException
+    {
+        _done.await();
+        return _result();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (!_done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return _result();
+    }
+
+    protected synchronized T _result() throws ExecutionException
+    {
+        if (_cancelled) {
+            throw new CancellationException();
+        }
+        if (_problem != null) {
+            throw new ExecutionException(_problem);
+        }
+        return _result;
+    }
+}
@@ -0,0 +1,122 @@
+package com.fasterxml.transistore.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.storemate.shared.IpAndPort;
+
+/**
+ * Settings for hedged reads: if a read from a server node has not
+ * completed within a delay, the same read is sent to the next replica,
+ * and whichever response arrives first is used. Delay is either fixed,
+ * or based on recently observed latency percentile of the node; and
+ * hedges are limited to a maximum ratio of all reads, so that an
+ * overloaded cluster is not swamped with extra requests.
+ */
+public class TSHedgingPolicy
+{
+    public final static int DEFAULT_PERCENTILE = 95;
+
+    public final static double DEFAULT_MAX_HEDGE_RATIO = 0.05;
+
+    /**
+     * Delay used with percentile-based policy until enough latencies have
+     * been observed for the node
+     */
+    public final static int DEFAULT_FALLBACK_DELAY_MSECS = 100;
+
+    /**
+     * Fixed delay, in milliseconds; or 0 to use latency percentile
+     */
+    protected final int _fixedDelayMsecs;
+
+    protected final int _percentile;
+
+    protected final double _maxHedgeRatio;
+
+    protected TSHedgingPolicy(int fixedDelayMsecs, int percentile, double maxHedgeRatio)
+    {
+        if (maxHedgeRatio < 0.0 || maxHedgeRatio > 1.0) {
+            throw new IllegalArgumentException("Invalid maxHedgeRatio ("+maxHedgeRatio+"): must be between 0.0 and 1.0");
+        }
+        _fixedDelayMsecs = fixedDelayMsecs;
+        _percentile = percentile;
+        _maxHedgeRatio = maxHedgeRatio;
+    }
+
+    /**
+     * Factory method for policy that hedges reads that take longer than
+     * given fixed delay.
+     */
+    public static TSHedgingPolicy fixedDelay(int delayMsecs)
+    {
+        if (delayMsecs < 1) {
+            throw new IllegalArgumentException("Invalid delay ("+delayMsecs+"): must be positive");
+        }
+        return new TSHedgingPolicy(delayMsecs, 0, DEFAULT_MAX_HEDGE_RATIO);
+    }
+
+    /**
+     * Factory method for policy that hedges reads that take longer than
+     * given latency percentile (like 95) of recent reads from the node.
+     */
+    public static TSHedgingPolicy percentileDelay(int percentile)
+    {
+        if (percentile < 1 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile ("+percentile+"): must be between 1 and 100");
+        }
+        return new TSHedgingPolicy(0, percentile, DEFAULT_MAX_HEDGE_RATIO);
+    }
+
+    public TSHedgingPolicy withMaxHedgeRatio(double ratio) {
+        return (ratio == _maxHedgeRatio) ? this
+                : new TSHedgingPolicy(_fixedDelayMsecs, _percentile, ratio);
+    }
+
+    /*
+    /**********************************************************************
+    /* Accessors
+    /**********************************************************************
+     */
+
+    /**
+     * @return Maximum ratio of hedged reads to all reads
+     */
+    public double getMaxHedgeRatio() {
+        return _maxHedgeRatio;
+    }
+
+    /**
+     * Method for determining how long to wait for response from given
+     * node before sending a hedged read.
+     */
+    public int delayFor(NodeLatencyTracker latencies, IpAndPort node)
+    {
+        if (_fixedDelayMsecs > 0) {
+            return _fixedDelayMsecs;
+        }
+        int msecs = latencies.percentile(node, _percentile);
+        return (msecs < 0) ? DEFAULT_FALLBACK_DELAY_MSECS : Math.max(1, msecs);
+    }
+
+    /**
+     * Method for checking whether another hedged read is allowed, given
+     * counts of hedged and all reads so far, and if so, incrementing
+     * count of hedged reads. Check and increment are done atomically, so
+     * that concurrent callers can not exceed the maximum ratio.
+     *
+     * @return True if hedge is allowed (and count was incremented)
+     */
+    public boolean tryHedge(AtomicLong hedgeCount, long readCount)
+    {
+        final double max = _maxHedgeRatio * readCount;
+        while (true) {
+            long hedges = hedgeCount.get();
+            if ((hedges + 1) > max) {
+                return false;
+            }
+            if (hedgeCount.compareAndSet(hedges, hedges + 1)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.fasterxml.transistore.client;
+
+import com.fasterxml.transistore.basic.BasicTSListItem;
+
+/**
+ * Callback interface used with streaming listings, to process list items
+ * as they are read.
+ */
+public interface TSListItemHandler
+{
+    /**
+     * @return True if listing should continue; false to stop listing
+     */
+    public boolean handleItem(BasicTSListItem item);
+}
@@ -14,14 +14,23 @@ public class TSPutCallParameters extends PutCallParameters
 	
     protected final int _maxTTLInSeconds;
 
+    protected final int _minTTLInSeconds;
+
     public TSPutCallParameters() {
         super((StoreClientConfig<?,?>) null);
         _maxTTLInSeconds = NOT_DEFINED;
+        _minTTLInSeconds = NOT_DEFINED;
     }
 
     protected TSPutCallParameters(TSPutCallParameters base, int maxTTLSecs)
+    {
+        this(base, base._minTTLInSeconds, maxTTLSecs);
+    }
+
+    protected TSPutCallParameters(TSPutCallParameters base, int minTTLSecs, int maxTTLSecs)
     {
         super(base);
+        _minTTLInSeconds = minTTLSecs;
         _maxTTLInSeconds = maxTTLSecs;
     }
 
@@ -29,6 +38,7 @@ public class TSPutCallParameters extends PutCallParameters
     {
         super(base, config);
         _maxTTLInSeconds = base._maxTTLInSeconds;
+        _minTTLInSeconds = base._minTTLInSeconds;
     }
     
     /*
@@ -46,11 +56,64 @@ public class TSPutCallParameters extends PutCallParameters
         return (ttlSecs == _maxTTLInSeconds) ? this : new TSPutCallParameters(this, ttlSecs);
     }
 
+    /**
+     * Method for specifying minimum time-to-live since last access
+     * of entries, in seconds; -1 to use server default.
+     */
+    public TSPutCallParameters withMinTTL(int ttlSecs) {
+        return (ttlSecs == _minTTLInSeconds) ? this
+                : new TSPutCallParameters(this, ttlSecs, _maxTTLInSeconds);
+    }
+
     @Override
     public TSPutCallParameters withClientConfig(StoreClientConfig<?,?> config) {
         return new TSPutCallParameters(this, config);
     }
 
+    /*
+    /**********************************************************************
+    /* Accessors
+    /**********************************************************************
+     */
+
+    /**
+     * @return Maximum time-to-live of entries, in seconds, if defined;
+     *   -1 if not (to use server default)
+     */
+    public int getMaxTTLSecs() {
+        return _maxTTLInSeconds;
+    }
+
+    /**
+     * @return Minimum time-to-live of entries since last access, in
+     *   seconds, if defined; -1 if not (to use server default)
+     */
+    public int getMinTTLSecs() {
+        return _minTTLInSeconds;
+    }
+
+    /**
+     * Helper method for constructing query string with TTL parameters,
+     * for requests not built using {@link #appendToPath}.
+     *
+     * @return Query string (without leading '?'), if any parameters are
+     *   defined; null if not
+     */
+    public String asQueryString()
+    {
+        StringBuilder sb = new StringBuilder();
+        if (_maxTTLInSeconds > 0) {
+            sb.append(ClusterMateConstants.QUERY_PARAM_MAX_TTL).append('=').append(_maxTTLInSeconds);
+        }
+        if (_minTTLInSeconds >= 0) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(ClusterMateConstants.QUERY_PARAM_MIN_TTL).append('=').append(_minTTLInSeconds);
+        }
+        return (sb.length() == 0) ? null : sb.toString();
+    }
+
     /*
     /**********************************************************************
     /* Implementation needed by base class
@@ -63,6 +126,9 @@ public class TSPutCallParameters extends PutCallParameters
         if (_maxTTLInSeconds > 0) {
             pathBuilder = (B) pathBuilder.addParameter(ClusterMateConstants.QUERY_PARAM_MAX_TTL, _maxTTLInSeconds);
         }
+        if (_minTTLInSeconds >= 0) {
+            pathBuilder = (B) pathBuilder.addParameter(ClusterMateConstants.QUERY_PARAM_MIN_TTL, _minTTLInSeconds);
+        }
         return pathBuilder;
     }
 }
@@ -0,0 +1,158 @@
+package com.fasterxml.transistore.client;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.IpAndPort;
+
+public class TestNodeLatencyTracker extends TestCase
+{
+    private final static IpAndPort NODE1 = new IpAndPort("localhost:9090");
+    private final static IpAndPort NODE2 = new IpAndPort("localhost:9091");
+    private final static IpAndPort NODE3 = new IpAndPort("localhost:9092");
+
+    private final static List<IpAndPort> NODES = Arrays.asList(NODE1, NODE2, NODE3);
+
+    public void testReadOrderWithoutObservations() throws Exception
+    {
+        NodeLatencyTracker latencies = new NodeLatencyTracker();
+        // without observations, ownership order is used as is
+        for (int i = 0; i < 100; ++i) {
+            assertEquals("[0, 1, 2]", Arrays.toString(latencies.readOrder(NODES)));
+        }
+        // as with request outstanding, but no response yet
+        latencies.requestStarted(NODE3);
+        for (int i = 0; i < 100; ++i) {
+            assertEquals("[0, 1, 2]", Arrays.toString(latencies.readOrder(NODES)));
+        }
+        assertEquals("[0]", Arrays.toString(latencies.readOrder(Arrays.asList(NODE1))));
+    }
+
+    public void testReadOrderPrefersFaster() throws Exception
+    {
+        NodeLatencyTracker latencies = new NodeLatencyTracker();
+        _record(latencies, NODE1, 500, true);
+        _record(latencies, NODE2, 10, true);
+        _record(latencies, NODE3, 500, true);
+        int fastFirst = 0;
+        for (int i = 0; i < 3000; ++i) {
+            int[] order = latencies.readOrder(NODES);
+            if (order[0] == 1) {
+                ++fastFirst;
+                assertEquals("[1, 0, 2]", Arrays.toString(order));
+            } else {
+                // others keep their original order
+                assertEquals(order[0] == 0 ? "[0, 1, 2]" : "[2, 0, 1]", Arrays.toString(order));
+            }
+        }
+        // fast node is chosen whenever it is one of two candidates: 2/3 of time
+        assertTrue("Fast node first "+fastFirst+" times", fastFirst > 1800 && fastFirst < 2200);
+    }
+
+    public void testFailuresArePenalized() throws Exception
+    {
+        NodeLatencyTracker latencies = new NodeLatencyTracker();
+        _record(latencies, NODE1, 50, true);
+        // fast failures (like refused connections) should not make node look fast
+        _record(latencies, NODE2, 1, false);
+        assertTrue(latencies.expectedLatency(NODE2) >= NodeLatencyTracker.FAILURE_PENALTY_MSECS - 1);
+        assertTrue(latencies.expectedLatency(NODE1) < latencies.expectedLatency(NODE2));
+        for (int i = 0; i < 100; ++i) {
+            int[] order = latencies.readOrder(Arrays.asList(NODE1, NODE2));
+            assertEquals(0, order[0]);
+        }
+        // nor do failures count for percentiles
+        assertEquals(-1, latencies.percentile(NODE2, 50));
+    }
+
+    public void testDecayOnlyWhenIdle() throws Exception
+    {
+        NodeLatencyTracker.Samples s = new NodeLatencyTracker.Samples();
+        final long start = 1000000L;
+        final long halfLife = NodeLatencyTracker.EWMA_HALF_LIFE_MSECS;
+        s.started(start);
+        s.finished(400, true, start);
+        assertEquals(400.0, s.expectedLatency(start), 0.01);
+        // idle node: decays, halving every half-life
+        assertEquals(200.0, s.expectedLatency(start + halfLife), 0.01);
+        assertEquals(100.0, s.expectedLatency(start + 2 * halfLife), 0.01);
+
+        // but not while a request is outstanding (and not responding)
+        final long sent = start + halfLife;
+        s.started(sent);
+        assertEquals(400.0, s.expectedLatency(sent), 0.01); // 200 x (1 + 1)
+        assertEquals(400.0, s.expectedLatency(sent + 10 * halfLife), 0.01);
+
+        // and once response comes, averaged with decayed value at time sent
+        final long received = sent + 2000L;
+        s.finished(2000, true, received);
+        double expected = NodeLatencyTracker.EWMA_ALPHA * 2000 + (1.0 - NodeLatencyTracker.EWMA_ALPHA) * 200.0;
+        assertEquals(expected, s.expectedLatency(received), 0.01);
+        assertEquals(expected / 2.0, s.expectedLatency(received + halfLife), 0.01);
+    }
+
+    public void testConcurrentUpdates() throws Exception
+    {
+        final NodeLatencyTracker latencies = new NodeLatencyTracker();
+        final AtomicInteger invalid = new AtomicInteger();
+        final int threads = 8;
+        final ExecutorService exec = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; ++t) {
+                final int id = t;
+                exec.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 2000; ++i) {
+                            IpAndPort node = NODES.get((id + i) % NODES.size());
+                            latencies.requestStarted(node);
+                            int[] order = latencies.readOrder(NODES);
+                            if (!_isPermutation(order)) {
+                                invalid.incrementAndGet();
+                            }
+                            latencies.requestFinished(node, i % 50, (i % 10) != 0);
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            assertTrue(done.await(30L, TimeUnit.SECONDS));
+        } finally {
+            exec.shutdown();
+        }
+        assertEquals(0, invalid.get());
+        // all requests completed: none outstanding
+        for (IpAndPort node : NODES) {
+            assertEquals(0, latencies._nodes.get(node)._outstanding);
+            assertTrue(latencies.percentile(node, 50) >= 0);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    private static void _record(NodeLatencyTracker latencies, IpAndPort node, long msecs, boolean success)
+    {
+        latencies.requestStarted(node);
+        latencies.requestFinished(node, msecs, success);
+    }
+
+    static boolean _isPermutation(int[] order)
+    {
+        int[] sorted = Arrays.copyOf(order, order.length);
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; ++i) {
+            if (sorted[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
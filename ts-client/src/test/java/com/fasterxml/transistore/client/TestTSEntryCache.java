@@ -0,0 +1,180 @@
+package com.fasterxml.transistore.client;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.ByteContainer;
+
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.basic.BasicTSKeyConverter;
+
+public class TestTSEntryCache extends TestCase
+{
+    protected final BasicTSKeyConverter _keyConverter = BasicTSKeyConverter.defaultInstance();
+
+    protected File _directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        _directory = Files.createTempDirectory("tscache-test").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _delete(_directory);
+    }
+
+    public void testExpirationMargin() throws Exception
+    {
+        TSEntryCache cache = new TSEntryCache(_keyConverter, 1000L, null, 0L, 30000L);
+        final BasicTSKey KEY = _keyConverter.construct("p", "/a");
+        final byte[] DATA = "abc".getBytes("UTF-8");
+        final long now = System.currentTimeMillis();
+
+        // would expire within the margin: not cached
+        assertFalse(cache.put(KEY, DATA, _hash(DATA), now + 10000L));
+        assertNull(cache.get(KEY));
+        // but beyond it is
+        assertTrue(cache.put(KEY, DATA, _hash(DATA), now + 60000L));
+        assertTrue(Arrays.equals(DATA, cache.get(KEY)));
+
+        // and without margin, entries are cached until they expire
+        cache = new TSEntryCache(_keyConverter, 1000L, null, 0L, 0L);
+        assertTrue(cache.put(KEY, DATA, _hash(DATA), now + 10000L));
+        assertTrue(Arrays.equals(DATA, cache.get(KEY)));
+        assertFalse(cache.put(KEY, DATA, _hash(DATA), now - 1L));
+    }
+
+    public void testHashMismatch() throws Exception
+    {
+        TSEntryCache cache = new TSEntryCache(_keyConverter, 0L, _directory, 1000L);
+        final BasicTSKey KEY = _keyConverter.construct("p", "/a");
+        final byte[] DATA = "abc".getBytes("UTF-8");
+        final long expiration = System.currentTimeMillis() + 3600000L;
+
+        // contents not matching hash are not cached
+        assertFalse(cache.put(KEY, DATA, _hash(DATA) + 1, expiration));
+        assertEquals(1L, cache.getInvalidCount());
+        assertNull(cache.get(KEY));
+
+        // nor are ones corrupted on disk returned
+        assertTrue(cache.put(KEY, DATA, _hash(DATA), expiration));
+        List<File> files = _cacheFiles(_directory);
+        assertEquals(1, files.size());
+        RandomAccessFile raf = new RandomAccessFile(files.get(0), "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            raf.write('x');
+        } finally {
+            raf.close();
+        }
+        assertNull(cache.get(KEY));
+        assertEquals(2L, cache.getInvalidCount());
+        assertEquals(0L, cache.getDiskBytes());
+        cache.close();
+    }
+
+    public void testEvictionToDisk() throws Exception
+    {
+        TSEntryCache cache = new TSEntryCache(_keyConverter, 10L, _directory, 1000L);
+        final BasicTSKey KEY1 = _keyConverter.construct("p", "/a");
+        final BasicTSKey KEY2 = _keyConverter.construct("p", "/b");
+        final byte[] DATA1 = "12345678".getBytes("UTF-8");
+        final byte[] DATA2 = "abcdefgh".getBytes("UTF-8");
+        final long expiration = System.currentTimeMillis() + 3600000L;
+
+        assertTrue(cache.put(KEY1, DATA1, _hash(DATA1), expiration));
+        assertEquals(8L, cache.getMemoryBytes());
+        assertEquals(0L, cache.getDiskBytes());
+
+        // only one fits in memory: least recently used one moves to disk
+        assertTrue(cache.put(KEY2, DATA2, _hash(DATA2), expiration));
+        assertEquals(8L, cache.getMemoryBytes());
+        assertEquals(8L, cache.getDiskBytes());
+        assertEquals(1, _cacheFiles(_directory).size());
+
+        // but both can be read
+        assertTrue(Arrays.equals(DATA1, cache.get(KEY1)));
+        assertTrue(Arrays.equals(DATA2, cache.get(KEY2)));
+        assertEquals(2L, cache.getHitCount());
+        assertEquals(0L, cache.getMissCount());
+
+        cache.remove(KEY1);
+        cache.remove(KEY2);
+        assertNull(cache.get(KEY1));
+        assertEquals(0L, cache.getMemoryBytes());
+        assertEquals(0L, cache.getDiskBytes());
+        assertEquals(0, _cacheFiles(_directory).size());
+        cache.close();
+    }
+
+    public void testSharedDirectory() throws Exception
+    {
+        TSEntryCache cache1 = new TSEntryCache(_keyConverter, 0L, _directory, 1000L);
+        TSEntryCache cache2 = new TSEntryCache(_keyConverter, 0L, _directory, 1000L);
+        // each instance uses its own sub-directory
+        assertEquals(2, _directory.listFiles().length);
+
+        final BasicTSKey KEY = _keyConverter.construct("p", "/a");
+        final byte[] DATA1 = "first".getBytes("UTF-8");
+        final byte[] DATA2 = "second".getBytes("UTF-8");
+        final long expiration = System.currentTimeMillis() + 3600000L;
+        assertTrue(cache1.put(KEY, DATA1, _hash(DATA1), expiration));
+        assertTrue(cache2.put(KEY, DATA2, _hash(DATA2), expiration));
+        assertTrue(Arrays.equals(DATA1, cache1.get(KEY)));
+        assertTrue(Arrays.equals(DATA2, cache2.get(KEY)));
+
+        // directories of running instances are not removed, even if old
+        for (File dir : _directory.listFiles()) {
+            assertTrue(dir.setLastModified(System.currentTimeMillis() - 3600000L));
+        }
+        TSEntryCache cache3 = new TSEntryCache(_keyConverter, 0L, _directory, 1000L);
+        assertEquals(3, _directory.listFiles().length);
+        assertTrue(Arrays.equals(DATA1, cache1.get(KEY)));
+
+        // and closing only removes instance's own directory
+        cache1.close();
+        assertEquals(2, _directory.listFiles().length);
+        assertTrue(Arrays.equals(DATA2, cache2.get(KEY)));
+        cache2.close();
+        cache3.close();
+        assertEquals(0, _directory.listFiles().length);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    protected int _hash(byte[] data) {
+        return _keyConverter.contentHashFor(ByteContainer.simple(data, 0, data.length));
+    }
+
+    protected List<File> _cacheFiles(File dir)
+    {
+        List<File> result = new ArrayList<File>();
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory()) {
+                result.addAll(_cacheFiles(f));
+            } else if (f.getName().endsWith(TSEntryCache.FILE_SUFFIX)) {
+                result.add(f);
+            }
+        }
+        return result;
+    }
+
+    protected void _delete(File f)
+    {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                _delete(child);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,157 @@
+package com.fasterxml.transistore.client;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.TestCase;
+
+public class TestTSFuture extends TestCase
+{
+    public void testComplete() throws Exception
+    {
+        TSFuture<String> f = new TSFuture<String>();
+        Recorder<String> before = new Recorder<String>();
+        f.addListener(before);
+        assertFalse(f.isDone());
+        assertTrue(before.calls.isEmpty());
+
+        assertTrue(f.complete("a"));
+        // only first completion counts
+        assertFalse(f.complete("b"));
+        assertFalse(f.fail(new IOException("late")));
+        assertFalse(f.cancel(true));
+
+        assertTrue(f.isDone());
+        assertFalse(f.isCancelled());
+        assertEquals("a", f.get());
+        assertEquals("a", f.get(1L, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("completed:a"), before.calls);
+
+        // listeners added after completion are called right away
+        Recorder<String> after = new Recorder<String>();
+        f.addListener(after);
+        assertEquals(Arrays.asList("completed:a"), after.calls);
+    }
+
+    public void testFail() throws Exception
+    {
+        TSFuture<String> f = new TSFuture<String>();
+        Recorder<String> before = new Recorder<String>();
+        f.addListener(before);
+        IOException fail = new IOException("Broken");
+        assertTrue(f.fail(fail));
+        assertFalse(f.complete("a"));
+        try {
+            f.get();
+            fail("Should not pass");
+        } catch (ExecutionException e) {
+            assertSame(fail, e.getCause());
+        }
+        Recorder<String> after = new Recorder<String>();
+        f.addListener(after);
+        assertEquals(Arrays.asList("failed:Broken"), before.calls);
+        assertEquals(Arrays.asList("failed:Broken"), after.calls);
+    }
+
+    public void testTimeout() throws Exception
+    {
+        TSFuture<String> f = new TSFuture<String>();
+        try {
+            f.get(1L, TimeUnit.MILLISECONDS);
+            fail("Should not pass");
+        } catch (TimeoutException e) { }
+    }
+
+    public void testCompletedByOtherThread() throws Exception
+    {
+        final TSFuture<Integer> f = new TSFuture<Integer>();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                f.complete(3);
+            }
+        });
+        t.start();
+        assertEquals(Integer.valueOf(3), f.get(10L, TimeUnit.SECONDS));
+        t.join();
+    }
+
+    public void testCancel() throws Exception
+    {
+        TSFuture<String> f = new TSFuture<String>();
+        Recorder<String> listener = new Recorder<String>();
+        f.addListener(listener);
+        assertTrue(f.cancel(false));
+        assertTrue(f.isDone());
+        assertTrue(f.isCancelled());
+        assertFalse(f.complete("a"));
+        try {
+            f.get();
+            fail("Should not pass");
+        } catch (CancellationException e) { }
+        assertEquals(1, listener.calls.size());
+        assertTrue(listener.calls.get(0).startsWith("failed:"));
+    }
+
+    public void testCancelRacingComplete() throws Exception
+    {
+        final ExecutorService exec = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 2000; ++i) {
+                final TSFuture<String> f = new TSFuture<String>();
+                final CountDownLatch start = new CountDownLatch(1);
+                Future<Boolean> cancel = exec.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return f.cancel(false);
+                    }
+                });
+                Future<Boolean> complete = exec.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return f.complete("a");
+                    }
+                });
+                start.countDown();
+                boolean cancelled = cancel.get();
+                // exactly one of calls wins; and state must match the winner
+                assertTrue(cancelled != complete.get());
+                assertEquals(cancelled, f.isCancelled());
+                if (cancelled) {
+                    try {
+                        f.get();
+                        fail("Should not pass");
+                    } catch (CancellationException e) { }
+                } else {
+                    assertEquals("a", f.get());
+                }
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    static class Recorder<T> implements TSFuture.Listener<T>
+    {
+        public final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void completed(T result) {
+            calls.add("completed:"+result);
+        }
+
+        @Override
+        public void failed(Throwable problem) {
+            calls.add("failed:"+problem.getMessage());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.fasterxml.transistore.client;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.IpAndPort;
+
+public class TestTSHedgingPolicy extends TestCase
+{
+    private final IpAndPort NODE = new IpAndPort("localhost:9090");
+
+    public void testFixedDelay() throws Exception
+    {
+        TSHedgingPolicy policy = TSHedgingPolicy.fixedDelay(25);
+        NodeLatencyTracker latencies = new NodeLatencyTracker();
+        assertEquals(25, policy.delayFor(latencies, NODE));
+        // not affected by observed latencies
+        for (int i = 0; i < 100; ++i) {
+            latencies.requestStarted(NODE);
+            latencies.requestFinished(NODE, 500L, true);
+        }
+        assertEquals(25, policy.delayFor(latencies, NODE));
+    }
+
+    public void testPercentileDelay() throws Exception
+    {
+        final TSHedgingPolicy policy = TSHedgingPolicy.percentileDelay(95);
+        final NodeLatencyTracker latencies = new NodeLatencyTracker();
+        // until enough samples, use fallback delay
+        assertEquals(TSHedgingPolicy.DEFAULT_FALLBACK_DELAY_MSECS, policy.delayFor(latencies, NODE));
+        latencies.requestStarted(NODE);
+        latencies.requestFinished(NODE, 3L, true);
+        assertEquals(TSHedgingPolicy.DEFAULT_FALLBACK_DELAY_MSECS, policy.delayFor(latencies, NODE));
+
+        // then record latencies 1 - 100 concurrently, reading delays meanwhile
+        final ExecutorService exec = Executors.newFixedThreadPool(4);
+        try {
+            final CountDownLatch done = new CountDownLatch(100);
+            for (int i = 1; i <= 100; ++i) {
+                final int msecs = i;
+                exec.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        latencies.requestStarted(NODE);
+                        latencies.requestFinished(NODE, msecs, true);
+                        int delay = policy.delayFor(latencies, NODE);
+                        if (delay > 0) {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            assertTrue(done.await(10L, TimeUnit.SECONDS));
+        } finally {
+            exec.shutdown();
+        }
+        // 101 samples (3, 1 - 100): 96th lowest is 95
+        assertEquals(95, policy.delayFor(latencies, NODE));
+        // failures do not affect percentiles
+        latencies.requestStarted(NODE);
+        latencies.requestFinished(NODE, 10000L, false);
+        assertEquals(95, policy.delayFor(latencies, NODE));
+    }
+
+    public void testHedgeCap() throws Exception
+    {
+        final TSHedgingPolicy policy = TSHedgingPolicy.fixedDelay(10).withMaxHedgeRatio(0.1);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong hedges = new AtomicLong();
+        final AtomicLong violations = new AtomicLong();
+        final int threads = 8;
+        final ExecutorService exec = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; ++t) {
+                exec.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 10000; ++i) {
+                            long readCount = reads.incrementAndGet();
+                            // every read wants to hedge; only up to ratio may
+                            if (policy.tryHedge(hedges, readCount)
+                                    && hedges.get() > 0.1 * reads.get()) {
+                                violations.incrementAndGet();
+                            }
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            assertTrue(done.await(30L, TimeUnit.SECONDS));
+        } finally {
+            exec.shutdown();
+        }
+        assertEquals(0L, violations.get());
+        assertEquals(80000L, reads.get());
+        // and (nearly) all of allowed hedges should have been used
+        assertTrue(hedges.get() <= 8000L);
+        assertTrue("Only "+hedges.get()+" hedges", hedges.get() >= 7990L);
+    }
+
+    public void testInvalid() throws Exception
+    {
+        try {
+            TSHedgingPolicy.fixedDelay(0);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("delay"));
+        }
+        try {
+            TSHedgingPolicy.percentileDelay(101);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("percentile"));
+        }
+        try {
+            TSHedgingPolicy.fixedDelay(10).withMaxHedgeRatio(1.5);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("maxHedgeRatio"));
+        }
+    }
+}
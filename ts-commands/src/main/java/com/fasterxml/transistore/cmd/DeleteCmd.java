@@ -5,6 +5,7 @@ import java.util.*;
 
 import io.airlift.command.*;
 
+import com.fasterxml.storemate.shared.IpAndPort;
 import com.fasterxml.storemate.shared.StorableKey;
 
 import com.fasterxml.clustermate.api.ListItemType;
@@ -20,7 +21,10 @@ public class DeleteCmd extends TStoreCmdBase
     @Option(name = { "-r", "--recursive"}, description = "Recursive deletion (by prefix)")
     public boolean recursive = false;
 
-    @Option(name = { "-m", "--max" }, description = "Maximum number of entries to delete per path (default: 500)",
+    @Option(name = { "-c", "--client-side" }, description = "Recursive deletion by listing and deleting entries one by one, instead of deleting on server")
+    public boolean clientSide = false;
+
+    @Option(name = { "-m", "--max" }, description = "Maximum number of entries to delete per path, for client-side deletion (default: 500)",
             arity=1 )
     public int maxEntries = 500;
     
@@ -49,7 +53,7 @@ public class DeleteCmd extends TStoreCmdBase
             }
         }
         BasicTSClient client = bootstrapClient();
-        int total = 0;
+        long total = 0;
         try {
             for (BasicTSKey path : paths) {
                 // One check: no recursive deletion without partition id, since it won't work
@@ -58,7 +62,13 @@ public class DeleteCmd extends TStoreCmdBase
                     System.err.printf("Can not delete recursively without partition id, skipping: %s\n", path);
                     continue;
                 }
-                total += recursive ? deleteRecursively(client, path) : deleteSingle(client, path);
+                if (!recursive) {
+                    total += deleteSingle(client, path);
+                } else if (clientSide) {
+                    total += deleteRecursively(client, path);
+                } else {
+                    total += deleteOnServer(client, path);
+                }
             }
         } catch (Exception e) {
             System.err.printf("ERROR: (%s): %s", e.getClass().getName(), e.getMessage());
@@ -107,6 +117,54 @@ public class DeleteCmd extends TStoreCmdBase
         }
     }
 
+    /**
+     * Method for deleting entries with given prefix using server-side
+     * deletion jobs, and waiting for jobs to complete.
+     *
+     * @return Maximum number of entries deleted by a single server node
+     */
+    protected long deleteOnServer(BasicTSClient client, BasicTSKey prefix)
+            throws IOException, InterruptedException
+    {
+        Map<IpAndPort,BasicTSDeleteJobStatus> jobs = client.deleteByPrefix(prefix);
+        if (jobs.isEmpty()) {
+            throw new IOException("Failed to start deletion of '"+prefix+"' on any server node");
+        }
+        long deleted = 0L;
+        while (true) {
+            boolean finished = true;
+            deleted = 0L;
+            for (Map.Entry<IpAndPort,BasicTSDeleteJobStatus> entry : jobs.entrySet()) {
+                BasicTSDeleteJobStatus status = entry.getValue();
+                if (!status.isFinished()) {
+                    BasicTSDeleteJobStatus newStatus = client.findDeleteJob(entry.getKey(), prefix, status.id);
+                    if (newStatus == null) { // should not occur, but if it does, can't wait
+                        warn("Lost track of deletion job #%d on %s", status.id, entry.getKey());
+                        status.state = BasicTSDeleteJobStatus.State.CANCELLED;
+                    } else {
+                        status = newStatus;
+                        entry.setValue(status);
+                    }
+                    finished &= status.isFinished();
+                }
+                deleted = Math.max(deleted, status.deleted);
+            }
+            if (finished) {
+                break;
+            }
+            warn("Deleting '%s': %d entries deleted so far...", prefix, deleted);
+            Thread.sleep(1000L);
+        }
+        for (Map.Entry<IpAndPort,BasicTSDeleteJobStatus> entry : jobs.entrySet()) {
+            BasicTSDeleteJobStatus status = entry.getValue();
+            if (status.state != BasicTSDeleteJobStatus.State.COMPLETED) {
+                warn("Deletion job #%d on %s did not complete (%s): %s", status.id, entry.getKey(),
+                        status.state, status.failure);
+            }
+        }
+        return deleted;
+    }
+
     protected boolean _deleteSingle(BasicTSClient client, BasicTSKey path)
         throws IOException, InterruptedException
     {
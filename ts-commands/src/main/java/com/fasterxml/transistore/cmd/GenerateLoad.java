@@ -1,6 +1,11 @@
 package com.fasterxml.transistore.cmd;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -9,7 +14,12 @@ import java.util.concurrent.atomic.AtomicInteger;
 import com.fasterxml.clustermate.client.operation.PutOperationResult;
 import com.fasterxml.transistore.basic.BasicTSKey;
 import com.fasterxml.transistore.client.BasicTSClient;
+import com.fasterxml.transistore.client.BasicTSClientBootstrapper;
 import com.fasterxml.transistore.client.BasicTSClientConfig;
+import com.fasterxml.transistore.client.TSFuture;
+import com.fasterxml.transistore.client.TSPutCallParameters;
+import com.fasterxml.transistore.client.ahc.AsyncTSClient;
+import com.fasterxml.transistore.client.jdk.JDKBasedClientBootstrapper;
 
 import io.airlift.command.Arguments;
 import io.airlift.command.Command;
@@ -26,11 +36,29 @@ public class GenerateLoad extends TStoreCmdBase
      */
     protected final static long THREAD_STARTUP_DELAY_MSECS = 500L;
 
+    /**
+     * Name of the client class that uses JDK 11 HttpClient; only built
+     * with JDK 11 and later, so it needs to be accessed dynamically.
+     */
+    protected final static String JDK_HTTP_CLIENT_CLASS = "com.fasterxml.transistore.client.jdkhttp.JdkHttpTSClient";
+
     // NOTE: due to HTTP restrictions, more threads will often not help throughput
     // too much. We could create multiple clients maybe?
     @Option(name = { "--threadCount" }, description = "Number of threads to use (per operation type)")
     public int threadCount = 10;
 
+    @Option(name = { "--httpClient" }, description = "HTTP client to use for blocking requests: 'ahc' (default), 'jdk' (HttpURLConnection) or 'jdkhttp' (JDK 11+ HttpClient, HTTP/2; only if built with JDK 11+)")
+    public String httpClient = "ahc";
+
+    @Option(name = { "--virtualThreads" }, description = "Use virtual threads (requires JDK 21) instead of a thread pool for blocking requests")
+    public boolean virtualThreads = false;
+
+    @Option(name = { "--async" }, description = "Use asynchronous client, driving all requests from a single thread (--threadCount is ignored)")
+    public boolean async = false;
+
+    @Option(name = { "--maxInFlight" }, description = "Maximum number of requests in flight per server node, with --async")
+    public int maxInFlight = AsyncTSClient.DEFAULT_MAX_IN_FLIGHT_PER_NODE;
+
     @Option(name = { "--requestCount" }, description = "Number of requests to send (per operation type)")
     public int requestCount = 10000;
     
@@ -45,9 +73,22 @@ public class GenerateLoad extends TStoreCmdBase
 
     protected BasicTSClient _client;
 
+    /**
+     * Client used for PUTs if using JDK 11 HttpClient (see
+     * {@link #JDK_HTTP_CLIENT_CLASS})
+     */
+    protected Object _jdkHttpClient;
+
+    /**
+     * Method of {@link #_jdkHttpClient} used for PUTs
+     */
+    protected Method _jdkHttpPut;
+
     protected BasicTSKey _prefix;
 
     protected long _startTime;
+
+    protected final LatencyStats _latencies = new LatencyStats();
     
     public GenerateLoad() {
        // true -> Ok to write verbose info on stdout
@@ -62,6 +103,20 @@ public class GenerateLoad extends TStoreCmdBase
                 .setMaxHttpConnectionsPerHost(10) // default of 5 not so hot for load test
                 .build();
     }
+
+    @Override
+    protected BasicTSClientBootstrapper constructBootstrapper(BasicTSClientConfig clientConfig)
+    {
+        if ("jdk".equals(httpClient)) {
+            return new JDKBasedClientBootstrapper(clientConfig);
+        }
+        // 'jdkhttp' only used for entry PUTs; AHC-based client for everything else
+        if (!"ahc".equals(httpClient) && !"jdkhttp".equals(httpClient)) {
+            throw new IllegalArgumentException("Unrecognized HTTP client '"+httpClient
+                    +"'; must be 'ahc', 'jdk' or 'jdkhttp'");
+        }
+        return super.constructBootstrapper(clientConfig);
+    }
     
     @Override
     public void run()
@@ -78,8 +133,16 @@ public class GenerateLoad extends TStoreCmdBase
             throw new IllegalArgumentException("Invalid server entry reference: "+e.getMessage());
         }
 
-        final ExecutorService exec = Executors.newFixedThreadPool(threadCount);
         final ContentGenerator gen = new ContentGenerator(requestCount, requestSize);
+        if (async) {
+            _runAsync(gen);
+            return;
+        }
+        final ExecutorService exec = virtualThreads ? _virtualThreadExecutor()
+                : Executors.newFixedThreadPool(threadCount);
+        if ("jdkhttp".equals(httpClient)) {
+            _jdkHttpClient(virtualThreads ? _virtualThreadExecutor() : null);
+        }
 
         _startTime = System.currentTimeMillis();
 
@@ -109,10 +172,12 @@ public class GenerateLoad extends TStoreCmdBase
                     }
                 }
             });
-            try {
-                Thread.sleep(THREAD_STARTUP_DELAY_MSECS);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+            if (!virtualThreads) {
+                try {
+                    Thread.sleep(THREAD_STARTUP_DELAY_MSECS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
             }
         }
         try {
@@ -136,8 +201,53 @@ public class GenerateLoad extends TStoreCmdBase
                 System.err.printf("WARN: failed to close HttpClient: %s\n", e.getMessage());
             }
         }
-        double taken =  (System.currentTimeMillis() - _startTime) / 1000.0;
-        System.out.printf("DONE: sent %d requests in %.1f seconds\n", requestCount, taken);
+        _printSummary(virtualThreads ? (httpClient+"/virtual") : httpClient);
+    }
+
+    /**
+     * Alternative to running multiple blocking threads: single thread
+     * sends all requests using {@link AsyncTSClient}, which bounds the
+     * number of requests in flight per server node.
+     */
+    protected void _runAsync(ContentGenerator gen)
+    {
+        final AsyncTSClient asyncClient = new AsyncTSClient(_client, getClientConfig(), maxInFlight);
+        final CountDownLatch pending = new CountDownLatch(requestCount);
+        _startTime = System.currentTimeMillis();
+        int index;
+        while ((index = gen.nextIndex()) >= 0) {
+            final long startTime = System.nanoTime();
+            final BasicTSKey entryKey = contentKey(_prefix.getPartitionId(),
+                    _prefix.getPath() + "/entry_"+Integer.toHexString(index));
+            final String key = entryKey.toString();
+            asyncClient.putContent(null, entryKey, gen.generateContent(index))
+                .addListener(new TSFuture.Listener<Integer>() {
+                @Override
+                public void completed(Integer okCount) {
+                    _logPut("ASYNC", okCount, null, startTime, key);
+                    pending.countDown();
+                }
+
+                @Override
+                public void failed(Throwable problem) {
+                    _logPut("ASYNC", 0, problem, startTime, key);
+                    pending.countDown();
+                }
+            });
+        }
+        try {
+            pending.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            asyncClient.stop();
+            try {
+                _client.stop();
+            } catch (Exception e) {
+                System.err.printf("WARN: failed to close HttpClient: %s\n", e.getMessage());
+            }
+        }
+        _printSummary("async");
     }
 
     protected boolean _performOperation(String threadId, ContentGenerator gen)
@@ -152,11 +262,25 @@ public class GenerateLoad extends TStoreCmdBase
         long startTime = System.nanoTime();
         BasicTSKey entryKey = contentKey(_prefix.getPartitionId(),
                 _prefix.getPath() + "/entry_"+Integer.toHexString(index));
+        if (_jdkHttpClient != null) {
+            int okCount = 0;
+            Throwable problem = null;
+            try {
+                okCount = (Integer) _jdkHttpPut.invoke(_jdkHttpClient, null, entryKey, stuff);
+            } catch (InvocationTargetException e) {
+                problem = e.getCause();
+            } catch (Exception e) {
+                problem = e;
+            }
+            _logPut(threadId, okCount, problem, startTime, entryKey.toString());
+            return true;
+        }
         PutOperationResult result = _client.putContent(null, entryKey, stuff)
                 .completeOptimally()
                 .tryCompleteMaximally()
                 .finish();
-        int msecs = (int) ((System.nanoTime() - startTime) >> 20); // about right
+        int msecs = (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        _latencies.add(msecs);
         _logPut(result, threadId, msecs, entryKey.toString());
         return true;
     }
@@ -185,12 +309,109 @@ public class GenerateLoad extends TStoreCmdBase
         }
     }
     
+    protected void _logPut(String threadId, int okCount, Throwable problem, long startNanos, String key)
+    {
+        int msecs = (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        _latencies.add(msecs);
+        double secOffset = (System.currentTimeMillis() - _startTime) / 1000.0;
+        String msg;
+        if (problem != null) {
+            msg = String.format("%4.1f %s PUT`F`%03d`%s`ERROR: %s\n",
+                    secOffset, threadId, msecs, key, problem.getMessage());
+        } else {
+            msg = String.format("%4.1f %s PUT`%d`%03d`%s`OK\n",
+                    secOffset, threadId, okCount, msecs, key);
+        }
+        synchronized (this) {
+            System.out.print(msg);
+        }
+    }
+
+    /**
+     * Method for printing out throughput and latency distribution, to allow
+     * comparing different clients on the same workload.
+     */
+    protected void _printSummary(String clientType)
+    {
+        double taken =  (System.currentTimeMillis() - _startTime) / 1000.0;
+        System.out.printf("DONE: sent %d requests in %.1f seconds\n", requestCount, taken);
+        int[] msecs = _latencies.sorted();
+        if (msecs.length > 0) {
+            System.out.printf("SUMMARY: client=%s, %.1f req/s; latency msecs p50=%d p95=%d p99=%d max=%d\n",
+                    clientType, msecs.length / Math.max(0.001, taken),
+                    _percentile(msecs, 50), _percentile(msecs, 95), _percentile(msecs, 99),
+                    msecs[msecs.length-1]);
+        }
+    }
+
+    /**
+     * Virtual threads are only available with JDK 21 and later, so they
+     * need to be accessed dynamically.
+     */
+    protected static ExecutorService _virtualThreadExecutor()
+    {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            throw new IllegalStateException("Virtual threads not available (requires JDK 21): "+e);
+        }
+    }
+
+    /**
+     * Client that uses JDK 11 HttpClient is only available when built
+     * with JDK 11 and later, so it needs to be accessed dynamically.
+     */
+    protected void _jdkHttpClient(Executor executor)
+    {
+        try {
+            Class<?> cls = Class.forName(JDK_HTTP_CLIENT_CLASS);
+            Constructor<?> ctor = cls.getConstructor(BasicTSClient.class, BasicTSClientConfig.class,
+                    Executor.class);
+            _jdkHttpClient = ctor.newInstance(_client, getClientConfig(), executor);
+            _jdkHttpPut = cls.getMethod("putContent", TSPutCallParameters.class, BasicTSKey.class,
+                    byte[].class);
+        } catch (Exception e) {
+            throw new IllegalStateException("JDK HttpClient based client not available (requires JDK 11): "+e);
+        }
+    }
+
+    protected static int _percentile(int[] sorted, int pct) {
+        int ix = (int) Math.ceil(sorted.length * pct / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length-1, ix))];
+    }
+
     /*
     /**********************************************************************
     /* Helper classes
     /**********************************************************************
      */
 
+    /**
+     * Simple collector of per-request latencies
+     */
+    static class LatencyStats
+    {
+        protected int[] _msecs = new int[1000];
+
+        protected int _count;
+
+        public synchronized void add(int msecs)
+        {
+            if (_count == _msecs.length) {
+                _msecs = Arrays.copyOf(_msecs, _count * 2);
+            }
+            _msecs[_count++] = msecs;
+        }
+
+        public synchronized int[] sorted()
+        {
+            int[] result = Arrays.copyOf(_msecs, _count);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
     static class ContentGenerator
     {
         final static int DIFF_ENTRIES = 16;
@@ -13,6 +13,7 @@ import com.fasterxml.clustermate.client.operation.StoreEntryLister;
 import com.fasterxml.transistore.basic.BasicTSKey;
 import com.fasterxml.transistore.basic.BasicTSListItem;
 import com.fasterxml.transistore.client.BasicTSClient;
+import com.fasterxml.transistore.client.TSListItemHandler;
 
 import io.airlift.command.Arguments;
 import io.airlift.command.Command;
@@ -31,6 +32,13 @@ public class ListCmd extends TStoreCmdBase
             arity=1 )
     public int maxEntries = DEFAULT_MAX_TO_LIST;
 
+    @Option(name = { "-s", "--stream" }, description = "Use streaming listing (single request; max of 0 means no limit)")
+    public boolean stream = false;
+
+    @Option(name = { "-c", "--cursor" }, description = "Continuation token from an earlier streaming listing, to continue listing after it",
+            arity=1 )
+    public String cursor;
+
     @Arguments(title="prefix",
             description = "Server-side prefix (partition and optional path prefix) that defines entries to list",
             usage = "[prefix]")
@@ -59,6 +67,16 @@ public class ListCmd extends TStoreCmdBase
 
         // as JSON or text?
         ListOperationResult<?> result = null;
+        if (stream || cursor != null) {
+            try {
+                listStreaming(client, prefix);
+            } catch (Exception e) {
+                System.err.println("ERROR: ("+e.getClass().getName()+"): "+e.getMessage());
+                System.exit(2);
+            }
+            client.stop();
+            return;
+        }
         try {
             if (isJSON) {
                 result = listAsJSON(client, prefix);
@@ -113,6 +131,43 @@ public class ListCmd extends TStoreCmdBase
         }
     }
     
+    private void listStreaming(BasicTSClient client, BasicTSKey prefix) throws IOException
+    {
+        final long now = System.currentTimeMillis();
+        final ObjectWriter w = jsonWriter(BasicTSListItem.class);
+        final JsonGenerator jgen = isJSON ? w.getFactory().createGenerator(System.out) : null;
+        if (jgen != null) {
+            jgen.writeStartArray();
+        }
+        String nextCursor = client.listContentStreaming(prefix, cursor, maxEntries,
+                new TSListItemHandler() {
+            @Override
+            public boolean handleItem(BasicTSListItem entry) {
+                try {
+                    if (jgen != null) {
+                        w.writeValue(jgen, entry);
+                        jgen.writeRaw("\n");
+                    } else {
+                        System.out.printf("%s %s %s %s\n",
+                                size(entry.getLength()), ageMsecs(now - entry.created), ageSecs(entry.maxTTL),
+                                contentKey(entry.getKey()).toString());
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return true;
+            }
+        });
+        if (jgen != null) {
+            jgen.writeEndArray();
+            jgen.writeRaw("\n");
+            jgen.close();
+        }
+        if (nextCursor != null) {
+            System.err.println("(listing truncated; use '--cursor "+nextCursor+"' to continue)");
+        }
+    }
+
     private ListOperationResult<?> listAsJSON(BasicTSClient client, BasicTSKey prefix)
             throws InterruptedException, IOException
     {
@@ -21,7 +21,6 @@ import com.fasterxml.transistore.client.BasicTSClientBootstrapper;
 import com.fasterxml.transistore.client.BasicTSClientConfig;
 import com.fasterxml.transistore.client.BasicTSClientConfigBuilder;
 import com.fasterxml.transistore.client.ahc.AHCBasedClientBootstrapper;
-//import com.fasterxml.transistore.client.jdk.JDKBasedClientBootstrapper;
 
 public abstract class TStoreCmdBase implements Runnable
 {
@@ -139,13 +138,20 @@ public abstract class TStoreCmdBase implements Runnable
         return _clientConfig;
     }
 
+    /**
+     * Method for constructing bootstrapper for client; AHC-based client
+     * used by default.
+     */
+    protected BasicTSClientBootstrapper constructBootstrapper(BasicTSClientConfig clientConfig) {
+        return new AHCBasedClientBootstrapper(clientConfig);
+    }
+
     protected BasicTSClient bootstrapClient()
     {
         BasicTSClientConfig clientConfig = getClientConfig();
         SkeletalServiceConfig serviceConfig = getServiceConfig();
         
-        BasicTSClientBootstrapper bs = new AHCBasedClientBootstrapper(clientConfig);
-//        BasicTSClientBootstrapper bs = new JDKBasedClientBootstrapper(clientConfig);
+        BasicTSClientBootstrapper bs = constructBootstrapper(clientConfig);
         for (SkeletalServiceConfig.Node node : serviceConfig.ts.cluster.clusterNodes) {
             bs = bs.addNode(node.ipAndPort);
         }
@@ -5,6 +5,13 @@ import java.util.*;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
 import com.fasterxml.storemate.shared.IpAndPort;
 import com.fasterxml.storemate.shared.TimeMaster;
 import com.fasterxml.storemate.store.StorableStore;
@@ -31,11 +38,18 @@ import com.fasterxml.transistore.basic.BasicTSListItem;
 import com.fasterxml.transistore.dw.cmd.*;
 import com.fasterxml.transistore.service.BasicTSOperationThrottler;
 import com.fasterxml.transistore.service.SharedTSStuffImpl;
+import com.fasterxml.transistore.service.cache.EntryCache;
 import com.fasterxml.transistore.service.cfg.BasicTSFileManager;
 import com.fasterxml.transistore.service.cfg.BasicTSServiceConfig;
+import com.fasterxml.transistore.service.cfg.EntryCacheConfig;
+import com.fasterxml.transistore.service.cfg.NegativeLookupFilterConfig;
 import com.fasterxml.transistore.service.cleanup.LocalEntryCleaner;
+import com.fasterxml.transistore.service.cleanup.LocalFileCleaner;
 import com.fasterxml.transistore.service.store.BasicTSStoreHandler;
 import com.fasterxml.transistore.service.store.BasicTSStores;
+import com.fasterxml.transistore.service.store.NegativeLookupFilter;
+import com.fasterxml.transistore.service.sync.HashTreeManager;
+import com.fasterxml.transistore.service.sync.HashTreeSyncer;
 import com.fasterxml.transistore.servlet.BasicTSServletFactory;
 
 /**
@@ -54,6 +68,19 @@ public class BasicTSServiceOnDW
     /**********************************************************************
      */
 
+    /**
+     * Servlet factory constructed for the service; retained to allow
+     * access to components it creates (for metrics).
+     */
+    protected BasicTSServletFactory _servletFactory;
+
+    /**
+     * Manager for keyspace hash tree, shared by the servlet that exposes
+     * the tree and the background task that runs anti-entropy; constructed
+     * lazily, when first needed.
+     */
+    protected HashTreeManager _hashTreeManager;
+
     protected BasicTSServiceOnDW(TimeMaster timings, RunMode mode) {
         super(timings, mode);
     }
@@ -77,12 +104,34 @@ public class BasicTSServiceOnDW
         svc.run(args);
     }
 
-    /*
     @Override
-    public void run(BasicTSServiceConfigForDW configuration, Environment environment) throws java.io.IOException {
-        super.run();
+    public void run(BasicTSServiceConfigForDW configuration, Environment environment) throws java.io.IOException
+    {
+        super.run(configuration, environment);
+        if (serviceConfig().asyncEntries) {
+            _enableAsyncSupport(environment);
+        }
+        if (_storeHandler instanceof BasicTSStoreHandler) {
+            EntryCache cache = ((BasicTSStoreHandler) _storeHandler).getEntryCache();
+            if (cache != null) {
+                _registerCacheMetrics(environment, cache);
+            }
+        }
+        StoreOperationThrottler throttler = _stores.getEntryStore().getThrottler();
+        if (throttler instanceof BasicTSOperationThrottler) {
+            final NegativeLookupFilter filter = ((BasicTSOperationThrottler) throttler).getNegativeLookupFilter();
+            if (filter != null) {
+                environment.metrics().register(MetricRegistry.name("negativeLookups", "definitelyAbsent"),
+                        new Gauge<Long>() {
+                    @Override
+                    public Long getValue() { return filter.getDefinitelyAbsentCount(); }
+                });
+            }
+        }
+        if (hashTreeManager() != null) {
+            _registerSyncMetrics(environment, hashTreeManager());
+        }
     }
-    */
 
     /*
     protected void customRun(String[] arguments) throws Exception {
@@ -103,9 +152,10 @@ public class BasicTSServiceOnDW
     @Override
     protected FileManager constructFileManager()
     {
+        BasicTSServiceConfig config = serviceConfig();
         return new BasicTSFileManager(
-                new FileManagerConfig(serviceConfig().storeConfig.dataRootForFiles),
-                _timeMaster);
+                new FileManagerConfig(config.storeConfig.dataRootForFiles),
+                _timeMaster, config.hashedFileDirectories);
     }
 
     @Override
@@ -141,8 +191,10 @@ public class BasicTSServiceOnDW
 
     @Override
     protected CMServletFactory constructServletFactory() {
-        return new BasicTSServletFactory(_serviceStuff, _stores,
-                _cluster, _clusterInfoHandler, _syncHandler, _storeHandler);
+        _servletFactory = new BasicTSServletFactory(_serviceStuff, _stores,
+                _cluster, _clusterInfoHandler, _syncHandler, _storeHandler,
+                hashTreeManager());
+        return _servletFactory;
     }
 
     @Override
@@ -159,10 +211,18 @@ public class BasicTSServiceOnDW
         ArrayList<CleanupTask<?>> tasks = new ArrayList<CleanupTask<?>>();
         // start with main entries
         tasks.add(new LocalEntryCleaner());
-        // then remove orphan dirs
-        tasks.add(new FileCleaner());
-        // and finally disk space usage tracker
+        // then remove orphan dirs; with hashed dirs need to walk the full tree
+        if (serviceConfig().hashedFileDirectories) {
+            tasks.add(new LocalFileCleaner());
+        } else {
+            tasks.add(new FileCleaner());
+        }
+        // and disk space usage tracker
         tasks.add(new DiskUsageTracker());
+        // and finally anti-entropy, to repair what regular sync missed
+        if (serviceConfig().hashTreeSync && hashTreeManager() != null) {
+            tasks.add(new HashTreeSyncer(hashTreeManager()));
+        }
 
         return tasks;
     }
@@ -171,8 +231,95 @@ public class BasicTSServiceOnDW
      * Method is overridden to provide alternate throttler
      */
     @Override
-    protected StoreOperationThrottler constructThrottler() {
-        return new BasicTSOperationThrottler();
+    protected StoreOperationThrottler constructThrottler()
+    {
+        NegativeLookupFilterConfig filterConfig = serviceConfig().negativeLookups;
+        NegativeLookupFilter filter = null;
+        if (filterConfig != null && filterConfig.enabled) {
+            filter = new NegativeLookupFilter(filterConfig.expectedEntries,
+                    filterConfig.falsePositiveRate);
+        }
+        // cache is owned by throttler, since that is where it gets invalidated
+        EntryCacheConfig cacheConfig = serviceConfig().entryCache;
+        EntryCache cache = null;
+        if (cacheConfig != null && cacheConfig.enabled) {
+            cache = new EntryCache(cacheConfig);
+        }
+        return new BasicTSOperationThrottler(filter, cache);
+    }
+
+    protected HashTreeManager hashTreeManager()
+    {
+        if (_hashTreeManager == null) {
+            _hashTreeManager = HashTreeManager.forService(_serviceStuff, _stores.getEntryStore());
+        }
+        return _hashTreeManager;
+    }
+
+    /**
+     * Helper method for marking servlets (and filters in front of them) as
+     * supporting asynchronous processing; needed for store entry servlet
+     * to use non-blocking I/O.
+     */
+    protected void _enableAsyncSupport(Environment environment)
+    {
+        ServletHandler handler = environment.getApplicationContext().getServletHandler();
+        for (FilterHolder holder : handler.getFilters()) {
+            holder.setAsyncSupported(true);
+        }
+        for (ServletHolder holder : handler.getServlets()) {
+            holder.setAsyncSupported(true);
+        }
+    }
+
+    /**
+     * Helper method for exposing entry cache metrics (hit ratio, size)
+     * via standard Dropwizard metrics registry.
+     */
+    protected void _registerCacheMetrics(Environment environment, final EntryCache cache)
+    {
+        MetricRegistry metrics = environment.metrics();
+        metrics.register(MetricRegistry.name("entryCache", "hitRatio"), new Gauge<Double>() {
+            @Override
+            public Double getValue() { return cache.getHitRatio(); }
+        });
+        metrics.register(MetricRegistry.name("entryCache", "hits"), new Gauge<Long>() {
+            @Override
+            public Long getValue() { return cache.getHitCount(); }
+        });
+        metrics.register(MetricRegistry.name("entryCache", "misses"), new Gauge<Long>() {
+            @Override
+            public Long getValue() { return cache.getMissCount(); }
+        });
+        metrics.register(MetricRegistry.name("entryCache", "evictions"), new Gauge<Long>() {
+            @Override
+            public Long getValue() { return cache.getEvictionCount(); }
+        });
+        metrics.register(MetricRegistry.name("entryCache", "entries"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() { return cache.getEntryCount(); }
+        });
+        metrics.register(MetricRegistry.name("entryCache", "bytes"), new Gauge<Long>() {
+            @Override
+            public Long getValue() { return cache.getSizeInBytes(); }
+        });
+    }
+
+    /**
+     * Helper method for exposing metrics on entries left out of sync
+     * listings (since they were about to expire).
+     */
+    protected void _registerSyncMetrics(Environment environment, final HashTreeManager treeManager)
+    {
+        MetricRegistry metrics = environment.metrics();
+        metrics.register(MetricRegistry.name("sync", "expiredSkipped"), new Gauge<Long>() {
+            @Override
+            public Long getValue() { return treeManager.getExpiredSkippedCount(); }
+        });
+        metrics.register(MetricRegistry.name("sync", "expiredSkippedBytes"), new Gauge<Long>() {
+            @Override
+            public Long getValue() { return treeManager.getExpiredSkippedBytes(); }
+        });
     }
 
     /*
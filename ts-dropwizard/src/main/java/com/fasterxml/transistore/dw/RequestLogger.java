@@ -1,43 +1,341 @@
 package com.fasterxml.transistore.dw;
 
-//import com.yammer.dropwizard.logging.Log;
-import javax.ws.rs.core.Response;
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.transistore.basic.BasicTSPath;
+import com.fasterxml.transistore.service.cfg.RequestLogConfig;
+
+/**
+ * Asynchronous access log: request threads only construct a small
+ * immutable record and append it to a lock-free queue; a single
+ * background thread drains the queue in batches and writes entries
+ * through a buffered writer, rotating the log file based on its size.
+ *<p>
+ * Entries are written as tab-separated lines, with fields:
+ * timestamp (epoch msecs), method, path type, status, time taken (in
+ * microseconds), request content length (or -1 if not known),
+ * and request path.
+ *<p>
+ * If the queue is full (writer can not keep up), new entries are dropped
+ * and counted, instead of blocking request threads.
+ */
 public class RequestLogger
 {
+    /**
+     * Maximum number of entries written between flushes
+     */
+    protected final static int MAX_BATCH = 1000;
+
+    /**
+     * Time to sleep when there are no entries to write, in nanoseconds
+     */
+    protected final static long IDLE_WAIT_NANOS = 20L * 1000L * 1000L;
+
     /**
      * If logging using standard logger, logger to use
      */
-    private final Logger _requestLog;
-    
-    public RequestLogger(Class<?> cls) {
-        this(cls.getName());
+    private final Logger _requestLog = LoggerFactory.getLogger("REQUESTS");
+
+    /*
+    /**********************************************************************
+    /* Configuration
+    /**********************************************************************
+     */
+
+    protected final File _logFile;
+
+    protected final long _maxFileSize;
+
+    protected final int _maxBackupFiles;
+
+    protected final int _maxQueued;
+
+    /**
+     * Sampling rates indexed by {@link BasicTSPath} ordinal; 1.0 for
+     * path types that are not sampled.
+     */
+    protected final double[] _sampleRates;
+
+    /*
+    /**********************************************************************
+    /* State
+    /**********************************************************************
+     */
+
+    protected final ConcurrentLinkedQueue<Entry> _queue = new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * Approximate number of entries in queue; tracked separately since
+     * {@link ConcurrentLinkedQueue#size} is not a constant-time operation.
+     */
+    protected final AtomicInteger _queued = new AtomicInteger();
+
+    protected final AtomicLong _dropped = new AtomicLong();
+
+    protected Writer _out;
+
+    protected long _currentFileSize;
+
+    protected final StringBuilder _line = new StringBuilder(200);
+
+    protected volatile boolean _running;
+
+    protected Thread _writerThread;
+
+    /*
+    /**********************************************************************
+    /* Life-cycle
+    /**********************************************************************
+     */
+
+    public RequestLogger(RequestLogConfig config)
+    {
+        _logFile = config.file;
+        _maxFileSize = config.maxFileSize;
+        _maxBackupFiles = Math.max(0, config.maxBackupFiles);
+        _maxQueued = Math.max(16, config.maxQueuedEntries);
+        BasicTSPath[] types = BasicTSPath.values();
+        _sampleRates = new double[types.length];
+        for (int i = 0; i < types.length; ++i) {
+            Double rate = null;
+            Map<BasicTSPath,Double> rates = config.sampleRates;
+            if (rates != null) {
+                rate = rates.get(types[i]);
+            }
+            _sampleRates[i] = (rate == null) ? 1.0 : rate.doubleValue();
+        }
     }
 
-    public RequestLogger(String type)
+    public synchronized void start() throws IOException
     {
-        type = (type == null) ? "" : type.trim();
-        if (type.isEmpty()) {
-            _requestLog = null;
+        if (_running) {
+            return;
+        }
+        if (_logFile != null) {
+            _openFile();
+        }
+        _running = true;
+        _writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                _writeEntries();
+            }
+        }, "RequestLogger");
+        _writerThread.setDaemon(true);
+        _writerThread.start();
+    }
+
+    public synchronized void stop()
+    {
+        if (!_running) {
+            return;
+        }
+        _running = false;
+        LockSupport.unpark(_writerThread);
+        try {
+            _writerThread.join(1000L);
+        } catch (InterruptedException e) { }
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Method called by request threads to check whether a request of
+     * given type is to be logged, based on sampling rates.
+     * Should be called before measuring anything for the request, to
+     * avoid overhead for requests not logged.
+     */
+    public boolean shouldLog(BasicTSPath type)
+    {
+        if (type == null) {
+            return true;
+        }
+        double rate = _sampleRates[type.ordinal()];
+        if (rate >= 1.0) {
+            return true;
+        }
+        return (rate > 0.0) && (ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    /**
+     * Method called by request threads to log a request that has been
+     * processed.
+     *
+     * @return True if entry was queued; false if it was dropped due
+     *   to queue being full
+     */
+    public boolean logRequest(String method, String path, BasicTSPath type,
+            int status, long nanos, long contentLength)
+    {
+        if (_queued.incrementAndGet() > _maxQueued) {
+            _queued.decrementAndGet();
+            _dropped.incrementAndGet();
+            return false;
+        }
+        _queue.add(new Entry(System.currentTimeMillis(), method, path, type,
+                status, nanos, contentLength));
+        return true;
+    }
+
+    public long getDroppedCount() {
+        return _dropped.get();
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, writing
+    /**********************************************************************
+     */
+
+    protected void _writeEntries()
+    {
+        while (true) {
+            int count = 0;
+            Entry entry;
+            while (count < MAX_BATCH && (entry = _queue.poll()) != null) {
+                _queued.decrementAndGet();
+                _writeEntry(entry);
+                ++count;
+            }
+            if (count == MAX_BATCH) { // more to write, most likely
+                continue;
+            }
+            _flush();
+            if (!_running) {
+                break;
+            }
+            LockSupport.parkNanos(IDLE_WAIT_NANOS);
+        }
+        if (_out != null) {
+            try {
+                _out.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    protected void _writeEntry(Entry entry)
+    {
+        StringBuilder sb = _line;
+        sb.setLength(0);
+        sb.append(entry.timestamp).append('\t')
+            .append(entry.method).append('\t')
+            .append((entry.type == null) ? "-" : entry.type.name()).append('\t')
+            .append(entry.status).append('\t')
+            .append(entry.nanos / 1000L).append('\t')
+            .append(entry.contentLength).append('\t')
+            .append(entry.path);
+        if (_out == null) {
+            _requestLog.info(sb.toString());
+            return;
+        }
+        sb.append('\n');
+        try {
+            _out.append(sb);
+            // close enough; paths are mostly ASCII
+            _currentFileSize += sb.length();
+            if (_currentFileSize >= _maxFileSize) {
+                _rotate();
+            }
+        } catch (IOException e) {
+            _requestLog.warn("Failed to write access log entry, will log instead: {}", e.getMessage());
+            _out = null;
+        }
+    }
+
+    protected void _flush()
+    {
+        if (_out != null) {
+            try {
+                _out.flush();
+            } catch (IOException e) { }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, file handling
+    /**********************************************************************
+     */
+
+    protected void _openFile() throws IOException
+    {
+        _out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_logFile, true), "UTF-8"),
+                16000);
+        _currentFileSize = _logFile.length();
+    }
+
+    /**
+     * Method called to rotate current log file: backups are renamed
+     * so that "file.1" is the most recent one, and oldest backup
+     * beyond maximum count is deleted.
+     */
+    protected void _rotate() throws IOException
+    {
+        _out.close();
+        _out = null;
+        if (_maxBackupFiles == 0) {
+            _logFile.delete();
         } else {
-            _requestLog = LoggerFactory.getLogger(type);
+            File oldest = _backupFile(_maxBackupFiles);
+            if (oldest.exists()) {
+                oldest.delete();
+            }
+            for (int i = _maxBackupFiles-1; i > 0; --i) {
+                File f = _backupFile(i);
+                if (f.exists()) {
+                    f.renameTo(_backupFile(i+1));
+                }
+            }
+            if (!_logFile.renameTo(_backupFile(1))) {
+                _requestLog.warn("Failed to rotate access log file {}", _logFile.getAbsolutePath());
+            }
         }
+        _openFile();
     }
 
-    @SuppressWarnings("unused")
-    public void logRequest(String method, String path, Response resp, long nanos)
+    protected File _backupFile(int index) {
+        return new File(_logFile.getPath() + "." + index);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    protected final static class Entry
     {
-        if (_requestLog == null) return;
+        public final long timestamp;
+        public final String method;
+        public final String path;
+        public final BasicTSPath type;
+        public final int status;
+        public final long nanos;
+        public final long contentLength;
 
-        // print timings with fraction of milliseconds...
-        int msec10 = (int) (nanos / (100.0 * 1000.0));
-        int fraction = msec10 % 10;
-        int msecs = msec10 - fraction;
-        int status = (resp == null) ? -1 : resp.getStatus();
-        
-//        _requestLog.info("{} {} returned {} in {}.{} msec", method, path, status, msecs, fraction);
+        public Entry(long timestamp, String method, String path, BasicTSPath type,
+                int status, long nanos, long contentLength)
+        {
+            this.timestamp = timestamp;
+            this.method = method;
+            this.path = path;
+            this.type = type;
+            this.status = status;
+            this.nanos = nanos;
+            this.contentLength = contentLength;
+        }
     }
 }
@@ -83,7 +83,8 @@ public abstract class CommandBase<T extends Configuration> extends ConfiguredCom
         TimeMaster tm = TimeMaster.nonTestInstance();
         final BasicTSServiceConfig v = configuration.getServiceConfig();
 
-        FileManager files = new BasicTSFileManager(new FileManagerConfig(v.storeConfig.dataRootForFiles), tm);
+        FileManager files = new BasicTSFileManager(new FileManagerConfig(v.storeConfig.dataRootForFiles), tm,
+                v.hashedFileDirectories);
         BDBJEBuilder b = new BDBJEBuilder();
         StoreBackend backend = b.with(v.storeConfig)
                 .with(_mapper.convertValue(v.storeBackendConfig, b.getConfigClass()))
@@ -0,0 +1,189 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.store.*;
+
+import com.fasterxml.transistore.service.store.StreamingEntryWriter;
+
+/**
+ * Helper class used for reading PUT request content using non-blocking
+ * Servlet 3.1 input, and appending it to an entry file as it arrives.
+ * File access permits are only obtained from the throttler for the
+ * duration of individual appends, not while waiting for the client.
+ */
+public class AsyncEntryReceiver
+    implements ReadListener, AsyncListener
+{
+    /**
+     * Interface for object that gets notified when all content has been
+     * received (or reading failed).
+     */
+    public interface Handler
+    {
+        public void contentReceived(AsyncContext ctxt, StreamingEntryWriter.Result result);
+
+        public void receiveFailed(AsyncContext ctxt, Throwable t);
+    }
+
+    protected final AsyncContext _asyncContext;
+
+    protected final ServletInputStream _in;
+
+    protected final StoreOperationThrottler _throttler;
+
+    protected final StorableKey _key;
+
+    protected final StreamingEntryWriter.Session _session;
+
+    protected final Handler _handler;
+
+    protected final byte[] _buffer;
+
+    /**
+     * Flag used to ensure that file is only finished or aborted once.
+     */
+    protected boolean _closed;
+
+    public AsyncEntryReceiver(AsyncContext ctxt, StoreOperationThrottler throttler,
+            StorableKey key, StreamingEntryWriter.Session session, Handler handler,
+            int bufferSize)
+        throws IOException
+    {
+        _asyncContext = ctxt;
+        _in = ctxt.getRequest().getInputStream();
+        _throttler = throttler;
+        _key = key;
+        _session = session;
+        _handler = handler;
+        _buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Method called to register listeners and let the container start
+     * calling them as content becomes available.
+     */
+    public void start()
+    {
+        _asyncContext.addListener(this);
+        _in.setReadListener(this);
+    }
+
+    /**
+     * @return Number of bytes of content received so far
+     */
+    public long getBytesReceived() {
+        return _session.getBytesAppended();
+    }
+
+    /*
+    /**********************************************************************
+    /* ReadListener impl
+    /**********************************************************************
+     */
+
+    @Override
+    public void onDataAvailable() throws IOException
+    {
+        while (_in.isReady() && !_in.isFinished()) {
+            final int count = _in.read(_buffer);
+            if (count < 0) {
+                break;
+            }
+            if (count > 0) {
+                _append(count);
+            }
+        }
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException
+    {
+        StreamingEntryWriter.Result result;
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            result = _session.finish();
+        }
+        _handler.contentReceived(_asyncContext, result);
+    }
+
+    @Override
+    public void onError(Throwable t)
+    {
+        if (_abort()) {
+            _handler.receiveFailed(_asyncContext, t);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* AsyncListener impl
+    /**********************************************************************
+     */
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        _abort();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event)
+    {
+        if (_abort()) {
+            _handler.receiveFailed(_asyncContext, new IOException("Timed out reading content for "+_key));
+        }
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        _abort();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) { }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected void _append(final int count) throws IOException
+    {
+        _throttler.performFileWrite(StoreOperationSource.REQUEST,
+                System.currentTimeMillis(), _key, _session.getFile(),
+                new FileOperationCallback<Void>() {
+            @Override
+            public Void perform(long operationTime, StorableKey key, Storable value, File externalFile)
+                throws IOException
+            {
+                _session.append(_buffer, 0, count);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return True if this call aborted writing; false if it had already
+     *    been finished or aborted
+     */
+    protected synchronized boolean _abort()
+    {
+        if (_closed) {
+            return false;
+        }
+        _closed = true;
+        _session.abort();
+        return true;
+    }
+}
@@ -0,0 +1,162 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.store.*;
+
+/**
+ * Helper class used for sending (a range of) an external entry file as
+ * response content using non-blocking Servlet 3.1 output: content is only
+ * read from the file (and file access permit obtained from the throttler)
+ * when the container indicates output can be written without blocking,
+ * so slow clients do not tie up request threads or file access permits.
+ */
+public class AsyncFileSender
+    implements WriteListener, AsyncListener
+{
+    protected final AsyncContext _asyncContext;
+
+    protected final ServletOutputStream _out;
+
+    protected final StoreOperationThrottler _throttler;
+
+    protected final Storable _entry;
+
+    protected final File _file;
+
+    protected final FileInputStream _in;
+
+    protected final byte[] _buffer;
+
+    protected final long _offset;
+
+    protected long _position;
+
+    protected final long _end;
+
+    public AsyncFileSender(AsyncContext ctxt, StoreOperationThrottler throttler,
+            Storable entry, File file, long offset, long length, int bufferSize)
+        throws IOException
+    {
+        _asyncContext = ctxt;
+        _out = ctxt.getResponse().getOutputStream();
+        _throttler = throttler;
+        _entry = entry;
+        _file = file;
+        _in = new FileInputStream(file);
+        _buffer = new byte[(int) Math.min(bufferSize, Math.max(1L, length))];
+        _offset = offset;
+        _position = offset;
+        _end = offset + length;
+    }
+
+    /**
+     * Method called to register listeners and let the container start
+     * calling them as output becomes writable.
+     */
+    public void start()
+    {
+        _asyncContext.addListener(this);
+        _out.setWriteListener(this);
+    }
+
+    /**
+     * @return Number of bytes of content written so far
+     */
+    public long getBytesSent() {
+        return _position - _offset;
+    }
+
+    /*
+    /**********************************************************************
+    /* WriteListener impl
+    /**********************************************************************
+     */
+
+    @Override
+    public void onWritePossible() throws IOException
+    {
+        while (_out.isReady()) {
+            if (_position >= _end) {
+                _asyncContext.complete();
+                return;
+            }
+            int count = _readChunk();
+            _out.write(_buffer, 0, count);
+            _position += count;
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        _close();
+        _asyncContext.complete();
+    }
+
+    /*
+    /**********************************************************************
+    /* AsyncListener impl
+    /**********************************************************************
+     */
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        _close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        _close();
+        _asyncContext.complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        _close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) { }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected int _readChunk() throws IOException
+    {
+        final int max = (int) Math.min(_buffer.length, _end - _position);
+        return _throttler.performFileRead(StoreOperationSource.REQUEST,
+                System.currentTimeMillis(), _entry, _file,
+                new FileOperationCallback<Integer>() {
+            @Override
+            public Integer perform(long operationTime, StorableKey key, Storable value, File externalFile)
+                throws IOException
+            {
+                FileChannel ch = _in.getChannel();
+                ByteBuffer bb = ByteBuffer.wrap(_buffer, 0, max);
+                while (bb.hasRemaining()) {
+                    if (ch.read(bb, _position + bb.position()) < 0) {
+                        throw new EOFException("Unexpected end of file '"+externalFile.getAbsolutePath()
+                                +"' at "+(_position + bb.position())+" (expected "+_end+" bytes)");
+                    }
+                }
+                return max;
+            }
+        });
+    }
+
+    protected void _close() {
+        try { _in.close(); } catch (IOException e) { }
+    }
+}
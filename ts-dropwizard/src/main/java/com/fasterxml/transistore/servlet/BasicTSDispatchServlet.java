@@ -0,0 +1,167 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.IOException;
+import java.util.EnumMap;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.clustermate.api.RequestPathStrategy;
+import com.fasterxml.clustermate.service.SharedServiceStuff;
+import com.fasterxml.clustermate.service.cluster.ClusterViewByServer;
+import com.fasterxml.clustermate.service.store.StoredEntry;
+import com.fasterxml.clustermate.servlet.ServiceDispatchServlet;
+import com.fasterxml.clustermate.servlet.ServletBase;
+import com.fasterxml.clustermate.servlet.ServletServiceRequest;
+
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.basic.BasicTSPath;
+import com.fasterxml.transistore.dw.RequestLogger;
+
+/**
+ * {@link ServiceDispatchServlet} extension that may log dispatched
+ * requests using a {@link RequestLogger}, and may compress responses
+ * to sync pull requests (see {@link CompressingResponseWrapper}) for
+ * nodes that accept compressed responses.
+ */
+@SuppressWarnings("serial")
+public class BasicTSDispatchServlet
+    extends ServiceDispatchServlet<BasicTSKey,StoredEntry<BasicTSKey>,BasicTSPath>
+{
+    /**
+     * Logger for requests, if request logging is enabled; null if not.
+     */
+    protected final RequestLogger _requestLogger;
+
+    /**
+     * Size of frames used for compressing sync pull responses, if enabled;
+     * 0 if compression is disabled.
+     */
+    protected final int _syncPullCompressionFrame;
+
+    protected final RequestPathStrategy<BasicTSPath> _paths;
+
+    @SuppressWarnings("unchecked")
+    public BasicTSDispatchServlet(ClusterViewByServer clusterView, String servletPathBase,
+            SharedServiceStuff stuff, EnumMap<BasicTSPath, ServletBase> servlets,
+            RequestLogger requestLogger, int syncPullCompressionFrame)
+    {
+        super(clusterView, servletPathBase, stuff, servlets);
+        _requestLogger = requestLogger;
+        _syncPullCompressionFrame = syncPullCompressionFrame;
+        _paths = (RequestPathStrategy<BasicTSPath>) stuff.getServiceConfig().getServicePathStrategy();
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (_requestLogger != null) {
+            _requestLogger.stop();
+        }
+        super.destroy();
+    }
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp)
+        throws ServletException, IOException
+    {
+        final boolean acceptsCompression = (_syncPullCompressionFrame > 0)
+                && CompressingResponseWrapper.acceptsGzip(req.getHeader("Accept-Encoding"));
+        // path type only needed for logging and compression; if neither applies,
+        // leave path matching to the base class
+        if (!acceptsCompression && (_requestLogger == null)) {
+            super.service(req, resp);
+            return;
+        }
+        final BasicTSPath type = _paths.matchPath(new ServletServiceRequest(req));
+        if (!acceptsCompression || !_shouldCompress(type)) {
+            _service(req, resp, type);
+            return;
+        }
+        CompressingResponseWrapper compResp = new CompressingResponseWrapper(resp,
+                _syncPullCompressionFrame);
+        try {
+            _service(req, compResp, type);
+        } finally {
+            compResp.finish();
+        }
+    }
+
+    protected void _service(HttpServletRequest req, HttpServletResponse resp,
+            BasicTSPath type)
+        throws ServletException, IOException
+    {
+        if (_requestLogger == null || !_requestLogger.shouldLog(type)) {
+            super.service(req, resp);
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            super.service(req, resp);
+        } finally {
+            // for async requests, need to wait until processing completes
+            if (req.isAsyncStarted()) {
+                req.getAsyncContext().addListener(new LoggingListener(req, resp, type, start));
+            } else {
+                _log(req, resp, type, start);
+            }
+        }
+    }
+
+    /**
+     * Only sync pull responses are compressed; caller has already verified
+     * that compression is enabled and that requesting node accepts
+     * gzip-compressed content.
+     */
+    protected boolean _shouldCompress(BasicTSPath type)
+    {
+        return (type == BasicTSPath.SYNC_PULL || type == BasicTSPath.REMOTE_SYNC_PULL);
+    }
+
+    protected void _log(HttpServletRequest req, HttpServletResponse resp,
+            BasicTSPath type, long startNanos)
+    {
+        _requestLogger.logRequest(req.getMethod(), req.getRequestURI(), type,
+                resp.getStatus(), System.nanoTime() - startNanos, req.getContentLength());
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    protected class LoggingListener implements AsyncListener
+    {
+        protected final HttpServletRequest _request;
+        protected final HttpServletResponse _response;
+        protected final BasicTSPath _type;
+        protected final long _startNanos;
+
+        public LoggingListener(HttpServletRequest req, HttpServletResponse resp,
+                BasicTSPath type, long startNanos)
+        {
+            _request = req;
+            _response = resp;
+            _type = type;
+            _startNanos = startNanos;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            _log(_request, _response, _type, _startNanos);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) { }
+
+        @Override
+        public void onError(AsyncEvent event) { }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) { }
+    }
+}
@@ -0,0 +1,67 @@
+package com.fasterxml.transistore.servlet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.store.Storable;
+import com.fasterxml.storemate.store.StorableStore;
+
+import com.fasterxml.clustermate.service.SharedServiceStuff;
+import com.fasterxml.clustermate.service.cluster.ClusterViewByServer;
+import com.fasterxml.clustermate.servlet.ServletBase;
+
+import com.fasterxml.transistore.service.sync.HashTreeManager;
+
+/**
+ * {@link BasicTSSyncListServlet} that also leaves out entries that have
+ * expired, or would expire within the configured expiration margin
+ * (see {@link HashTreeManager#syncableEntry}): receiving node would only
+ * store such entries to delete them soon after. Tombstones are always
+ * listed, so that deletions get synchronized.
+ *<p>
+ * Entries left out are counted in the metrics of the {@link HashTreeManager},
+ * along with ones left out of keyspace segment listings.
+ *<p>
+ * Since this requires looking up all listed entries from the local store,
+ * it is only used if enabled with
+ * {@link com.fasterxml.transistore.service.cfg.BasicTSServiceConfig#syncListSkipExpiring}.
+ */
+@SuppressWarnings("serial")
+public class BasicTSFilteringSyncListServlet extends BasicTSSyncListServlet
+{
+    protected final HashTreeManager _expiryFilter;
+
+    /**
+     * @param prioritizer Manager used for determining priorities of listed
+     *   entries, to list entries in priority order; null to list entries
+     *   in the order standard servlet lists them
+     * @param expiryFilter Manager used for checking which entries are to
+     *   be listed
+     */
+    public BasicTSFilteringSyncListServlet(SharedServiceStuff stuff, ClusterViewByServer clusterView,
+            StorableStore entryStore, ServletBase delegate, HashTreeManager prioritizer,
+            HashTreeManager expiryFilter)
+    {
+        super(stuff, clusterView, entryStore, delegate, prioritizer);
+        _expiryFilter = expiryFilter;
+    }
+
+    @Override
+    protected boolean _processesEntries() {
+        return true;
+    }
+
+    @Override
+    protected ListedEntry _listedEntry(JsonNode item, StorableKey key, Storable raw)
+    {
+        if (raw == null) {
+            return super._listedEntry(item, key, raw);
+        }
+        HashTreeManager.PrioritizedEntry entry = _expiryFilter.syncableEntry(raw);
+        if (entry == null) { // about to expire; leave out
+            return null;
+        }
+        // if not listing by priority, window passes entries in order listed anyway
+        return new ListedEntry(item, entry);
+    }
+}
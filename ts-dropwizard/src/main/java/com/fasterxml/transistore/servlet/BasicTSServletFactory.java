@@ -1,5 +1,6 @@
 package com.fasterxml.transistore.servlet;
 
+import java.io.IOException;
 import java.util.*;
 
 import com.fasterxml.clustermate.service.SharedServiceStuff;
@@ -16,6 +17,10 @@ import com.fasterxml.clustermate.servlet.*;
 
 import com.fasterxml.transistore.basic.BasicTSKey;
 import com.fasterxml.transistore.basic.BasicTSPath;
+import com.fasterxml.transistore.dw.RequestLogger;
+import com.fasterxml.transistore.service.cfg.BasicTSServiceConfig;
+import com.fasterxml.transistore.service.cfg.RequestLogConfig;
+import com.fasterxml.transistore.service.sync.HashTreeManager;
 
 /**
  * Implementation of {@link CMServletFactory} used by standard TransiStore.
@@ -60,6 +65,12 @@ public class BasicTSServletFactory
     
     protected final StoreHandler<BasicTSKey,StoredEntry<BasicTSKey>,?> _storeHandler;
 
+    /**
+     * Manager for keyspace hash tree used for anti-entropy; null if
+     * service does not use TransiStore configuration.
+     */
+    protected final HashTreeManager _hashTreeManager;
+
     /*
     /**********************************************************************
     /* Construction
@@ -71,6 +82,21 @@ public class BasicTSServletFactory
             ClusterInfoHandler clusterInfoHandler,
             SyncHandler<BasicTSKey,StoredEntry<BasicTSKey>> syncHandler,
             StoreHandler<BasicTSKey,StoredEntry<BasicTSKey>,?> storeHandler)
+    {
+        this(stuff, stores, cluster, clusterInfoHandler, syncHandler, storeHandler,
+                HashTreeManager.forService(stuff, stores.getEntryStore()));
+    }
+
+    /**
+     * @param hashTreeManager Manager for keyspace hash tree, shared with
+     *    the background task that runs anti-entropy
+     */
+    public BasicTSServletFactory(SharedServiceStuff stuff,
+            StoresImpl<BasicTSKey,StoredEntry<BasicTSKey>> stores, ClusterViewByServerUpdatable cluster,
+            ClusterInfoHandler clusterInfoHandler,
+            SyncHandler<BasicTSKey,StoredEntry<BasicTSKey>> syncHandler,
+            StoreHandler<BasicTSKey,StoredEntry<BasicTSKey>,?> storeHandler,
+            HashTreeManager hashTreeManager)
     {
         _serviceStuff = stuff;
         _config = stuff.getServiceConfig();
@@ -81,6 +107,17 @@ public class BasicTSServletFactory
         _clusterInfoHandler = clusterInfoHandler;
         _syncHandler = syncHandler;
         _storeHandler = storeHandler;
+        _hashTreeManager = hashTreeManager;
+    }
+
+    /*
+    /**********************************************************************
+    /* Accessors
+    /**********************************************************************
+     */
+
+    public HashTreeManager getHashTreeManager() {
+        return _hashTreeManager;
     }
 
     /*
@@ -100,10 +137,12 @@ public class BasicTSServletFactory
 
         _add(servlets, BasicTSPath.SYNC_LIST, constructSyncListServlet());
         _add(servlets, BasicTSPath.SYNC_PULL, constructSyncPullServlet());
+        _add(servlets, BasicTSPath.SYNC_TREE, constructSyncTreeServlet());
 
         _add(servlets, BasicTSPath.STORE_ENTRY, constructStoreEntryServlet());
         _add(servlets, BasicTSPath.STORE_ENTRY_INFO, constructStoreEntryInfoServlet());
         _add(servlets, BasicTSPath.STORE_ENTRIES, constructStoreListServlet());
+        _add(servlets, BasicTSPath.STORE_ENTRIES_BATCH, constructStoreBatchServlet());
 
         // remote sync/pull does differ from local ones, to some degree
         _add(servlets, BasicTSPath.REMOTE_SYNC_LIST, constructRemoteSyncListServlet());
@@ -111,6 +150,9 @@ public class BasicTSServletFactory
         
         List<AllOperationMetrics.Provider> metrics = new ArrayList<AllOperationMetrics.Provider>();
         for (ServletBase servlet : servlets.values()) {
+            if (servlet instanceof BasicTSSyncListServlet) {
+                servlet = ((BasicTSSyncListServlet) servlet).getDelegate();
+            }
             if (servlet instanceof AllOperationMetrics.Provider) {
                 metrics.add((AllOperationMetrics.Provider) servlet);
             }
@@ -122,9 +164,95 @@ public class BasicTSServletFactory
         
         final BackgroundMetricsAccessor metricAcc = constructMetricsAccessor(metrics);
         servlets.put(BasicTSPath.NODE_METRICS, constructNodeMetricsServlet(metricAcc));
+        RequestLogger requestLogger = constructRequestLogger();
+        int compressionFrame = syncPullCompressionFrame();
+        if (requestLogger != null || compressionFrame > 0) {
+            return new BasicTSDispatchServlet(_cluster, null, _serviceStuff, servlets,
+                    requestLogger, compressionFrame);
+        }
         return new ServiceDispatchServlet<BasicTSKey,StoredEntry<BasicTSKey>,BasicTSPath>(_cluster, null, _serviceStuff, servlets);
     }
 
+    /*
+    /**********************************************************************
+    /* Factory methods: request logging, compression, sync lists
+    /**********************************************************************
+     */
+
+    /**
+     * Method for constructing (and starting) access logger for dispatched
+     * requests, if one is enabled; null if not.
+     */
+    protected RequestLogger constructRequestLogger()
+    {
+        if (!(_config instanceof BasicTSServiceConfig)) {
+            return null;
+        }
+        RequestLogConfig logConfig = ((BasicTSServiceConfig) _config).requestLog;
+        if (logConfig == null || !logConfig.enabled) {
+            return null;
+        }
+        RequestLogger logger = new RequestLogger(logConfig);
+        try {
+            logger.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open access log file '"
+                    +logConfig.file+"': "+e.getMessage(), e);
+        }
+        return logger;
+    }
+
+    /**
+     * Method for determining frame size to use for compressing sync pull
+     * responses; 0 if compression is disabled.
+     */
+    protected int syncPullCompressionFrame()
+    {
+        if (!(_config instanceof BasicTSServiceConfig)) {
+            return 0;
+        }
+        BasicTSServiceConfig config = (BasicTSServiceConfig) _config;
+        return config.syncPullCompression ? Math.max(0, config.syncPullCompressionFrameSize) : 0;
+    }
+
+    /**
+     * Method for constructing servlet that post-processes sync lists
+     * produced by given standard servlet: entries may be listed in priority
+     * order, and entries about to expire left out, if so configured.
+     */
+    protected BasicTSSyncListServlet constructSyncListServlet(ServletBase standard)
+    {
+        if (_hashTreeManager == null || !syncListSkipExpiring()) {
+            return new BasicTSSyncListServlet(_serviceStuff, _cluster, _stores.getEntryStore(),
+                    standard, syncListPrioritizer());
+        }
+        return new BasicTSFilteringSyncListServlet(_serviceStuff, _cluster, _stores.getEntryStore(),
+                standard, syncListPrioritizer(), _hashTreeManager);
+    }
+
+    /**
+     * Method for checking whether entries about to expire are to be left
+     * out of sync lists.
+     */
+    protected boolean syncListSkipExpiring()
+    {
+        return (_config instanceof BasicTSServiceConfig)
+                && ((BasicTSServiceConfig) _config).syncListSkipExpiring;
+    }
+
+    /**
+     * Method for determining manager to use for ordering entries of
+     * sync lists in priority order; null if not to be ordered.
+     */
+    protected HashTreeManager syncListPrioritizer()
+    {
+        if (!(_config instanceof BasicTSServiceConfig)
+                || !((BasicTSServiceConfig) _config).syncListByPriority) {
+            return null;
+        }
+        return _hashTreeManager;
+    }
+
     /*
     /**********************************************************************
     /* Factory methods: metrics
@@ -155,20 +283,18 @@ public class BasicTSServletFactory
     }
 
     protected ServletBase constructSyncListServlet() {
-        return new SyncListServlet<BasicTSKey,StoredEntry<BasicTSKey>>(_serviceStuff, _cluster, _syncHandler);
+        return constructSyncListServlet(new SyncListServlet<BasicTSKey,StoredEntry<BasicTSKey>>(_serviceStuff,
+                _cluster, _syncHandler));
     }
 
     protected ServletBase constructSyncPullServlet() {
         return new SyncPullServlet<BasicTSKey,StoredEntry<BasicTSKey>>(_serviceStuff, _cluster, _syncHandler);
     }
 
-    protected ServletBase constructStoreListServlet() {
-        return new StoreListServlet<BasicTSKey,StoredEntry<BasicTSKey>>(_serviceStuff, _cluster, _storeHandler);
-    }
-
 
     protected ServletBase constructRemoteSyncListServlet() {
-        return new RemoteSyncListServlet<BasicTSKey,StoredEntry<BasicTSKey>>(_serviceStuff, _cluster, _syncHandler);
+        return constructSyncListServlet(new RemoteSyncListServlet<BasicTSKey,StoredEntry<BasicTSKey>>(_serviceStuff,
+                _cluster, _syncHandler));
     }
 
     protected ServletBase constructRemoteSyncPullServlet() {
@@ -184,6 +310,21 @@ public class BasicTSServletFactory
     protected ServletWithMetricsBase constructStoreEntryServlet() {
         return new BasicTSStoreEntryServlet(_serviceStuff, _cluster, _storeHandler);
     }
+
+    protected ServletBase constructStoreListServlet() {
+        return new BasicTSStoreListServlet(_serviceStuff, _cluster, _storeHandler);
+    }
+
+    protected ServletBase constructSyncTreeServlet() {
+        if (_hashTreeManager == null) {
+            return null;
+        }
+        return new SyncTreeServlet(_cluster, _hashTreeManager);
+    }
+
+    protected ServletBase constructStoreBatchServlet() {
+        return new StoreEntryBatchServlet(_serviceStuff, _cluster, _storeHandler);
+    }
     
     /*
     /**********************************************************************
@@ -1,29 +1,132 @@
 package com.fasterxml.transistore.servlet;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.fasterxml.storemate.shared.ByteContainer;
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.shared.TimeMaster;
+import com.fasterxml.storemate.shared.compress.Compression;
+import com.fasterxml.storemate.store.*;
+import com.fasterxml.storemate.store.backend.StoreBackend;
+import com.fasterxml.storemate.store.file.FileManager;
+import com.fasterxml.storemate.store.file.FileReference;
 import com.fasterxml.storemate.store.util.OperationDiagnostics;
-import com.fasterxml.storemate.store.util.TotalTime;
-import com.fasterxml.storemate.store.util.TotalTimeAndBytes;
 
+import com.fasterxml.clustermate.api.ClusterMateConstants;
+import com.fasterxml.clustermate.api.EntryKeyConverter;
 import com.fasterxml.clustermate.service.SharedServiceStuff;
 import com.fasterxml.clustermate.service.cluster.ClusterViewByServer;
 import com.fasterxml.clustermate.service.store.StoreHandler;
 import com.fasterxml.clustermate.service.store.StoredEntry;
+import com.fasterxml.clustermate.service.store.StoredEntryConverter;
 import com.fasterxml.clustermate.servlet.ServletServiceRequest;
 import com.fasterxml.clustermate.servlet.ServletServiceResponse;
 import com.fasterxml.clustermate.servlet.StoreEntryServlet;
 
 import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.service.TSLastAccess;
+import com.fasterxml.transistore.service.cache.CachedEntry;
+import com.fasterxml.transistore.service.cache.EntryCache;
 import com.fasterxml.transistore.service.cfg.BasicTSServiceConfig;
+import com.fasterxml.transistore.service.store.BasicTSStoreHandler;
+import com.fasterxml.transistore.service.store.StreamingEntryWriter;
 
 @SuppressWarnings("serial")
 public class BasicTSStoreEntryServlet
     extends StoreEntryServlet<BasicTSKey, StoredEntry<BasicTSKey>>
 {
-//    private final Logger LOG = LoggerFactory.getLogger("TIMING");
 
-    protected final boolean _printTimings;
+    protected final static String HTTP_HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    protected final static String HTTP_HEADER_RANGE = "Range";
+    protected final static String HTTP_HEADER_CONTENT_RANGE = "Content-Range";
+
+    protected final static String QUERY_PARAM_CHECKSUM = "checksum";
+
+    /**
+     * Size of per-request buffers used for async reads and writes, and
+     * for streaming PUTs.
+     */
+    protected final static int ASYNC_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Zero-copy transfers have some fixed overhead (memory mapping), so
+     * let's only use them for entries of non-trivial size.
+     */
+    protected final static long MIN_ZERO_COPY_LENGTH = 16 * 1024;
+
+    /**
+     * Recorder for per-request timings, if enabled; null if not.
+     */
+    protected final TimingRecorder _timings;
+
+    /**
+     * Whether GETs for externally stored entries may be served using
+     * zero-copy file transfers.
+     */
+    protected final boolean _zeroCopyGets;
+
+    /**
+     * Whether PUTs of big enough entries may be written directly to
+     * external files.
+     */
+    protected final boolean _streamingPuts;
+
+    protected final long _streamingPutMinLength;
+
+    /**
+     * Whether (big enough) GETs and PUTs that read or write external files
+     * may be processed asynchronously, using non-blocking I/O.
+     */
+    protected final boolean _asyncEntries;
+
+    protected final long _asyncTimeoutMsecs;
+
+    protected final Compression _streamingPutCompression;
+
+    protected final int _defaultMinTTLSecs;
+
+    protected final int _defaultMaxTTLSecs;
+
+    protected final long _maxMaxTTLSecs;
+
+    protected final StreamingEntryWriter _entryWriter;
+
+    protected final ObjectMapper _jsonMapper;
+
+    protected final StorableStore _entryStore;
+
+    protected final FileManager _fileManager;
+
+    protected final EntryKeyConverter<BasicTSKey> _tsKeyConverter;
+
+    protected final StoredEntryConverter<BasicTSKey, StoredEntry<BasicTSKey>,?> _tsEntryConverter;
+
+    protected final TimeMaster _tsTimeMaster;
+
+    protected final FileChannelSender _fileSender = new FileChannelSender();
+
+    /**
+     * Cache of recently read entries, if enabled; null if not.
+     */
+    protected final EntryCache _entryCache;
+
+    /**
+     * Store handler, if it is of expected type; needed for determining
+     * last-access tracking method of streamed entries.
+     */
+    protected final BasicTSStoreHandler _tsStoreHandler;
 
     public BasicTSStoreEntryServlet(SharedServiceStuff stuff,
             ClusterViewByServer cluster,
@@ -31,7 +134,45 @@ public class BasicTSStoreEntryServlet
     {
         super(stuff, cluster, storeHandler);
         BasicTSServiceConfig config = stuff.getServiceConfig();
-        _printTimings = config.printTimings;
+        if (config.printTimings) {
+            _timings = new TimingRecorder(config.timingBufferSize, config.timingLogFile);
+            try {
+                _timings.start();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to open timing log file '"
+                        +config.timingLogFile+"': "+e.getMessage(), e);
+            }
+        } else {
+            _timings = null;
+        }
+        _zeroCopyGets = config.zeroCopyGets;
+        _streamingPuts = config.streamingPuts;
+        _streamingPutMinLength = config.streamingPutMinLength;
+        _streamingPutCompression = config.streamingPutCompression;
+        _asyncEntries = config.asyncEntries;
+        _asyncTimeoutMsecs = config.asyncTimeoutMsecs;
+        _defaultMinTTLSecs = (int) (config.cfgDefaultSinceAccessTTL.getMillis() / 1000L);
+        _defaultMaxTTLSecs = (int) (config.cfgDefaultMaxTTL.getMillis() / 1000L);
+        _maxMaxTTLSecs = config.cfgMaxMaxTTL.getMillis() / 1000L;
+        _entryStore = storeHandler.getStores().getEntryStore();
+        _fileManager = stuff.getFileManager();
+        _tsKeyConverter = stuff.getKeyConverter();
+        _tsEntryConverter = stuff.getEntryConverter();
+        _tsTimeMaster = stuff.getTimeMaster();
+        _entryWriter = new StreamingEntryWriter(_tsKeyConverter);
+        _jsonMapper = stuff.jsonMapper();
+        _tsStoreHandler = (storeHandler instanceof BasicTSStoreHandler)
+                ? (BasicTSStoreHandler) storeHandler : null;
+        _entryCache = (_tsStoreHandler == null) ? null : _tsStoreHandler.getEntryCache();
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (_timings != null) {
+            _timings.stop();
+        }
+        super.destroy();
     }
 
     /*
@@ -44,9 +185,14 @@ public class BasicTSStoreEntryServlet
     public void handleGet(ServletServiceRequest request, ServletServiceResponse response,
             OperationDiagnostics stats) throws IOException
     {
-        super.handleGet(request, response, stats);
-        if (_printTimings) {
-            _printTiming("GET", request, response, stats);
+        if (!(_zeroCopyGets || _asyncEntries || _entryCache != null)
+                || !_tryDirectGet(request, response, stats)) {
+            super.handleGet(request, response, stats);
+        } else if (request.getNativeRequest().isAsyncStarted()) { // timed on completion
+            return;
+        }
+        if (_timings != null) {
+            _recordTiming(TimingRecorder.VERB_GET, request, response, stats);
         }
     }
 
@@ -55,8 +201,8 @@ public class BasicTSStoreEntryServlet
             OperationDiagnostics stats) throws IOException
     {
         super.handleHead(request, response, stats);
-        if (_printTimings) {
-            _printTiming("HEAD", request, response, stats);
+        if (_timings != null) {
+            _recordTiming(TimingRecorder.VERB_HEAD, request, response, stats);
         }
     }
     
@@ -64,9 +210,13 @@ public class BasicTSStoreEntryServlet
     public void handlePut(ServletServiceRequest request, ServletServiceResponse response,
             OperationDiagnostics stats) throws IOException
     {
-        super.handlePut(request, response, stats);
-        if (_printTimings) {
-            _printTiming("PUT", request, response, stats);
+        if (!(_streamingPuts || _asyncEntries) || !_tryStreamingPut(request, response, stats)) {
+            super.handlePut(request, response, stats);
+        } else if (request.getNativeRequest().isAsyncStarted()) { // timed on completion
+            return;
+        }
+        if (_timings != null) {
+            _recordTiming(TimingRecorder.VERB_PUT, request, response, stats);
         }
     }
 
@@ -74,63 +224,647 @@ public class BasicTSStoreEntryServlet
     public void handleDelete(ServletServiceRequest request, ServletServiceResponse response,
             OperationDiagnostics stats) throws IOException
     {
+        // note: entry cache is invalidated by store throttler, once entry is deleted
         super.handleDelete(request, response, stats);
-        if (_printTimings) {
-            _printTiming("DELETE", request, response, stats);
+        if (_timings != null) {
+            _recordTiming(TimingRecorder.VERB_DELETE, request, response, stats);
         }
     }
 
     /*
     /**********************************************************************
-    /* Internal methods
+    /* Direct GET handling
     /**********************************************************************
      */
 
-    protected void _printTiming(String verb,
-            ServletServiceRequest request, ServletServiceResponse response,
-            OperationDiagnostics stats)
+    /**
+     * Method that tries to serve a GET without going through the standard
+     * store handler: either from the entry cache (if enabled), or, for
+     * externally stored entries, by transferring file contents directly
+     * (using zero-copy transfer, or, if async processing is enabled,
+     * non-blocking writes).
+     * Only handles the simple (but common) cases: uncompressed
+     * content (or compressed content that client accepts as is), with
+     * optional single byte range (for external files). Missing, deleted
+     * and expired entries are also reported directly, to avoid a second
+     * lookup; other cases are left to the standard handling, which
+     * will look the entry up again.
+     *
+     * @return True if request was handled; false if caller is to use
+     *   the standard handling
+     */
+    protected boolean _tryDirectGet(ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats) throws IOException
     {
-        if (stats == null) {
-            System.out.printf("PERF/%s -> NO-STATS", verb);
-            return;
+        final String path = request.getPath();
+        BasicTSKey key;
+        try {
+            key = _tsKeyConverter.extractFromPath(request);
+        } catch (Exception e) { // let standard handling report the problem
+            key = null;
+        }
+        // fallback handling needs to see the full path again
+        request.setPath(path);
+        if (key == null) {
+            return false;
         }
-        String msg = String.format("PERF/%s -> DB=%s, File=%s, Req/Resp=%.2f, TOTAL=%.2f msec; %d/%d bytes r/w",
-                verb,
-                _time(stats.getDbAccess()),
-                _time(stats.getFileAccess()),
-                (stats.getRequestResponseTotal()>>10) / 1000.0,
-                (stats.getNanosSpent() >> 10) / 1000.0,
-                request.getBytesRead(), response.getBytesWritten()
-                );
-        LOG.info(msg);
+        final StorableKey rawKey = key.asStorableKey();
+        final long now = _tsTimeMaster.currentTimeMillis();
+        CachedEntry entry = (_entryCache == null) ? null : _entryCache.get(rawKey, now);
+        if (entry == null) {
+            // must be read before entry, to detect concurrent modifications
+            final long cacheGeneration = (_entryCache == null) ? -1L : _entryCache.generationFor(rawKey);
+            final Storable raw = _entryStore.findEntry(StoreOperationSource.REQUEST, stats, rawKey);
+            // no point in making standard handling look it up again, just to fail
+            if (raw == null) {
+                response.set(HttpServletResponse.SC_NOT_FOUND, "No entry found for key '"+key+"'");
+                return true;
+            }
+            if (raw.isDeleted()) {
+                response.set(HttpServletResponse.SC_GONE, "Entry for key '"+key+"' has been deleted");
+                return true;
+            }
+            StoredEntry<BasicTSKey> stored = _tsEntryConverter.entryFromStorable(key, raw);
+            if (stored.hasExceededMaxTTL(now)) {
+                response.set(HttpServletResponse.SC_NOT_FOUND, "No entry found for key '"+key+"'");
+                return true;
+            }
+            boolean cacheable = (_entryCache != null)
+                    && (raw.hasExternalData() || raw.getStorageLength() <= _entryCache.getMaxEntrySize());
+            // inlined entries are served from the snapshot even if they can't be cached
+            entry = CachedEntry.construct(stored, _fileManager, now,
+                    cacheable && _entryCache.usesOffHeap());
+            if (cacheable) {
+                _entryCache.put(entry, cacheGeneration);
+            }
+        }
+        final Compression comp = entry.getCompression();
+        final boolean compressed = entry.isCompressed();
+        if (compressed && !_acceptsCompression(request, comp)) {
+            return false;
+        }
+        final String rangeStr = request.getHeader(HTTP_HEADER_RANGE);
+        if (entry.hasInlinedData()) {
+            if (rangeStr != null) { // let standard handling deal with ranges
+                return false;
+            }
+            _writeInlined(response.getNativeResponse(), entry);
+            return true;
+        }
+        if (!_zeroCopyGets && !_asyncEntries) {
+            return false;
+        }
+        final long totalLength = entry.getStorageLength();
+        long start = 0L;
+        long length = totalLength;
+        if (rangeStr != null) {
+            // ranges are expressed in uncompressed offsets, can't serve from compressed
+            if (compressed) {
+                return false;
+            }
+            long[] range = _parseRange(rangeStr, totalLength);
+            if (range == null) {
+                return false;
+            }
+            start = range[0];
+            length = range[1] - range[0] + 1;
+        }
+        if (length < MIN_ZERO_COPY_LENGTH) {
+            return false;
+        }
+        final File f = entry.getExternalFile();
+        // cached entry may be stale, if file has since been removed
+        if (!f.exists()) {
+            if (_entryCache != null) {
+                _entryCache.invalidate(rawKey);
+            }
+            return false;
+        }
+
+        final HttpServletResponse resp = response.getNativeResponse();
+        if (rangeStr != null) {
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            resp.setHeader(HTTP_HEADER_CONTENT_RANGE, "bytes "+start+"-"+(start+length-1)+"/"+totalLength);
+        } else {
+            resp.setStatus(HttpServletResponse.SC_OK);
+        }
+        _setContentHeaders(resp, entry, length);
+        final long offset = start;
+        final long count = length;
+        // With async processing, content is written as client is able to accept it
+        AsyncContext async = _startAsync(request);
+        if (async != null) {
+            AsyncFileSender sender = new AsyncFileSender(async, _entryStore.getThrottler(), null, f,
+                    offset, count, ASYNC_BUFFER_SIZE);
+            if (_timings != null) {
+                async.addListener(new AsyncTimingListener(TimingRecorder.VERB_GET, stats, sender, null));
+            }
+            sender.start();
+            return true;
+        }
+        _entryStore.getThrottler().performFileRead(StoreOperationSource.REQUEST, now, null, f,
+                new FileOperationCallback<Long>() {
+            @Override
+            public Long perform(long operationTime, StorableKey k, Storable value, File externalFile)
+                throws IOException
+            {
+                return _fileSender.send(externalFile, offset, count, resp.getOutputStream());
+            }
+        });
+        return true;
     }
 
-    protected String _time(TotalTime time)
+    protected void _writeInlined(HttpServletResponse resp, CachedEntry entry) throws IOException
     {
-        if (time == null) {
-            return "-";
-        }
-        long nanos1 = time.getTotalTimeWithoutWait();
-        int usecs1 = (int) (nanos1 >> 10);
-        long nanos2 = time.getTotalTimeWithWait() - nanos1;
-        int usecs2;
-        if (nanos2 < 0L) { // shouldn't happen but...
-            usecs2 = -1;
+        ByteBuffer data = entry.getInlinedData();
+        resp.setStatus(HttpServletResponse.SC_OK);
+        _setContentHeaders(resp, entry, data.remaining());
+        OutputStream out = resp.getOutputStream();
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
         } else {
-            usecs2 = (int) (nanos2 >> 10);
-            // also -- truncate 0.1 msecs into 0, to reduce noise
-            if (usecs2 < 100) {
-                usecs2 = 0;
+            out.write(entry.getInlinedDataAsBytes());
+        }
+    }
+
+    protected void _setContentHeaders(HttpServletResponse resp, CachedEntry entry, long length)
+    {
+        resp.setContentType("application/octet-stream");
+        resp.setHeader(ClusterMateConstants.HTTP_HEADER_CONTENT_LENGTH, String.valueOf(length));
+        if (entry.isCompressed()) {
+            resp.setHeader(ClusterMateConstants.HTTP_HEADER_COMPRESSION, _compressionId(entry.getCompression()));
+        }
+    }
+
+    protected boolean _acceptsCompression(ServletServiceRequest request, Compression comp)
+    {
+        String accepted = request.getHeader(HTTP_HEADER_ACCEPT_ENCODING);
+        return (accepted != null) && accepted.toLowerCase().contains(_compressionId(comp));
+    }
+
+    protected String _compressionId(Compression comp) {
+        return comp.name().toLowerCase();
+    }
+
+    /**
+     * Helper method for parsing a single-range "bytes=" Range header.
+     *
+     * @return Array with first and last (inclusive) byte offsets; or null if
+     *    range is invalid or uses unsupported notation (like multiple ranges)
+     */
+    protected long[] _parseRange(String rangeStr, long totalLength)
+    {
+        rangeStr = rangeStr.trim();
+        if (!rangeStr.startsWith("bytes=") || rangeStr.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = rangeStr.substring(6).trim();
+        int ix = spec.indexOf('-');
+        if (ix < 0) {
+            return null;
+        }
+        try {
+            long first, last;
+            if (ix == 0) { // suffix: last N bytes
+                long suffix = Long.parseLong(spec.substring(1).trim());
+                first = Math.max(0L, totalLength - suffix);
+                last = totalLength - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, ix).trim());
+                String lastStr = spec.substring(ix+1).trim();
+                last = lastStr.isEmpty() ? (totalLength - 1)
+                        : Math.min(Long.parseLong(lastStr), totalLength - 1);
+            }
+            if (first < 0L || first > last) {
+                return null;
             }
+            return new long[] { first, last };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Streaming PUT handling
+    /**********************************************************************
+     */
+
+    /**
+     * Method that tries to handle a PUT of a big entry by writing request
+     * content directly into the external file it will be stored in,
+     * calculating content hash and compressing content as it is being read.
+     * Only used for requests that declare content length (at least the
+     * configured minimum) and send uncompressed content; and only if no
+     * entry exists for the key. Other requests are left to the standard
+     * handling.
+     * If async processing is enabled, content is read using non-blocking
+     * input as it arrives; otherwise it is read using blocking input.
+     * Either way, file write permits are only held while appending
+     * content already read, not while waiting for the client.
+     *
+     * @return True if request was handled; false if caller is to use
+     *   the standard handling
+     */
+    protected boolean _tryStreamingPut(ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats) throws IOException
+    {
+        long contentLength = _declaredContentLength(request);
+        if (contentLength < _streamingPutMinLength
+                || request.getHeader(ClusterMateConstants.HTTP_HEADER_COMPRESSION) != null) {
+            return false;
+        }
+        Integer minTTL = _intQueryParam(request, ClusterMateConstants.QUERY_PARAM_MIN_TTL);
+        Integer maxTTL = _intQueryParam(request, ClusterMateConstants.QUERY_PARAM_MAX_TTL);
+        final int minTTLSecs = (minTTL == null) ? _defaultMinTTLSecs : minTTL.intValue();
+        final int maxTTLSecs = (maxTTL == null) ? _defaultMaxTTLSecs : maxTTL.intValue();
+        // let standard handling report invalid max TTL
+        if (maxTTLSecs > _maxMaxTTLSecs) {
+            return false;
+        }
+        Integer checksum = _intQueryParam(request, QUERY_PARAM_CHECKSUM);
+        final String path = request.getPath();
+        BasicTSKey key;
+        try {
+            key = _tsKeyConverter.extractFromPath(request);
+        } catch (Exception e) { // let standard handling report the problem
+            key = null;
         }
-        
-        double msec1 = usecs1 / 1000.0;
-        double msec2 = usecs2 / 1000.0;
-        if (time instanceof TotalTimeAndBytes) {
-            TotalTimeAndBytes timeB = (TotalTimeAndBytes) time;
-            long bytes = timeB.getBytes();
-            return String.format("%.2f(w:%.2f)/%dB", msec1, msec2, bytes);
+        request.setPath(path);
+        if (key == null) {
+            return false;
         }
-        return String.format("%.2f(w:%.2f)", msec1, msec2);
+        if (minTTLSecs < 0 || maxTTLSecs < 0) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid TTLs for '"+key+"': min TTL ("
+                    +minTTLSecs+") and max TTL ("+maxTTLSecs+") can not be negative");
+            return true;
+        }
+        if (minTTLSecs > maxTTLSecs) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid TTLs for '"+key+"': min TTL ("
+                    +minTTLSecs+") can not exceed max TTL ("+maxTTLSecs+")");
+            return true;
+        }
+        final StorableKey rawKey = key.asStorableKey();
+        // Conflicts, idempotent re-PUTs and such are handled by standard code
+        if (_entryStore.findEntry(StoreOperationSource.REQUEST, stats, rawKey) != null) {
+            return false;
+        }
+
+        final long now = _tsTimeMaster.currentTimeMillis();
+        final FileReference fileRef = _fileManager.createStorageFile(rawKey, _streamingPutCompression, now);
+        final TSLastAccess lastAccess = (_tsStoreHandler == null) ? TSLastAccess.NONE
+                : _tsStoreHandler.findLastAccessUpdateMethod(request, key);
+        final StreamingPut put = new StreamingPut(key, now, minTTLSecs, maxTTLSecs,
+                lastAccess, checksum, fileRef);
+
+        // With async processing, content is read as it arrives, without blocking
+        AsyncContext async = _startAsync(request);
+        if (async != null) {
+            StreamingEntryWriter.Session session = _entryWriter.open(fileRef.getFile(),
+                    _streamingPutCompression, Long.MAX_VALUE);
+            AsyncEntryReceiver receiver = new AsyncEntryReceiver(async, _entryStore.getThrottler(),
+                    rawKey, session, new AsyncEntryReceiver.Handler() {
+                @Override
+                public void contentReceived(AsyncContext ctxt, StreamingEntryWriter.Result result) {
+                    PutOutcome outcome;
+                    try {
+                        outcome = _completeStreamingPut(put, result);
+                    } catch (IOException e) {
+                        fileRef.getFile().delete();
+                        outcome = new PutOutcome(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                "Failed to add entry '"+put.key+"': "+e.getMessage());
+                    }
+                    _completeAsync(ctxt, outcome);
+                }
+
+                @Override
+                public void receiveFailed(AsyncContext ctxt, Throwable t) {
+                    _completeAsync(ctxt, new PutOutcome(HttpServletResponse.SC_BAD_REQUEST,
+                            "Failed to read content for '"+put.key+"': "+t.getMessage()));
+                }
+            }, ASYNC_BUFFER_SIZE);
+            if (_timings != null) {
+                async.addListener(new AsyncTimingListener(TimingRecorder.VERB_PUT, stats, null, receiver));
+            }
+            receiver.start();
+            return true;
+        }
+
+        final InputStream in = request.getNativeInputStream();
+        final StreamingEntryWriter.Session session = _entryWriter.open(fileRef.getFile(),
+                _streamingPutCompression, Long.MAX_VALUE);
+        final byte[] buffer = new byte[ASYNC_BUFFER_SIZE];
+        StreamingEntryWriter.Result result = null;
+        try {
+            int count;
+            while ((count = _readFully(in, buffer)) > 0) {
+                _append(rawKey, session, buffer, count);
+            }
+            result = session.finish();
+        } catch (IOException e) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST,
+                    "Failed to read content for '"+key+"': "+e.getMessage());
+            return true;
+        } finally {
+            if (result == null) {
+                session.abort();
+            }
+        }
+        PutOutcome outcome = _completeStreamingPut(put, result);
+        response.set(outcome.status, outcome.entity);
+        return true;
+    }
+
+    /**
+     * Helper method for reading content until given buffer is full, or
+     * end of input is reached.
+     *
+     * @return Number of bytes read; 0 if end of input was reached
+     */
+    protected int _readFully(InputStream in, byte[] buffer) throws IOException
+    {
+        int total = 0;
+        while (total < buffer.length) {
+            int count = in.read(buffer, total, buffer.length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Helper method for appending content to a file being written, holding
+     * file write permit only for the duration of the append.
+     */
+    protected void _append(StorableKey rawKey, final StreamingEntryWriter.Session session,
+            final byte[] buffer, final int count) throws IOException
+    {
+        _entryStore.getThrottler().performFileWrite(StoreOperationSource.REQUEST,
+                _tsTimeMaster.currentTimeMillis(), rawKey, session.getFile(),
+                new FileOperationCallback<Void>() {
+            @Override
+            public Void perform(long operationTime, StorableKey k, Storable value, File externalFile)
+                throws IOException
+            {
+                session.append(buffer, 0, count);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Method called once all content of a streaming PUT has been written,
+     * to verify checksum (if one was passed) and add the entry.
+     */
+    protected PutOutcome _completeStreamingPut(StreamingPut put, StreamingEntryWriter.Result result)
+        throws IOException
+    {
+        final File f = put.fileRef.getFile();
+        final Integer checksum = put.checksum;
+        if (checksum != null && checksum.intValue() != 0 && checksum.intValue() != result.contentHash) {
+            f.delete();
+            return new PutOutcome(HttpServletResponse.SC_BAD_REQUEST,
+                    "Incorrect checksum for '"+put.key+"': client sent 0x"+Integer.toHexString(checksum)
+                    +", calculated 0x"+Integer.toHexString(result.contentHash));
+        }
+        ByteContainer customMetadata = _tsEntryConverter.createMetadata(put.creationTime,
+                put.lastAccess.asByte(), put.minTTLSecs, put.maxTTLSecs);
+        Storable existing = _registerStreamedEntry(put.key.asStorableKey(), put.creationTime,
+                customMetadata, put.fileRef, result);
+        if (existing != null) { // lost a race with a concurrent PUT (or DELETE)
+            f.delete();
+            if (existing.isDeleted()) {
+                return new PutOutcome(HttpServletResponse.SC_CONFLICT,
+                        "Entry '"+put.key+"' has been deleted");
+            }
+            if (existing.getContentHash() != result.contentHash) {
+                return new PutOutcome(HttpServletResponse.SC_CONFLICT,
+                        "Entry '"+put.key+"' already exists with different content");
+            }
+        }
+        return new PutOutcome(HttpServletResponse.SC_OK, new StreamingPutResult(put.key, result));
+    }
+
+    /**
+     * Method called to add entry metadata for an external file written
+     * by streaming PUT handling. Has to bypass regular insert methods of
+     * the entry store, since they would need to copy content again; but
+     * insertion still goes through {@link StoreOperationThrottler#performPut},
+     * so it is throttled like other PUTs, and negative lookup filter (if any)
+     * is updated. Partition locking of the store is not needed, since
+     * entry is only ever created here (never updated), and backend
+     * creation is atomic: if an entry was added (or deleted) concurrently,
+     * nothing is written and that entry is returned.
+     *
+     * @return Existing entry, if one was found (in which case nothing
+     *    was added); null if entry was added
+     */
+    protected Storable _registerStreamedEntry(StorableKey rawKey, long now,
+            ByteContainer customMetadata, FileReference fileRef, StreamingEntryWriter.Result result)
+        throws IOException
+    {
+        StorableCreationMetadata stdMetadata = new StorableCreationMetadata(result.compression,
+                result.contentHash, result.compressedContentHash);
+        stdMetadata.uncompressedSize = result.uncompressedLength;
+        stdMetadata.storageSize = result.storedLength;
+        final StoreBackend backend = _entryStore.getBackend();
+        Storable storable = backend.getStorableConverter().encodeOfflined(rawKey, now,
+                stdMetadata, customMetadata, fileRef);
+        StorableCreationResult result = _entryStore.getThrottler().performPut(StoreOperationSource.REQUEST,
+                now, rawKey, storable, new StoreOperationCallback<StorableCreationResult>() {
+            @Override
+            public StorableCreationResult perform(long operationTime, StorableKey key, Storable value)
+                throws IOException, StoreException
+            {
+                Storable existing = backend.createNewEntry(key, value);
+                return new StorableCreationResult(key, (existing == null), value, existing);
+            }
+        });
+        return result.getPreviousEntry();
+    }
+
+    protected long _declaredContentLength(ServletServiceRequest request)
+    {
+        String str = request.getHeader(ClusterMateConstants.HTTP_HEADER_CONTENT_LENGTH);
+        if (str != null) {
+            try {
+                return Long.parseLong(str.trim());
+            } catch (NumberFormatException e) { }
+        }
+        return -1L;
+    }
+
+    protected Integer _intQueryParam(ServletServiceRequest request, String name)
+    {
+        String str = request.getQueryParameter(name);
+        if (str != null) {
+            try {
+                return Integer.valueOf(str.trim());
+            } catch (NumberFormatException e) { }
+        }
+        return null;
+    }
+
+    /**
+     * Information about a streaming PUT being processed.
+     */
+    protected static class StreamingPut
+    {
+        public final BasicTSKey key;
+        public final long creationTime;
+        public final int minTTLSecs, maxTTLSecs;
+        public final TSLastAccess lastAccess;
+        public final Integer checksum;
+        public final FileReference fileRef;
+
+        public StreamingPut(BasicTSKey key, long creationTime, int minTTLSecs, int maxTTLSecs,
+                TSLastAccess lastAccess, Integer checksum, FileReference fileRef)
+        {
+            this.key = key;
+            this.creationTime = creationTime;
+            this.minTTLSecs = minTTLSecs;
+            this.maxTTLSecs = maxTTLSecs;
+            this.lastAccess = lastAccess;
+            this.checksum = checksum;
+            this.fileRef = fileRef;
+        }
+    }
+
+    /**
+     * Response status and entity for a streaming PUT.
+     */
+    protected static class PutOutcome
+    {
+        public final int status;
+        public final Object entity;
+
+        public PutOutcome(int status, Object entity) {
+            this.status = status;
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * Response entity for successful streaming PUTs; uses same property
+     * names as the standard PUT response for the properties it has
+     * (clients only check the status code).
+     */
+    public static class StreamingPutResult
+    {
+        public String key;
+        public long size;
+        public long storageSize;
+        public Compression compression;
+
+        public StreamingPutResult(BasicTSKey key, StreamingEntryWriter.Result result)
+        {
+            this.key = key.toString();
+            size = result.uncompressedLength;
+            storageSize = result.storedLength;
+            compression = result.compression;
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Async processing helpers
+    /**********************************************************************
+     */
+
+    /**
+     * Method called to switch request into asynchronous processing, if
+     * async mode is enabled and container supports it for the request.
+     *
+     * @return Async context if processing was switched; null if not
+     */
+    protected AsyncContext _startAsync(ServletServiceRequest request)
+    {
+        if (!_asyncEntries) {
+            return null;
+        }
+        HttpServletRequest nativeReq = request.getNativeRequest();
+        if (!nativeReq.isAsyncSupported()) {
+            return null;
+        }
+        AsyncContext ctxt = nativeReq.startAsync();
+        ctxt.setTimeout(_asyncTimeoutMsecs);
+        return ctxt;
+    }
+
+    /**
+     * Method for writing out response for an asynchronously processed
+     * request, and completing processing.
+     */
+    protected void _completeAsync(AsyncContext ctxt, PutOutcome outcome)
+    {
+        try {
+            HttpServletResponse resp = (HttpServletResponse) ctxt.getResponse();
+            resp.setStatus(outcome.status);
+            resp.setContentType("application/json");
+            _jsonMapper.writeValue(resp.getOutputStream(), outcome.entity);
+        } catch (IOException e) {
+            LOG.warn("Failed to write response for async request: {}", e.getMessage());
+        } finally {
+            ctxt.complete();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected void _recordTiming(int verb,
+            ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats)
+    {
+        _timings.record(verb, response.getStatus(), stats,
+                request.getBytesRead(), response.getBytesWritten());
+    }
+
+    /**
+     * Listener used for recording timings of asynchronously processed
+     * requests, once processing completes.
+     */
+    protected class AsyncTimingListener implements AsyncListener
+    {
+        protected final int _verb;
+
+        protected final OperationDiagnostics _stats;
+
+        protected final AsyncFileSender _sender;
+
+        protected final AsyncEntryReceiver _receiver;
+
+        public AsyncTimingListener(int verb, OperationDiagnostics stats,
+                AsyncFileSender sender, AsyncEntryReceiver receiver)
+        {
+            _verb = verb;
+            _stats = stats;
+            _sender = sender;
+            _receiver = receiver;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event)
+        {
+            HttpServletResponse resp = (HttpServletResponse) event.getAsyncContext().getResponse();
+            long read = (_receiver == null) ? 0L : _receiver.getBytesReceived();
+            // size of (small) JSON response of async PUTs is not tracked
+            long written = (_sender == null) ? -1L : _sender.getBytesSent();
+            _timings.record(_verb, resp.getStatus(), _stats, read, written);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) { }
+
+        @Override
+        public void onError(AsyncEvent event) { }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) { }
     }
 }
@@ -0,0 +1,360 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.store.*;
+import com.fasterxml.storemate.store.backend.IterationAction;
+import com.fasterxml.storemate.store.backend.StorableIterationCallback;
+import com.fasterxml.storemate.store.util.OperationDiagnostics;
+
+import com.fasterxml.clustermate.api.EntryKeyConverter;
+import com.fasterxml.clustermate.api.msg.ListItem;
+import com.fasterxml.clustermate.service.SharedServiceStuff;
+import com.fasterxml.clustermate.service.cluster.ClusterViewByServer;
+import com.fasterxml.clustermate.service.store.StoreHandler;
+import com.fasterxml.clustermate.service.store.StoredEntry;
+import com.fasterxml.clustermate.service.store.StoredEntryConverter;
+import com.fasterxml.clustermate.servlet.ServletServiceRequest;
+import com.fasterxml.clustermate.servlet.ServletServiceResponse;
+import com.fasterxml.clustermate.servlet.StoreListServlet;
+
+import com.fasterxml.transistore.basic.BasicTSConstants;
+import com.fasterxml.transistore.basic.BasicTSContentTypes;
+import com.fasterxml.transistore.basic.BasicTSDeleteJobStatus;
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.basic.BasicTSKeyConverter;
+import com.fasterxml.transistore.basic.BasicTSListStream;
+import com.fasterxml.transistore.service.store.BasicTSStoreHandler;
+import com.fasterxml.transistore.service.store.PrefixDeleter;
+
+/**
+ * Extension of the standard listing servlet, which adds support for
+ * server-side deletion of all entries with given prefix: a DELETE
+ * for a listing path starts a background deletion job (see
+ * {@link PrefixDeleter}) and returns its status, including job id;
+ * status can then be checked with a GET for the same path, with
+ * job id passed using {@link BasicTSConstants#TS_QUERY_PARAM_DELETE_JOB};
+ * and job cancelled with a DELETE with job id.
+ *<p>
+ * Prefix deletion is only allowed for keys that have partition id,
+ * since other keys are not co-located on same server nodes.
+ *<p>
+ * In addition, a streaming listing mode is supported (see
+ * {@link BasicTSListStream}), in which all entries with given prefix
+ * are returned in a single response, instead of bounded pages.
+ * Entries are read in chunks, each chunk using a separate iteration,
+ * so that the store is not kept waiting for slow clients: memory
+ * usage is bounded by chunk size, and writes block if client
+ * does not keep up.
+ * Listings (both paged and streaming ones) are encoded as Smile, if
+ * client accepts it; otherwise as JSON.
+ */
+@SuppressWarnings("serial")
+public class BasicTSStoreListServlet
+    extends StoreListServlet<BasicTSKey,StoredEntry<BasicTSKey>>
+{
+    /**
+     * Number of entries to read from the store before writing them out
+     * for streaming listings.
+     */
+    protected final static int STREAM_CHUNK_SIZE = 1000;
+
+    protected final static String HTTP_HEADER_ACCEPT = "Accept";
+
+    /**
+     * Name of the file (in metadata directory) used for persisting
+     * state of prefix deletion jobs
+     */
+    protected final static String PREFIX_DELETE_JOB_FILE = "prefix-delete-jobs.json";
+
+    protected final StorableStore _entryStore;
+
+    protected final EntryKeyConverter<BasicTSKey> _tsKeyConverter;
+
+    protected final StoredEntryConverter<BasicTSKey, StoredEntry<BasicTSKey>,?> _tsEntryConverter;
+
+    protected final ObjectMapper _jsonMapper;
+
+    /**
+     * Factory for generating Smile-encoded responses, for clients that
+     * accept them; uses the same mapper as JSON responses.
+     */
+    protected final JsonFactory _smileFactory;
+
+    protected final PrefixDeleter _prefixDeleter;
+
+    public BasicTSStoreListServlet(SharedServiceStuff stuff, ClusterViewByServer clusterView,
+            StoreHandler<BasicTSKey,StoredEntry<BasicTSKey>,?> storeHandler)
+    {
+        super(stuff, clusterView, storeHandler);
+        _entryStore = storeHandler.getStores().getEntryStore();
+        _tsKeyConverter = stuff.getKeyConverter();
+        _tsEntryConverter = stuff.getEntryConverter();
+        _jsonMapper = stuff.jsonMapper();
+        _smileFactory = BasicTSContentTypes.smileFactory(_jsonMapper);
+        File metadataDir = stuff.getServiceConfig().metadataDirectory;
+        _prefixDeleter = new PrefixDeleter((BasicTSStoreHandler) storeHandler,
+                stuff.getTimeMaster(), _jsonMapper,
+                (metadataDir == null) ? null : new File(metadataDir, PREFIX_DELETE_JOB_FILE));
+        _prefixDeleter.start();
+    }
+
+    @Override
+    public void destroy()
+    {
+        _prefixDeleter.stop();
+        super.destroy();
+    }
+
+    /*
+    /**********************************************************************
+    /* Request handling
+    /**********************************************************************
+     */
+
+    @Override
+    public void handleGet(ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats) throws IOException
+    {
+        if (request.getQueryParameter(BasicTSListStream.QUERY_PARAM_STREAM) != null) {
+            _streamList(request, response, stats);
+            return;
+        }
+        String jobId = request.getQueryParameter(BasicTSConstants.TS_QUERY_PARAM_DELETE_JOB);
+        if (jobId == null) {
+            _pagedList(request, response, stats);
+            return;
+        }
+        BasicTSDeleteJobStatus status;
+        try {
+            status = _prefixDeleter.findJob(Long.parseLong(jobId.trim()));
+        } catch (NumberFormatException e) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid delete job id '"+jobId+"'");
+            return;
+        }
+        if (status == null) {
+            response.set(HttpServletResponse.SC_NOT_FOUND, "No delete job with id "+jobId);
+            return;
+        }
+        _writeStatus(response, HttpServletResponse.SC_OK, status);
+    }
+
+    @Override
+    public void handleDelete(ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats) throws IOException
+    {
+        String jobId = request.getQueryParameter(BasicTSConstants.TS_QUERY_PARAM_DELETE_JOB);
+        if (jobId != null) { // cancellation of an existing job
+            BasicTSDeleteJobStatus status;
+            try {
+                status = _prefixDeleter.cancelJob(Long.parseLong(jobId.trim()));
+            } catch (NumberFormatException e) {
+                response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid delete job id '"+jobId+"'");
+                return;
+            }
+            if (status == null) {
+                response.set(HttpServletResponse.SC_NOT_FOUND, "No delete job with id "+jobId);
+                return;
+            }
+            _writeStatus(response, HttpServletResponse.SC_OK, status);
+            return;
+        }
+        BasicTSKey prefix;
+        try {
+            prefix = _tsKeyConverter.extractFromPath(request);
+        } catch (Exception e) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid prefix: "+e.getMessage());
+            return;
+        }
+        if (!prefix.hasPartitionId()) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST,
+                    "Can not delete by prefix without partition id");
+            return;
+        }
+        BasicTSDeleteJobStatus status = _prefixDeleter.startJob(prefix.asStorableKey(),
+                prefix.toString());
+        _writeStatus(response, HttpServletResponse.SC_ACCEPTED, status);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method for handling standard paged listing: done by the standard
+     * handler, but since pages are of bounded size, response can be buffered
+     * and re-encoded as Smile, if client accepts it.
+     */
+    protected void _pagedList(ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats) throws IOException
+    {
+        if (!BasicTSContentTypes.acceptsSmile(request.getHeader(HTTP_HEADER_ACCEPT))) {
+            super.handleGet(request, response, stats);
+            return;
+        }
+        BufferingResponseWrapper buffered = new BufferingResponseWrapper(response.getNativeResponse());
+        super.handleGet(request, new ServletServiceResponse(buffered), stats);
+        if (buffered.isOk(BasicTSContentTypes.CONTENT_TYPE_JSON)) {
+            buffered.writeAs(_jsonMapper.getFactory(), _smileFactory, BasicTSContentTypes.CONTENT_TYPE_SMILE);
+        } else {
+            buffered.writeAsIs();
+        }
+    }
+
+    protected void _streamList(ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats) throws IOException
+    {
+        final StorableKey prefix;
+        StorableKey lastKey = null;
+        long max;
+        try {
+            prefix = _tsKeyConverter.extractFromPath(request).asStorableKey();
+            String str = request.getQueryParameter(BasicTSListStream.QUERY_PARAM_CURSOR);
+            if (str != null && str.length() > 0) {
+                lastKey = BasicTSListStream.keyFromCursor(str);
+                if (!BasicTSKeyConverter.hasPrefix(lastKey, prefix)) {
+                    throw new IllegalArgumentException("Cursor does not match prefix");
+                }
+            }
+            str = request.getQueryParameter(BasicTSListStream.QUERY_PARAM_MAX);
+            max = (str == null || str.length() == 0) ? Long.MAX_VALUE : Long.parseLong(str.trim());
+            if (max <= 0L) {
+                max = Long.MAX_VALUE;
+            }
+        } catch (Exception e) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid streaming list request: "+e.getMessage());
+            return;
+        }
+        // read the first chunk before committing to a response, so that
+        // failure to read anything can still be reported with status code
+        final List<ListItem> chunk = new ArrayList<ListItem>(STREAM_CHUNK_SIZE);
+        boolean more;
+        try {
+            more = _readChunk(stats, prefix, lastKey, chunk, (int) Math.min(STREAM_CHUNK_SIZE, max));
+        } catch (StoreException e) {
+            LOG.warn("Failed streaming list of {}: {}", prefix, e.getMessage());
+            response.set(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Failed to list entries: "+e.getMessage());
+            return;
+        }
+        HttpServletResponse resp = response.getNativeResponse();
+        resp.setStatus(HttpServletResponse.SC_OK);
+        // Smile is preferred (mostly by other nodes) but must be explicitly accepted
+        final JsonFactory f;
+        if (BasicTSContentTypes.acceptsSmile(request.getHeader(HTTP_HEADER_ACCEPT))) {
+            f = _smileFactory;
+            resp.setContentType(BasicTSContentTypes.CONTENT_TYPE_SMILE);
+        } else {
+            f = _jsonMapper.getFactory();
+            resp.setContentType(BasicTSContentTypes.CONTENT_TYPE_JSON);
+        }
+        JsonGenerator gen = f.createGenerator(resp.getOutputStream());
+        gen.writeStartObject();
+        gen.writeArrayFieldStart(BasicTSListStream.FIELD_ITEMS);
+
+        long count = 0L;
+        boolean truncated = false;
+        String error = null;
+        while (true) {
+            for (ListItem item : chunk) {
+                _jsonMapper.writeValue(gen, item);
+            }
+            gen.flush();
+            count += chunk.size();
+            if (!chunk.isEmpty()) {
+                lastKey = chunk.get(chunk.size()-1).getKey();
+            }
+            if (!more) {
+                break;
+            }
+            if (count >= max) {
+                truncated = true;
+                break;
+            }
+            chunk.clear();
+            try {
+                more = _readChunk(stats, prefix, lastKey, chunk, (int) Math.min(STREAM_CHUNK_SIZE, max - count));
+            } catch (StoreException e) {
+                // can not change status any more, so must indicate failure
+                // in content, for client to tell it apart from truncation
+                LOG.warn("Failed streaming list of {} (after {} entries): {}", prefix, count, e.getMessage());
+                error = "Failed to list entries: "+e.getMessage();
+                truncated = true;
+                break;
+            }
+        }
+        gen.writeEndArray();
+        if (truncated && lastKey != null) {
+            gen.writeStringField(BasicTSListStream.FIELD_CURSOR, BasicTSListStream.cursorFor(lastKey));
+        } else {
+            gen.writeNullField(BasicTSListStream.FIELD_CURSOR);
+        }
+        if (error != null) {
+            gen.writeStringField(BasicTSListStream.FIELD_ERROR, error);
+        }
+        gen.writeEndObject();
+        gen.close();
+    }
+
+    /**
+     * Method for reading the next chunk of (non-deleted) entries with given
+     * prefix, after specified key (if any).
+     *
+     * @return True if there may be more entries to list; false if all
+     *   entries with the prefix have been read
+     */
+    protected boolean _readChunk(OperationDiagnostics stats, final StorableKey prefix,
+            final StorableKey afterKey, final List<ListItem> chunk, final int maxChunk)
+        throws StoreException
+    {
+        final boolean[] more = new boolean[1];
+        _entryStore.iterateEntriesByKey(StoreOperationSource.REQUEST, stats,
+                (afterKey == null) ? prefix : afterKey,
+                new StorableIterationCallback() {
+            @Override
+            public IterationAction verifyKey(StorableKey key) {
+                if (!BasicTSKeyConverter.hasPrefix(key, prefix)) {
+                    return IterationAction.TERMINATE_ITERATION;
+                }
+                if (afterKey != null && afterKey.equals(key)) {
+                    return IterationAction.SKIP_ENTRY;
+                }
+                if (chunk.size() >= maxChunk) {
+                    more[0] = true;
+                    return IterationAction.TERMINATE_ITERATION;
+                }
+                return IterationAction.PROCESS_ENTRY;
+            }
+
+            @Override
+            public IterationAction processEntry(Storable entry) {
+                if (!entry.isDeleted()) {
+                    chunk.add(_tsEntryConverter.fullListItemFromStorable(entry));
+                }
+                return IterationAction.PROCESS_ENTRY;
+            }
+        });
+        return more[0];
+    }
+
+    protected void _writeStatus(ServletServiceResponse response, int statusCode,
+            BasicTSDeleteJobStatus status) throws IOException
+    {
+        HttpServletResponse resp = response.getNativeResponse();
+        resp.setStatus(statusCode);
+        resp.setContentType("application/json");
+        _jsonMapper.writeValue(resp.getOutputStream(), status);
+    }
+}
@@ -0,0 +1,429 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.store.Storable;
+import com.fasterxml.storemate.store.StorableStore;
+import com.fasterxml.storemate.store.StoreException;
+import com.fasterxml.storemate.store.StoreOperationSource;
+import com.fasterxml.storemate.store.util.OperationDiagnostics;
+
+import com.fasterxml.clustermate.service.SharedServiceStuff;
+import com.fasterxml.clustermate.service.cluster.ClusterViewByServer;
+import com.fasterxml.clustermate.servlet.ServletBase;
+import com.fasterxml.clustermate.servlet.ServletServiceRequest;
+import com.fasterxml.clustermate.servlet.ServletServiceResponse;
+
+import com.fasterxml.transistore.basic.BasicTSContentTypes;
+import com.fasterxml.transistore.basic.BasicTSSyncListFormat;
+import com.fasterxml.transistore.service.sync.HashTreeManager;
+import com.fasterxml.transistore.service.sync.PriorityWindow;
+
+/**
+ * Servlet used for sync list requests, both local and remote ones.
+ * Requests are handled by the standard ClusterMate servlet, but since
+ * sync list responses are of bounded size, response can be buffered and
+ * post-processed:
+ *<ul>
+ * <li>Listed entries may be reordered in priority order (see
+ *   {@link HashTreeManager.PrioritizedEntry}), so that entries most likely
+ *   to be read soon get synchronized first
+ *  </li>
+ * <li>Response may be re-encoded using a more compact format, if client
+ *   accepts one: compact {@link BasicTSSyncListFormat} is preferred if
+ *   accepted; otherwise Smile if accepted.
+ *  </li>
+ *</ul>
+ * Listed entries are looked up from the local store one at a time, and
+ * written out in frames of {@link #FRAME_SIZE} entries as soon as they
+ * are known to have the highest priority (see {@link PriorityWindow}),
+ * instead of sorting all entries before writing the first one.
+ *<p>
+ * With {@link BasicTSSyncListFormat}, each frame is encoded as a separate
+ * frame of the format, using information of entries in the local store
+ * (entries no longer found are left out); frames are followed by an
+ * empty frame, and then a JSON object with all the other properties of
+ * the standard response. With JSON and Smile, listed entries are written
+ * as is, after all the other properties; entries no longer found are
+ * listed last.
+ */
+@SuppressWarnings("serial")
+public class BasicTSSyncListServlet extends ServletBase
+{
+    protected final static String HTTP_HEADER_ACCEPT = "Accept";
+
+    /**
+     * Name of the property of standard sync list response that contains
+     * listed entries
+     */
+    protected final static String FIELD_ENTRIES = "entries";
+
+    /**
+     * Name of the property of standard sync list entries that contains
+     * the raw key
+     */
+    protected final static String FIELD_KEY = "key";
+
+    /**
+     * Maximum number of entries written out at a time
+     */
+    public final static int FRAME_SIZE = 100;
+
+    /**
+     * Number of frames worth of entries kept in memory for ordering
+     * entries in priority order.
+     */
+    protected final static int PRIORITY_WINDOW_FRAMES = 10;
+
+    private final Logger LOG = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Standard servlet that produces the actual listing
+     */
+    protected final ServletBase _delegate;
+
+    protected final StorableStore _entryStore;
+
+    /**
+     * Manager used for determining priorities of listed entries, if
+     * listing in priority order; null if not.
+     */
+    protected final HashTreeManager _prioritizer;
+
+    protected final ObjectMapper _jsonMapper;
+
+    protected final JsonFactory _smileFactory;
+
+    public BasicTSSyncListServlet(SharedServiceStuff stuff, ClusterViewByServer clusterView,
+            StorableStore entryStore, ServletBase delegate)
+    {
+        this(stuff, clusterView, entryStore, delegate, null);
+    }
+
+    /**
+     * @param prioritizer Manager used for determining priorities of listed
+     *   entries, to list entries in priority order; null to list entries
+     *   in the order standard servlet lists them
+     */
+    public BasicTSSyncListServlet(SharedServiceStuff stuff, ClusterViewByServer clusterView,
+            StorableStore entryStore, ServletBase delegate, HashTreeManager prioritizer)
+    {
+        // null -> use default servlet path base
+        super(clusterView, null);
+        _delegate = delegate;
+        _entryStore = entryStore;
+        _prioritizer = prioritizer;
+        _jsonMapper = stuff.jsonMapper();
+        _smileFactory = BasicTSContentTypes.smileFactory(_jsonMapper);
+    }
+
+    /**
+     * Accessor for the standard servlet used; needed for things like
+     * collecting its metrics.
+     */
+    public ServletBase getDelegate() {
+        return _delegate;
+    }
+
+    @Override
+    public void destroy()
+    {
+        _delegate.destroy();
+        super.destroy();
+    }
+
+    /*
+    /**********************************************************************
+    /* Request handling
+    /**********************************************************************
+     */
+
+    @Override
+    public void handleGet(ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats) throws IOException
+    {
+        final String accept = request.getHeader(HTTP_HEADER_ACCEPT);
+        final boolean syncFormat = BasicTSContentTypes.accepts(accept, BasicTSSyncListFormat.CONTENT_TYPE);
+        final boolean smile = !syncFormat && BasicTSContentTypes.acceptsSmile(accept);
+        if (!syncFormat && !smile && !_processesEntries()) {
+            _delegate.handleGet(request, response, stats);
+            return;
+        }
+        BufferingResponseWrapper buffered = new BufferingResponseWrapper(response.getNativeResponse());
+        _delegate.handleGet(request, new ServletServiceResponse(buffered), stats);
+        // only re-encode JSON; anything else (errors; or Smile) passed as is
+        if (!buffered.isOk(BasicTSContentTypes.CONTENT_TYPE_JSON)) {
+            buffered.writeAsIs();
+            return;
+        }
+        JsonNode root = _jsonMapper.readTree(buffered.getContent());
+        if (!(root instanceof ObjectNode) || !root.path(FIELD_ENTRIES).isArray()) { // unknown structure
+            if (smile) {
+                buffered.writeAs(_jsonMapper.getFactory(), _smileFactory, BasicTSContentTypes.CONTENT_TYPE_SMILE);
+            } else {
+                buffered.writeAsIs();
+            }
+            return;
+        }
+        JsonNode listed = ((ObjectNode) root).remove(FIELD_ENTRIES);
+        ListWriter writer;
+        if (syncFormat) {
+            writer = new SyncFormatWriter(response.getNativeResponse(), (ObjectNode) root);
+        } else if (smile) {
+            writer = new JsonListWriter(response.getNativeResponse(), (ObjectNode) root,
+                    _smileFactory, BasicTSContentTypes.CONTENT_TYPE_SMILE);
+        } else {
+            writer = new JsonListWriter(response.getNativeResponse(), (ObjectNode) root,
+                    _jsonMapper.getFactory(), BasicTSContentTypes.CONTENT_TYPE_JSON);
+        }
+        try {
+            _writeEntries(listed, writer, stats);
+        } catch (StoreException e) {
+            // if nothing written yet, can still report the problem
+            if (!writer.isStarted()) {
+                response.set(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        "Failed to read listed entries: "+e.getMessage());
+                return;
+            }
+            // otherwise must leave response incomplete, for client to detect
+            LOG.warn("Failed to read listed entries, sync list response left incomplete: {}",
+                    e.getMessage());
+            throw e;
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method called to check whether listed entries need to be processed
+     * even if response is not to be re-encoded.
+     */
+    protected boolean _processesEntries() {
+        return (_prioritizer != null);
+    }
+
+    protected void _writeEntries(JsonNode listed, final ListWriter writer,
+            OperationDiagnostics stats)
+        throws IOException
+    {
+        final int windowSize = (_prioritizer == null) ? 0 : (FRAME_SIZE * PRIORITY_WINDOW_FRAMES);
+        PriorityWindow<ListedEntry> window = new PriorityWindow<ListedEntry>(FRAME_SIZE, windowSize,
+                new PriorityWindow.Handler<ListedEntry>() {
+            @Override
+            public void handleFrame(List<ListedEntry> frame) throws IOException {
+                writer.writeFrame(frame);
+            }
+        });
+        for (JsonNode item : listed) {
+            StorableKey key = _jsonMapper.treeToValue(item.get(FIELD_KEY), StorableKey.class);
+            // sync traffic: not to compete with client requests, or go through their cache
+            Storable raw = _entryStore.findEntry(StoreOperationSource.SYNC, stats, key);
+            ListedEntry entry = _listedEntry(item, key, raw);
+            if (entry != null) {
+                window.add(entry);
+            }
+        }
+        window.finish();
+        writer.finish();
+    }
+
+    /**
+     * @return Entry to list, if any; null if entry is to be left out
+     */
+    protected ListedEntry _listedEntry(JsonNode item, StorableKey key, Storable raw)
+    {
+        if (raw == null) {
+            return new ListedEntry(item, null);
+        }
+        if (_prioritizer == null) {
+            return new ListedEntry(item, new HashTreeManager.PrioritizedEntry(_syncListEntry(raw), 0, 0L));
+        }
+        return new ListedEntry(item, _prioritizer.prioritizedEntry(raw));
+    }
+
+    protected BasicTSSyncListFormat.Entry _syncListEntry(Storable raw)
+    {
+        return new BasicTSSyncListFormat.Entry(raw.getKey(), raw.getLastModified(),
+                raw.getContentHash(), raw.isDeleted()
+                ? BasicTSSyncListFormat.DELETED_LENGTH : raw.getActualUncompressedLength());
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Container for an entry listed by the standard servlet, along with
+     * its priority; entries no longer found in the local store come last.
+     */
+    protected static class ListedEntry extends HashTreeManager.PrioritizedEntry
+    {
+        public final JsonNode item;
+
+        public ListedEntry(JsonNode item, HashTreeManager.PrioritizedEntry prioritized)
+        {
+            super((prioritized == null)
+                    ? new HashTreeManager.PrioritizedEntry(null, Integer.MAX_VALUE, Long.MIN_VALUE)
+                    : prioritized);
+            this.item = item;
+        }
+
+        public boolean isFound() {
+            return entry != null;
+        }
+    }
+
+    /**
+     * Base class for writers of sync list responses, which get listed
+     * entries in frames.
+     */
+    protected abstract class ListWriter
+    {
+        protected final HttpServletResponse _response;
+
+        protected final ObjectNode _root;
+
+        protected final String _contentType;
+
+        protected OutputStream _out;
+
+        protected ListWriter(HttpServletResponse response, ObjectNode root, String contentType)
+        {
+            _response = response;
+            _root = root;
+            _contentType = contentType;
+        }
+
+        public boolean isStarted() {
+            return _out != null;
+        }
+
+        public abstract void writeFrame(List<ListedEntry> frame) throws IOException;
+
+        public abstract void finish() throws IOException;
+
+        protected OutputStream _output() throws IOException
+        {
+            if (_out == null) {
+                _response.setStatus(HttpServletResponse.SC_OK);
+                _response.setContentType(_contentType);
+                _out = _response.getOutputStream();
+            }
+            return _out;
+        }
+    }
+
+    /**
+     * Writer for {@link BasicTSSyncListFormat}: frames, then the empty
+     * end marker frame, then other properties as JSON.
+     */
+    protected class SyncFormatWriter extends ListWriter
+    {
+        public SyncFormatWriter(HttpServletResponse response, ObjectNode root) {
+            super(response, root, BasicTSSyncListFormat.CONTENT_TYPE);
+        }
+
+        @Override
+        public void writeFrame(List<ListedEntry> frame) throws IOException
+        {
+            List<BasicTSSyncListFormat.Entry> entries = new ArrayList<BasicTSSyncListFormat.Entry>(frame.size());
+            for (ListedEntry entry : frame) {
+                if (entry.isFound()) {
+                    entries.add(entry.entry);
+                }
+            }
+            if (!entries.isEmpty()) {
+                OutputStream out = _output();
+                out.write(BasicTSSyncListFormat.encode(entries));
+                // let receiver start on entries with highest priority
+                out.flush();
+            }
+        }
+
+        @Override
+        public void finish() throws IOException
+        {
+            OutputStream out = _output();
+            out.write(BasicTSSyncListFormat.encode(Collections.<BasicTSSyncListFormat.Entry>emptyList()));
+            // closes the stream as well
+            _jsonMapper.writeValue(out, _root);
+        }
+    }
+
+    /**
+     * Writer for JSON and Smile: other properties first, then listed
+     * entries as is.
+     */
+    protected class JsonListWriter extends ListWriter
+    {
+        protected final JsonFactory _factory;
+
+        protected JsonGenerator _generator;
+
+        public JsonListWriter(HttpServletResponse response, ObjectNode root,
+                JsonFactory factory, String contentType)
+        {
+            super(response, root, contentType);
+            _factory = factory;
+        }
+
+        @Override
+        public void writeFrame(List<ListedEntry> frame) throws IOException
+        {
+            JsonGenerator gen = _generator();
+            for (ListedEntry entry : frame) {
+                _jsonMapper.writeTree(gen, entry.item);
+            }
+            gen.flush();
+        }
+
+        @Override
+        public void finish() throws IOException
+        {
+            JsonGenerator gen = _generator();
+            gen.writeEndArray();
+            gen.writeEndObject();
+            gen.close();
+        }
+
+        protected JsonGenerator _generator() throws IOException
+        {
+            if (_generator == null) {
+                _generator = _factory.createGenerator(_output());
+                _generator.writeStartObject();
+                Iterator<Map.Entry<String,JsonNode>> it = _root.fields();
+                while (it.hasNext()) {
+                    Map.Entry<String,JsonNode> field = it.next();
+                    _generator.writeFieldName(field.getKey());
+                    _jsonMapper.writeTree(_generator, field.getValue());
+                }
+                _generator.writeArrayFieldStart(FIELD_ENTRIES);
+            }
+            return _generator;
+        }
+    }
+}
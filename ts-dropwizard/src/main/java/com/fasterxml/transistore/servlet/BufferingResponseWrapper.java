@@ -0,0 +1,235 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * {@link HttpServletResponseWrapper} that buffers status, content type
+ * and content of the response, instead of passing them to the actual
+ * response; used for post-processing responses produced by standard
+ * ClusterMate servlets (like re-encoding them), for responses that are
+ * known to be of bounded size. Other headers are passed as is.
+ */
+public class BufferingResponseWrapper extends HttpServletResponseWrapper
+{
+    protected final ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+
+    protected int _status = HttpServletResponse.SC_OK;
+
+    protected String _errorMessage;
+
+    protected boolean _error;
+
+    protected String _contentType;
+
+    protected ServletOutputStream _output;
+
+    protected PrintWriter _writer;
+
+    public BufferingResponseWrapper(HttpServletResponse resp) {
+        super(resp);
+    }
+
+    /*
+    /**********************************************************************
+    /* Accessors
+    /**********************************************************************
+     */
+
+    public byte[] getContent()
+    {
+        if (_writer != null) {
+            _writer.flush();
+        }
+        return _bytes.toByteArray();
+    }
+
+    /**
+     * @return True if response is a successful (200) one, with content
+     *   of given type (regardless of character encoding)
+     */
+    public boolean isOk(String contentType)
+    {
+        return !_error && (_status == HttpServletResponse.SC_OK)
+                && (_contentType != null) && _contentType.toLowerCase().startsWith(contentType);
+    }
+
+    /**
+     * Method for passing buffered response as is to the actual response.
+     */
+    public void writeAsIs() throws IOException
+    {
+        HttpServletResponse resp = (HttpServletResponse) getResponse();
+        if (_error) {
+            if (_errorMessage == null) {
+                resp.sendError(_status);
+            } else {
+                resp.sendError(_status, _errorMessage);
+            }
+            return;
+        }
+        byte[] content = getContent();
+        resp.setStatus(_status);
+        if (_contentType != null) {
+            resp.setContentType(_contentType);
+        }
+        resp.setContentLength(content.length);
+        OutputStream out = resp.getOutputStream();
+        out.write(content);
+        out.flush();
+    }
+
+    /**
+     * Method for passing buffered (JSON) response to the actual response,
+     * re-encoded using given generator factory (usually one for Smile);
+     * since both formats use the same data model, content is simply
+     * copied token by token.
+     */
+    public void writeAs(JsonFactory jsonFactory, JsonFactory outputFactory, String contentType)
+        throws IOException
+    {
+        HttpServletResponse resp = (HttpServletResponse) getResponse();
+        resp.setStatus(_status);
+        resp.setContentType(contentType);
+        JsonParser p = jsonFactory.createParser(getContent());
+        JsonGenerator gen = outputFactory.createGenerator(resp.getOutputStream());
+        while (p.nextToken() != null) {
+            gen.copyCurrentEvent(p);
+        }
+        p.close();
+        gen.close();
+    }
+
+    /*
+    /**********************************************************************
+    /* HttpServletResponse overrides
+    /**********************************************************************
+     */
+
+    @Override
+    public void setStatus(int sc) {
+        _status = sc;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public void setStatus(int sc, String msg) {
+        _status = sc;
+    }
+
+    @Override
+    public int getStatus() {
+        return _status;
+    }
+
+    @Override
+    public void sendError(int sc) {
+        sendError(sc, null);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) {
+        _status = sc;
+        _errorMessage = msg;
+        _error = true;
+    }
+
+    @Override
+    public void setContentType(String type) {
+        _contentType = type;
+    }
+
+    @Override
+    public String getContentType() {
+        return _contentType;
+    }
+
+    // content length only known once post-processed
+
+    @Override
+    public void setContentLength(int len) { }
+
+    @Override
+    public void setContentLengthLong(long len) { }
+
+    @Override
+    public ServletOutputStream getOutputStream()
+    {
+        if (_writer != null) {
+            throw new IllegalStateException("getWriter() already called");
+        }
+        if (_output == null) {
+            _output = new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener l) {
+                    throw new IllegalStateException("Non-blocking output not supported for buffered responses");
+                }
+
+                @Override
+                public void write(int b) {
+                    _bytes.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int offset, int len) {
+                    _bytes.write(b, offset, len);
+                }
+            };
+        }
+        return _output;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException
+    {
+        if (_writer == null) {
+            if (_output != null) {
+                throw new IllegalStateException("getOutputStream() already called");
+            }
+            _writer = new PrintWriter(new OutputStreamWriter(_bytes, getCharacterEncoding()));
+        }
+        return _writer;
+    }
+
+    @Override
+    public void flushBuffer() {
+        if (_writer != null) {
+            _writer.flush();
+        }
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        resetBuffer();
+        _status = HttpServletResponse.SC_OK;
+        _error = false;
+        _errorMessage = null;
+        _contentType = null;
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (_writer != null) {
+            _writer.flush();
+        }
+        _bytes.reset();
+    }
+}
@@ -0,0 +1,353 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * {@link HttpServletResponseWrapper} that gzip-compresses everything written
+ * as response content, used for responses that the client has indicated
+ * (with "Accept-Encoding") it can decompress.
+ *<p>
+ * Compression is applied one frame at a time: after each frame, output is
+ * flushed (so the receiver can decompress frames as they arrive), and if
+ * a frame did not compress well (usually because it consisted of content
+ * stored compressed), following frames are sent without compression for
+ * a while, to avoid wasting CPU on content that does not compress.
+ */
+public class CompressingResponseWrapper extends HttpServletResponseWrapper
+{
+    public final static String HTTP_HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    protected final static String HTTP_HEADER_CONTENT_LENGTH = "Content-Length";
+
+    protected final static String HTTP_HEADER_VARY = "Vary";
+
+    public final static String ENCODING_GZIP = "gzip";
+
+    /**
+     * Frames that compress to more than this ratio of original size are
+     * considered incompressible.
+     */
+    protected final static double MAX_USEFUL_RATIO = 0.9;
+
+    /**
+     * Number of frames to send without compression after encountering
+     * an incompressible frame, before trying to compress again.
+     */
+    protected final static int FRAMES_TO_SKIP = 8;
+
+    protected final int _frameSize;
+
+    protected CompressingOutputStream _output;
+
+    protected PrintWriter _writer;
+
+    public CompressingResponseWrapper(HttpServletResponse resp, int frameSize)
+    {
+        super(resp);
+        _frameSize = frameSize;
+    }
+
+    /**
+     * Helper method for checking whether given "Accept-Encoding" header value
+     * allows gzip-compressed responses.
+     */
+    public static boolean acceptsGzip(String acceptEncoding)
+    {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String enc : acceptEncoding.split(",")) {
+            enc = enc.trim().toLowerCase();
+            int ix = enc.indexOf(';');
+            String params = "";
+            if (ix >= 0) {
+                params = enc.substring(ix+1).replace(" ", "");
+                enc = enc.substring(0, ix).trim();
+            }
+            if (ENCODING_GZIP.equals(enc)) {
+                // "q=0" means "not acceptable"
+                return !params.matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method that must be called once response content has been written,
+     * to write out the rest of compressed content.
+     */
+    public void finish() throws IOException
+    {
+        if (_writer != null) {
+            _writer.flush();
+        }
+        if (_output != null) {
+            _output.finish();
+        }
+    }
+
+    /**
+     * @return Number of bytes written before compression
+     */
+    public long getUncompressedLength() {
+        return (_output == null) ? 0L : _output.getUncompressedLength();
+    }
+
+    /**
+     * @return Number of bytes written after compression
+     */
+    public long getCompressedLength() {
+        return (_output == null) ? 0L : _output.getCompressedLength();
+    }
+
+    /*
+    /**********************************************************************
+    /* HttpServletResponse overrides
+    /**********************************************************************
+     */
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException
+    {
+        if (_writer != null) {
+            throw new IllegalStateException("getWriter() already called");
+        }
+        return _output();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException
+    {
+        if (_writer == null) {
+            if (_output != null) {
+                throw new IllegalStateException("getOutputStream() already called");
+            }
+            _writer = new PrintWriter(new OutputStreamWriter(_output(), getCharacterEncoding()));
+        }
+        return _writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException
+    {
+        if (_writer != null) {
+            _writer.flush();
+        } else if (_output != null) {
+            _output.flush();
+        }
+        super.flushBuffer();
+    }
+
+    // length of compressed content is not known in advance, so must ignore these:
+
+    @Override
+    public void setContentLength(int len) { }
+
+    @Override
+    public void setContentLengthLong(long len) { }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (!HTTP_HEADER_CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (!HTTP_HEADER_CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if (!HTTP_HEADER_CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        if (!HTTP_HEADER_CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.addIntHeader(name, value);
+        }
+    }
+
+    protected CompressingOutputStream _output() throws IOException
+    {
+        if (_output == null) {
+            HttpServletResponse resp = (HttpServletResponse) getResponse();
+            resp.setHeader(HTTP_HEADER_CONTENT_ENCODING, ENCODING_GZIP);
+            resp.addHeader(HTTP_HEADER_VARY, "Accept-Encoding");
+            _output = new CompressingOutputStream(resp.getOutputStream(), _frameSize);
+        }
+        return _output;
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * {@link ServletOutputStream} that delegates writes to an
+     * {@link AdaptiveGzipStream}; non-blocking I/O calls to the underlying
+     * container stream.
+     */
+    protected static class CompressingOutputStream extends ServletOutputStream
+    {
+        protected final ServletOutputStream _raw;
+
+        protected final AdaptiveGzipStream _gzip;
+
+        protected boolean _finished;
+
+        public CompressingOutputStream(ServletOutputStream raw, int frameSize) throws IOException
+        {
+            _raw = raw;
+            _gzip = new AdaptiveGzipStream(raw, frameSize);
+        }
+
+        public long getUncompressedLength() {
+            return _gzip.getUncompressedLength();
+        }
+
+        public long getCompressedLength() {
+            return _gzip.getCompressedLength();
+        }
+
+        public void finish() throws IOException
+        {
+            if (!_finished) {
+                _finished = true;
+                _gzip.finish();
+                _raw.flush();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            _gzip.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int len) throws IOException {
+            _gzip.write(b, offset, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!_finished) {
+                _gzip.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            finish();
+            _raw.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return _raw.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            _raw.setWriteListener(writeListener);
+        }
+    }
+
+    /**
+     * {@link GZIPOutputStream} that flushes compressed output after every
+     * frame, and switches compression off for a number of frames if
+     * a frame does not compress well.
+     */
+    protected static class AdaptiveGzipStream extends GZIPOutputStream
+    {
+        protected final int _frameSize;
+
+        protected int _frameLeft;
+
+        protected long _frameStartRead, _frameStartWritten;
+
+        /**
+         * Number of frames left to send without compression; 0 when
+         * compressing.
+         */
+        protected int _framesToSkip;
+
+        public AdaptiveGzipStream(OutputStream out, int frameSize) throws IOException
+        {
+            // true -> "sync flush", so that flush() writes out all pending content
+            super(out, Math.min(frameSize, 64 * 1024), true);
+            def.setLevel(Deflater.BEST_SPEED);
+            _frameSize = frameSize;
+            _frameLeft = frameSize;
+        }
+
+        public long getUncompressedLength() {
+            return def.getBytesRead();
+        }
+
+        public long getCompressedLength() {
+            return def.getBytesWritten();
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int offset, int len) throws IOException
+        {
+            while (len > 0) {
+                int amount = Math.min(len, _frameLeft);
+                super.write(b, offset, amount);
+                offset += amount;
+                len -= amount;
+                _frameLeft -= amount;
+                if (_frameLeft == 0) {
+                    _endFrame();
+                }
+            }
+        }
+
+        protected void _endFrame() throws IOException
+        {
+            flush();
+            _frameLeft = _frameSize;
+            final long read = def.getBytesRead();
+            final long written = def.getBytesWritten();
+            if (_framesToSkip > 0) {
+                if (--_framesToSkip == 0) { // time to try again
+                    _setLevel(Deflater.BEST_SPEED);
+                }
+            } else if ((written - _frameStartWritten) > MAX_USEFUL_RATIO * (read - _frameStartRead)) {
+                _setLevel(Deflater.NO_COMPRESSION);
+                _framesToSkip = FRAMES_TO_SKIP;
+            }
+            _frameStartRead = def.getBytesRead();
+            _frameStartWritten = def.getBytesWritten();
+        }
+
+        /**
+         * Deflater only applies level changes on next call to deflate, using
+         * old level for whatever input that call gets: so need to make
+         * a call without input to have change apply to the next frame.
+         */
+        protected void _setLevel(int level) throws IOException
+        {
+            def.setLevel(level);
+            def.setInput(buf, 0, 0);
+            deflate();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+/**
+ * Helper class used for sending (parts of) files as response content
+ * without copying content through Java heap buffers.
+ *<p>
+ * When running on Jetty, content is memory-mapped and handed to Jetty
+ * directly, which will write it to the socket channel without intermediate
+ * copies; otherwise {@link FileChannel#transferTo} is used, which at least
+ * avoids copies needed by stream-based reading.
+ */
+public class FileChannelSender
+{
+    /**
+     * Maximum size of chunks to memory-map at once; kept modest to limit
+     * address space needed for concurrent large transfers.
+     */
+    protected final static long MAX_MAPPED_CHUNK = 16L * 1024L * 1024L;
+
+    /**
+     * Method for sending given range of the file to the output stream.
+     *
+     * @return Number of bytes sent
+     */
+    public long send(File file, long offset, long length, OutputStream out)
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return send(in.getChannel(), offset, length, out);
+        } finally {
+            try { in.close(); } catch (IOException e) { }
+        }
+    }
+
+    public long send(FileChannel channel, long offset, long length, OutputStream out)
+        throws IOException
+    {
+        if ((offset + length) > channel.size()) {
+            throw new EOFException("Can not send "+length+" bytes from offset "+offset
+                    +": file only has "+channel.size()+" bytes");
+        }
+        if (out instanceof HttpOutput) {
+            return _sendMapped(channel, offset, length, (HttpOutput) out);
+        }
+        return _sendTransferred(channel, offset, length, out);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected long _sendMapped(FileChannel channel, long offset, long length, HttpOutput out)
+        throws IOException
+    {
+        long left = length;
+        long pos = offset;
+        while (left > 0L) {
+            long chunk = Math.min(left, MAX_MAPPED_CHUNK);
+            MappedByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, pos, chunk);
+            out.sendContent(bb);
+            pos += chunk;
+            left -= chunk;
+        }
+        return length;
+    }
+
+    protected long _sendTransferred(FileChannel channel, long offset, long length, OutputStream out)
+        throws IOException
+    {
+        WritableByteChannel target = Channels.newChannel(out);
+        long left = length;
+        long pos = offset;
+        while (left > 0L) {
+            long count = channel.transferTo(pos, left, target);
+            if (count <= 0L) {
+                throw new EOFException("Failed to transfer content: "+left+" bytes left (of "+length+")");
+            }
+            pos += count;
+            left -= count;
+        }
+        out.flush();
+        return length;
+    }
+}
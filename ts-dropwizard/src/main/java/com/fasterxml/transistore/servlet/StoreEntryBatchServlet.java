@@ -0,0 +1,463 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+import java.util.*;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.storemate.shared.ByteContainer;
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.shared.TimeMaster;
+import com.fasterxml.storemate.shared.compress.Compression;
+import com.fasterxml.storemate.shared.compress.Compressors;
+import com.fasterxml.storemate.shared.util.WithBytesCallback;
+import com.fasterxml.storemate.store.*;
+import com.fasterxml.storemate.store.backend.StoreBackend;
+import com.fasterxml.storemate.store.util.OperationDiagnostics;
+
+import com.fasterxml.clustermate.api.ClusterMateConstants;
+import com.fasterxml.clustermate.api.EntryKeyConverter;
+import com.fasterxml.clustermate.service.SharedServiceStuff;
+import com.fasterxml.clustermate.service.cluster.ClusterViewByServer;
+import com.fasterxml.clustermate.service.store.StoreHandler;
+import com.fasterxml.clustermate.service.store.StoredEntry;
+import com.fasterxml.clustermate.service.store.StoredEntryConverter;
+import com.fasterxml.clustermate.servlet.ServletBase;
+import com.fasterxml.clustermate.servlet.ServletServiceRequest;
+import com.fasterxml.clustermate.servlet.ServletServiceResponse;
+
+import com.fasterxml.transistore.basic.BasicTSBatchFormat;
+import com.fasterxml.transistore.basic.BasicTSConstants;
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.basic.BasicTSKeyConverter;
+import com.fasterxml.transistore.service.BasicTSOperationThrottler;
+import com.fasterxml.transistore.service.TSLastAccess;
+import com.fasterxml.transistore.service.cfg.BasicTSServiceConfig;
+import com.fasterxml.transistore.service.store.NegativeLookupFilter;
+
+/**
+ * Servlet that handles batch access to multiple entries, using
+ * {@link BasicTSBatchFormat} for requests and responses.
+ *<p>
+ * For batch GETs (sent as POSTs), request body lists keys of entries
+ * to return, and response contains contents of all (small enough)
+ * entries found. Entries are looked up in chunks, in key order within
+ * a single throttled operation per chunk, and each chunk is written out
+ * before looking up the next one; entries stored as external files are not
+ * included, and need to be fetched individually. If request has query
+ * parameter {@link BasicTSConstants#TS_QUERY_PARAM_ENTRY_INFO} set to "true",
+ * content hash and expiration time are included for all entries found,
+ * to let clients cache entries.
+ *<p>
+ * For batch PUTs, request body contains keys and contents of small
+ * entries to add; entries are added in key order within a single throttled
+ * operation, and response contains status for each entry.
+ */
+@SuppressWarnings("serial")
+public class StoreEntryBatchServlet extends ServletBase
+{
+    /**
+     * Maximum number of entries looked up at a time (within a single
+     * throttled operation) for batch GETs, before writing them out
+     */
+    protected final static int LOOKUP_CHUNK_SIZE = 50;
+
+    protected final StorableStore _entryStore;
+
+    protected final EntryKeyConverter<BasicTSKey> _keyConverter;
+
+    protected final StoredEntryConverter<BasicTSKey, StoredEntry<BasicTSKey>,?> _entryConverter;
+
+    protected final TimeMaster _timeMaster;
+
+    protected final int _maxEntries;
+
+    protected final int _maxPutEntrySize;
+
+    protected final int _defaultMinTTLSecs;
+
+    protected final int _defaultMaxTTLSecs;
+
+    protected final long _maxMaxTTLSecs;
+
+    public StoreEntryBatchServlet(SharedServiceStuff stuff, ClusterViewByServer clusterView,
+            StoreHandler<BasicTSKey, StoredEntry<BasicTSKey>,?> storeHandler)
+    {
+        // null -> use default servlet path base
+        super(clusterView, null);
+        BasicTSServiceConfig config = stuff.getServiceConfig();
+        _entryStore = storeHandler.getStores().getEntryStore();
+        _keyConverter = stuff.getKeyConverter();
+        _entryConverter = stuff.getEntryConverter();
+        _timeMaster = stuff.getTimeMaster();
+        _maxEntries = config.maxBatchEntries;
+        _maxPutEntrySize = config.maxBatchPutEntrySize;
+        _defaultMinTTLSecs = (int) (config.cfgDefaultSinceAccessTTL.getMillis() / 1000L);
+        _defaultMaxTTLSecs = (int) (config.cfgDefaultMaxTTL.getMillis() / 1000L);
+        _maxMaxTTLSecs = config.cfgMaxMaxTTL.getMillis() / 1000L;
+    }
+
+    /*
+    /**********************************************************************
+    /* Request handling
+    /**********************************************************************
+     */
+
+    /**
+     * Batch GETs are sent as POSTs, since list of keys is passed
+     * as request body.
+     */
+    @Override
+    public void handlePost(ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats) throws IOException
+    {
+        final List<StorableKey> keys;
+        try {
+            keys = BasicTSBatchFormat.readKeys(new DataInputStream(
+                    new BufferedInputStream(request.getNativeInputStream())), _maxEntries);
+        } catch (IOException e) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid batch request: "+e.getMessage());
+            return;
+        }
+        final boolean withInfo = "true".equals(request.getQueryParameter(BasicTSConstants.TS_QUERY_PARAM_ENTRY_INFO));
+        final long now = _timeMaster.currentTimeMillis();
+
+        HttpServletResponse resp = response.getNativeResponse();
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(BasicTSBatchFormat.CONTENT_TYPE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(resp.getOutputStream()));
+        out.writeInt(keys.size());
+
+        // Entries are looked up and written a chunk at a time, to bound memory usage
+        final int chunkSize = Math.min(keys.size(), LOOKUP_CHUNK_SIZE);
+        final byte[][] contents = new byte[chunkSize][];
+        final byte[] statuses = new byte[chunkSize];
+        final int[] hashes = new int[chunkSize];
+        final long[] expirations = new long[chunkSize];
+        for (int start = 0, end = keys.size(); start < end; start += chunkSize) {
+            List<StorableKey> chunk = keys.subList(start, Math.min(end, start + chunkSize));
+            _findEntries(chunk, now, statuses, contents, hashes, expirations);
+            for (int i = 0, len = chunk.size(); i < len; ++i) {
+                if (withInfo) {
+                    BasicTSBatchFormat.writeItemWithInfo(out, statuses[i], contents[i],
+                            hashes[i], expirations[i]);
+                } else {
+                    BasicTSBatchFormat.writeItem(out, statuses[i], contents[i]);
+                }
+                contents[i] = null;
+            }
+        }
+        out.flush();
+    }
+
+    @Override
+    public void handlePut(ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats) throws IOException
+    {
+        int minTTL = _intQueryParam(request, ClusterMateConstants.QUERY_PARAM_MIN_TTL, _defaultMinTTLSecs);
+        int maxTTL = _intQueryParam(request, ClusterMateConstants.QUERY_PARAM_MAX_TTL, _defaultMaxTTLSecs);
+        if (maxTTL > _maxMaxTTLSecs) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid max TTL ("+maxTTL
+                    +"): can not exceed "+_maxMaxTTLSecs);
+            return;
+        }
+        // same checks as with single-entry PUTs
+        if (minTTL < 0 || maxTTL < 0) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid TTLs: min TTL ("
+                    +minTTL+") and max TTL ("+maxTTL+") can not be negative");
+            return;
+        }
+        if (minTTL > maxTTL) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid TTLs: min TTL ("
+                    +minTTL+") can not exceed max TTL ("+maxTTL+")");
+            return;
+        }
+        final List<StorableKey> keys = new ArrayList<StorableKey>();
+        final List<byte[]> contents = new ArrayList<byte[]>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(request.getNativeInputStream()));
+            final int count = in.readInt();
+            if (count < 0 || count > _maxEntries) {
+                throw new IOException("Invalid entry count ("+count+"): must be between 0 and "+_maxEntries);
+            }
+            for (int i = 0; i < count; ++i) {
+                keys.add(_validateKey(BasicTSBatchFormat.readKey(in)));
+                contents.add(BasicTSBatchFormat.readBytes(in, _maxPutEntrySize));
+            }
+        } catch (IOException e) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid batch request: "+e.getMessage());
+            return;
+        }
+        final long now = _timeMaster.currentTimeMillis();
+        byte[] statuses = _addEntries(keys, contents, now, minTTL, maxTTL, stats);
+
+        HttpServletResponse resp = response.getNativeResponse();
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(BasicTSBatchFormat.CONTENT_TYPE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(resp.getOutputStream()));
+        out.writeInt(statuses.length);
+        out.write(statuses);
+        out.flush();
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, GET
+    /**********************************************************************
+     */
+
+    /**
+     * Method for looking up entries with given keys, within a single throttled
+     * operation. Status of each entry is stored in <code>statuses</code>;
+     * failure to read an entry only fails that entry.
+     *
+     * @param hashes Array in which content hashes of entries found are stored
+     * @param expirations Array in which expiration times (based on max TTL)
+     *    of entries found are stored
+     */
+    protected void _findEntries(final List<StorableKey> keys, final long now,
+            final byte[] statuses, final byte[][] contents,
+            final int[] hashes, final long[] expirations)
+        throws IOException
+    {
+        // Look up in key order, to keep DB access local
+        final Integer[] order = _keyOrder(keys);
+        StoreOperationThrottler throttler = _entryStore.getThrottler();
+        final NegativeLookupFilter filter = (throttler instanceof BasicTSOperationThrottler)
+                ? ((BasicTSOperationThrottler) throttler).getNegativeLookupFilter() : null;
+        StoreOperationCallback<Void> cb = new StoreOperationCallback<Void>() {
+            @Override
+            public Void perform(long operationTime, StorableKey k, Storable value)
+                throws IOException, StoreException
+            {
+                StoreBackend backend = _entryStore.getBackend();
+                for (Integer ix : order) {
+                    statuses[ix] = _findEntry(backend, filter, keys.get(ix), now,
+                            ix, contents, hashes, expirations);
+                }
+                return null;
+            }
+        };
+        try {
+            if (throttler instanceof BasicTSOperationThrottler) {
+                ((BasicTSOperationThrottler) throttler).performBatchGet(StoreOperationSource.REQUEST, now, cb);
+            } else {
+                cb.perform(now, null, null);
+            }
+        } catch (StoreException e) { // response already started, so just fail the entries
+            LOG.warn("Failed to read entries for batch GET: {}", e.getMessage());
+            Arrays.fill(statuses, 0, keys.size(), BasicTSBatchFormat.STATUS_ERROR);
+        }
+    }
+
+    /**
+     * @return Status of the entry
+     */
+    protected byte _findEntry(StoreBackend backend, NegativeLookupFilter filter,
+            StorableKey key, long now, int ix,
+            byte[][] contents, int[] hashes, long[] expirations)
+    {
+        if (filter != null && filter.isDefinitelyAbsent(key)) {
+            return BasicTSBatchFormat.STATUS_NOT_FOUND;
+        }
+        try {
+            Storable raw = backend.findEntry(key);
+            StoredEntry<BasicTSKey> entry = _liveEntry(raw, now);
+            if (entry == null) {
+                return BasicTSBatchFormat.STATUS_NOT_FOUND;
+            }
+            hashes[ix] = raw.getContentHash();
+            expirations[ix] = entry.getCreationTime() + 1000L * entry.getMaxTTLSecs();
+            // entries stored as external files need to be fetched individually
+            if (raw.hasExternalData()) {
+                return BasicTSBatchFormat.STATUS_NOT_INCLUDED;
+            }
+            contents[ix] = _contentsOf(raw);
+            return BasicTSBatchFormat.STATUS_OK;
+        } catch (IOException e) { // includes StoreException
+            LOG.warn("Failed to read entry for batch GET: {}", e.getMessage());
+            return BasicTSBatchFormat.STATUS_ERROR;
+        }
+    }
+
+    /**
+     * @return Entry, if it exists and is not deleted or expired; null otherwise
+     */
+    protected StoredEntry<BasicTSKey> _liveEntry(Storable raw, long now)
+    {
+        if (raw == null || raw.isDeleted()) {
+            return null;
+        }
+        StoredEntry<BasicTSKey> entry = _entryConverter.entryFromStorable(
+                _keyConverter.rawToEntryKey(raw.getKey()), raw);
+        return entry.hasExceededMaxTTL(now) ? null : entry;
+    }
+
+    /**
+     * @return Uncompressed contents of an entry with inlined data
+     */
+    protected byte[] _contentsOf(Storable raw) throws IOException
+    {
+        byte[] data = raw.withInlinedData(new WithBytesCallback<byte[]>() {
+            @Override
+            public byte[] withBytes(byte[] buffer, int offset, int length) {
+                return Arrays.copyOfRange(buffer, offset, offset+length);
+            }
+        });
+        Compression comp = raw.getCompression();
+        if (comp == Compression.LZF) {
+            return Compressors.lzfUncompress(data);
+        }
+        if (comp == Compression.GZIP) {
+            return Compressors.gzipUncompress(data);
+        }
+        return data;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, PUT
+    /**********************************************************************
+     */
+
+    /**
+     * Entries are added using standard store insert method, so that store
+     * decides whether to compress and inline contents, same as with
+     * individual PUTs; but all insertions are done with a single batch permit.
+     */
+    protected byte[] _addEntries(final List<StorableKey> keys, final List<byte[]> contents,
+            final long now, int minTTL, int maxTTL, final OperationDiagnostics stats)
+        throws IOException
+    {
+        final byte[] statuses = new byte[keys.size()];
+        final Integer[] order = _keyOrder(keys);
+        final ByteContainer customMetadata = _entryConverter.createMetadata(now,
+                TSLastAccess.NONE.asByte(), minTTL, maxTTL);
+        // Calculate hashes before acquiring permit, to keep that short
+        final int[] hashes = new int[keys.size()];
+        for (int i = 0; i < hashes.length; ++i) {
+            byte[] data = contents.get(i);
+            hashes[i] = _keyConverter.contentHashFor(ByteContainer.simple(data, 0, data.length));
+        }
+        StoreOperationCallback<Void> cb = new StoreOperationCallback<Void>() {
+            @Override
+            public Void perform(long operationTime, StorableKey k, Storable value)
+                throws IOException, StoreException
+            {
+                for (Integer ix : order) {
+                    statuses[ix] = _addEntry(keys.get(ix), contents.get(ix), hashes[ix],
+                            customMetadata, stats);
+                }
+                return null;
+            }
+        };
+        StoreOperationThrottler throttler = _entryStore.getThrottler();
+        if (throttler instanceof BasicTSOperationThrottler) {
+            ((BasicTSOperationThrottler) throttler).performBatchPut(StoreOperationSource.REQUEST, now, cb);
+        } else {
+            cb.perform(now, null, null);
+        }
+        return statuses;
+    }
+
+    protected byte _addEntry(StorableKey key, byte[] data, int contentHash,
+            ByteContainer customMetadata, OperationDiagnostics stats)
+        throws IOException
+    {
+        // null compression: let the store decide whether to compress
+        StorableCreationMetadata stdMetadata = new StorableCreationMetadata(null, contentHash, 0);
+        StorableCreationResult result;
+        try {
+            result = _entryStore.insert(StoreOperationSource.REQUEST, stats, key,
+                    ByteContainer.simple(data, 0, data.length), stdMetadata, customMetadata);
+        } catch (StoreException e) {
+            LOG.warn("Failed to add entry for batch PUT: {}", e.getMessage());
+            return BasicTSBatchFormat.STATUS_ERROR;
+        }
+        if (result.succeeded()) {
+            return BasicTSBatchFormat.STATUS_OK;
+        }
+        // same content re-sent is fine; different content, or a deleted
+        // entry (tombstone), is a conflict
+        Storable existing = result.getPreviousEntry();
+        if (existing == null || existing.isDeleted() || existing.getContentHash() != contentHash) {
+            return BasicTSBatchFormat.STATUS_CONFLICT;
+        }
+        return BasicTSBatchFormat.STATUS_OK;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, other
+    /**********************************************************************
+     */
+
+    /**
+     * Helper method for determining order in which entries with given keys
+     * are to be accessed: same as ordering of keys in the store, to keep
+     * DB access local.
+     *
+     * @return Indexes of keys in key order
+     */
+    protected Integer[] _keyOrder(final List<StorableKey> keys)
+    {
+        final Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return _compareKeys(keys.get(i1), keys.get(i2));
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Helper method for verifying that given raw key is a valid {@link BasicTSKey}
+     *
+     * @throws IOException If key is not valid
+     */
+    protected StorableKey _validateKey(StorableKey rawKey) throws IOException
+    {
+        final int headerLength = BasicTSKeyConverter.DEFAULT_KEY_HEADER_LENGTH;
+        byte[] b = rawKey.asBytes();
+        if (b.length < headerLength) {
+            throw new IOException("Invalid key: too short ("+b.length+" bytes)");
+        }
+        int partitionIdLength = ((b[0] & 0xFF) << 8) | (b[1] & 0xFF);
+        if (partitionIdLength > b.length - headerLength) {
+            throw new IOException("Invalid key: partition id length ("+partitionIdLength
+                    +") exceeds key length ("+(b.length - headerLength)+")");
+        }
+        return rawKey;
+    }
+
+    protected int _intQueryParam(ServletServiceRequest request, String name, int defaultValue)
+    {
+        String str = request.getQueryParameter(name);
+        if (str != null) {
+            try {
+                return Integer.parseInt(str.trim());
+            } catch (NumberFormatException e) { }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Keys are compared as unsigned bytes, same as store backend does.
+     */
+    protected static int _compareKeys(StorableKey k1, StorableKey k2)
+    {
+        byte[] b1 = k1.asBytes();
+        byte[] b2 = k2.asBytes();
+        for (int i = 0, end = Math.min(b1.length, b2.length); i < end; ++i) {
+            int diff = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return b1.length - b2.length;
+    }
+}
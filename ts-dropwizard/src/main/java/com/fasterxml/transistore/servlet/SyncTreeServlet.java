@@ -0,0 +1,161 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.storemate.store.StoreException;
+import com.fasterxml.storemate.store.util.OperationDiagnostics;
+
+import com.fasterxml.clustermate.service.cluster.ClusterViewByServer;
+import com.fasterxml.clustermate.servlet.ServletBase;
+import com.fasterxml.clustermate.servlet.ServletServiceRequest;
+import com.fasterxml.clustermate.servlet.ServletServiceResponse;
+
+import com.fasterxml.transistore.basic.BasicTSConstants;
+import com.fasterxml.transistore.basic.BasicTSSyncListFormat;
+import com.fasterxml.transistore.service.sync.HashTreeManager;
+import com.fasterxml.transistore.service.sync.KeyspaceHashTree;
+
+/**
+ * Servlet that exposes keyspace hash tree of the node (see
+ * {@link KeyspaceHashTree}) for anti-entropy between nodes.
+ *<p>
+ * GET returns leaf hashes of the tree: leaf count (32-bit int) followed
+ * by hashes (64-bit longs). Since the whole tree can be reconstructed
+ * from leaves, and leaf count is bounded by keyspace size, sending
+ * leaves is cheaper than exchanging tree levels one round trip at a time.
+ *<p>
+ * GET fails with 503 (Service Unavailable) if the node has not yet
+ * built its first tree; tree is built in background, so request can be
+ * retried later.
+ *<p>
+ * POST is used for listing entries of keyspace segments whose hashes
+ * differ: request body contains segment count (32-bit int) followed
+ * by segment indexes (32-bit ints), and response is a sequence of
+ * {@link BasicTSSyncListFormat} frames of at most {@link #FRAME_SIZE}
+ * entries, which list entries (including tombstones) to compare.
+ * Frames are written as soon as they are full, and the sequence is
+ * terminated by an empty frame, so that receiver can tell a complete
+ * listing from one cut short by a failure. If query parameter "priority"
+ * is "true", entries are listed in priority order
+ * (see {@link HashTreeManager#listSegmentsByPriority}), so that receiver
+ * can start with the most urgent entries. Entries about to expire are
+ * omitted from listings.
+ */
+@SuppressWarnings("serial")
+public class SyncTreeServlet extends ServletBase
+{
+    public final static String CONTENT_TYPE_TREE = "application/x-ts-hash-tree";
+
+    /**
+     * Maximum number of entries in a single frame of segment listings
+     */
+    public final static int FRAME_SIZE = 1000;
+
+    protected final HashTreeManager _treeManager;
+
+    public SyncTreeServlet(ClusterViewByServer clusterView, HashTreeManager treeManager)
+    {
+        // null -> use default servlet path base
+        super(clusterView, null);
+        _treeManager = treeManager;
+    }
+
+    @Override
+    public void destroy()
+    {
+        _treeManager.stop();
+        super.destroy();
+    }
+
+    /*
+    /**********************************************************************
+    /* Request handling
+    /**********************************************************************
+     */
+
+    @Override
+    public void handleGet(ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats) throws IOException
+    {
+        KeyspaceHashTree tree = _treeManager.getTree();
+        if (tree == null) {
+            response.set(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Hash tree not yet built, try again later");
+            return;
+        }
+        long[] leaves = tree.getLeaves();
+        HttpServletResponse resp = response.getNativeResponse();
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(CONTENT_TYPE_TREE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(resp.getOutputStream()));
+        out.writeInt(leaves.length);
+        for (long leaf : leaves) {
+            out.writeLong(leaf);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void handlePost(ServletServiceRequest request, ServletServiceResponse response,
+            OperationDiagnostics stats) throws IOException
+    {
+        final int keyspaceSize = _treeManager.getKeyspaceSize();
+        BitSet segments = new BitSet(keyspaceSize);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(request.getNativeInputStream()));
+            int count = in.readInt();
+            if (count < 0 || count > keyspaceSize) {
+                throw new IOException("Invalid segment count ("+count+"): must be between 0 and "+keyspaceSize);
+            }
+            for (int i = 0; i < count; ++i) {
+                int segment = in.readInt();
+                if (segment < 0 || segment >= keyspaceSize) {
+                    throw new IOException("Invalid segment index ("+segment+")");
+                }
+                segments.set(segment);
+            }
+        } catch (IOException e) {
+            response.set(HttpServletResponse.SC_BAD_REQUEST, "Invalid segment request: "+e.getMessage());
+            return;
+        }
+        final boolean byPriority = "true".equals(request.getQueryParameter(BasicTSConstants.TS_QUERY_PARAM_PRIORITY));
+        final HttpServletResponse resp = response.getNativeResponse();
+        final OutputStream[] out = new OutputStream[1];
+        HashTreeManager.FrameHandler handler = new HashTreeManager.FrameHandler() {
+            @Override
+            public void handleFrame(List<BasicTSSyncListFormat.Entry> entries) throws IOException {
+                if (out[0] == null) { // commit response on the first frame
+                    resp.setStatus(HttpServletResponse.SC_OK);
+                    resp.setContentType(BasicTSSyncListFormat.CONTENT_TYPE);
+                    out[0] = resp.getOutputStream();
+                }
+                out[0].write(BasicTSSyncListFormat.encode(entries));
+            }
+        };
+        try {
+            if (byPriority) {
+                _treeManager.listSegmentsByPriority(segments, FRAME_SIZE, handler);
+            } else {
+                _treeManager.listSegments(segments, FRAME_SIZE, handler);
+            }
+        } catch (StoreException e) {
+            if (out[0] == null) {
+                response.set(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        "Failed to list segment entries: "+e.getMessage());
+                return;
+            }
+            // can't change status any more; leaving out end marker lets receiver know
+            LOG.warn("Failed to list segment entries: {}", e.getMessage());
+            out[0].flush();
+            return;
+        }
+        // and empty frame to mark the end of listing
+        handler.handleFrame(Collections.<BasicTSSyncListFormat.Entry>emptyList());
+        out[0].flush();
+    }
+}
@@ -0,0 +1,321 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.storemate.store.util.OperationDiagnostics;
+import com.fasterxml.storemate.store.util.TotalTime;
+import com.fasterxml.storemate.store.util.TotalTimeAndBytes;
+
+/**
+ * Low-overhead recorder for per-request timing information.
+ * Request threads only copy primitive values into a preallocated ring
+ * buffer (no allocations, no locking); a background thread drains the
+ * buffer and writes entries as JSON lines, either into a file or,
+ * if none configured, through the logger.
+ *<p>
+ * If the buffer is full (writer can not keep up), new entries are dropped
+ * and counted, instead of blocking request threads.
+ */
+public class TimingRecorder
+{
+    public final static int VERB_GET = 0;
+    public final static int VERB_HEAD = 1;
+    public final static int VERB_PUT = 2;
+    public final static int VERB_DELETE = 3;
+
+    protected final static String[] VERB_NAMES = new String[] {
+        "GET", "HEAD", "PUT", "DELETE"
+    };
+
+    /**
+     * Time to sleep when there are no entries to write, in nanoseconds
+     */
+    protected final static long IDLE_WAIT_NANOS = 10L * 1000L * 1000L;
+
+    protected final Logger LOG = LoggerFactory.getLogger("TIMING");
+
+    /*
+    /**********************************************************************
+    /* Ring buffer
+    /**********************************************************************
+     */
+
+    protected final int _capacity;
+
+    protected final int _mask;
+
+    /**
+     * Sequence number of entry stored in each slot, once fully written;
+     * used by writer thread to know when entry is complete.
+     */
+    protected final AtomicLongArray _published;
+
+    protected final long[] _timestamps;
+    protected final int[] _verbs;
+    protected final int[] _statuses;
+    protected final long[] _dbNanos;
+    protected final long[] _dbWaitNanos;
+    protected final long[] _dbBytes;
+    protected final long[] _fileNanos;
+    protected final long[] _fileWaitNanos;
+    protected final long[] _fileBytes;
+    protected final long[] _reqRespNanos;
+    protected final long[] _totalNanos;
+    protected final long[] _bytesRead;
+    protected final long[] _bytesWritten;
+
+    /**
+     * Next sequence number to claim by request threads
+     */
+    protected final AtomicLong _nextSeq = new AtomicLong();
+
+    /**
+     * Sequence number of the next entry for writer to process; entries
+     * before this may be overwritten
+     */
+    protected volatile long _writerSeq;
+
+    protected final AtomicLong _dropped = new AtomicLong();
+
+    /*
+    /**********************************************************************
+    /* Output
+    /**********************************************************************
+     */
+
+    protected final File _logFile;
+
+    protected Writer _out;
+
+    protected final StringBuilder _line = new StringBuilder(300);
+
+    protected volatile boolean _running;
+
+    protected Thread _writerThread;
+
+    /*
+    /**********************************************************************
+    /* Life-cycle
+    /**********************************************************************
+     */
+
+    /**
+     * @param capacity Number of entries ring buffer can hold; rounded up
+     *   to the next power of two
+     * @param logFile File to append entries to; if null, entries are written
+     *   through the logger instead
+     */
+    public TimingRecorder(int capacity, File logFile)
+    {
+        int size = 16;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        _capacity = size;
+        _mask = size - 1;
+        _published = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            _published.set(i, -1L);
+        }
+        _timestamps = new long[size];
+        _verbs = new int[size];
+        _statuses = new int[size];
+        _dbNanos = new long[size];
+        _dbWaitNanos = new long[size];
+        _dbBytes = new long[size];
+        _fileNanos = new long[size];
+        _fileWaitNanos = new long[size];
+        _fileBytes = new long[size];
+        _reqRespNanos = new long[size];
+        _totalNanos = new long[size];
+        _bytesRead = new long[size];
+        _bytesWritten = new long[size];
+        _logFile = logFile;
+    }
+
+    public synchronized void start() throws IOException
+    {
+        if (_running) {
+            return;
+        }
+        if (_logFile != null) {
+            _out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_logFile, true), "UTF-8"));
+        }
+        _running = true;
+        _writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                _writeEntries();
+            }
+        }, "TimingRecorder");
+        _writerThread.setDaemon(true);
+        _writerThread.start();
+    }
+
+    public synchronized void stop()
+    {
+        if (!_running) {
+            return;
+        }
+        _running = false;
+        LockSupport.unpark(_writerThread);
+        try {
+            _writerThread.join(1000L);
+        } catch (InterruptedException e) { }
+    }
+
+    /*
+    /**********************************************************************
+    /* Recording
+    /**********************************************************************
+     */
+
+    /**
+     * Method called by request threads to record timings of a request.
+     *
+     * @return True if entry was recorded; false if it was dropped due
+     *   to buffer being full
+     */
+    public boolean record(int verb, int status, OperationDiagnostics stats,
+            long bytesRead, long bytesWritten)
+    {
+        // claim a slot, unless writer is so far behind that all are in use
+        long seq;
+        do {
+            seq = _nextSeq.get();
+            if (seq - _writerSeq >= _capacity) {
+                _dropped.incrementAndGet();
+                return false;
+            }
+        } while (!_nextSeq.compareAndSet(seq, seq+1));
+        final int ix = (int) (seq & _mask);
+        _timestamps[ix] = System.currentTimeMillis();
+        _verbs[ix] = verb;
+        _statuses[ix] = status;
+        if (stats == null) {
+            _dbNanos[ix] = _dbWaitNanos[ix] = _dbBytes[ix] = -1L;
+            _fileNanos[ix] = _fileWaitNanos[ix] = _fileBytes[ix] = -1L;
+            _reqRespNanos[ix] = _totalNanos[ix] = -1L;
+        } else {
+            _setTime(stats.getDbAccess(), ix, _dbNanos, _dbWaitNanos, _dbBytes);
+            _setTime(stats.getFileAccess(), ix, _fileNanos, _fileWaitNanos, _fileBytes);
+            _reqRespNanos[ix] = stats.getRequestResponseTotal();
+            _totalNanos[ix] = stats.getNanosSpent();
+        }
+        _bytesRead[ix] = bytesRead;
+        _bytesWritten[ix] = bytesWritten;
+        _published.lazySet(ix, seq);
+        return true;
+    }
+
+    public long getDroppedCount() {
+        return _dropped.get();
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, recording
+    /**********************************************************************
+     */
+
+    protected void _setTime(TotalTime time, int ix, long[] nanos, long[] waitNanos, long[] bytes)
+    {
+        if (time == null) {
+            nanos[ix] = waitNanos[ix] = bytes[ix] = -1L;
+            return;
+        }
+        long without = time.getTotalTimeWithoutWait();
+        nanos[ix] = without;
+        waitNanos[ix] = Math.max(0L, time.getTotalTimeWithWait() - without);
+        bytes[ix] = (time instanceof TotalTimeAndBytes) ? ((TotalTimeAndBytes) time).getBytes() : -1L;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, writing
+    /**********************************************************************
+     */
+
+    protected void _writeEntries()
+    {
+        long seq = _writerSeq;
+        while (true) {
+            final int ix = (int) (seq & _mask);
+            if (_published.get(ix) != seq) { // nothing more available
+                _flush();
+                if (!_running) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_WAIT_NANOS);
+                continue;
+            }
+            _writeEntry(ix);
+            _writerSeq = ++seq;
+        }
+        if (_out != null) {
+            try {
+                _out.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    protected void _writeEntry(int ix)
+    {
+        StringBuilder sb = _line;
+        sb.setLength(0);
+        sb.append("{\"time\":").append(_timestamps[ix])
+            .append(",\"verb\":\"").append(VERB_NAMES[_verbs[ix]])
+            .append("\",\"status\":").append(_statuses[ix]);
+        _appendMicros(sb, "db", _dbNanos[ix]);
+        _appendMicros(sb, "dbWait", _dbWaitNanos[ix]);
+        _appendLong(sb, "dbBytes", _dbBytes[ix]);
+        _appendMicros(sb, "file", _fileNanos[ix]);
+        _appendMicros(sb, "fileWait", _fileWaitNanos[ix]);
+        _appendLong(sb, "fileBytes", _fileBytes[ix]);
+        _appendMicros(sb, "reqResp", _reqRespNanos[ix]);
+        _appendMicros(sb, "total", _totalNanos[ix]);
+        _appendLong(sb, "read", _bytesRead[ix]);
+        _appendLong(sb, "written", _bytesWritten[ix]);
+        sb.append('}');
+        if (_out == null) {
+            LOG.info(sb.toString());
+            return;
+        }
+        try {
+            _out.append(sb).append('\n');
+        } catch (IOException e) {
+            LOG.warn("Failed to write timing entry, will log instead: {}", e.getMessage());
+            _out = null;
+        }
+    }
+
+    protected void _appendMicros(StringBuilder sb, String name, long nanos)
+    {
+        // negative values used for "not available"
+        if (nanos >= 0L) {
+            sb.append(",\"").append(name).append("\":").append(nanos / 1000L);
+        }
+    }
+
+    protected void _appendLong(StringBuilder sb, String name, long value)
+    {
+        if (value >= 0L) {
+            sb.append(",\"").append(name).append("\":").append(value);
+        }
+    }
+
+    protected void _flush()
+    {
+        if (_out != null) {
+            try {
+                _out.flush();
+            } catch (IOException e) { }
+        }
+    }
+}
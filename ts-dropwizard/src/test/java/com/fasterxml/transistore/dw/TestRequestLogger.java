@@ -0,0 +1,133 @@
+package com.fasterxml.transistore.dw;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.transistore.basic.BasicTSPath;
+import com.fasterxml.transistore.service.cfg.RequestLogConfig;
+
+public class TestRequestLogger extends TestCase
+{
+    public void testSampling()
+    {
+        RequestLogConfig config = new RequestLogConfig();
+        config.sampleRates.put(BasicTSPath.SYNC_LIST, 0.0);
+        config.sampleRates.put(BasicTSPath.STORE_ENTRY, 0.25);
+        RequestLogger logger = new RequestLogger(config);
+
+        int sampled = 0;
+        for (int i = 0; i < 10000; ++i) {
+            assertFalse(logger.shouldLog(BasicTSPath.SYNC_LIST));
+            assertTrue(logger.shouldLog(BasicTSPath.SYNC_PULL));
+            // unknown paths are always logged
+            assertTrue(logger.shouldLog(null));
+            if (logger.shouldLog(BasicTSPath.STORE_ENTRY)) {
+                ++sampled;
+            }
+        }
+        // should be about 2500; allow for plenty of variation
+        assertTrue("Sampled "+sampled, sampled > 2000 && sampled < 3000);
+    }
+
+    public void testDropsWhenQueueFull()
+    {
+        RequestLogConfig config = new RequestLogConfig();
+        config.maxQueuedEntries = 1; // minimum of 16 enforced
+        // writer not started, so nothing gets drained
+        RequestLogger logger = new RequestLogger(config);
+        for (int i = 0; i < 16; ++i) {
+            assertTrue(logger.logRequest("GET", "/x", BasicTSPath.STORE_ENTRY, 200, 1000L, -1L));
+        }
+        assertFalse(logger.logRequest("GET", "/x", BasicTSPath.STORE_ENTRY, 200, 1000L, -1L));
+        assertEquals(1L, logger.getDroppedCount());
+    }
+
+    public void testRotation() throws Exception
+    {
+        File dir = _tempDir();
+        try {
+            RequestLogConfig config = new RequestLogConfig();
+            config.file = new File(dir, "access.log");
+            // each entry is about 40 bytes, so rotate after every 5 or so
+            config.maxFileSize = 200L;
+            config.maxBackupFiles = 2;
+            RequestLogger logger = new RequestLogger(config);
+            logger._openFile();
+            for (int i = 0; i < 30; ++i) {
+                logger._writeEntry(new RequestLogger.Entry(1000L + i, "PUT", "/entry/"+i,
+                        BasicTSPath.STORE_ENTRY, 200, 2500L, 10L));
+            }
+            logger._flush();
+
+            File backup1 = new File(dir, "access.log.1");
+            File backup2 = new File(dir, "access.log.2");
+            assertTrue(backup1.exists());
+            assertTrue(backup2.exists());
+            // older backups beyond the maximum are removed
+            assertFalse(new File(dir, "access.log.3").exists());
+            assertTrue(backup1.length() >= 200L);
+            assertTrue(config.file.length() < 200L);
+
+            List<String> current = _readLines(config.file);
+            List<String> newest = _readLines(backup1);
+            List<String> older = _readLines(backup2);
+            // entries must continue in order across files
+            String last = current.isEmpty() ? null : current.get(0);
+            assertEquals("1029\tPUT\tSTORE_ENTRY\t200\t2\t10\t/entry/29",
+                    current.isEmpty() ? newest.get(newest.size()-1) : current.get(current.size()-1));
+            assertTrue(_timestamp(older.get(older.size()-1)) < _timestamp(newest.get(0)));
+            if (last != null) {
+                assertTrue(_timestamp(newest.get(newest.size()-1)) < _timestamp(last));
+            }
+        } finally {
+            _delete(dir);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    protected long _timestamp(String line) {
+        return Long.parseLong(line.substring(0, line.indexOf('\t')));
+    }
+
+    protected File _tempDir() throws IOException
+    {
+        File f = File.createTempFile("ts-reqlog", "");
+        f.delete();
+        f.mkdirs();
+        return f;
+    }
+
+    protected List<String> _readLines(File f) throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            r.close();
+        }
+        return lines;
+    }
+
+    protected void _delete(File f)
+    {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                _delete(child);
+            }
+        }
+        f.delete();
+    }
+}
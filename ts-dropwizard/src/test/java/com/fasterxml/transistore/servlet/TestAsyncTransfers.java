@@ -0,0 +1,372 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+import javax.servlet.*;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.ByteContainer;
+import com.fasterxml.storemate.shared.compress.Compression;
+
+import com.fasterxml.transistore.basic.BasicTSKeyConverter;
+import com.fasterxml.transistore.service.BasicTSOperationThrottler;
+import com.fasterxml.transistore.service.store.StreamingEntryWriter;
+
+/**
+ * Tests for {@link AsyncFileSender} and {@link AsyncEntryReceiver}, using
+ * fake non-blocking streams that only accept or provide a bit of content
+ * at a time.
+ */
+public class TestAsyncTransfers extends TestCase
+{
+    protected final BasicTSKeyConverter _keyConverter = BasicTSKeyConverter.defaultInstance();
+
+    /*
+    /**********************************************************************
+    /* Tests for sending
+    /**********************************************************************
+     */
+
+    public void testSendRange() throws Exception
+    {
+        byte[] data = _data(10000);
+        File f = _tempFile(data);
+        try {
+            FakeOutput out = new FakeOutput();
+            FakeAsync async = new FakeAsync(null, out);
+            AsyncFileSender sender = new AsyncFileSender(async.context(), new BasicTSOperationThrottler(),
+                    null, f, 100L, 5000L, 1000);
+            sender.start();
+            assertSame(sender, out.listener);
+            assertTrue(async.listeners.contains(sender));
+
+            // client accepts 2 buffers at a time
+            int rounds = 0;
+            while (!async.completed) {
+                out.budget = 2;
+                out.listener.onWritePossible();
+                assertTrue("Too many rounds", ++rounds < 10);
+            }
+            assertEquals(3, rounds);
+            assertEquals(5000L, sender.getBytesSent());
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, 100, 5100), out.bytes.toByteArray()));
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testSendTimeout() throws Exception
+    {
+        File f = _tempFile(_data(3000));
+        try {
+            FakeOutput out = new FakeOutput();
+            FakeAsync async = new FakeAsync(null, out);
+            AsyncFileSender sender = new AsyncFileSender(async.context(), new BasicTSOperationThrottler(),
+                    null, f, 0L, 3000L, 1000);
+            sender.start();
+            out.budget = 1;
+            out.listener.onWritePossible();
+            assertFalse(async.completed);
+            sender.onTimeout(null);
+            assertTrue(async.completed);
+            assertEquals(1000L, sender.getBytesSent());
+        } finally {
+            f.delete();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Tests for receiving
+    /**********************************************************************
+     */
+
+    public void testReceive() throws Exception
+    {
+        final byte[] data = _data(7000);
+        File f = _tempFile(new byte[0]);
+        FakeInput in = new FakeInput();
+        FakeAsync async = new FakeAsync(in, null);
+        RecordingHandler handler = new RecordingHandler();
+        StreamingEntryWriter.Session session = new StreamingEntryWriter(_keyConverter)
+            .open(f, Compression.NONE, Long.MAX_VALUE);
+        AsyncEntryReceiver receiver = new AsyncEntryReceiver(async.context(), new BasicTSOperationThrottler(),
+                _keyConverter.construct("/a").asStorableKey(), session, handler, 1000);
+        receiver.start();
+        assertSame(receiver, in.listener);
+
+        // content arrives in uneven pieces, some bigger than the buffer
+        int[] pieces = new int[] { 10, 2500, 1, 3000, 1489 };
+        int offset = 0;
+        for (int len : pieces) {
+            in.chunks.add(Arrays.copyOfRange(data, offset, offset+len));
+            offset += len;
+            in.listener.onDataAvailable();
+            assertEquals(offset, receiver.getBytesReceived());
+        }
+        in.finished = true;
+        in.listener.onAllDataRead();
+
+        assertNotNull(handler.result);
+        assertNull(handler.failure);
+        assertEquals(data.length, handler.result.uncompressedLength);
+        assertEquals(_keyConverter.contentHashFor(ByteContainer.simple(data, 0, data.length)),
+                handler.result.contentHash);
+        assertTrue(Arrays.equals(data, _read(f)));
+        // completion must not remove the file
+        receiver.onComplete(null);
+        assertTrue(f.exists());
+        f.delete();
+    }
+
+    public void testReceiveTimeout() throws Exception
+    {
+        File f = _tempFile(new byte[0]);
+        FakeInput in = new FakeInput();
+        FakeAsync async = new FakeAsync(in, null);
+        RecordingHandler handler = new RecordingHandler();
+        StreamingEntryWriter.Session session = new StreamingEntryWriter(_keyConverter)
+            .open(f, Compression.NONE, Long.MAX_VALUE);
+        AsyncEntryReceiver receiver = new AsyncEntryReceiver(async.context(), new BasicTSOperationThrottler(),
+                _keyConverter.construct("/b").asStorableKey(), session, handler, 1000);
+        receiver.start();
+        in.chunks.add(_data(500));
+        in.listener.onDataAvailable();
+
+        receiver.onTimeout(null);
+        assertNull(handler.result);
+        assertNotNull(handler.failure);
+        assertFalse(f.exists());
+        // later notifications must be ignored
+        handler.failure = null;
+        receiver.onError(new IOException("late"));
+        receiver.onComplete(null);
+        in.finished = true;
+        in.listener.onAllDataRead();
+        assertNull(handler.failure);
+        assertNull(handler.result);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Fake async context (and request, response) that only supports
+     * methods the helpers need.
+     */
+    static class FakeAsync implements InvocationHandler
+    {
+        public final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+
+        public boolean completed;
+
+        protected final ServletInputStream _in;
+
+        protected final ServletOutputStream _out;
+
+        public FakeAsync(ServletInputStream in, ServletOutputStream out) {
+            _in = in;
+            _out = out;
+        }
+
+        public AsyncContext context() {
+            return _proxy(AsyncContext.class, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+            if ("addListener".equals(name)) {
+                listeners.add((AsyncListener) args[0]);
+                return null;
+            }
+            if ("complete".equals(name)) {
+                completed = true;
+                return null;
+            }
+            if ("getRequest".equals(name)) {
+                return _proxy(ServletRequest.class, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object p, Method m, Object[] a) {
+                        if ("getInputStream".equals(m.getName())) {
+                            return _in;
+                        }
+                        throw new UnsupportedOperationException(m.getName());
+                    }
+                });
+            }
+            if ("getResponse".equals(name)) {
+                return _proxy(ServletResponse.class, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object p, Method m, Object[] a) {
+                        if ("getOutputStream".equals(m.getName())) {
+                            return _out;
+                        }
+                        throw new UnsupportedOperationException(m.getName());
+                    }
+                });
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        @SuppressWarnings("unchecked")
+        protected static <T> T _proxy(Class<T> type, InvocationHandler h) {
+            return (T) Proxy.newProxyInstance(TestAsyncTransfers.class.getClassLoader(),
+                    new Class<?>[] { type }, h);
+        }
+    }
+
+    /**
+     * Output stream that is ready for given number of writes at a time
+     */
+    static class FakeOutput extends ServletOutputStream
+    {
+        public final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        public WriteListener listener;
+
+        public int budget;
+
+        @Override
+        public boolean isReady() {
+            return budget > 0;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener l) {
+            listener = l;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int len)
+        {
+            if (budget <= 0) {
+                throw new IllegalStateException("Write when not ready");
+            }
+            --budget;
+            bytes.write(b, offset, len);
+        }
+    }
+
+    /**
+     * Input stream that is ready as long as there are chunks to read
+     */
+    static class FakeInput extends ServletInputStream
+    {
+        public final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+
+        public ReadListener listener;
+
+        public boolean finished;
+
+        protected int _offset;
+
+        @Override
+        public boolean isFinished() {
+            return finished && chunks.isEmpty();
+        }
+
+        @Override
+        public boolean isReady() {
+            return !chunks.isEmpty();
+        }
+
+        @Override
+        public void setReadListener(ReadListener l) {
+            listener = l;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int len)
+        {
+            if (chunks.isEmpty()) {
+                if (finished) {
+                    return -1;
+                }
+                throw new IllegalStateException("Read when not ready");
+            }
+            byte[] chunk = chunks.getFirst();
+            int count = Math.min(len, chunk.length - _offset);
+            System.arraycopy(chunk, _offset, b, offset, count);
+            _offset += count;
+            if (_offset == chunk.length) {
+                chunks.removeFirst();
+                _offset = 0;
+            }
+            return count;
+        }
+    }
+
+    static class RecordingHandler implements AsyncEntryReceiver.Handler
+    {
+        public StreamingEntryWriter.Result result;
+
+        public Throwable failure;
+
+        @Override
+        public void contentReceived(AsyncContext ctxt, StreamingEntryWriter.Result r) {
+            result = r;
+        }
+
+        @Override
+        public void receiveFailed(AsyncContext ctxt, Throwable t) {
+            failure = t;
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    protected byte[] _data(int len)
+    {
+        byte[] data = new byte[len];
+        Random r = new Random(len);
+        r.nextBytes(data);
+        return data;
+    }
+
+    protected File _tempFile(byte[] data) throws IOException
+    {
+        File f = File.createTempFile("ts-async", ".bin");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+
+    protected byte[] _read(File f) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(f);
+        byte[] buffer = new byte[1000];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, count);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+}
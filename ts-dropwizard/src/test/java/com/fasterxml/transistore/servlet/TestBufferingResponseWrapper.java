@@ -0,0 +1,150 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.fasterxml.transistore.basic.BasicTSContentTypes;
+
+public class TestBufferingResponseWrapper extends TestCase
+{
+    protected final ObjectMapper _mapper = new ObjectMapper();
+
+    public void testBuffersUntilWritten() throws Exception
+    {
+        FakeResponse fake = new FakeResponse();
+        BufferingResponseWrapper buffered = new BufferingResponseWrapper(fake.response());
+        buffered.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        buffered.setContentType("text/plain");
+        buffered.setContentLength(3);
+        buffered.setHeader("X-Extra", "a");
+        buffered.getOutputStream().write("abc".getBytes("UTF-8"));
+
+        // other headers are passed, but nothing else until written out
+        assertEquals("a", fake.headers.get("X-Extra"));
+        assertEquals(0, fake.status);
+        assertEquals(0, fake.bytes.size());
+        assertFalse(buffered.isOk("text/plain"));
+
+        buffered.writeAsIs();
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, fake.status);
+        assertEquals("text/plain", fake.contentType);
+        assertEquals("abc", fake.bytes.toString("UTF-8"));
+    }
+
+    public void testErrors() throws Exception
+    {
+        FakeResponse fake = new FakeResponse();
+        BufferingResponseWrapper buffered = new BufferingResponseWrapper(fake.response());
+        buffered.setContentType(BasicTSContentTypes.CONTENT_TYPE_JSON);
+        buffered.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Busy");
+        assertFalse(buffered.isOk(BasicTSContentTypes.CONTENT_TYPE_JSON));
+        buffered.writeAsIs();
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, fake.status);
+        assertEquals("Busy", fake.errorMessage);
+    }
+
+    public void testReencodeAsSmile() throws Exception
+    {
+        FakeResponse fake = new FakeResponse();
+        BufferingResponseWrapper buffered = new BufferingResponseWrapper(fake.response());
+        buffered.setCharacterEncoding("UTF-8");
+        buffered.setContentType("application/json; charset=UTF-8");
+        Map<String,Object> value = new LinkedHashMap<String,Object>();
+        value.put("items", Arrays.asList(1, 2, 3));
+        value.put("cursor", null);
+        // standard handlers may use either writer or stream
+        _mapper.writeValue(buffered.getWriter(), value);
+        assertTrue(buffered.isOk(BasicTSContentTypes.CONTENT_TYPE_JSON));
+
+        JsonFactory smile = BasicTSContentTypes.smileFactory(_mapper);
+        buffered.writeAs(_mapper.getFactory(), smile, BasicTSContentTypes.CONTENT_TYPE_SMILE);
+        assertEquals(HttpServletResponse.SC_OK, fake.status);
+        assertEquals(BasicTSContentTypes.CONTENT_TYPE_SMILE, fake.contentType);
+        @SuppressWarnings("unchecked")
+        Map<String,Object> result = _mapper.readValue(smile.createParser(fake.bytes.toByteArray()), Map.class);
+        assertEquals(value, result);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Fake response that only supports methods the wrapper needs.
+     */
+    static class FakeResponse implements InvocationHandler
+    {
+        public final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        public final Map<String,String> headers = new HashMap<String,String>();
+
+        public int status;
+
+        public String contentType;
+
+        public String errorMessage;
+
+        public HttpServletResponse response() {
+            return (HttpServletResponse) Proxy.newProxyInstance(TestBufferingResponseWrapper.class.getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+            if ("setStatus".equals(name)) {
+                status = (Integer) args[0];
+                return null;
+            }
+            if ("sendError".equals(name)) {
+                status = (Integer) args[0];
+                errorMessage = (args.length > 1) ? (String) args[1] : null;
+                return null;
+            }
+            if ("setContentType".equals(name)) {
+                contentType = (String) args[0];
+                return null;
+            }
+            if ("setHeader".equals(name)) {
+                headers.put((String) args[0], (String) args[1]);
+                return null;
+            }
+            if ("setContentLength".equals(name) || "setCharacterEncoding".equals(name)) {
+                return null;
+            }
+            if ("getCharacterEncoding".equals(name)) {
+                return "UTF-8";
+            }
+            if ("getOutputStream".equals(name)) {
+                return new ServletOutputStream() {
+                    @Override
+                    public boolean isReady() { return true; }
+
+                    @Override
+                    public void setWriteListener(WriteListener l) { }
+
+                    @Override
+                    public void write(int b) {
+                        bytes.write(b);
+                    }
+                };
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
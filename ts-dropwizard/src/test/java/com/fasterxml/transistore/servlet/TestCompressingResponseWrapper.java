@@ -0,0 +1,277 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+public class TestCompressingResponseWrapper extends TestCase
+{
+    final static int FRAME_SIZE = 1000;
+
+    public void testAcceptsGzip()
+    {
+        assertTrue(CompressingResponseWrapper.acceptsGzip("gzip"));
+        assertTrue(CompressingResponseWrapper.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertFalse(CompressingResponseWrapper.acceptsGzip(null));
+        assertFalse(CompressingResponseWrapper.acceptsGzip("deflate"));
+        assertFalse(CompressingResponseWrapper.acceptsGzip("gzip;q=0"));
+        assertFalse(CompressingResponseWrapper.acceptsGzip("gzip; q=0.00"));
+    }
+
+    public void testRoundtripAndHeaders() throws Exception
+    {
+        FakeResponse fake = new FakeResponse();
+        CompressingResponseWrapper comp = new CompressingResponseWrapper(fake.response(), FRAME_SIZE);
+        // length of compressed content not known, so must not be passed
+        comp.setContentLength(12345);
+        comp.setContentLengthLong(12345L);
+        comp.setHeader("Content-Length", "12345");
+        comp.addHeader("content-length", "12345");
+        comp.setIntHeader("Content-Length", 12345);
+        comp.addIntHeader("Content-Length", 12345);
+        comp.setHeader("X-Extra", "a");
+
+        byte[] data = _compressible(FRAME_SIZE * 5 + 17);
+        OutputStream out = comp.getOutputStream();
+        // mix of single-byte and partial-frame writes
+        out.write(data[0]);
+        out.write(data, 1, 300);
+        out.write(data, 301, data.length - 301);
+        comp.finish();
+
+        assertEquals(-1L, fake.contentLength);
+        assertFalse(fake.headers.containsKey("content-length"));
+        assertEquals("a", fake.headers.get("x-extra"));
+        assertEquals("gzip", fake.headers.get("content-encoding"));
+        assertEquals(Arrays.asList("Accept-Encoding"), fake.headers.get("vary"));
+
+        assertTrue(Arrays.equals(data, _gunzip(fake.bytes.toByteArray())));
+        assertEquals(data.length, comp.getUncompressedLength());
+        assertTrue(comp.getCompressedLength() < data.length / 2);
+        // finishing again must not write anything more
+        int size = fake.bytes.size();
+        comp.finish();
+        assertEquals(size, fake.bytes.size());
+    }
+
+    public void testSwitchesFrames() throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompressingResponseWrapper.AdaptiveGzipStream gzip
+            = new CompressingResponseWrapper.AdaptiveGzipStream(bytes, FRAME_SIZE);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        // compressible frame: keep on compressing
+        _write(gzip, expected, _compressible(FRAME_SIZE));
+        assertEquals(0, gzip._framesToSkip);
+
+        // incompressible one: should skip compression for following frames
+        _write(gzip, expected, _random(FRAME_SIZE, 1));
+        assertEquals(CompressingResponseWrapper.FRAMES_TO_SKIP, gzip._framesToSkip);
+
+        // and send them stored, regardless of content
+        long before = gzip.getCompressedLength();
+        _write(gzip, expected, _compressible(FRAME_SIZE));
+        assertTrue(gzip.getCompressedLength() - before >= FRAME_SIZE);
+        for (int i = 1; i < CompressingResponseWrapper.FRAMES_TO_SKIP; ++i) {
+            _write(gzip, expected, _random(FRAME_SIZE, 100 + i));
+        }
+        assertEquals(0, gzip._framesToSkip);
+
+        // after which compression is tried again
+        before = gzip.getCompressedLength();
+        _write(gzip, expected, _compressible(FRAME_SIZE));
+        assertTrue(gzip.getCompressedLength() - before < FRAME_SIZE / 2);
+        assertEquals(0, gzip._framesToSkip);
+
+        // writes spanning frame boundaries are split into frames
+        _write(gzip, expected, _random(FRAME_SIZE * 2 + 10, 2));
+        assertEquals(CompressingResponseWrapper.FRAMES_TO_SKIP - 1, gzip._framesToSkip);
+        assertEquals(FRAME_SIZE - 10, gzip._frameLeft);
+
+        gzip.finish();
+        assertTrue(Arrays.equals(expected.toByteArray(), _gunzip(bytes.toByteArray())));
+    }
+
+    public void testFlush() throws Exception
+    {
+        FakeResponse fake = new FakeResponse();
+        CompressingResponseWrapper comp = new CompressingResponseWrapper(fake.response(), FRAME_SIZE);
+        byte[] data = _compressible(FRAME_SIZE / 2);
+        comp.getOutputStream().write(data);
+        // partial frame: nothing necessarily written until flushed
+        comp.flushBuffer();
+        assertEquals(1, fake.flushes);
+        // but after flush, all written content must be decodable
+        byte[] partial = new byte[data.length];
+        new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(fake.bytes.toByteArray())))
+            .readFully(partial);
+        assertTrue(Arrays.equals(data, partial));
+
+        // as well as after a complete frame, without explicit flush
+        comp.getOutputStream().write(data);
+        comp.getOutputStream().write(data);
+        assertEquals(1, fake.flushes);
+        byte[] frame = new byte[FRAME_SIZE];
+        new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(fake.bytes.toByteArray())))
+            .readFully(frame);
+        assertEquals(data.length * 3, comp.getUncompressedLength());
+
+        comp.finish();
+        byte[] all = _gunzip(fake.bytes.toByteArray());
+        assertEquals(data.length * 3, all.length);
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(Arrays.equals(data, Arrays.copyOfRange(all, i * data.length, (i+1) * data.length)));
+        }
+    }
+
+    public void testWriter() throws Exception
+    {
+        FakeResponse fake = new FakeResponse();
+        CompressingResponseWrapper comp = new CompressingResponseWrapper(fake.response(), FRAME_SIZE);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; ++i) {
+            sb.append("entry-").append(i).append(": \u00E4\u20AC\n");
+        }
+        PrintWriter w = comp.getWriter();
+        assertSame(w, comp.getWriter());
+        w.print(sb);
+        try {
+            comp.getOutputStream();
+            fail("Should not pass");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("getWriter()"));
+        }
+        // writer output must be flushed by finish()
+        comp.finish();
+        assertEquals(sb.toString(), new String(_gunzip(fake.bytes.toByteArray()), "UTF-8"));
+        assertEquals(sb.toString().getBytes("UTF-8").length, comp.getUncompressedLength());
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    private static void _write(OutputStream out, ByteArrayOutputStream expected, byte[] data)
+        throws IOException
+    {
+        out.write(data, 0, data.length);
+        expected.write(data);
+    }
+
+    private static byte[] _compressible(int length) throws IOException
+    {
+        StringBuilder sb = new StringBuilder(length + 20);
+        for (int i = 0; sb.length() < length; ++i) {
+            sb.append("key-").append(i % 100).append(';');
+        }
+        return sb.substring(0, length).getBytes("UTF-8");
+    }
+
+    private static byte[] _random(int length, long seed)
+    {
+        byte[] b = new byte[length];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    private static byte[] _gunzip(byte[] compressed) throws IOException
+    {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4000];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Fake response that only supports methods the wrapper needs;
+     * header names are stored lower-cased.
+     */
+    static class FakeResponse implements InvocationHandler
+    {
+        public final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        public final Map<String,Object> headers = new HashMap<String,Object>();
+
+        public long contentLength = -1L;
+
+        public int flushes;
+
+        public HttpServletResponse response() {
+            return (HttpServletResponse) Proxy.newProxyInstance(TestCompressingResponseWrapper.class.getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+            if ("setHeader".equals(name) || "setIntHeader".equals(name)) {
+                headers.put(((String) args[0]).toLowerCase(), String.valueOf(args[1]));
+                return null;
+            }
+            if ("addHeader".equals(name) || "addIntHeader".equals(name)) {
+                String key = ((String) args[0]).toLowerCase();
+                Object old = headers.get(key);
+                List<String> values = new ArrayList<String>();
+                if (old instanceof String) {
+                    values.add((String) old);
+                } else if (old != null) {
+                    for (Object value : (List<?>) old) {
+                        values.add((String) value);
+                    }
+                }
+                values.add(String.valueOf(args[1]));
+                headers.put(key, values);
+                return null;
+            }
+            if ("setContentLength".equals(name) || "setContentLengthLong".equals(name)) {
+                contentLength = ((Number) args[0]).longValue();
+                return null;
+            }
+            if ("flushBuffer".equals(name)) {
+                ++flushes;
+                return null;
+            }
+            if ("getCharacterEncoding".equals(name)) {
+                return "UTF-8";
+            }
+            if ("getOutputStream".equals(name)) {
+                return new ServletOutputStream() {
+                    @Override
+                    public boolean isReady() { return true; }
+
+                    @Override
+                    public void setWriteListener(WriteListener l) { }
+
+                    @Override
+                    public void write(int b) {
+                        bytes.write(b);
+                    }
+                };
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.fasterxml.transistore.servlet;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestTimingRecorder extends TestCase
+{
+    public void testCapacityRounding()
+    {
+        assertEquals(16, new TimingRecorder(1, null)._capacity);
+        assertEquals(32, new TimingRecorder(20, null)._capacity);
+        assertEquals(64, new TimingRecorder(64, null)._capacity);
+    }
+
+    public void testDropsWhenFull()
+    {
+        // writer not started, so nothing gets drained
+        TimingRecorder rec = new TimingRecorder(16, null);
+        for (int i = 0; i < 16; ++i) {
+            assertTrue(rec.record(TimingRecorder.VERB_GET, 200, null, 0L, 100L));
+        }
+        assertFalse(rec.record(TimingRecorder.VERB_PUT, 200, null, 100L, 0L));
+        assertFalse(rec.record(TimingRecorder.VERB_PUT, 200, null, 100L, 0L));
+        assertEquals(2L, rec.getDroppedCount());
+    }
+
+    public void testWritesEntriesInOrder() throws Exception
+    {
+        File f = File.createTempFile("timings", ".log");
+        try {
+            TimingRecorder rec = new TimingRecorder(16, f);
+            // fill buffer before writer runs, then keep going so that slots get reused
+            for (int i = 0; i < 16; ++i) {
+                assertTrue(rec.record(TimingRecorder.VERB_GET, 200+i, null, 1L, i));
+            }
+            rec.start();
+            int retries = 0;
+            for (int i = 16; i < 40; ++i) {
+                while (!rec.record(TimingRecorder.VERB_DELETE, 200+i, null, 1L, i)) {
+                    ++retries;
+                    Thread.sleep(1L);
+                }
+            }
+            // wait for writer to catch up
+            for (int i = 0; i < 500 && rec._writerSeq < 40; ++i) {
+                Thread.sleep(10L);
+            }
+            rec.stop();
+
+            List<String> lines = _readLines(f);
+            assertEquals(40, lines.size());
+            for (int i = 0; i < 40; ++i) {
+                String line = lines.get(i);
+                String verb = (i < 16) ? "GET" : "DELETE";
+                assertTrue(line, line.contains("\"verb\":\""+verb+"\",\"status\":"+(200+i)));
+                assertTrue(line, line.endsWith(",\"read\":1,\"written\":"+i+"}"));
+                // no diagnostics passed, so no timings
+                assertFalse(line, line.contains("\"total\""));
+            }
+            assertEquals(retries, rec.getDroppedCount());
+        } finally {
+            f.delete();
+        }
+    }
+
+    protected List<String> _readLines(File f) throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            r.close();
+        }
+        return lines;
+    }
+}
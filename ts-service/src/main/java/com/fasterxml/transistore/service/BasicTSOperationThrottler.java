@@ -10,6 +10,8 @@ import com.fasterxml.storemate.shared.StorableKey;
 import com.fasterxml.storemate.store.*;
 import com.fasterxml.storemate.store.backend.IterationResult;
 import com.fasterxml.transistore.service.ReadWriteOperationPrioritizer.Lease;
+import com.fasterxml.transistore.service.cache.EntryCache;
+import com.fasterxml.transistore.service.store.NegativeLookupFilter;
 
 /**
  * This is the standard {@link StoreOperationThrottler} to use with
@@ -28,6 +30,22 @@ public class BasicTSOperationThrottler
      */
     protected final Semaphore _putLock = new Semaphore(2, true);
 
+    /**
+     * Writes by synchronization (entries pulled from peers) use a separate
+     * single permit: this bounds how much local write capacity sync can
+     * use (so that a node catching up does not starve request PUTs), and
+     * since sync pulls wait for the permit, local write load also slows
+     * down pulling.
+     */
+    protected final Semaphore _syncPutLock = new Semaphore(1, true);
+
+    /**
+     * Marker set for threads that hold a batch PUT permit: individual
+     * PUTs by such threads are covered by that permit, and must not try
+     * to acquire another one.
+     */
+    protected final ThreadLocal<Boolean> _batchPutActive = new ThreadLocal<Boolean>();
+
     /**
      * We may want to throttle reads slightly as well. But should be
      * able to support much higher concurrency than with writes
@@ -48,6 +66,23 @@ public class BasicTSOperationThrottler
      */
     protected final ReadWriteOperationPrioritizer _fsReadWrites;
 
+    /**
+     * Optional filter used for detecting requests for entries that
+     * do not exist, without accessing the store; null if not enabled.
+     * Since all additions and hard deletions go through throttler,
+     * this is where filter is also kept up to date.
+     */
+    protected final NegativeLookupFilter _negativeLookups;
+
+    /**
+     * Optional cache of recently read entries; null if not enabled.
+     * Similar to negative lookup filter, kept up to date here, since
+     * all modifications (including ones by synchronization and clean up
+     * tasks) go through throttler: entries are invalidated after they
+     * have been modified or deleted.
+     */
+    protected final EntryCache _entryCache;
+
     /*
     /**********************************************************************
     /* Life-cycle
@@ -55,7 +90,25 @@ public class BasicTSOperationThrottler
      */
 
     public BasicTSOperationThrottler() {
+        this(null, null);
+    }
+
+    public BasicTSOperationThrottler(NegativeLookupFilter negativeLookups) {
+        this(negativeLookups, null);
+    }
+
+    public BasicTSOperationThrottler(NegativeLookupFilter negativeLookups, EntryCache entryCache) {
         _fsReadWrites = new ReadWriteOperationPrioritizer();
+        _negativeLookups = negativeLookups;
+        _entryCache = entryCache;
+    }
+
+    public NegativeLookupFilter getNegativeLookupFilter() {
+        return _negativeLookups;
+    }
+
+    public EntryCache getEntryCache() {
+        return _entryCache;
     }
 
     /*
@@ -69,6 +122,9 @@ public class BasicTSOperationThrottler
             StorableKey key, StoreOperationCallback<Boolean> cb)
             throws IOException, StoreException
     {
+        if (_negativeLookups != null && _negativeLookups.isDefinitelyAbsent(key)) {
+            return Boolean.FALSE;
+        }
         // For now let's NOT throttle 'has' access... may reconsider in future:
         return cb.perform(operationTime, key, null);
     }
@@ -82,6 +138,10 @@ public class BasicTSOperationThrottler
         if (DISABLED || source != StoreOperationSource.REQUEST) {
             return cb.perform(operationTime, key, null);
         }
+        // No need to access store (or wait for the lock) for missing entries
+        if (_negativeLookups != null && _negativeLookups.isDefinitelyAbsent(key)) {
+            return null;
+        }
 
         try {
             _getLock.acquire();
@@ -95,6 +155,32 @@ public class BasicTSOperationThrottler
         }
     }
 
+    /**
+     * Method called for batch lookups of multiple entries: throttled like
+     * a single GET, so that the whole batch is processed using a single
+     * permit.
+     * Negative lookup filter is not checked here; caller should use
+     * {@link #getNegativeLookupFilter} to do that for individual keys.
+     */
+    public <T> T performBatchGet(StoreOperationSource source, long operationTime,
+            StoreOperationCallback<T> cb)
+        throws IOException, StoreException
+    {
+        if (DISABLED || source != StoreOperationSource.REQUEST) {
+            return cb.perform(operationTime, null, null);
+        }
+        try {
+            _getLock.acquire();
+        } catch (InterruptedException e) {
+            throw new StoreException.ServerTimeout(null, "Batch GET operation interrupted");
+        }
+        try {
+            return cb.perform(operationTime, null, null);
+        } finally {
+            _getLock.release();
+        }
+    }
+
     @Override
     public IterationResult performList(StoreOperationSource source,
             long operationTime, StoreOperationCallback<IterationResult> cb)
@@ -122,19 +208,58 @@ public class BasicTSOperationThrottler
             StoreOperationCallback<StorableCreationResult> cb)
         throws IOException, StoreException
     {
-        if (DISABLED || source != StoreOperationSource.REQUEST) {
-            return cb.perform(operationTime, key, value);
+        // must add key before entry becomes visible, to avoid false negatives
+        if (_negativeLookups != null) {
+            _negativeLookups.add(key);
+        }
+        final Semaphore lock = (_batchPutActive.get() == null) ? _putLockFor(source) : null;
+        if (lock == null) {
+            try {
+                return cb.perform(operationTime, key, value);
+            } finally {
+                _invalidateCached(key);
+            }
         }
 
         try {
-            _putLock.acquire();
+            lock.acquire();
         } catch (InterruptedException e) {
             throw new StoreException.ServerTimeout(key, "PUT operation interrupted");
         }
         try {
             return cb.perform(operationTime, key, value);
         } finally {
-            _putLock.release();
+            lock.release();
+            _invalidateCached(key);
+        }
+    }
+
+    /**
+     * Method called for batch insertion of multiple entries: throttled
+     * like a single PUT (of the same source), so that the whole batch is
+     * processed using a single permit. Callback is expected to insert entries using regular
+     * store methods; resulting calls to {@link #performPut} by the same
+     * thread are not throttled separately.
+     */
+    public <T> T performBatchPut(StoreOperationSource source, long operationTime,
+            StoreOperationCallback<T> cb)
+        throws IOException, StoreException
+    {
+        final Semaphore lock = _putLockFor(source);
+        if (lock == null) {
+            return cb.perform(operationTime, null, null);
+        }
+        try {
+            lock.acquire();
+        } catch (InterruptedException e) {
+            throw new StoreException.ServerTimeout(null, "Batch PUT operation interrupted");
+        }
+        _batchPutActive.set(Boolean.TRUE);
+        try {
+            return cb.perform(operationTime, null, null);
+        } finally {
+            _batchPutActive.remove();
+            lock.release();
         }
     }
 
@@ -148,7 +273,11 @@ public class BasicTSOperationThrottler
             StoreOperationCallback<Storable> cb)
         throws IOException, StoreException
     {
-        return cb.perform(operationTime, key, null);
+        try {
+            return cb.perform(operationTime, key, null);
+        } finally {
+            _invalidateCached(key);
+        }
     }
 
     /**
@@ -161,7 +290,14 @@ public class BasicTSOperationThrottler
             StoreOperationCallback<Storable> cb)
         throws IOException, StoreException
     {
-        return cb.perform(operationTime, key, null);
+        Storable removed = cb.perform(operationTime, key, null);
+        if (removed != null) {
+            if (_negativeLookups != null) {
+                _negativeLookups.remove(key);
+            }
+            _invalidateCached(key);
+        }
+        return removed;
     }
 
     /*
@@ -214,4 +350,35 @@ public class BasicTSOperationThrottler
         	l.returnLease();
         }
     }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    /**
+     * @return Permits to use for writes from given source; null if writes
+     *   are not to be throttled (clean up, admin tools)
+     */
+    protected Semaphore _putLockFor(StoreOperationSource source)
+    {
+        if (DISABLED) {
+            return null;
+        }
+        if (source == StoreOperationSource.REQUEST) {
+            return _putLock;
+        }
+        if (source == StoreOperationSource.SYNC) {
+            return _syncPutLock;
+        }
+        return null;
+    }
+
+    protected void _invalidateCached(StorableKey key)
+    {
+        if (_entryCache != null && key != null) {
+            _entryCache.invalidate(key);
+        }
+    }
 }
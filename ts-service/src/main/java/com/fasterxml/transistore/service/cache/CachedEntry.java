@@ -0,0 +1,167 @@
+package com.fasterxml.transistore.service.cache;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.shared.compress.Compression;
+import com.fasterxml.storemate.shared.util.WithBytesCallback;
+import com.fasterxml.storemate.store.Storable;
+import com.fasterxml.storemate.store.file.FileManager;
+
+import com.fasterxml.clustermate.service.store.StoredEntry;
+
+/**
+ * Immutable snapshot of information about a stored entry needed for
+ * serving reads: metadata, and either contents (for inlined entries)
+ * or location of external file.
+ */
+public class CachedEntry
+{
+    /**
+     * Approximate fixed memory overhead of a cached entry, used for
+     * calculating memory usage of cache.
+     */
+    protected final static int ENTRY_OVERHEAD = 160;
+
+    protected final StorableKey _key;
+
+    protected final long _readTime;
+
+    /**
+     * Time at which the entry expires due to its maximum time-to-live.
+     */
+    protected final long _expirationTime;
+
+    protected final Compression _compression;
+
+    protected final int _contentHash;
+
+    protected final long _uncompressedLength;
+
+    protected final long _storageLength;
+
+    /**
+     * External file that contains contents, if any; null for
+     * inlined entries.
+     */
+    protected final File _externalFile;
+
+    /**
+     * Inlined contents, if any; null for entries stored externally
+     */
+    protected final ByteBuffer _inlinedData;
+
+    protected CachedEntry(StorableKey key, long readTime, long expirationTime,
+            Compression comp, int contentHash, long uncompressedLength, long storageLength,
+            File externalFile, ByteBuffer inlinedData)
+    {
+        _key = key;
+        _readTime = readTime;
+        _expirationTime = expirationTime;
+        _compression = comp;
+        _contentHash = contentHash;
+        _uncompressedLength = uncompressedLength;
+        _storageLength = storageLength;
+        _externalFile = externalFile;
+        _inlinedData = inlinedData;
+    }
+
+    /**
+     * Factory method for constructing snapshot of given entry.
+     *
+     * @param offHeap Whether inlined contents should be copied in a direct
+     *   (off-heap) buffer, instead of a heap buffer
+     */
+    public static CachedEntry construct(StoredEntry<?> entry, FileManager files,
+            long readTime, boolean offHeap)
+    {
+        final Storable raw = entry.getRaw();
+        long expiration = entry.getCreationTime() + 1000L * entry.getMaxTTLSecs();
+        File f = null;
+        ByteBuffer data = null;
+        if (raw.hasExternalData()) {
+            f = raw.getExternalFile(files);
+        } else {
+            data = _copy(raw, offHeap);
+        }
+        return new CachedEntry(raw.getKey(), readTime, expiration,
+                raw.getCompression(), raw.getContentHash(),
+                raw.getActualUncompressedLength(), raw.getStorageLength(),
+                f, data);
+    }
+
+    protected static ByteBuffer _copy(Storable raw, final boolean offHeap)
+    {
+        return raw.withInlinedData(new WithBytesCallback<ByteBuffer>() {
+            @Override
+            public ByteBuffer withBytes(byte[] buffer, int offset, int length) {
+                ByteBuffer bb = offHeap ? ByteBuffer.allocateDirect(length)
+                        : ByteBuffer.allocate(length);
+                bb.put(buffer, offset, length);
+                bb.flip();
+                return bb;
+            }
+        });
+    }
+
+    /*
+    /**********************************************************************
+    /* Accessors
+    /**********************************************************************
+     */
+
+    public StorableKey getKey() { return _key; }
+    public long getReadTime() { return _readTime; }
+    public Compression getCompression() { return _compression; }
+    public int getContentHash() { return _contentHash; }
+    public long getUncompressedLength() { return _uncompressedLength; }
+    public long getStorageLength() { return _storageLength; }
+    public File getExternalFile() { return _externalFile; }
+
+    public boolean hasInlinedData() {
+        return (_inlinedData != null);
+    }
+
+    public boolean isCompressed() {
+        return (_compression != null) && (_compression != Compression.NONE);
+    }
+
+    public boolean hasExceededMaxTTL(long currentTime) {
+        return currentTime >= _expirationTime;
+    }
+
+    /**
+     * Accessor for inlined contents, if any. Returns a read-only view
+     * so that callers can not modify shared state.
+     */
+    public ByteBuffer getInlinedData() {
+        return (_inlinedData == null) ? null : _inlinedData.asReadOnlyBuffer();
+    }
+
+    /**
+     * Method for copying inlined contents (if any) in a new byte array.
+     */
+    public byte[] getInlinedDataAsBytes()
+    {
+        if (_inlinedData == null) {
+            return null;
+        }
+        ByteBuffer bb = _inlinedData.duplicate();
+        byte[] result = new byte[bb.remaining()];
+        bb.get(result);
+        return result;
+    }
+
+    /**
+     * Estimated memory usage of the entry, used for cache size accounting
+     */
+    public int estimatedSize()
+    {
+        int size = ENTRY_OVERHEAD + _key.length();
+        if (_inlinedData != null) {
+            size += _inlinedData.capacity();
+        }
+        return size;
+    }
+}
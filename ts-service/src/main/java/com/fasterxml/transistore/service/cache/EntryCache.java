@@ -0,0 +1,508 @@
+package com.fasterxml.transistore.service.cache;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.storemate.shared.StorableKey;
+
+import com.fasterxml.transistore.service.cfg.EntryCacheConfig;
+
+/**
+ * Size-bounded cache of recently read entries, using the W-TinyLFU
+ * policy: new entries enter a small LRU "admission window"; entries
+ * evicted from window are only admitted into the main (segmented LRU)
+ * area if their estimated recent access frequency is higher than that
+ * of the entry they would displace. This keeps one-off reads
+ * from flushing out frequently read entries.
+ *<p>
+ * To keep concurrent lookups from contending on a single lock, cache is
+ * split into independently locked segments (by key hash), each with its
+ * own share of total size, admission window and frequency sketch.
+ * Metrics may be read without synchronization.
+ */
+public class EntryCache
+{
+    /**
+     * Share of total size reserved for the admission window
+     */
+    protected final static double WINDOW_RATIO = 0.01;
+
+    /**
+     * Share of main area for the "protected" segment (entries accessed
+     * at least twice since admission)
+     */
+    protected final static double PROTECTED_RATIO = 0.8;
+
+    /**
+     * Estimated average size of entries, used for sizing frequency sketch.
+     */
+    protected final static int ESTIMATED_AVG_SIZE = 1024;
+
+    /**
+     * Minimum size of a single segment: smaller caches use fewer segments,
+     * so that admission policy still has enough entries to work with.
+     */
+    protected final static long MIN_SEGMENT_BYTES = 1024L * 1024L;
+
+    protected final static int REGION_WINDOW = 0;
+    protected final static int REGION_PROBATION = 1;
+    protected final static int REGION_PROTECTED = 2;
+
+    /*
+    /**********************************************************************
+    /* Configuration
+    /**********************************************************************
+     */
+
+    protected final int _maxEntrySize;
+
+    protected final long _maxAgeMsecs;
+
+    protected final boolean _offHeap;
+
+    /*
+    /**********************************************************************
+    /* State
+    /**********************************************************************
+     */
+
+    protected final Segment[] _segments;
+
+    protected final int _segmentMask;
+
+    /*
+    /**********************************************************************
+    /* Metrics
+    /**********************************************************************
+     */
+
+    protected final AtomicLong _hits = new AtomicLong();
+
+    protected final AtomicLong _misses = new AtomicLong();
+
+    protected final AtomicLong _evictions = new AtomicLong();
+
+    protected final AtomicLong _invalidations = new AtomicLong();
+
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    public EntryCache(EntryCacheConfig config)
+    {
+        _maxEntrySize = config.maxEntrySize;
+        _maxAgeMsecs = config.maxAgeMsecs;
+        _offHeap = config.offHeap;
+        // power of two, at most as configured, but each at least minimum size
+        int count = 1;
+        while ((count << 1) <= config.segments
+                && (config.maxBytes / (count << 1)) >= MIN_SEGMENT_BYTES) {
+            count <<= 1;
+        }
+        _segments = new Segment[count];
+        _segmentMask = count - 1;
+        for (int i = 0; i < count; ++i) {
+            _segments[i] = new Segment(config.maxBytes / count);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    public boolean usesOffHeap() { return _offHeap; }
+
+    /**
+     * Maximum size of inlined content of entries that may be cached
+     */
+    public int getMaxEntrySize() { return _maxEntrySize; }
+
+    /**
+     * Method for finding cached entry for given key, if one exists, has not
+     * expired, and is not too old.
+     */
+    public CachedEntry get(StorableKey key, long currentTime) {
+        return _segmentFor(key).get(key, currentTime);
+    }
+
+    /**
+     * Method for finding "generation" of cache for given key, to be passed
+     * to {@link #put(CachedEntry, long)}: needs to be called before reading
+     * entry from the store.
+     */
+    public long generationFor(StorableKey key) {
+        return _segmentFor(key)._generation;
+    }
+
+    /**
+     * Method for adding given entry in cache, if it is small enough.
+     *
+     * @return True if entry was added (although it may be evicted immediately
+     *    by admission policy); false if it was not cacheable
+     */
+    public boolean put(CachedEntry entry) {
+        return put(entry, -1L);
+    }
+
+    /**
+     * Method for adding given entry in cache, if it is small enough, and no
+     * entries that map to same segment have been invalidated since
+     * given generation was read (see {@link #generationFor}). This prevents
+     * caching of entries read just before they were modified or deleted.
+     *
+     * @param generation Generation of cache when entry was read; or -1
+     *    to add entry regardless
+     *
+     * @return True if entry was added (although it may be evicted immediately
+     *    by admission policy); false if it was not cacheable, or may be stale
+     */
+    public boolean put(CachedEntry entry, long generation)
+    {
+        if (entry.hasInlinedData() && entry.getStorageLength() > _maxEntrySize) {
+            return false;
+        }
+        return _segmentFor(entry.getKey()).put(entry, generation);
+    }
+
+    /**
+     * Method called to remove entry for given key (if cached), when
+     * entry may have been modified or deleted.
+     */
+    public void invalidate(StorableKey key) {
+        _segmentFor(key).invalidate(key);
+    }
+
+    public void clear()
+    {
+        for (Segment segment : _segments) {
+            segment.clear();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Metrics access
+    /**********************************************************************
+     */
+
+    public long getHitCount() { return _hits.get(); }
+    public long getMissCount() { return _misses.get(); }
+    public long getEvictionCount() { return _evictions.get(); }
+    public long getInvalidationCount() { return _invalidations.get(); }
+
+    public long getSizeInBytes()
+    {
+        long total = 0L;
+        for (Segment segment : _segments) {
+            total += segment._currentBytes;
+        }
+        return total;
+    }
+
+    public int getEntryCount()
+    {
+        int total = 0;
+        for (Segment segment : _segments) {
+            total += segment._currentEntries;
+        }
+        return total;
+    }
+
+    public int getSegmentCount() { return _segments.length; }
+
+    /**
+     * Ratio of cache hits to all lookups, from 0.0 to 1.0; 0.0 if
+     * there have been no lookups.
+     */
+    public double getHitRatio()
+    {
+        long hits = _hits.get();
+        long total = hits + _misses.get();
+        return (total == 0L) ? 0.0 : ((double) hits / (double) total);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected Segment _segmentFor(StorableKey key)
+    {
+        // spread higher bits, since sketch uses lower ones too
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return _segments[h & _segmentMask];
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Independently locked part of the cache, with its own share of
+     * total size.
+     */
+    protected final class Segment
+    {
+        protected final long _maxBytes;
+
+        protected final long _maxWindowBytes;
+
+        protected final long _maxMainBytes;
+
+        protected final long _maxProtectedBytes;
+
+        protected final HashMap<StorableKey,Node> _entries = new HashMap<StorableKey,Node>();
+
+        protected final FrequencySketch _sketch;
+
+        protected final NodeList _window = new NodeList();
+
+        protected final NodeList _probation = new NodeList();
+
+        protected final NodeList _protected = new NodeList();
+
+        protected volatile long _currentBytes;
+
+        protected volatile int _currentEntries;
+
+        /**
+         * Number of invalidations of entries of this segment
+         */
+        protected volatile long _generation;
+
+        public Segment(long maxBytes)
+        {
+            _maxBytes = maxBytes;
+            _maxWindowBytes = Math.max(1L, (long) (_maxBytes * WINDOW_RATIO));
+            _maxMainBytes = _maxBytes - _maxWindowBytes;
+            _maxProtectedBytes = (long) (_maxMainBytes * PROTECTED_RATIO);
+            _sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE,
+                    Math.max(1L, _maxBytes / ESTIMATED_AVG_SIZE)));
+        }
+
+        public synchronized CachedEntry get(StorableKey key, long currentTime)
+        {
+            _sketch.increment(key.hashCode());
+            Node node = _entries.get(key);
+            if (node == null) {
+                _misses.incrementAndGet();
+                return null;
+            }
+            CachedEntry entry = node.value;
+            if (entry.hasExceededMaxTTL(currentTime)
+                    || (currentTime - entry.getReadTime()) > _maxAgeMsecs) {
+                _remove(node);
+                _misses.incrementAndGet();
+                return null;
+            }
+            _hits.incrementAndGet();
+            _recordAccess(node);
+            return entry;
+        }
+
+        public synchronized boolean put(CachedEntry entry, long generation)
+        {
+            if (generation >= 0L && generation != _generation) {
+                return false;
+            }
+            final int size = entry.estimatedSize();
+            Node node = _entries.get(entry.getKey());
+            if (node != null) { // replace in-place
+                _list(node.region).updateSize(node, size);
+                node.value = entry;
+                _recordAccess(node);
+            } else {
+                node = new Node(entry, size);
+                _entries.put(entry.getKey(), node);
+                node.region = REGION_WINDOW;
+                _window.addLast(node);
+                while (_window.bytes > _maxWindowBytes) {
+                    Node candidate = _window.first();
+                    _window.remove(candidate);
+                    _admit(candidate);
+                }
+            }
+            _updateTotals();
+            return true;
+        }
+
+        public synchronized void invalidate(StorableKey key)
+        {
+            ++_generation;
+            Node node = _entries.get(key);
+            if (node != null) {
+                _remove(node);
+                _invalidations.incrementAndGet();
+            }
+        }
+
+        public synchronized void clear()
+        {
+            _entries.clear();
+            _window.clear();
+            _probation.clear();
+            _protected.clear();
+            _updateTotals();
+        }
+
+        protected void _recordAccess(Node node)
+        {
+            switch (node.region) {
+            case REGION_WINDOW:
+                _window.moveToLast(node);
+                break;
+            case REGION_PROBATION: // second hit, promote
+                _probation.remove(node);
+                node.region = REGION_PROTECTED;
+                _protected.addLast(node);
+                while (_protected.bytes > _maxProtectedBytes) {
+                    Node demoted = _protected.first();
+                    _protected.remove(demoted);
+                    demoted.region = REGION_PROBATION;
+                    _probation.addLast(demoted);
+                }
+                break;
+            default:
+                _protected.moveToLast(node);
+            }
+        }
+
+        /**
+         * Method called with an entry evicted from the admission window, to
+         * decide whether it is to be added in the main area, or dropped.
+         */
+        protected void _admit(Node candidate)
+        {
+            final int candidateFreq = _sketch.frequency(candidate.key.hashCode());
+            while ((_probation.bytes + _protected.bytes + candidate.size) > _maxMainBytes) {
+                Node victim = _probation.first();
+                if (victim == null) {
+                    victim = _protected.first();
+                    if (victim == null) {
+                        break;
+                    }
+                }
+                if (candidateFreq <= _sketch.frequency(victim.key.hashCode())) {
+                    _entries.remove(candidate.key);
+                    _evictions.incrementAndGet();
+                    return;
+                }
+                _remove(victim);
+                _evictions.incrementAndGet();
+            }
+            candidate.region = REGION_PROBATION;
+            _probation.addLast(candidate);
+        }
+
+        protected void _remove(Node node)
+        {
+            _list(node.region).remove(node);
+            _entries.remove(node.key);
+            _updateTotals();
+        }
+
+        protected NodeList _list(int region)
+        {
+            switch (region) {
+            case REGION_WINDOW:
+                return _window;
+            case REGION_PROBATION:
+                return _probation;
+            default:
+            }
+            return _protected;
+        }
+
+        protected void _updateTotals()
+        {
+            _currentBytes = _window.bytes + _probation.bytes + _protected.bytes;
+            _currentEntries = _entries.size();
+        }
+    }
+
+    protected final static class Node
+    {
+        public final StorableKey key;
+        public CachedEntry value;
+        public int size;
+        public int region;
+
+        public Node prev, next;
+
+        public Node(CachedEntry value, int size) {
+            key = value.getKey();
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Simple doubly-linked list of nodes in LRU order (least recently
+     * used first), with total size of nodes.
+     */
+    protected final static class NodeList
+    {
+        protected Node _head, _tail;
+
+        public long bytes;
+
+        public Node first() { return _head; }
+
+        public void addLast(Node node)
+        {
+            node.prev = _tail;
+            node.next = null;
+            if (_tail == null) {
+                _head = node;
+            } else {
+                _tail.next = node;
+            }
+            _tail = node;
+            bytes += node.size;
+        }
+
+        public void remove(Node node)
+        {
+            if (node.prev == null) {
+                _head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                _tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = node.next = null;
+            bytes -= node.size;
+        }
+
+        public void moveToLast(Node node)
+        {
+            if (node != _tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        public void updateSize(Node node, int newSize)
+        {
+            bytes += (newSize - node.size);
+            node.size = newSize;
+        }
+
+        public void clear()
+        {
+            _head = _tail = null;
+            bytes = 0L;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.fasterxml.transistore.service.cache;
+
+/**
+ * Simple Count-Min sketch with 4-bit counters, used for estimating
+ * recent access frequencies of keys (including ones not currently
+ * cached) for cache admission decisions. Counters are periodically
+ * halved so that estimates reflect recent history.
+ *<p>
+ * Not thread-safe; caller has to synchronize access.
+ */
+public class FrequencySketch
+{
+    protected final static int DEPTH = 4;
+
+    protected final static int MAX_COUNT = 15;
+
+    protected final static int[] SEEDS = new int[] {
+        0x97CB3127, 0x2C4DA4F3, 0x5F356495, 0x8B3E2CDD
+    };
+
+    /**
+     * Counters, two per byte; one table of {@link #_width} counters
+     * for each hash function.
+     */
+    protected final byte[] _table;
+
+    protected final int _width;
+
+    protected final int _mask;
+
+    /**
+     * Number of increments after which counters are halved.
+     */
+    protected final int _sampleSize;
+
+    protected int _additions;
+
+    public FrequencySketch(int expectedEntries)
+    {
+        int width = 64;
+        while (width < expectedEntries && width < (1 << 28)) {
+            width <<= 1;
+        }
+        _width = width;
+        _mask = width - 1;
+        _table = new byte[(DEPTH * width) >> 1];
+        _sampleSize = 10 * width;
+    }
+
+    public int frequency(int hash)
+    {
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; ++i) {
+            min = Math.min(min, _get(_index(hash, i)));
+        }
+        return min;
+    }
+
+    public void increment(int hash)
+    {
+        boolean added = false;
+        for (int i = 0; i < DEPTH; ++i) {
+            int ix = _index(hash, i);
+            int count = _get(ix);
+            if (count < MAX_COUNT) {
+                _set(ix, count+1);
+                added = true;
+            }
+        }
+        if (added && ++_additions >= _sampleSize) {
+            _reset();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected int _index(int hash, int row)
+    {
+        int h = (hash ^ SEEDS[row]) * 0x9E3779B1;
+        h ^= (h >>> 16);
+        return (row * _width) + (h & _mask);
+    }
+
+    protected int _get(int ix)
+    {
+        int b = _table[ix >> 1];
+        return ((ix & 1) == 0) ? (b & 0xF) : ((b >> 4) & 0xF);
+    }
+
+    protected void _set(int ix, int count)
+    {
+        int b = _table[ix >> 1];
+        if ((ix & 1) == 0) {
+            b = (b & 0xF0) | count;
+        } else {
+            b = (b & 0x0F) | (count << 4);
+        }
+        _table[ix >> 1] = (byte) b;
+    }
+
+    /**
+     * Method that halves all counters, to "age" old accesses.
+     */
+    protected void _reset()
+    {
+        for (int i = 0, end = _table.length; i < end; ++i) {
+            // halve both nibbles at once, masking out bits shifted across
+            _table[i] = (byte) ((_table[i] >> 1) & 0x77);
+        }
+        _additions >>= 1;
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * Package that contains an in-memory cache of recently read entries
+ * (metadata, and contents of small inlined entries), used to serve
+ * repeated reads of "hot" entries without accessing the entry store.
+ */
+package com.fasterxml.transistore.service.cache;
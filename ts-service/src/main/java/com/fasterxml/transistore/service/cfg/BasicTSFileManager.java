@@ -1,23 +1,61 @@
 package com.fasterxml.transistore.service.cfg;
 
+import java.io.File;
+
+import com.fasterxml.storemate.shared.StorableKey;
 import com.fasterxml.storemate.shared.TimeMaster;
+import com.fasterxml.storemate.shared.compress.Compression;
 import com.fasterxml.storemate.store.file.FileManager;
 import com.fasterxml.storemate.store.file.FileManagerConfig;
+import com.fasterxml.storemate.store.file.FileReference;
 import com.fasterxml.storemate.store.file.FilenameConverter;
 
 import com.fasterxml.transistore.basic.BasicTSKeyConverter;
 
 public class BasicTSFileManager extends FileManager
 {
+    /**
+     * Whether file names may contain hashed sub-directories that have to
+     * be created on demand.
+     */
+    protected final boolean _hashedFanOut;
+
     public BasicTSFileManager(FileManagerConfig config, TimeMaster timeMaster)
+    {
+        this(config, timeMaster, false);
+    }
+
+    public BasicTSFileManager(FileManagerConfig config, TimeMaster timeMaster,
+            boolean hashedFanOut)
     {
         this(config, timeMaster,
-                new BasicTSFilenameConverter(BasicTSKeyConverter.defaultInstance()));
+                new BasicTSFilenameConverter(BasicTSKeyConverter.defaultInstance(), hashedFanOut));
     }
 
     public BasicTSFileManager(FileManagerConfig config, TimeMaster timeMaster,
             FilenameConverter conv)
     {
         super(config, timeMaster, conv);
+        _hashedFanOut = (conv instanceof BasicTSFilenameConverter)
+                && ((BasicTSFilenameConverter) conv).usesHashedFanOut();
+    }
+
+    /**
+     * Overridden to ensure that hashed fan-out directories (if enabled)
+     * exist before caller tries to write the file.
+     */
+    @Override
+    public FileReference createStorageFile(StorableKey key, Compression comp, long lastModified)
+    {
+        FileReference ref = super.createStorageFile(key, comp, lastModified);
+        if (_hashedFanOut) {
+            File dir = ref.getFile().getParentFile();
+            // may race with other writers, so need to re-check on failure
+            if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IllegalStateException("Failed to create fan-out directory '"
+                        +dir.getAbsolutePath()+"'");
+            }
+        }
+        return ref;
     }
 }
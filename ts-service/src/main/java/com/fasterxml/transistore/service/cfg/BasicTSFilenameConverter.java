@@ -2,6 +2,8 @@ package com.fasterxml.transistore.service.cfg;
 
 import com.fasterxml.clustermate.api.EntryKeyConverter;
 import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.shared.hash.BlockHasher32;
+import com.fasterxml.storemate.shared.hash.BlockMurmur3Hasher;
 import com.fasterxml.storemate.store.file.DefaultFilenameConverter;
 
 import com.fasterxml.transistore.basic.BasicTSKey;
@@ -10,22 +12,89 @@ import com.fasterxml.transistore.basic.BasicTSKey;
  * We need a custom converter since basic <code>EntryKey</code> does not
  * have functionality for generic "as String" functionality.
  * Plus we could make filenames bit more aesthetically pleasing...
+ *<p>
+ * Converter may also be configured to use "hashed fan-out" layout, in which
+ * case two levels of sub-directories (named with a single hex digit each)
+ * are prepended to the name, based on murmur3 hash of the full key. This
+ * keeps number of entries per directory small even when a single time-based
+ * directory gets tens of thousands of files.
  */
 public class BasicTSFilenameConverter extends DefaultFilenameConverter
 {
+    /**
+     * Number of hashed sub-directory levels used with fan-out layout.
+     */
+    public final static int FAN_OUT_LEVELS = 2;
+
+    /**
+     * Number of hash bits used per sub-directory level: 4 bits means
+     * 16 directories per level, and 256 leaf directories in total.
+     */
+    public final static int FAN_OUT_BITS_PER_LEVEL = 4;
+
+    protected final static char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
     protected final EntryKeyConverter<BasicTSKey> _keyConverter;
-    
+
+    /**
+     * Whether hashed sub-directories are to be prepended to file names
+     */
+    protected final boolean _hashedFanOut;
+
+    /**
+     * Hasher used for calculating fan-out directories; separate from
+     * routing hash since latter only covers partition id (when one exists),
+     * which would put all entries of a partition in the same directory.
+     */
+    protected final BlockHasher32 _hasher;
+
     public BasicTSFilenameConverter(EntryKeyConverter<BasicTSKey> keyConverter)
+    {
+        this(keyConverter, false);
+    }
+
+    public BasicTSFilenameConverter(EntryKeyConverter<BasicTSKey> keyConverter,
+            boolean hashedFanOut)
     {
         _keyConverter = keyConverter;
+        _hashedFanOut = hashedFanOut;
+        _hasher = new BlockMurmur3Hasher();
+    }
+
+    public boolean usesHashedFanOut() {
+        return _hashedFanOut;
+    }
+
+    /**
+     * @return Characters used as names of fan-out directories (on each level)
+     */
+    public static char[] fanOutDirChars() {
+        return HEX_CHARS.clone();
     }
-    
+
+    /**
+     * Helper method for checking whether given name is that of a fan-out
+     * directory; time-based directories and files never have such names.
+     */
+    public static boolean isFanOutDirName(String name)
+    {
+        if (name.length() != 1) {
+            return false;
+        }
+        char c = name.charAt(0);
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+    }
+
     @Override
     public StringBuilder appendFilename(StorableKey rawKey, final StringBuilder sb)
     {
         BasicTSKey key = _keyConverter.rawToEntryKey(rawKey);
         final char safeChar = _safeChar;
 
+        if (_hashedFanOut) {
+            appendFanOutDirs(rawKey, sb);
+        }
+
         // Start with partition id, if any
         final String fullPath = key.getPartitionAndPath();
         final int groupLen = key.getPartitionIdLength();
@@ -33,7 +102,7 @@ public class BasicTSFilenameConverter extends DefaultFilenameConverter
             sb.append(groupLen);
         }
         sb.append(':');
-        
+
         for (int i = 0, len = fullPath.length(); i < len; ++i) {
             char c = fullPath.charAt(i);
             if ((c <= 0xFF) && isSafe((byte) c)) {
@@ -44,4 +113,20 @@ public class BasicTSFilenameConverter extends DefaultFilenameConverter
         }
         return sb;
     }
+
+    /**
+     * Helper method for appending relative path of hashed fan-out directories
+     * (like "a/7/") for given key.
+     */
+    public StringBuilder appendFanOutDirs(StorableKey rawKey, StringBuilder sb)
+    {
+        final int mask = (1 << FAN_OUT_BITS_PER_LEVEL) - 1;
+        int hash = rawKey.hashCode(_hasher, 0, rawKey.length());
+        for (int i = 0; i < FAN_OUT_LEVELS; ++i) {
+            sb.append(HEX_CHARS[hash & mask]);
+            sb.append('/');
+            hash >>>= FAN_OUT_BITS_PER_LEVEL;
+        }
+        return sb;
+    }
 }
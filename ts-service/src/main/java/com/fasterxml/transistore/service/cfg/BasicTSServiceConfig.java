@@ -1,5 +1,8 @@
 package com.fasterxml.transistore.service.cfg;
 
+import java.io.File;
+
+import com.fasterxml.storemate.shared.compress.Compression;
 import com.fasterxml.storemate.store.backend.StoreBackendConfig;
 
 import com.fasterxml.clustermate.api.RequestPathStrategy;
@@ -33,6 +36,172 @@ public class BasicTSServiceConfig
      * we don't do it.
      */
     public boolean printTimings = false;
+
+    /**
+     * File in which timing information is written (as JSON lines), if
+     * {@link #printTimings} is enabled; if not defined, timings are
+     * logged using logger "TIMING" instead.
+     */
+    public File timingLogFile;
+
+    /**
+     * Number of timing entries that may be buffered before being written;
+     * if more are produced than can be written, extra ones are dropped.
+     */
+    public int timingBufferSize = 16 * 1024;
+
+    /**
+     * Whether GET requests for (big enough) externally stored entries may
+     * be served using zero-copy file transfers, bypassing Java heap buffers.
+     * Only used for uncompressed content, or compressed content
+     * that the client accepts as is.
+     */
+    public boolean zeroCopyGets = false;
+
+    /**
+     * Whether PUT requests for big enough entries may be written directly
+     * into external files, calculating content hash and compression in
+     * a single pass over the request body.
+     */
+    public boolean streamingPuts = false;
+
+    /**
+     * Minimum (declared) content length for using streaming PUT handling;
+     * smaller entries (and ones without Content-Length) use standard handling.
+     */
+    public long streamingPutMinLength = 1024L * 1024L;
+
+    /**
+     * Compression to use for content written using streaming PUTs.
+     */
+    public Compression streamingPutCompression = Compression.LZF;
+
+    /**
+     * Whether GETs and PUTs of big enough entries stored as external files
+     * (see {@link #zeroCopyGets}, {@link #streamingPuts} for criteria) may
+     * be processed asynchronously, using non-blocking I/O, so that
+     * slow clients do not hold on to request threads.
+     * Requires a Servlet 3.1 container.
+     */
+    public boolean asyncEntries = false;
+
+    /**
+     * Timeout for asynchronously processed requests, in milliseconds.
+     */
+    public long asyncTimeoutMsecs = 5L * 60L * 1000L;
+
+    /**
+     * Maximum number of entries that may be accessed with a single
+     * batch request.
+     */
+    public int maxBatchEntries = 1000;
+
+    /**
+     * Maximum size of entries that may be added using batch PUTs; bigger
+     * entries need to be added individually. Should not exceed maximum
+     * size of inlined entries for the store.
+     */
+    public int maxBatchPutEntrySize = 4000;
+
+    /**
+     * Maximum age of the keyspace hash tree (used for anti-entropy between
+     * nodes) before it is rebuilt, in milliseconds. Since building the
+     * tree requires traversal of all entries, this should not be very short.
+     */
+    public long hashTreeMaxAgeMsecs = 10L * 60L * 1000L;
+
+    /**
+     * Whether hash-tree based anti-entropy is run as a background task,
+     * along with other clean up tasks: trees of peers are compared to
+     * the local one, and entries of differing keyspace segments synced.
+     *<p>
+     * Disabled by default. To enable, set <code>"hashTreeSync" : true</code>
+     * in the service configuration; but only once all nodes of the cluster
+     * have been upgraded to a version that serves hash tree and segment
+     * listing requests, since comparisons against older peers simply fail.
+     * Note too that (re)building the tree traverses all entries of the
+     * store (see {@link #hashTreeMaxAgeMsecs}), which adds I/O load on
+     * nodes with lots of entries.
+     */
+    public boolean hashTreeSync = false;
+
+    /**
+     * Whether entries listed by sync list requests (local and remote) are
+     * reordered so that entries most likely to be read soon (tombstones,
+     * then entries with shortest maximum TTL, newest first) are listed
+     * first, so that they get synchronized first.
+     *<p>
+     * Disabled by default, since ordering requires buffering of (a window of)
+     * listed entries before they are sent; sync lists are then in
+     * modification-time order, as with standard ClusterMate handling.
+     */
+    public boolean syncListByPriority = false;
+
+    /**
+     * Whether entries about to expire (see {@link #syncExpirationMarginMsecs})
+     * are also left out of sync list responses. Doing this requires that
+     * each listed entry is looked up from the local store, in addition to
+     * the standard listing.
+     *<p>
+     * Disabled by default; keyspace segment listings (used by hash tree
+     * synchronization) leave out such entries regardless.
+     */
+    public boolean syncListSkipExpiring = false;
+
+    /**
+     * Entries that would expire within this time (in milliseconds) are
+     * skipped when listing entries to synchronize (by keyspace segment
+     * listings, as well as sync list requests if
+     * {@link #syncListSkipExpiring} is enabled), since they would likely
+     * expire before (or soon after) being transferred; receiving node would
+     * only store them to delete them. Tombstones are always listed.
+     */
+    public long syncExpirationMarginMsecs = 30L * 1000L;
+
+    /**
+     * Whether responses to sync pull requests (local and remote) may be
+     * gzip-compressed, for nodes that indicate (with "Accept-Encoding")
+     * that they accept compressed responses.
+     *<p>
+     * Disabled by default: entries are commonly stored compressed already,
+     * in which case compression only costs CPU on both ends; enable for
+     * clusters that store mostly uncompressed content and sync over
+     * slow links.
+     */
+    public boolean syncPullCompression = false;
+
+    /**
+     * Size of frames (in uncompressed bytes) in which sync pull responses
+     * are compressed: output is flushed after each frame, and compression
+     * is skipped for a while after frames that do not compress well
+     * (such as ones with already compressed entries).
+     */
+    public int syncPullCompressionFrameSize = 64 * 1024;
+
+    /**
+     * Whether external files should be placed under two levels of hashed
+     * sub-directories (within time-based directories), instead of directly
+     * in time-based directories. Enabling this helps keep directory sizes
+     * down under heavy write load; but changing the setting for an existing
+     * data directory only affects newly written files.
+     */
+    public boolean hashedFileDirectories = false;
+
+    /**
+     * Settings for optional in-memory cache of recently read entries.
+     */
+    public EntryCacheConfig entryCache = new EntryCacheConfig();
+
+    /**
+     * Settings for optional filter used for detecting lookups of
+     * missing entries without accessing the store.
+     */
+    public NegativeLookupFilterConfig negativeLookups = new NegativeLookupFilterConfig();
+
+    /**
+     * Settings for optional access logging of all requests.
+     */
+    public RequestLogConfig requestLog = new RequestLogConfig();
     
     /*
     /**********************************************************************
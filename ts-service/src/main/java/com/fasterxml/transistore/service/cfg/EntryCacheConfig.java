@@ -0,0 +1,48 @@
+package com.fasterxml.transistore.service.cfg;
+
+/**
+ * Configuration settings for {@link com.fasterxml.transistore.service.cache.EntryCache},
+ * used for keeping recently read entries in memory.
+ */
+public class EntryCacheConfig
+{
+    /**
+     * Whether entry cache is to be used at all; disabled by default.
+     */
+    public boolean enabled = false;
+
+    /**
+     * Maximum total size of cached entries, in bytes; includes
+     * estimated per-entry overhead.
+     */
+    public long maxBytes = 64L * 1024L * 1024L;
+
+    /**
+     * Maximum number of independently locked segments cache is split into,
+     * to reduce lock contention between concurrent requests. Actual number
+     * is the highest power of two not exceeding this, such that each
+     * segment is still at least 1 megabyte in size.
+     */
+    public int segments = 16;
+
+    /**
+     * Maximum size of inlined entry content to cache: bigger entries
+     * will not be cached.
+     */
+    public int maxEntrySize = 16 * 1024;
+
+    /**
+     * Whether cached content should be kept in direct (off-heap) buffers,
+     * instead of byte arrays on Java heap.
+     */
+    public boolean offHeap = false;
+
+    /**
+     * Maximum time, in milliseconds, an entry may be served from cache
+     * since it was read from the store. Entries are invalidated when
+     * modified or deleted through the store, so this is only a safety
+     * net, for changes made some other way (like removal of external
+     * files).
+     */
+    public long maxAgeMsecs = 60L * 1000L;
+}
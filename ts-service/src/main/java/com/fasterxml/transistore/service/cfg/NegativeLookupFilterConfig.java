@@ -0,0 +1,27 @@
+package com.fasterxml.transistore.service.cfg;
+
+/**
+ * Configuration settings for {@link com.fasterxml.transistore.service.store.NegativeLookupFilter},
+ * used for quickly responding to requests for entries that do not exist.
+ */
+public class NegativeLookupFilterConfig
+{
+    /**
+     * Whether filter is to be used at all; disabled by default.
+     */
+    public boolean enabled = false;
+
+    /**
+     * Number of entries (including tombstones) filter is sized for:
+     * having more entries increases false positive rate.
+     * Filter uses about 5 bytes per expected entry with default
+     * false positive rate.
+     */
+    public long expectedEntries = 4L * 1000L * 1000L;
+
+    /**
+     * Target false positive rate (share of lookups for missing keys that
+     * still need to access the store) at expected number of entries.
+     */
+    public double falsePositiveRate = 0.01;
+}
@@ -0,0 +1,48 @@
+package com.fasterxml.transistore.service.cfg;
+
+import java.io.File;
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.fasterxml.transistore.basic.BasicTSPath;
+
+/**
+ * Configuration settings for access logging of requests dispatched
+ * by the service.
+ */
+public class RequestLogConfig
+{
+    /**
+     * Whether request (access) logging is enabled; disabled by default.
+     */
+    public boolean enabled = false;
+
+    /**
+     * File to write access log entries to; if not defined, entries are
+     * written using logger "REQUESTS" instead.
+     */
+    public File file;
+
+    /**
+     * Maximum size of the access log file, in bytes, before it is rotated.
+     */
+    public long maxFileSize = 100L * 1024L * 1024L;
+
+    /**
+     * Number of rotated access log files to keep, in addition to the
+     * file being written.
+     */
+    public int maxBackupFiles = 5;
+
+    /**
+     * Maximum number of entries queued for writing; entries produced
+     * when queue is full are dropped.
+     */
+    public int maxQueuedEntries = 64 * 1024;
+
+    /**
+     * Optional per-path-type sampling rates, from 0.0 (nothing logged)
+     * to 1.0 (everything logged); path types not included are always logged.
+     */
+    public Map<BasicTSPath,Double> sampleRates = new EnumMap<BasicTSPath,Double>(BasicTSPath.class);
+}
@@ -0,0 +1,285 @@
+package com.fasterxml.transistore.service.cleanup;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.*;
+
+import com.fasterxml.storemate.shared.TimeMaster;
+import com.fasterxml.clustermate.service.*;
+import com.fasterxml.clustermate.service.cleanup.CleanupTask;
+import com.fasterxml.clustermate.service.cluster.ClusterViewByServer;
+
+import com.fasterxml.transistore.service.cfg.BasicTSFilenameConverter;
+
+/**
+ * Alternative to the default <code>FileCleaner</code>, used when external
+ * files are stored using hashed fan-out directories
+ * (see {@link BasicTSFilenameConverter}).
+ *<p>
+ * Files are still stored in time-based directories, with fan-out
+ * directories within them; so cleanup is done one time-based directory
+ * ("bucket") at a time: time of the latest write in a bucket is determined
+ * from modification times of the bucket itself and its fan-out directories
+ * (since creating a file updates modification time of its directory),
+ * without accessing individual files; and if it is past maximum possible
+ * time-to-live, the whole bucket is removed. Files of buckets still in
+ * use are never accessed.
+ *<p>
+ * Files stored directly in time-based directories (before fan-out was
+ * enabled) are checked one by one.
+ */
+public class LocalFileCleaner
+    extends CleanupTask<LocalFileCleanupStats>
+{
+    /**
+     * Let's add bit of safety margin on top of maximum TTL, to ensure we
+     * never remove files that may still be referenced.
+     */
+    protected final static long SAFETY_MARGIN_MSECS = 60L * 60L * 1000L;
+
+    /**
+     * We will take a brief break every now and then, to reduce
+     * interference with actual request handling.
+     */
+    protected final static int FILES_BETWEEN_BREAKS = 1000;
+
+    protected final static long BREAK_MSECS = 10L;
+
+    protected final Logger LOG;
+
+    protected File _rootDir;
+
+    /**
+     * Maximum time-to-live that any entry may have.
+     */
+    protected long _maxTTLMsecs;
+
+    protected int _filesSinceBreak;
+
+    public LocalFileCleaner() {
+        this(LoggerFactory.getLogger(LocalFileCleaner.class));
+    }
+
+    public LocalFileCleaner(Logger log) {
+        LOG = log;
+    }
+
+    @Override
+    protected void init(SharedServiceStuff stuff,
+            Stores<?,?> stores,
+            ClusterViewByServer cluster,
+            AtomicBoolean shutdown)
+    {
+        super.init(stuff, stores, cluster, shutdown);
+        _rootDir = stuff.getServiceConfig().storeConfig.dataRootForFiles;
+        _maxTTLMsecs = stuff.getServiceConfig().cfgMaxMaxTTL.getMillis();
+    }
+
+    @Override
+    protected LocalFileCleanupStats _cleanUp() throws Exception
+    {
+        final LocalFileCleanupStats stats = new LocalFileCleanupStats();
+        if (_rootDir == null || !_rootDir.isDirectory()) {
+            _reportProblem("LocalFileCleaner: no file root directory ("+_rootDir+"), nothing to clean");
+            return stats;
+        }
+        final long threshold = _timeMaster.currentTimeMillis() - _maxTTLMsecs - SAFETY_MARGIN_MSECS;
+        _reportStart();
+        _filesSinceBreak = 0;
+        try {
+            File[] children = _rootDir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (shouldStop()) {
+                        _reportProblem("Stopping "+LocalFileCleaner.class.getName()+" early due to shutdown");
+                        break;
+                    }
+                    if (child.isDirectory()) {
+                        _cleanDir(child, threshold, stats);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            _reportEndFail(stats, e);
+            throw e;
+        }
+        _reportEndSuccess(stats);
+        return stats;
+    }
+
+    /**
+     * Recursive method that removes expired buckets and files (and directories
+     * that are left empty) under given directory.
+     *
+     * @return True if the directory was removed
+     */
+    protected boolean _cleanDir(File dir, long threshold, LocalFileCleanupStats stats)
+    {
+        String[] names = dir.list();
+        if (names == null) {
+            return false;
+        }
+        if (_hasFanOutDirs(names)) {
+            if (_latestWrite(dir, BasicTSFilenameConverter.FAN_OUT_LEVELS) < threshold) {
+                return _deleteTree(dir, stats);
+            }
+            stats.addRemainingDir();
+            return false;
+        }
+        for (String name : names) {
+            if (shouldStop()) {
+                return false;
+            }
+            File child = new File(dir, name);
+            if (child.isDirectory()) {
+                _cleanDir(child, threshold, stats);
+                continue;
+            }
+            if (child.lastModified() < threshold) {
+                _deleteFile(child, stats);
+            } else {
+                stats.addRemainingFile();
+            }
+        }
+        return _deleteIfEmpty(dir, threshold, stats);
+    }
+
+    /**
+     * Helper method for determining time of the latest write (file creation
+     * or removal) within given directory, and fan-out directories under it
+     * (up to given number of levels).
+     */
+    protected long _latestWrite(File dir, int levels)
+    {
+        long latest = dir.lastModified();
+        if (levels > 0) {
+            for (char c : BasicTSFilenameConverter.fanOutDirChars()) {
+                File sub = new File(dir, String.valueOf(c));
+                // 0L means "does not exist"
+                if (sub.lastModified() != 0L) {
+                    latest = Math.max(latest, _latestWrite(sub, levels-1));
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @return True if given directory contents include fan-out directories
+     */
+    protected boolean _hasFanOutDirs(String[] names)
+    {
+        for (String name : names) {
+            if (BasicTSFilenameConverter.isFanOutDirName(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method for removing an expired bucket, with all its contents.
+     *
+     * @return True if the directory was removed
+     */
+    protected boolean _deleteTree(File dir, LocalFileCleanupStats stats)
+    {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (shouldStop()) {
+                    return false;
+                }
+                if (child.isDirectory()) {
+                    _deleteTree(child, stats);
+                } else {
+                    _deleteFile(child, stats);
+                }
+            }
+        }
+        if (dir.delete()) {
+            stats.addDeletedDir();
+            return true;
+        }
+        stats.addFailedDelete();
+        return false;
+    }
+
+    protected void _deleteFile(File f, LocalFileCleanupStats stats)
+    {
+        long size = f.length();
+        if (f.delete()) {
+            stats.addDeletedFile(size);
+        } else {
+            stats.addFailedDelete();
+        }
+        if (++_filesSinceBreak >= FILES_BETWEEN_BREAKS) {
+            _takeABreak();
+        }
+    }
+
+    protected boolean _deleteIfEmpty(File dir, long threshold, LocalFileCleanupStats stats)
+    {
+        // Only remove directories that are empty, and not being written to
+        String[] left = dir.list();
+        if (left != null && left.length == 0 && dir.lastModified() < threshold) {
+            if (dir.delete()) {
+                stats.addDeletedDir();
+                return true;
+            }
+            stats.addFailedDelete();
+            return false;
+        }
+        stats.addRemainingDir();
+        return false;
+    }
+
+    protected void _takeABreak()
+    {
+        _filesSinceBreak = 0;
+        try {
+            Thread.sleep(BREAK_MSECS);
+        } catch (InterruptedException e) {
+            if (!shouldStop()) {
+                _reportProblem("Unexpected InterruptedException during file cleanup; ignoring");
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Overridable reporting methods
+    /**********************************************************************
+     */
+
+    protected void _reportStart()
+    {
+        if (LOG != null) {
+            LOG.info("Starting local file cleanup of '{}': will remove files older than {}",
+                    _rootDir.getAbsolutePath(), TimeMaster.timeDesc(_maxTTLMsecs + SAFETY_MARGIN_MSECS));
+        }
+    }
+
+    protected void _reportProblem(String msg)
+    {
+        if (LOG != null) {
+            LOG.warn(msg);
+        }
+    }
+
+    protected void _reportEndFail(LocalFileCleanupStats stats, Exception e)
+    {
+        if (LOG != null) {
+            LOG.info("Failed the local file cleanup, problem (of type {}): {}. Results: {}",
+                    e.getClass().getName(), e.getMessage(), stats);
+        }
+    }
+
+    protected void _reportEndSuccess(LocalFileCleanupStats stats)
+    {
+        if (LOG != null) {
+            LOG.info("Completed local file cleanup: {}", stats);
+        }
+    }
+}
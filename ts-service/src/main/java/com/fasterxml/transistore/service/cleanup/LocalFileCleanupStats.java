@@ -0,0 +1,50 @@
+package com.fasterxml.transistore.service.cleanup;
+
+/**
+ * Helper class used to keep track of clean up progress
+ * for local external file cleanup.
+ */
+public class LocalFileCleanupStats
+{
+    // Number of expired files removed
+    protected int deletedFiles = 0;
+    // Number of (now empty) directories removed
+    protected int deletedDirs = 0;
+
+    // Number of files retained as they may still be referenced
+    protected int remainingFiles = 0;
+    // Number of directories retained
+    protected int remainingDirs = 0;
+
+    // Number of files or directories we failed to delete
+    protected int failedDeletes = 0;
+
+    protected long deletedBytes = 0L;
+
+    public void addDeletedFile(long size) {
+        ++deletedFiles;
+        deletedBytes += size;
+    }
+    public void addDeletedDir() { ++deletedDirs; }
+
+    public void addRemainingFile() { ++remainingFiles; }
+    public void addRemainingDir() { ++remainingDirs; }
+
+    public void addFailedDelete() { ++failedDeletes; }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(60)
+            .append("Removed: ").append(deletedFiles)
+            .append(" files (").append(deletedBytes>>10)
+            .append(" kB), ").append(deletedDirs)
+            .append(" dirs; left: ").append(remainingFiles)
+            .append(" files, ").append(remainingDirs)
+            .append(" dirs");
+        if (failedDeletes > 0) {
+            sb = sb.append("; FAILED to delete ").append(failedDeletes);
+        }
+        return sb.toString();
+    }
+}
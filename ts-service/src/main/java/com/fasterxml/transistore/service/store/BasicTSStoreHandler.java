@@ -1,5 +1,14 @@
 package com.fasterxml.transistore.service.store;
 
+import java.io.IOException;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.store.StoreException;
+import com.fasterxml.storemate.store.StoreOperationSource;
+import com.fasterxml.storemate.store.StoreOperationThrottler;
+
+import com.fasterxml.clustermate.api.EntryKeyConverter;
+
 import com.fasterxml.clustermate.service.*;
 import com.fasterxml.clustermate.service.cluster.ClusterViewByServer;
 import com.fasterxml.clustermate.service.store.DeferredDeleter;
@@ -8,7 +17,9 @@ import com.fasterxml.clustermate.service.store.StoredEntry;
 
 import com.fasterxml.transistore.basic.BasicTSKey;
 import com.fasterxml.transistore.basic.BasicTSListItem;
+import com.fasterxml.transistore.service.BasicTSOperationThrottler;
 import com.fasterxml.transistore.service.TSLastAccess;
+import com.fasterxml.transistore.service.cache.EntryCache;
 
 public class BasicTSStoreHandler extends StoreHandler<BasicTSKey,
     StoredEntry<BasicTSKey>, BasicTSListItem>
@@ -17,7 +28,15 @@ public class BasicTSStoreHandler extends StoreHandler<BasicTSKey,
      * Flag mostly used by tests to force updates of last-accessed time stamps.
      */
     protected boolean _defaultUpdateLastAccess = false;
-    
+
+    /**
+     * Optional cache of recently read entries; null if not enabled.
+     * Owned (and kept up to date) by the store throttler.
+     */
+    protected final EntryCache _entryCache;
+
+    protected final EntryKeyConverter<BasicTSKey> _tsKeyConverter;
+
     public BasicTSStoreHandler(SharedServiceStuff stuff,
             Stores<BasicTSKey, StoredEntry<BasicTSKey>> stores,
             ClusterViewByServer cluster,
@@ -25,6 +44,43 @@ public class BasicTSStoreHandler extends StoreHandler<BasicTSKey,
     {
         super(stuff, stores, cluster);
         _defaultUpdateLastAccess = defaultUpdateLastAccess;
+        _tsKeyConverter = stuff.getKeyConverter();
+        StoreOperationThrottler throttler = stores.getEntryStore().getThrottler();
+        _entryCache = (throttler instanceof BasicTSOperationThrottler)
+                ? ((BasicTSOperationThrottler) throttler).getEntryCache() : null;
+    }
+
+    /**
+     * Accessor for the entry cache, if one is enabled; null if not.
+     */
+    public EntryCache getEntryCache() {
+        return _entryCache;
+    }
+
+    /**
+     * Method for finding out kind of last-access tracking to use for an entry
+     * added by given request; needed by handlers that add entries without
+     * going through the standard PUT handling.
+     */
+    public TSLastAccess findLastAccessUpdateMethod(ServiceRequest request, BasicTSKey key) {
+        return _findLastAccessUpdateMethod(request, key);
+    }
+
+    /**
+     * Method for deleting an entry outside of regular request handling
+     * (like when deleting all entries with a prefix): last-access information
+     * is handled same as with regular DELETEs, and a tombstone is left
+     * for synchronization to propagate.
+     *
+     * @param source Source of the deletion; should not be
+     *   {@link StoreOperationSource#REQUEST} for background processing,
+     *   to keep it from competing with client requests
+     */
+    public void softDeleteEntry(StoreOperationSource source, StorableKey rawKey, long deletionTime)
+        throws IOException, StoreException
+    {
+        updateLastAccessedForDelete(null, null, _tsKeyConverter.rawToEntryKey(rawKey), deletionTime);
+        _stores.getEntryStore().softDelete(source, null, rawKey, true, true);
     }
 
     @Override
@@ -2,11 +2,18 @@ package com.fasterxml.transistore.service.store;
 
 import java.io.File;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import com.fasterxml.storemate.shared.IpAndPort;
+import com.fasterxml.storemate.shared.StorableKey;
 import com.fasterxml.storemate.shared.TimeMaster;
-import com.fasterxml.storemate.store.StorableStore;
+import com.fasterxml.storemate.store.*;
+import com.fasterxml.storemate.store.backend.IterationAction;
+import com.fasterxml.storemate.store.backend.IterationResult;
+import com.fasterxml.storemate.store.backend.StorableLastModIterationCallback;
 import com.fasterxml.storemate.store.state.NodeStateStore;
 
 import com.fasterxml.clustermate.service.cfg.ServiceConfig;
@@ -14,9 +21,18 @@ import com.fasterxml.clustermate.service.state.ActiveNodeState;
 import com.fasterxml.clustermate.service.store.*;
 
 import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.service.BasicTSOperationThrottler;
 
 public class BasicTSStores extends StoresImpl<BasicTSKey, StoredEntry<BasicTSKey>>
 {
+    private final Logger LOG = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Flag used to stop populating negative lookup filter when
+     * stores are being closed.
+     */
+    protected volatile boolean _closing;
+
     public BasicTSStores(ServiceConfig config, TimeMaster timeMaster, ObjectMapper jsonMapper,
             StoredEntryConverter<BasicTSKey, StoredEntry<BasicTSKey>,?> entryFactory,
             StorableStore entryStore,
@@ -38,13 +54,98 @@ public class BasicTSStores extends StoresImpl<BasicTSKey, StoredEntry<BasicTSKey
     }
 
     @Override
-    protected boolean _openLocalStores(boolean log, boolean allowCreate, boolean writeAccess) {
+    protected boolean _openLocalStores(boolean log, boolean allowCreate, boolean writeAccess)
+    {
+        if (writeAccess) {
+            _startNegativeLookupFilterPopulation();
+        }
         return true;
     }
 
     @Override
-    protected void _prepareToCloseLocalStores() { }
+    protected void _prepareToCloseLocalStores() {
+        _closing = true;
+    }
 
     @Override
-    protected void _closeLocalStores() { }
+    protected void _closeLocalStores() {
+        _closing = true;
+    }
+
+    /*
+    /**********************************************************************
+    /* Negative lookup filter population
+    /**********************************************************************
+     */
+
+    /**
+     * Method called to start populating negative lookup filter (if one
+     * is used) with keys of all existing entries. Done in a background
+     * thread, since it may take a while with big stores; filter is
+     * only used once all keys have been added.
+     */
+    protected void _startNegativeLookupFilterPopulation()
+    {
+        StoreOperationThrottler throttler = getEntryStore().getThrottler();
+        if (!(throttler instanceof BasicTSOperationThrottler)) {
+            return;
+        }
+        final NegativeLookupFilter filter = ((BasicTSOperationThrottler) throttler).getNegativeLookupFilter();
+        if (filter == null || filter.isReady()) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                _populateNegativeLookupFilter(filter);
+            }
+        }, "NegativeLookupFilterPopulator");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    protected void _populateNegativeLookupFilter(final NegativeLookupFilter filter)
+    {
+        final long start = System.currentTimeMillis();
+        final long[] count = new long[1];
+        IterationResult r;
+        try {
+            // only need keys; tombstones included, since they also need to be found
+            r = getEntryStore().iterateEntriesByModifiedTime(StoreOperationSource.CLEANUP, null,
+                0L, new StorableLastModIterationCallback() {
+                @Override
+                public IterationAction verifyTimestamp(long timestamp) {
+                    return IterationAction.PROCESS_ENTRY;
+                }
+
+                @Override
+                public IterationAction verifyKey(StorableKey key)
+                {
+                    if (_closing) {
+                        return IterationAction.TERMINATE_ITERATION;
+                    }
+                    filter.add(key);
+                    ++count[0];
+                    return IterationAction.SKIP_ENTRY;
+                }
+
+                @Override
+                public IterationAction processEntry(Storable raw) {
+                    return IterationAction.PROCESS_ENTRY;
+                }
+            });
+        } catch (Exception e) {
+            LOG.error("Failed to populate negative lookup filter (problem: {}); filter will not be used",
+                    e.getMessage());
+            return;
+        }
+        if (r != IterationResult.FULLY_ITERATED) {
+            LOG.warn("Did not complete populating negative lookup filter ({} keys added); filter will not be used",
+                    count[0]);
+            return;
+        }
+        filter.markReady();
+        LOG.info("Populated negative lookup filter with {} keys in {} msecs",
+                count[0], System.currentTimeMillis() - start);
+    }
 }
@@ -0,0 +1,203 @@
+package com.fasterxml.transistore.service.store;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.shared.hash.BlockMurmur3Hasher;
+
+/**
+ * Counting Bloom filter over keys of all entries (including tombstones)
+ * in the local entry store, used for quickly determining that an entry
+ * definitely does not exist, without accessing the store.
+ *<p>
+ * Counters are 4 bits each, packed in an {@link AtomicLongArray} so that
+ * updates are lock-free. Counters that reach the maximum value are never
+ * decremented, so saturation can only cause false positives, never
+ * false negatives.
+ *<p>
+ * Filter needs to be populated (by iterating over all entries) before it
+ * can be used; until {@link #markReady} is called, all keys are reported
+ * as possibly existing, and removals are ignored (since removed key may
+ * not have been added yet).
+ */
+public class NegativeLookupFilter
+{
+    protected final static int MAX_COUNT = 15;
+
+    protected final static int COUNTERS_PER_SLOT = 16;
+
+    protected final BlockMurmur3Hasher _hasher = new BlockMurmur3Hasher();
+
+    protected final AtomicLongArray _slots;
+
+    protected final long _counterCount;
+
+    protected final int _hashCount;
+
+    protected volatile boolean _ready;
+
+    protected final AtomicLong _definitelyAbsent = new AtomicLong();
+
+    /**
+     * @param expectedEntries Number of entries filter is sized for
+     * @param falsePositiveRate Target false positive rate, when filter contains
+     *    expected number of entries
+     */
+    public NegativeLookupFilter(long expectedEntries, double falsePositiveRate)
+    {
+        expectedEntries = Math.max(1000L, expectedEntries);
+        final double ln2 = Math.log(2.0);
+        long counters = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2));
+        long slots = (counters + COUNTERS_PER_SLOT - 1) / COUNTERS_PER_SLOT;
+        if (slots > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many expected entries ("+expectedEntries+") for filter");
+        }
+        _slots = new AtomicLongArray((int) slots);
+        _counterCount = slots * COUNTERS_PER_SLOT;
+        _hashCount = Math.max(1, (int) Math.round((double) _counterCount / expectedEntries * ln2));
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    public boolean isReady() {
+        return _ready;
+    }
+
+    /**
+     * Method called once all existing entries have been added.
+     */
+    public void markReady() {
+        _ready = true;
+    }
+
+    public void add(StorableKey key)
+    {
+        final int h1 = _hash1(key);
+        final int h2 = _hash2(key);
+        for (int i = 0; i < _hashCount; ++i) {
+            _increment(_index(h1, h2, i));
+        }
+    }
+
+    /**
+     * Method called after given key has been removed from the store.
+     * Ignored if filter is not yet ready.
+     */
+    public void remove(StorableKey key)
+    {
+        if (!_ready) {
+            return;
+        }
+        final int h1 = _hash1(key);
+        final int h2 = _hash2(key);
+        for (int i = 0; i < _hashCount; ++i) {
+            _decrement(_index(h1, h2, i));
+        }
+    }
+
+    /**
+     * Method for checking whether given key is known not to exist in
+     * the store.
+     *
+     * @return True if key definitely does not exist; false if it may exist
+     *   (or if filter is not yet ready)
+     */
+    public boolean isDefinitelyAbsent(StorableKey key)
+    {
+        if (!_ready) {
+            return false;
+        }
+        final int h1 = _hash1(key);
+        final int h2 = _hash2(key);
+        for (int i = 0; i < _hashCount; ++i) {
+            if (_get(_index(h1, h2, i)) == 0) {
+                _definitelyAbsent.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of lookups for which key was determined not to exist.
+     */
+    public long getDefinitelyAbsentCount() {
+        return _definitelyAbsent.get();
+    }
+
+    public int getHashCount() {
+        return _hashCount;
+    }
+
+    public long getCounterCount() {
+        return _counterCount;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected int _hash1(StorableKey key) {
+        return key.hashCode(_hasher, 0, key.length());
+    }
+
+    protected int _hash2(StorableKey key)
+    {
+        // secondary hash needs to be odd to cover all counters
+        int h = key.hashCode() * 0x9E3779B1;
+        return (h ^ (h >>> 15)) | 1;
+    }
+
+    protected long _index(int h1, int h2, int i)
+    {
+        long h = (h1 & 0xFFFFFFFFL) + (long) i * (h2 & 0xFFFFFFFFL);
+        return h % _counterCount;
+    }
+
+    protected int _get(long index)
+    {
+        long slot = _slots.get((int) (index / COUNTERS_PER_SLOT));
+        int shift = (int) (index % COUNTERS_PER_SLOT) << 2;
+        return (int) ((slot >>> shift) & 0xF);
+    }
+
+    protected void _increment(long index)
+    {
+        final int ix = (int) (index / COUNTERS_PER_SLOT);
+        final int shift = (int) (index % COUNTERS_PER_SLOT) << 2;
+        while (true) {
+            long slot = _slots.get(ix);
+            long count = (slot >>> shift) & 0xF;
+            if (count == MAX_COUNT) { // saturated; stays so
+                return;
+            }
+            if (_slots.compareAndSet(ix, slot, slot + (1L << shift))) {
+                return;
+            }
+        }
+    }
+
+    protected void _decrement(long index)
+    {
+        final int ix = (int) (index / COUNTERS_PER_SLOT);
+        final int shift = (int) (index % COUNTERS_PER_SLOT) << 2;
+        while (true) {
+            long slot = _slots.get(ix);
+            long count = (slot >>> shift) & 0xF;
+            // can't know true count of saturated counters, so leave as is
+            if (count == 0L || count == MAX_COUNT) {
+                return;
+            }
+            if (_slots.compareAndSet(ix, slot, slot - (1L << shift))) {
+                return;
+            }
+        }
+    }
+}
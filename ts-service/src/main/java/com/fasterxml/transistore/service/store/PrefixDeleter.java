@@ -0,0 +1,510 @@
+package com.fasterxml.transistore.service.store;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.shared.TimeMaster;
+import com.fasterxml.storemate.store.*;
+import com.fasterxml.storemate.store.backend.IterationAction;
+import com.fasterxml.storemate.store.backend.IterationResult;
+import com.fasterxml.storemate.store.backend.StorableIterationCallback;
+
+import com.fasterxml.transistore.basic.BasicTSDeleteJobStatus;
+import com.fasterxml.transistore.basic.BasicTSDeleteJobStatus.State;
+import com.fasterxml.transistore.basic.BasicTSKeyConverter;
+
+/**
+ * Helper class that handles server-side deletion of all entries with
+ * given key prefix (like all entries of a partition, or all entries
+ * under given path within partition).
+ * Deletions are run as background jobs, one at a time, and are
+ * soft deletions done through {@link BasicTSStoreHandler} (as clean up
+ * operations, not requests), same as individual DELETEs: tombstones are left in place so that deletions are
+ * propagated to other nodes via synchronization, and last-access
+ * information is removed.
+ *<p>
+ * Entries are processed in batches: keys of a batch are collected by
+ * iterating over entries in key order, and then deleted; after each batch
+ * a short break is taken, to limit effect on other store access.
+ *<p>
+ * If a job file is given, state of jobs is stored in it after each batch,
+ * so that status of jobs remains available, and unfinished jobs are
+ * resumed (after the last key deleted) when the node is restarted.
+ */
+public class PrefixDeleter
+{
+    private final Logger LOG = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Number of entries to delete per batch.
+     */
+    protected final static int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * Maximum number of completed jobs to retain status information for.
+     */
+    protected final static int MAX_COMPLETED_JOBS = 100;
+
+    private final static long MIN_BREAK_MSECS = 10L;
+    private final static long MAX_BREAK_MSECS = 500L;
+
+    protected final BasicTSStoreHandler _storeHandler;
+
+    protected final StorableStore _entryStore;
+
+    protected final TimeMaster _timeMaster;
+
+    protected final ObjectMapper _jsonMapper;
+
+    /**
+     * File in which job state is persisted, if any
+     */
+    protected final File _jobFile;
+
+    protected final int _batchSize;
+
+    protected final ExecutorService _executor;
+
+    protected final AtomicLong _nextJobId = new AtomicLong(1L);
+
+    /**
+     * Jobs by id, in order of creation
+     */
+    protected final LinkedHashMap<Long,Job> _jobs = new LinkedHashMap<Long,Job>();
+
+    protected volatile boolean _shutdown;
+
+    /**
+     * @param jobFile File in which to persist state of jobs; null if state
+     *   is only to be kept in memory
+     */
+    public PrefixDeleter(BasicTSStoreHandler storeHandler, TimeMaster timeMaster,
+            ObjectMapper jsonMapper, File jobFile)
+    {
+        this(storeHandler, timeMaster, jsonMapper, jobFile, DEFAULT_BATCH_SIZE);
+    }
+
+    protected PrefixDeleter(BasicTSStoreHandler storeHandler, TimeMaster timeMaster,
+            ObjectMapper jsonMapper, File jobFile, int batchSize)
+    {
+        _storeHandler = storeHandler;
+        _entryStore = (storeHandler == null) ? null : storeHandler.getStores().getEntryStore();
+        _timeMaster = timeMaster;
+        _jsonMapper = jsonMapper;
+        _jobFile = jobFile;
+        _batchSize = batchSize;
+        _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PrefixDeleter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Method called to load state of jobs from the job file (if any), and
+     * to resume jobs that had not finished.
+     */
+    public void start()
+    {
+        if (_jobFile == null || !_jobFile.exists()) {
+            return;
+        }
+        StoredJob[] stored;
+        try {
+            stored = _jsonMapper.readValue(_jobFile, StoredJob[].class);
+        } catch (IOException e) {
+            LOG.warn("Failed to read prefix deletion jobs from {}: {}", _jobFile, e.getMessage());
+            return;
+        }
+        List<Job> unfinished = new ArrayList<Job>();
+        synchronized (_jobs) {
+            for (StoredJob s : stored) {
+                Job job = s.asJob();
+                _jobs.put(job.id, job);
+                if (job.id >= _nextJobId.get()) {
+                    _nextJobId.set(job.id + 1);
+                }
+                if (!job.isFinished()) {
+                    job.state = State.QUEUED;
+                    unfinished.add(job);
+                }
+            }
+        }
+        for (Job job : unfinished) {
+            LOG.info("Resuming prefix deletion job #{} ({})", job.id, job.description);
+            _schedule(job);
+        }
+    }
+
+    /**
+     * Method for stopping processing. Jobs not yet finished are left in
+     * their current state in the job file, to be resumed on restart.
+     */
+    public void stop()
+    {
+        _shutdown = true;
+        _executor.shutdownNow();
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Method for scheduling deletion of all entries with given raw key prefix.
+     *
+     * @param description Human-readable description of prefix, for status
+     *
+     * @return Status of the job created
+     */
+    public BasicTSDeleteJobStatus startJob(StorableKey prefix, String description)
+    {
+        final Job job = new Job(_nextJobId.getAndIncrement(), prefix, description,
+                _timeMaster.currentTimeMillis());
+        synchronized (_jobs) {
+            _jobs.put(job.id, job);
+            _trimCompleted();
+        }
+        _saveJobs();
+        _schedule(job);
+        return job.status();
+    }
+
+    /**
+     * @return Status of job with given id, if known; null if not
+     */
+    public BasicTSDeleteJobStatus findJob(long id)
+    {
+        Job job = _findJob(id);
+        return (job == null) ? null : job.status();
+    }
+
+    /**
+     * Method for cancelling job with given id: if job has not yet finished,
+     * it is stopped after the current batch; entries already deleted
+     * remain deleted.
+     *
+     * @return Status of the job, if known; null if not
+     */
+    public BasicTSDeleteJobStatus cancelJob(long id)
+    {
+        Job job = _findJob(id);
+        if (job == null) {
+            return null;
+        }
+        synchronized (job) {
+            job.cancelled = true;
+            // if not yet started, will not be run at all
+            if (job.state == State.QUEUED) {
+                _finish(job, State.CANCELLED, null);
+            }
+        }
+        _saveJobs();
+        return job.status();
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, running jobs
+    /**********************************************************************
+     */
+
+    protected void _schedule(final Job job)
+    {
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                _run(job);
+            }
+        });
+    }
+
+    protected void _run(Job job)
+    {
+        synchronized (job) {
+            if (job.state != State.QUEUED) { // cancelled before starting
+                return;
+            }
+            job.state = State.RUNNING;
+        }
+        final List<StorableKey> batch = new ArrayList<StorableKey>(_batchSize);
+        try {
+            while (!_shutdown && !job.cancelled) {
+                batch.clear();
+                IterationResult r = _collectBatch(job, job.lastKey, batch);
+                if (!batch.isEmpty()) {
+                    final long start = System.currentTimeMillis();
+                    final long deletionTime = _timeMaster.currentTimeMillis();
+                    for (StorableKey key : batch) {
+                        _deleteEntry(key, deletionTime);
+                        job.deleted.incrementAndGet();
+                    }
+                    job.lastKey = batch.get(batch.size()-1);
+                    _saveJobs();
+                    if (r == IterationResult.TERMINATED_FOR_ENTRY) { // more to do
+                        _takeABreak(System.currentTimeMillis() - start);
+                        continue;
+                    }
+                }
+                // fully iterated (or stopped due to shutdown)
+                break;
+            }
+            if (_shutdown) { // leave as is, to be resumed on restart
+                return;
+            }
+            synchronized (job) {
+                _finish(job, job.cancelled ? State.CANCELLED : State.COMPLETED, null);
+            }
+        } catch (Exception e) {
+            LOG.warn("Prefix deletion job #{} ({}) failed: {}", job.id, job.description, e.getMessage());
+            synchronized (job) {
+                _finish(job, State.FAILED, e.getMessage());
+            }
+        }
+        _saveJobs();
+    }
+
+    /**
+     * Method called to mark given job finished; caller must hold the
+     * lock of the job, so that state changes are not interleaved with
+     * those made by {@link #cancelJob}.
+     */
+    protected void _finish(Job job, State state, String failure)
+    {
+        job.failure = failure;
+        job.endTime = _timeMaster.currentTimeMillis();
+        job.state = state;
+    }
+
+    /**
+     * Method for collecting keys of the next batch of (non-deleted) entries
+     * to delete, starting after given key (or from the prefix itself,
+     * if null).
+     *
+     * @return {@link IterationResult#TERMINATED_FOR_ENTRY} if there may be
+     *   more entries to delete after the batch
+     */
+    protected IterationResult _collectBatch(final Job job, final StorableKey afterKey,
+            final List<StorableKey> batch)
+        throws StoreException
+    {
+        return _entryStore.iterateEntriesByKey(StoreOperationSource.CLEANUP, null,
+                (afterKey == null) ? job.prefix : afterKey,
+                _batchCollector(job, afterKey, batch));
+    }
+
+    /**
+     * Method for constructing callback used for collecting a batch of keys
+     * to delete, when iterating over entries in key order.
+     */
+    protected StorableIterationCallback _batchCollector(final Job job, final StorableKey afterKey,
+            final List<StorableKey> batch)
+    {
+        return new StorableIterationCallback() {
+            @Override
+            public IterationAction verifyKey(StorableKey key) {
+                return _verifyKey(job, afterKey, key);
+            }
+
+            @Override
+            public IterationAction processEntry(Storable entry) {
+                return _addToBatch(job, entry.getKey(), entry.isDeleted(), batch);
+            }
+        };
+    }
+
+    protected IterationAction _verifyKey(Job job, StorableKey afterKey, StorableKey key)
+    {
+        if (_shutdown || job.cancelled || !BasicTSKeyConverter.hasPrefix(key, job.prefix)) {
+            return IterationAction.TERMINATE_ITERATION;
+        }
+        // iteration is inclusive of the starting key, skip
+        if (afterKey != null && afterKey.equals(key)) {
+            return IterationAction.SKIP_ENTRY;
+        }
+        return IterationAction.PROCESS_ENTRY;
+    }
+
+    protected IterationAction _addToBatch(Job job, StorableKey key, boolean deleted,
+            List<StorableKey> batch)
+    {
+        job.scanned.incrementAndGet();
+        if (!deleted) {
+            batch.add(key);
+            if (batch.size() >= _batchSize) {
+                return IterationAction.TERMINATE_ITERATION;
+            }
+        }
+        return IterationAction.PROCESS_ENTRY;
+    }
+
+    protected void _deleteEntry(StorableKey key, long deletionTime)
+        throws IOException, StoreException
+    {
+        // not a client request: do not compete with those for throttling
+        _storeHandler.softDeleteEntry(StoreOperationSource.CLEANUP, key, deletionTime);
+    }
+
+    protected void _takeABreak(long batchMsecs)
+    {
+        // sleep for 25% of time batch took, but with constraints
+        long breakMsecs = Math.min(MAX_BREAK_MSECS, Math.max(MIN_BREAK_MSECS, batchMsecs / 4));
+        try {
+            Thread.sleep(breakMsecs);
+        } catch (InterruptedException e) { // most likely due to shutdown
+            _shutdown = true;
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, job state
+    /**********************************************************************
+     */
+
+    protected Job _findJob(long id)
+    {
+        synchronized (_jobs) {
+            return _jobs.get(id);
+        }
+    }
+
+    protected void _trimCompleted()
+    {
+        int completed = 0;
+        for (Job job : _jobs.values()) {
+            if (job.isFinished()) {
+                ++completed;
+            }
+        }
+        Iterator<Job> it = _jobs.values().iterator();
+        while (completed > MAX_COMPLETED_JOBS && it.hasNext()) {
+            if (it.next().isFinished()) {
+                it.remove();
+                --completed;
+            }
+        }
+    }
+
+    /**
+     * Method for storing state of all known jobs in the job file, if one
+     * is used. File is replaced atomically (as far as file system allows),
+     * so that a failure while writing can not corrupt earlier state.
+     */
+    protected void _saveJobs()
+    {
+        if (_jobFile == null) {
+            return;
+        }
+        List<StoredJob> stored = new ArrayList<StoredJob>();
+        synchronized (_jobs) {
+            for (Job job : _jobs.values()) {
+                stored.add(new StoredJob(job));
+            }
+            File tmp = new File(_jobFile.getPath() + ".tmp");
+            try {
+                _jsonMapper.writeValue(tmp, stored);
+                if (!tmp.renameTo(_jobFile)) {
+                    _jobFile.delete();
+                    if (!tmp.renameTo(_jobFile)) {
+                        throw new IOException("Failed to rename "+tmp+" as "+_jobFile);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("Failed to store prefix deletion jobs in {}: {}", _jobFile, e.getMessage());
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    protected static class Job
+    {
+        public final long id;
+        public final StorableKey prefix;
+        public final String description;
+        public final long startTime;
+
+        public final AtomicLong scanned = new AtomicLong();
+        public final AtomicLong deleted = new AtomicLong();
+
+        public volatile State state = State.QUEUED;
+        public volatile long endTime;
+        public volatile String failure;
+
+        /**
+         * Last key deleted, if any; next batch starts after it
+         */
+        public volatile StorableKey lastKey;
+
+        public volatile boolean cancelled;
+
+        public Job(long id, StorableKey prefix, String desc, long startTime)
+        {
+            this.id = id;
+            this.prefix = prefix;
+            description = desc;
+            this.startTime = startTime;
+        }
+
+        public boolean isFinished() {
+            return (state != State.QUEUED) && (state != State.RUNNING);
+        }
+
+        public BasicTSDeleteJobStatus status() {
+            return new BasicTSDeleteJobStatus(id, description, state,
+                    scanned.get(), deleted.get(), startTime, endTime, failure);
+        }
+    }
+
+    /**
+     * Persisted form of a {@link Job}
+     */
+    protected static class StoredJob
+    {
+        public BasicTSDeleteJobStatus status;
+        public byte[] prefix;
+        public byte[] lastKey;
+
+        protected StoredJob() { }
+
+        public StoredJob(Job job)
+        {
+            status = job.status();
+            prefix = job.prefix.asBytes();
+            StorableKey last = job.lastKey;
+            lastKey = (last == null) ? null : last.asBytes();
+        }
+
+        public Job asJob()
+        {
+            Job job = new Job(status.id, new StorableKey(prefix), status.prefix, status.started);
+            job.scanned.set(status.scanned);
+            job.deleted.set(status.deleted);
+            job.state = status.state;
+            job.endTime = status.ended;
+            job.failure = status.failure;
+            if (lastKey != null) {
+                job.lastKey = new StorableKey(lastKey);
+            }
+            return job;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.fasterxml.transistore.service.store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPOutputStream;
+
+import com.ning.compress.lzf.LZFOutputStream;
+
+import com.fasterxml.storemate.shared.compress.Compression;
+import com.fasterxml.storemate.shared.hash.IncrementalHasher32;
+
+import com.fasterxml.clustermate.api.EntryKeyConverter;
+
+/**
+ * Helper class used for writing entry content from an input stream directly
+ * into its external storage file, in a single pass: content hash (of
+ * uncompressed content) and optional compression are calculated as content
+ * is copied, and output is written through a {@link FileChannel}.
+ *<p>
+ * A single fixed-size copy buffer is used per thread, so memory usage
+ * does not depend on size of content written.
+ */
+public class StreamingEntryWriter
+{
+    public final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    protected final EntryKeyConverter<?> _keyConverter;
+
+    protected final int _bufferSize;
+
+    protected final ThreadLocal<byte[]> _buffers = new ThreadLocal<byte[]>();
+
+    public StreamingEntryWriter(EntryKeyConverter<?> keyConverter) {
+        this(keyConverter, DEFAULT_BUFFER_SIZE);
+    }
+
+    public StreamingEntryWriter(EntryKeyConverter<?> keyConverter, int bufferSize)
+    {
+        _keyConverter = keyConverter;
+        _bufferSize = bufferSize;
+    }
+
+    /**
+     * Method for copying all content from given input stream into given file,
+     * compressing it with given compression method (if any).
+     *
+     * @param maxLength Maximum number of (uncompressed) bytes allowed; if more
+     *    content is available, an {@link IOException} is thrown
+     */
+    public Result write(InputStream in, File target, Compression comp, long maxLength)
+        throws IOException
+    {
+        final byte[] buffer = _buffer();
+        Session session = open(target, comp, maxLength);
+        boolean ok = false;
+        try {
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                if (count > 0) {
+                    session.append(buffer, 0, count);
+                }
+            }
+            Result result = session.finish();
+            ok = true;
+            return result;
+        } finally {
+            if (!ok) {
+                session.abort();
+            }
+        }
+    }
+
+    /**
+     * Method for starting incremental writing of content into given file;
+     * used when content is not available as a blocking input stream
+     * (like with non-blocking request reads). Caller is responsible for
+     * calling either {@link Session#finish} or {@link Session#abort}.
+     */
+    public Session open(File target, Compression comp, long maxLength)
+        throws IOException
+    {
+        return new Session(target, comp, maxLength);
+    }
+
+    protected OutputStream _compressingStream(Compression comp, OutputStream out)
+        throws IOException
+    {
+        switch (comp) {
+        case LZF:
+            return new LZFOutputStream(out);
+        case GZIP:
+            return new GZIPOutputStream(out, _bufferSize);
+        default:
+        }
+        throw new IllegalArgumentException("Unsupported compression for streaming writes: "+comp);
+    }
+
+    protected byte[] _buffer()
+    {
+        byte[] buffer = _buffers.get();
+        if (buffer == null) {
+            buffer = new byte[_bufferSize];
+            _buffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Object that represents state of a single (incremental) write
+     * of an entry into its file.
+     */
+    public class Session
+    {
+        protected final File _target;
+
+        protected final Compression _compression;
+
+        protected final long _maxLength;
+
+        protected final FileOutputStream _fileOut;
+
+        protected final ChannelOutputStream _rawOut;
+
+        /**
+         * Compressing stream, if content is to be compressed; null if not
+         */
+        protected final OutputStream _out;
+
+        protected final IncrementalHasher32 _hasher;
+
+        protected final IncrementalHasher32 _storedHasher;
+
+        protected long _total;
+
+        protected Session(File target, Compression comp, long maxLength) throws IOException
+        {
+            final boolean compress = (comp != null) && (comp != Compression.NONE);
+            _target = target;
+            _compression = comp;
+            _maxLength = maxLength;
+            _hasher = _keyConverter.createStreamingContentHasher();
+            _storedHasher = compress ? _keyConverter.createStreamingContentHasher() : null;
+            _fileOut = new FileOutputStream(target);
+            _rawOut = new ChannelOutputStream(_fileOut.getChannel(), _storedHasher);
+            OutputStream out = null;
+            if (compress) {
+                try {
+                    out = _compressingStream(comp, _rawOut);
+                } catch (IOException e) {
+                    abort();
+                    throw e;
+                } catch (RuntimeException e) {
+                    abort();
+                    throw e;
+                }
+            }
+            _out = out;
+        }
+
+        public File getFile() {
+            return _target;
+        }
+
+        public long getBytesAppended() {
+            return _total;
+        }
+
+        public void append(byte[] buffer, int offset, int count) throws IOException
+        {
+            _total += count;
+            if (_total > _maxLength) {
+                throw new IOException("Content too long: exceeds maximum of "+_maxLength+" bytes");
+            }
+            _hasher.update(buffer, offset, count);
+            if (_out == null) {
+                _rawOut.write(buffer, offset, count);
+            } else {
+                _out.write(buffer, offset, count);
+            }
+        }
+
+        public Result finish() throws IOException
+        {
+            if (_out != null) { // to flush compressor state
+                _out.close();
+            }
+            _fileOut.close();
+            return new Result(_compression, _total, _rawOut.written(), _hasher.calculateHash(),
+                    (_storedHasher == null) ? 0 : _storedHasher.calculateHash());
+        }
+
+        /**
+         * Method called to close the file and remove it, if writing failed
+         * or was abandoned.
+         */
+        public void abort()
+        {
+            try { _fileOut.close(); } catch (IOException e) { }
+            _target.delete();
+        }
+    }
+
+    /**
+     * Value class for information about content written.
+     */
+    public static class Result
+    {
+        public final Compression compression;
+        public final long uncompressedLength;
+        public final long storedLength;
+        public final int contentHash;
+        /**
+         * Hash of compressed content, if content was compressed; 0 if not.
+         */
+        public final int compressedContentHash;
+
+        public Result(Compression comp, long uncompressedLength, long storedLength,
+                int contentHash, int compressedContentHash)
+        {
+            compression = comp;
+            this.uncompressedLength = uncompressedLength;
+            this.storedLength = storedLength;
+            this.contentHash = contentHash;
+            this.compressedContentHash = compressedContentHash;
+        }
+    }
+
+    /**
+     * Output stream that writes directly to a file channel, wrapping
+     * caller-provided arrays instead of copying, and optionally calculating
+     * hash of everything written.
+     */
+    protected static class ChannelOutputStream extends OutputStream
+    {
+        protected final FileChannel _channel;
+
+        protected final IncrementalHasher32 _hasher;
+
+        protected long _written;
+
+        public ChannelOutputStream(FileChannel channel, IncrementalHasher32 hasher) {
+            _channel = channel;
+            _hasher = hasher;
+        }
+
+        public long written() {
+            return _written;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int len) throws IOException
+        {
+            if (_hasher != null) {
+                _hasher.update(b, offset, len);
+            }
+            ByteBuffer bb = ByteBuffer.wrap(b, offset, len);
+            while (bb.hasRemaining()) {
+                _channel.write(bb);
+            }
+            _written += len;
+        }
+
+        // Underlying channel is closed by caller
+        @Override
+        public void close() { }
+    }
+}
@@ -0,0 +1,491 @@
+package com.fasterxml.transistore.service.sync;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.shared.TimeMaster;
+import com.fasterxml.storemate.store.*;
+import com.fasterxml.storemate.store.backend.IterationAction;
+import com.fasterxml.storemate.store.backend.StorableLastModIterationCallback;
+
+import com.fasterxml.clustermate.api.EntryKeyConverter;
+import com.fasterxml.clustermate.service.SharedServiceStuff;
+import com.fasterxml.clustermate.service.store.StoredEntry;
+import com.fasterxml.clustermate.service.store.StoredEntryConverter;
+
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.basic.BasicTSSyncListFormat;
+import com.fasterxml.transistore.service.cfg.BasicTSServiceConfig;
+
+/**
+ * Component that builds (and caches) the {@link KeyspaceHashTree} for
+ * local entries, and lists entries of specified keyspace segments, for
+ * hash-tree based anti-entropy between nodes.
+ *<p>
+ * Tree is built by a full traversal of local entries, so it is only
+ * rebuilt when requested, and cached version is older than specified
+ * maximum age; and rebuilding is done by a background thread, so that
+ * requests are served using the latest tree built (if any) without
+ * waiting for traversal to complete.
+ *<p>
+ * Entries of segments are listed in frames of bounded size, passed to
+ * caller as soon as they are full, so that memory usage does not depend
+ * on number of entries listed. Entries may also be listed in priority order
+ * (see {@link #listSegmentsByPriority}), so that entries most likely to be
+ * read soon get synchronized first.
+ */
+public class HashTreeManager
+{
+    /**
+     * Number of frames worth of entries kept in memory for ordering entries
+     * listed in priority order.
+     */
+    protected final static int PRIORITY_WINDOW_FRAMES = 10;
+
+    private final Logger LOG = LoggerFactory.getLogger(getClass());
+
+    protected final StorableStore _entryStore;
+
+    protected final EntryKeyConverter<BasicTSKey> _keyConverter;
+
+    protected final StoredEntryConverter<BasicTSKey,StoredEntry<BasicTSKey>,?> _entryConverter;
+
+    protected final TimeMaster _timeMaster;
+
+    protected final int _keyspaceSize;
+
+    protected final long _maxTreeAgeMsecs;
+
+    /**
+     * Entries that would expire within this time are not included in
+     * sync listings, since they would likely expire before (or
+     * soon after) being transferred.
+     */
+    protected final long _expirationMarginMsecs;
+
+    protected final AtomicLong _expiredSkipped = new AtomicLong();
+
+    protected final AtomicLong _expiredSkippedBytes = new AtomicLong();
+
+    /**
+     * Executor used for building trees; single-threaded, so that at most
+     * one traversal is in progress at any given time.
+     */
+    protected final Executor _treeBuilder;
+
+    protected final AtomicBoolean _treeBuildPending = new AtomicBoolean(false);
+
+    protected volatile KeyspaceHashTree _tree;
+
+    protected volatile long _treeBuilt;
+
+    public HashTreeManager(StorableStore entryStore, EntryKeyConverter<BasicTSKey> keyConverter,
+            StoredEntryConverter<BasicTSKey,StoredEntry<BasicTSKey>,?> entryConverter,
+            TimeMaster timeMaster, int keyspaceSize, long maxTreeAgeMsecs,
+            long expirationMarginMsecs)
+    {
+        this(entryStore, keyConverter, entryConverter, timeMaster, keyspaceSize,
+                maxTreeAgeMsecs, expirationMarginMsecs,
+                Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "HashTreeBuilder");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }));
+    }
+
+    protected HashTreeManager(StorableStore entryStore, EntryKeyConverter<BasicTSKey> keyConverter,
+            StoredEntryConverter<BasicTSKey,StoredEntry<BasicTSKey>,?> entryConverter,
+            TimeMaster timeMaster, int keyspaceSize, long maxTreeAgeMsecs,
+            long expirationMarginMsecs, Executor treeBuilder)
+    {
+        _entryStore = entryStore;
+        _keyConverter = keyConverter;
+        _entryConverter = entryConverter;
+        _timeMaster = timeMaster;
+        _keyspaceSize = keyspaceSize;
+        _maxTreeAgeMsecs = maxTreeAgeMsecs;
+        _expirationMarginMsecs = expirationMarginMsecs;
+        _treeBuilder = treeBuilder;
+    }
+
+    /**
+     * Factory method for constructing manager using configuration of
+     * the service.
+     *
+     * @return Manager constructed; null if service does not use TransiStore
+     *   configuration
+     */
+    public static HashTreeManager forService(SharedServiceStuff stuff, StorableStore entryStore)
+    {
+        if (!(stuff.getServiceConfig() instanceof BasicTSServiceConfig)) {
+            return null;
+        }
+        BasicTSServiceConfig config = (BasicTSServiceConfig) stuff.getServiceConfig();
+        EntryKeyConverter<BasicTSKey> keyConverter = stuff.getKeyConverter();
+        StoredEntryConverter<BasicTSKey,StoredEntry<BasicTSKey>,?> entryConverter = stuff.getEntryConverter();
+        return new HashTreeManager(entryStore, keyConverter, entryConverter,
+                stuff.getTimeMaster(), config.cluster.clusterKeyspaceSize,
+                config.hashTreeMaxAgeMsecs, config.syncExpirationMarginMsecs);
+    }
+
+    public int getKeyspaceSize() {
+        return _keyspaceSize;
+    }
+
+    /**
+     * Method for stopping background building of trees; called when
+     * service is shut down.
+     */
+    public void stop()
+    {
+        if (_treeBuilder instanceof ExecutorService) {
+            ((ExecutorService) _treeBuilder).shutdownNow();
+        }
+    }
+
+    /**
+     * Method for accessing tree of local entries. If no tree has been built
+     * yet, or if the latest tree is too old, building of a new tree is
+     * started in background; but this method never waits for it to complete,
+     * and simply returns the latest tree available.
+     *
+     * @return Latest tree built, if any; null if the first tree is still
+     *   being built
+     */
+    public KeyspaceHashTree getTree()
+    {
+        KeyspaceHashTree tree = _tree;
+        if (tree == null || (_timeMaster.currentTimeMillis() - _treeBuilt) > _maxTreeAgeMsecs) {
+            _scheduleBuild();
+        }
+        return tree;
+    }
+
+    /**
+     * Method for listing local entries (including tombstones) in
+     * given keyspace segments; used for finding actual differences in
+     * segments whose hashes differ. Entries are passed to handler in frames
+     * of at most given size, in store iteration order. Entries that would
+     * expire within the expiration margin are skipped, since there is no
+     * point in replicating them.
+     */
+    public void listSegments(BitSet segments, int frameSize, FrameHandler handler)
+        throws IOException
+    {
+        _listSegments(segments, frameSize, 0, handler);
+    }
+
+    /**
+     * Method for listing local entries in given keyspace segments in
+     * priority order (see {@link PrioritizedEntry}), in frames of at most
+     * given size. As with {@link #listSegments}, entries about to expire
+     * are skipped.
+     *<p>
+     * To keep memory usage bounded, ordering is done within a window of
+     * {@link #PRIORITY_WINDOW_FRAMES} frames worth of entries (see
+     * {@link PriorityWindow}), so ordering is exact for listings that fit
+     * in the window, and approximate for longer ones.
+     */
+    public void listSegmentsByPriority(BitSet segments, int frameSize, FrameHandler handler)
+        throws IOException
+    {
+        _listSegments(segments, frameSize, frameSize * PRIORITY_WINDOW_FRAMES, handler);
+    }
+
+    /**
+     * Method for constructing priority information for given local entry,
+     * for listing entries to synchronize in priority order.
+     */
+    public PrioritizedEntry prioritizedEntry(Storable raw)
+    {
+        if (raw.isDeleted()) {
+            return PrioritizedEntry.forTombstone(raw);
+        }
+        return PrioritizedEntry.forEntry(raw, _entryConverter.entryFromStorable(raw));
+    }
+
+    /**
+     * Method for checking whether given local entry is to be listed for
+     * synchronization: entries that would expire within the expiration
+     * margin are not (and are counted as skipped), but tombstones always
+     * are, so that deletions get synchronized.
+     *
+     * @return Priority information for the entry, if it is to be listed;
+     *   null if not
+     */
+    public PrioritizedEntry syncableEntry(Storable raw)
+    {
+        return _prioritizedEntry(raw, _timeMaster.currentTimeMillis() + _expirationMarginMsecs);
+    }
+
+    /*
+    /**********************************************************************
+    /* Metrics
+    /**********************************************************************
+     */
+
+    /**
+     * @return Number of entries left out of sync listings (sync lists and
+     *    segment listings) since they had expired, or were about to expire
+     */
+    public long getExpiredSkippedCount() {
+        return _expiredSkipped.get();
+    }
+
+    /**
+     * @return Total (uncompressed) length of entries left out of sync
+     *    listings since they had expired, or were about to expire
+     */
+    public long getExpiredSkippedBytes() {
+        return _expiredSkippedBytes.get();
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected void _scheduleBuild()
+    {
+        if (!_treeBuildPending.compareAndSet(false, true)) { // already being built
+            return;
+        }
+        try {
+            _treeBuilder.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final long start = _timeMaster.currentTimeMillis();
+                        KeyspaceHashTree tree = _buildTree();
+                        // age is based on start time, as changes during traversal may be missed
+                        _treeBuilt = start;
+                        _tree = tree;
+                    } catch (Exception e) {
+                        LOG.warn("Failed to build keyspace hash tree: {}", e.getMessage());
+                    } finally {
+                        _treeBuildPending.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) { // stopped
+            _treeBuildPending.set(false);
+        }
+    }
+
+    protected void _listSegments(BitSet segments, int frameSize, int windowSize,
+            final FrameHandler handler)
+        throws IOException
+    {
+        final PriorityWindow<PrioritizedEntry> window = new PriorityWindow<PrioritizedEntry>(frameSize,
+                windowSize, new PriorityWindow.Handler<PrioritizedEntry>() {
+            @Override
+            public void handleFrame(List<PrioritizedEntry> frame) throws IOException {
+                handler.handleFrame(PrioritizedEntry.entries(frame));
+            }
+        });
+        _listEntries(segments, new EntryCollector() {
+            @Override
+            public void add(PrioritizedEntry entry) throws IOException {
+                window.add(entry);
+            }
+        });
+        window.finish();
+    }
+
+    /**
+     * Method for iterating over entries of given segments, passing each one
+     * to given collector. If collector fails, iteration is terminated, and
+     * the exception re-thrown.
+     */
+    protected void _listEntries(final BitSet segments, final EntryCollector collector)
+        throws IOException
+    {
+        final long expirationLimit = _timeMaster.currentTimeMillis() + _expirationMarginMsecs;
+        final IOException[] fail = new IOException[1];
+        _entryStore.iterateEntriesByModifiedTime(StoreOperationSource.CLEANUP, null,
+                0L, new StorableLastModIterationCallback() {
+            @Override
+            public IterationAction verifyTimestamp(long timestamp) {
+                return IterationAction.PROCESS_ENTRY;
+            }
+
+            @Override
+            public IterationAction verifyKey(StorableKey key) {
+                return segments.get(_segmentFor(key))
+                        ? IterationAction.PROCESS_ENTRY : IterationAction.SKIP_ENTRY;
+            }
+
+            @Override
+            public IterationAction processEntry(Storable raw) throws StoreException {
+                PrioritizedEntry entry = _prioritizedEntry(raw, expirationLimit);
+                if (entry != null) {
+                    try {
+                        collector.add(entry);
+                    } catch (IOException e) {
+                        fail[0] = e;
+                        return IterationAction.TERMINATE_ITERATION;
+                    }
+                }
+                return IterationAction.PROCESS_ENTRY;
+            }
+        });
+        if (fail[0] != null) {
+            throw fail[0];
+        }
+    }
+
+    /**
+     * @return Entry to list, if any; null if entry is to be skipped
+     *   since it is about to expire
+     */
+    protected PrioritizedEntry _prioritizedEntry(Storable raw, long expirationLimit)
+    {
+        if (raw.isDeleted()) {
+            return PrioritizedEntry.forTombstone(raw);
+        }
+        StoredEntry<BasicTSKey> entry = _entryConverter.entryFromStorable(raw);
+        if (entry.hasExceededMaxTTL(expirationLimit)) {
+            _expiredSkipped.incrementAndGet();
+            _expiredSkippedBytes.addAndGet(raw.getActualUncompressedLength());
+            return null;
+        }
+        return PrioritizedEntry.forEntry(raw, entry);
+    }
+
+    protected KeyspaceHashTree _buildTree() throws StoreException
+    {
+        final long start = System.currentTimeMillis();
+        final KeyspaceHashTree.Builder builder = KeyspaceHashTree.builder(_keyspaceSize);
+        _entryStore.iterateEntriesByModifiedTime(StoreOperationSource.CLEANUP, null,
+                0L, new StorableLastModIterationCallback() {
+            @Override
+            public IterationAction verifyTimestamp(long timestamp) {
+                return IterationAction.PROCESS_ENTRY;
+            }
+
+            @Override
+            public IterationAction verifyKey(StorableKey key) {
+                return IterationAction.PROCESS_ENTRY;
+            }
+
+            @Override
+            public IterationAction processEntry(Storable raw) {
+                StorableKey key = raw.getKey();
+                builder.add(_routingHashFor(key), key, raw.getContentHash(), raw.isDeleted());
+                return IterationAction.PROCESS_ENTRY;
+            }
+        });
+        LOG.info("Built keyspace hash tree for {} entries in {} msecs",
+                builder.getEntryCount(), System.currentTimeMillis() - start);
+        return builder.build();
+    }
+
+    protected int _routingHashFor(StorableKey rawKey) {
+        return _keyConverter.routingHashFor(_keyConverter.rawToEntryKey(rawKey));
+    }
+
+    protected int _segmentFor(StorableKey rawKey) {
+        return KeyspaceHashTree.segmentFor(_routingHashFor(rawKey), _keyspaceSize);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Callback interface for receiving frames of listed entries.
+     */
+    public interface FrameHandler
+    {
+        public void handleFrame(List<BasicTSSyncListFormat.Entry> entries) throws IOException;
+    }
+
+    protected interface EntryCollector
+    {
+        public void add(PrioritizedEntry entry) throws IOException;
+    }
+
+    /**
+     * Container used for sorting listed entries in priority order. Since
+     * transient data loses its value fastest, entries are ordered
+     * by maximum TTL (shortest first), and entries with same TTL by creation
+     * time (newest first). Tombstones are ordered before all other entries,
+     * to prevent resurrection of deleted entries.
+     */
+    public static class PrioritizedEntry implements Comparable<PrioritizedEntry>
+    {
+        public final BasicTSSyncListFormat.Entry entry;
+
+        /**
+         * Maximum TTL of entry, in seconds; -1 for tombstones
+         */
+        public final int maxTTLSecs;
+
+        public final long created;
+
+        public PrioritizedEntry(BasicTSSyncListFormat.Entry entry, int maxTTLSecs, long created)
+        {
+            this.entry = entry;
+            this.maxTTLSecs = maxTTLSecs;
+            this.created = created;
+        }
+
+        protected PrioritizedEntry(PrioritizedEntry base)
+        {
+            this(base.entry, base.maxTTLSecs, base.created);
+        }
+
+        public static PrioritizedEntry forTombstone(Storable raw)
+        {
+            return new PrioritizedEntry(new BasicTSSyncListFormat.Entry(raw.getKey(),
+                    raw.getLastModified(), raw.getContentHash(), BasicTSSyncListFormat.DELETED_LENGTH),
+                    -1, Long.MAX_VALUE);
+        }
+
+        public static PrioritizedEntry forEntry(Storable raw, StoredEntry<BasicTSKey> entry)
+        {
+            return new PrioritizedEntry(new BasicTSSyncListFormat.Entry(raw.getKey(),
+                    raw.getLastModified(), raw.getContentHash(), raw.getActualUncompressedLength()),
+                    entry.getMaxTTLSecs(), entry.getCreationTime());
+        }
+
+        public static List<BasicTSSyncListFormat.Entry> entries(List<? extends PrioritizedEntry> prioritized)
+        {
+            List<BasicTSSyncListFormat.Entry> result = new ArrayList<BasicTSSyncListFormat.Entry>(prioritized.size());
+            for (PrioritizedEntry p : prioritized) {
+                result.add(p.entry);
+            }
+            return result;
+        }
+
+        @Override
+        public int compareTo(PrioritizedEntry other)
+        {
+            if (maxTTLSecs != other.maxTTLSecs) {
+                return (maxTTLSecs < other.maxTTLSecs) ? -1 : 1;
+            }
+            // newest first
+            if (created != other.created) {
+                return (created > other.created) ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
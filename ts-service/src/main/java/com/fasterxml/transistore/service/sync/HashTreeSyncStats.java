@@ -0,0 +1,60 @@
+package com.fasterxml.transistore.service.sync;
+
+/**
+ * Helper class used to keep track of progress of hash-tree based
+ * anti-entropy (see {@link HashTreeSyncer}).
+ */
+public class HashTreeSyncStats
+{
+    // Number of peers whose trees were compared
+    protected int comparedPeers = 0;
+    // Number of peers we failed to sync with
+    protected int failedPeers = 0;
+
+    // Number of keyspace segments whose hashes differed
+    protected int differingSegments = 0;
+
+    // Number of entries pulled from peers
+    protected int pulledEntries = 0;
+    protected long pulledBytes = 0L;
+
+    // Number of local entries deleted due to tombstones of peers
+    protected int deletedEntries = 0;
+
+    // Number of entries that differ, but that are not to be synced
+    // (local tombstones, conflicting contents, expired or big entries)
+    protected int skippedEntries = 0;
+
+    public void addComparedPeer(int differing) {
+        ++comparedPeers;
+        differingSegments += differing;
+    }
+    public void addFailedPeer() { ++failedPeers; }
+
+    public void addPulledEntry(long size) {
+        ++pulledEntries;
+        pulledBytes += size;
+    }
+    public void addDeletedEntry() { ++deletedEntries; }
+    public void addSkippedEntry() { ++skippedEntries; }
+
+    public int getPulledEntries() { return pulledEntries; }
+    public int getDeletedEntries() { return deletedEntries; }
+    public int getSkippedEntries() { return skippedEntries; }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(60)
+            .append("Compared with ").append(comparedPeers)
+            .append(" peers (").append(differingSegments)
+            .append(" differing segments); pulled ").append(pulledEntries)
+            .append(" entries (").append(pulledBytes>>10)
+            .append(" kB), deleted ").append(deletedEntries)
+            .append(", skipped ").append(skippedEntries);
+        if (failedPeers > 0) {
+            sb = sb.append("; FAILED to sync with ").append(failedPeers).append(" peers");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,471 @@
+package com.fasterxml.transistore.service.sync;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.*;
+
+import com.fasterxml.storemate.shared.ByteContainer;
+import com.fasterxml.storemate.shared.IpAndPort;
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.store.*;
+
+import com.fasterxml.clustermate.api.EntryKeyConverter;
+import com.fasterxml.clustermate.api.KeyHash;
+import com.fasterxml.clustermate.api.KeyRange;
+import com.fasterxml.clustermate.service.*;
+import com.fasterxml.clustermate.service.cleanup.CleanupTask;
+import com.fasterxml.clustermate.service.cluster.ClusterPeer;
+import com.fasterxml.clustermate.service.cluster.ClusterViewByServer;
+import com.fasterxml.clustermate.service.store.StoredEntry;
+import com.fasterxml.clustermate.service.store.StoredEntryConverter;
+
+import com.fasterxml.transistore.basic.BasicTSBatchFormat;
+import com.fasterxml.transistore.basic.BasicTSConstants;
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.basic.BasicTSSyncListFormat;
+import com.fasterxml.transistore.service.TSLastAccess;
+
+/**
+ * Background task that drives hash-tree based anti-entropy: for each peer
+ * that shares part of the keyspace with the local node, leaf hashes of its
+ * {@link KeyspaceHashTree} are fetched and compared to those of the local
+ * tree, entries of differing segments are listed (in priority order), and
+ * differences resolved:
+ *<ul>
+ * <li>Entries missing locally are pulled from the peer, using batch GETs
+ *   </li>
+ * <li>Local entries deleted by the peer are soft-deleted, leaving
+ *   a tombstone
+ *   </li>
+ *</ul>
+ * Local tombstones are never overwritten (deletion is final), and since
+ * entries are immutable, entries with differing contents are only counted.
+ * Entries whose contents are stored as external files are not included in
+ * batch GETs, so they are left to the standard sync (which this task
+ * complements, to repair what it misses, rather than replaces).
+ *<p>
+ * Only a limited number of segments is synced with each peer per round,
+ * to bound the time a single round takes; the rest are synced during
+ * the following rounds.
+ */
+public class HashTreeSyncer
+    extends CleanupTask<HashTreeSyncStats>
+{
+    /**
+     * Maximum number of differing segments synced with a single peer
+     * during a single round.
+     */
+    protected final static int MAX_SEGMENTS_PER_ROUND = 64;
+
+    /**
+     * Maximum number of entries to pull with a single batch GET
+     */
+    protected final static int PULL_BATCH_SIZE = 100;
+
+    /**
+     * Maximum number of entries accepted in a single frame of segment
+     * listing; bigger than what peers send, as a sanity check.
+     */
+    protected final static int MAX_FRAME_ENTRIES = 10000;
+
+    protected final static int CONNECT_TIMEOUT_MSECS = 5000;
+
+    protected final static int READ_TIMEOUT_MSECS = 30000;
+
+    protected final Logger LOG;
+
+    protected final HashTreeManager _treeManager;
+
+    protected ClusterViewByServer _clusterView;
+
+    protected StorableStore _entryStore;
+
+    protected EntryKeyConverter<BasicTSKey> _keyConverter;
+
+    protected StoredEntryConverter<BasicTSKey,StoredEntry<BasicTSKey>,?> _entryConverter;
+
+    protected String[] _servicePathRoot;
+
+    /**
+     * Segment from which to continue syncing, if there were more differing
+     * segments than could be synced during a single round
+     */
+    protected int _nextSegment;
+
+    public HashTreeSyncer(HashTreeManager treeManager) {
+        this(treeManager, LoggerFactory.getLogger(HashTreeSyncer.class));
+    }
+
+    public HashTreeSyncer(HashTreeManager treeManager, Logger log) {
+        _treeManager = treeManager;
+        LOG = log;
+    }
+
+    @Override
+    protected void init(SharedServiceStuff stuff,
+            Stores<?,?> stores,
+            ClusterViewByServer cluster,
+            AtomicBoolean shutdown)
+    {
+        super.init(stuff, stores, cluster, shutdown);
+        _clusterView = cluster;
+        _entryStore = stores.getEntryStore();
+        _keyConverter = stuff.getKeyConverter();
+        _entryConverter = stuff.getEntryConverter();
+        _servicePathRoot = stuff.getServiceConfig().servicePathRoot;
+    }
+
+    @Override
+    protected HashTreeSyncStats _cleanUp() throws Exception
+    {
+        final HashTreeSyncStats stats = new HashTreeSyncStats();
+        // note: never blocks; tree is built in background if need be
+        KeyspaceHashTree localTree = _treeManager.getTree();
+        if (localTree == null) {
+            _reportProblem("HashTreeSyncer: local hash tree not yet built, skipping round");
+            return stats;
+        }
+        _reportStart();
+        for (ClusterPeer peer : _clusterView.getPeers()) {
+            if (shouldStop()) {
+                _reportProblem("Stopping "+HashTreeSyncer.class.getName()+" early due to shutdown");
+                break;
+            }
+            BitSet shared = _sharedSegments(peer);
+            if (shared.isEmpty()) {
+                continue;
+            }
+            try {
+                _syncWithPeer(peer.getAddress(), localTree, shared, stats);
+            } catch (IOException e) { // includes StoreException
+                stats.addFailedPeer();
+                LOG.warn("Failed to sync hash tree with {}: {}", peer.getAddress(), e.getMessage());
+            }
+        }
+        _reportEndSuccess(stats);
+        return stats;
+    }
+
+    /*
+    /**********************************************************************
+    /* Sync logic
+    /**********************************************************************
+     */
+
+    /**
+     * Method for finding keyspace segments that both the local node and
+     * given peer are responsible for; only these are to be synced.
+     */
+    protected BitSet _sharedSegments(ClusterPeer peer)
+    {
+        final int keyspaceSize = _treeManager.getKeyspaceSize();
+        BitSet result = new BitSet(keyspaceSize);
+        KeyRange range = peer.getSyncRange();
+        if (range != null) {
+            for (int i = 0; i < keyspaceSize; ++i) {
+                // segment index is the same as position in keyspace
+                if (range.contains(new KeyHash(i, keyspaceSize))) {
+                    result.set(i);
+                }
+            }
+        }
+        return result;
+    }
+
+    protected void _syncWithPeer(final IpAndPort peer, KeyspaceHashTree localTree, BitSet shared,
+            final HashTreeSyncStats stats)
+        throws IOException
+    {
+        KeyspaceHashTree peerTree = _fetchTree(peer);
+        if (peerTree == null) { // peer still building its tree
+            return;
+        }
+        if (peerTree.getLeafCount() != localTree.getLeafCount()) {
+            throw new IOException("Peer has different keyspace size ("+peerTree.getLeafCount()
+                    +" vs "+localTree.getLeafCount()+")");
+        }
+        List<Integer> differing = localTree.differingLeaves(peerTree, shared);
+        stats.addComparedPeer(differing.size());
+        if (differing.isEmpty()) {
+            return;
+        }
+        differing = _chooseSegments(differing);
+        final List<StorableKey> toPull = new ArrayList<StorableKey>();
+        _listSegments(peer, differing, new HashTreeManager.FrameHandler() {
+            @Override
+            public void handleFrame(List<BasicTSSyncListFormat.Entry> entries) throws IOException {
+                for (BasicTSSyncListFormat.Entry entry : entries) {
+                    if (shouldStop()) {
+                        throw new IOException("Sync stopped due to shutdown");
+                    }
+                    if (_resolve(entry, stats)) {
+                        toPull.add(entry.key);
+                        if (toPull.size() >= PULL_BATCH_SIZE) {
+                            _pull(peer, toPull, stats);
+                            toPull.clear();
+                        }
+                    }
+                }
+            }
+        });
+        if (!toPull.isEmpty()) {
+            _pull(peer, toPull, stats);
+        }
+    }
+
+    /**
+     * Method for choosing at most {@link #MAX_SEGMENTS_PER_ROUND} of differing
+     * segments to sync; starting from where the previous round stopped, so
+     * that segments that can not be fully synced (like ones with entries
+     * with conflicting contents) do not prevent syncing of the others.
+     */
+    protected List<Integer> _chooseSegments(List<Integer> differing)
+    {
+        if (differing.size() <= MAX_SEGMENTS_PER_ROUND) {
+            return differing;
+        }
+        int start = 0;
+        while (start < differing.size() && differing.get(start) < _nextSegment) {
+            ++start;
+        }
+        List<Integer> result = new ArrayList<Integer>(MAX_SEGMENTS_PER_ROUND);
+        for (int i = 0; i < MAX_SEGMENTS_PER_ROUND; ++i) {
+            result.add(differing.get((start + i) % differing.size()));
+        }
+        _nextSegment = result.get(result.size()-1) + 1;
+        return result;
+    }
+
+    /**
+     * Method for resolving difference for an entry listed by a peer.
+     *
+     * @return True if entry is to be pulled from the peer
+     */
+    protected boolean _resolve(BasicTSSyncListFormat.Entry entry, HashTreeSyncStats stats)
+        throws IOException
+    {
+        BasicTSSyncListFormat.Entry local = _findLocal(entry.key);
+        if (entry.isDeleted()) {
+            if (local != null && !local.isDeleted()) {
+                _softDelete(entry.key);
+                stats.addDeletedEntry();
+            }
+            return false;
+        }
+        if (local == null) {
+            return true;
+        }
+        // local tombstones win; and different contents can not be resolved
+        if (local.isDeleted() || local.hash != entry.hash) {
+            stats.addSkippedEntry();
+        }
+        return false;
+    }
+
+    /**
+     * Method for adding an entry pulled from a peer. Since entries are
+     * transient, entry is added with the remaining time-to-live it has
+     * on the peer.
+     */
+    protected void _addPulled(StorableKey key, byte[] data, int contentHash, long expiration,
+            HashTreeSyncStats stats)
+        throws IOException
+    {
+        final long now = _timeMaster.currentTimeMillis();
+        final long ttlSecs = (expiration - now) / 1000L;
+        if (ttlSecs <= 0L
+                || _keyConverter.contentHashFor(ByteContainer.simple(data, 0, data.length)) != contentHash) {
+            stats.addSkippedEntry();
+            return;
+        }
+        ByteContainer customMetadata = _entryConverter.createMetadata(now,
+                TSLastAccess.NONE.asByte(), (int) ttlSecs, (int) ttlSecs);
+        // null compression: let the store decide whether to compress
+        StorableCreationResult result = _entryStore.insert(StoreOperationSource.SYNC, null, key,
+                ByteContainer.simple(data, 0, data.length),
+                new StorableCreationMetadata(null, contentHash, 0), customMetadata);
+        if (result.succeeded()) {
+            stats.addPulledEntry(data.length);
+        } else { // added concurrently, or deleted
+            stats.addSkippedEntry();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Local store access
+    /**********************************************************************
+     */
+
+    /**
+     * @return Information on local entry with given key, in the same form
+     *   as peers list their entries; null if there is no such entry
+     */
+    protected BasicTSSyncListFormat.Entry _findLocal(StorableKey key) throws IOException
+    {
+        Storable raw = _entryStore.findEntry(StoreOperationSource.SYNC, null, key);
+        if (raw == null) {
+            return null;
+        }
+        return new BasicTSSyncListFormat.Entry(key, raw.getLastModified(), raw.getContentHash(),
+                raw.isDeleted() ? BasicTSSyncListFormat.DELETED_LENGTH : raw.getActualUncompressedLength());
+    }
+
+    protected void _softDelete(StorableKey key) throws IOException {
+        _entryStore.softDelete(StoreOperationSource.SYNC, null, key, true, true);
+    }
+
+    /*
+    /**********************************************************************
+    /* Peer access
+    /**********************************************************************
+     */
+
+    /**
+     * @return Tree of the peer; null if peer has not yet built one
+     */
+    protected KeyspaceHashTree _fetchTree(IpAndPort peer) throws IOException
+    {
+        HttpURLConnection conn = _openConnection(peer, "sync/tree", "GET");
+        int status = conn.getResponseCode();
+        if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+            conn.disconnect();
+            return null;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            conn.disconnect();
+            throw new IOException("Hash tree request failed with status "+status);
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
+        try {
+            int count = in.readInt();
+            if (count <= 0 || count > _treeManager.getKeyspaceSize()) {
+                throw new IOException("Invalid leaf count ("+count+")");
+            }
+            long[] leaves = new long[count];
+            for (int i = 0; i < count; ++i) {
+                leaves[i] = in.readLong();
+            }
+            return KeyspaceHashTree.fromLeaves(leaves);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Method for listing entries of given segments on the peer, in priority
+     * order, passing them to handler one frame at a time.
+     */
+    protected void _listSegments(IpAndPort peer, List<Integer> segments,
+            HashTreeManager.FrameHandler handler)
+        throws IOException
+    {
+        HttpURLConnection conn = _openConnection(peer,
+                "sync/tree?"+BasicTSConstants.TS_QUERY_PARAM_PRIORITY+"=true", "POST");
+        conn.setDoOutput(true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(conn.getOutputStream()));
+        out.writeInt(segments.size());
+        for (Integer segment : segments) {
+            out.writeInt(segment);
+        }
+        out.close();
+        int status = conn.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            conn.disconnect();
+            throw new IOException("Segment listing request failed with status "+status);
+        }
+        InputStream in = new BufferedInputStream(conn.getInputStream());
+        try {
+            readFrames(in, handler);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Helper method for reading a sequence of sync list frames, terminated
+     * by an empty frame, as sent by peers; if input ends before the
+     * empty frame, listing was cut short, and an exception is thrown
+     * (after passing frames read so far).
+     */
+    public static void readFrames(InputStream in, HashTreeManager.FrameHandler handler)
+        throws IOException
+    {
+        DataInputStream data = new DataInputStream(in);
+        while (true) {
+            List<BasicTSSyncListFormat.Entry> entries;
+            try {
+                entries = BasicTSSyncListFormat.decode(data, MAX_FRAME_ENTRIES);
+            } catch (EOFException e) {
+                throw new IOException("Segment listing ended without end marker: incomplete listing");
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+            handler.handleFrame(entries);
+        }
+    }
+
+    /**
+     * Method for pulling given entries from the peer using a batch GET.
+     */
+    protected void _pull(IpAndPort peer, List<StorableKey> keys, HashTreeSyncStats stats)
+        throws IOException
+    {
+        HttpURLConnection conn = _openConnection(peer,
+                "store/entriesBatch?"+BasicTSConstants.TS_QUERY_PARAM_ENTRY_INFO+"=true", "POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", BasicTSBatchFormat.CONTENT_TYPE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(conn.getOutputStream()));
+        BasicTSBatchFormat.writeKeys(out, keys);
+        out.close();
+        int status = conn.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            conn.disconnect();
+            throw new IOException("Batch GET failed with status "+status);
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
+        try {
+            int count = in.readInt();
+            if (count != keys.size()) {
+                throw new IOException("Batch response had "+count+" items, expected "+keys.size());
+            }
+            for (StorableKey key : keys) {
+                final byte itemStatus = in.readByte();
+                if (itemStatus == BasicTSBatchFormat.STATUS_OK) {
+                    int contentHash = in.readInt();
+                    long expiration = in.readLong();
+                    byte[] data = BasicTSBatchFormat.readBytes(in, Integer.MAX_VALUE);
+                    _addPulled(key, data, contentHash, expiration, stats);
+                } else {
+                    if (itemStatus == BasicTSBatchFormat.STATUS_NOT_INCLUDED) { // external; left for standard sync
+                        in.readInt();
+                        in.readLong();
+                    }
+                    stats.addSkippedEntry();
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    protected HttpURLConnection _openConnection(IpAndPort peer, String endpoint, String method)
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder(peer.getEndpoint());
+        for (String segment : _servicePathRoot) {
+            sb.append('/').append(segment);
+        }
+        sb.append('/').append(endpoint);
+        HttpURLConnection conn = (HttpURLConnection) new URL(sb.toString()).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MSECS);
+        conn.setReadTimeout(READ_TIMEOUT_MSECS);
+        conn.setRequestMethod(method);
+        return conn;
+    }
+}
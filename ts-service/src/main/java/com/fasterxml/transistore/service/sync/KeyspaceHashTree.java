@@ -0,0 +1,224 @@
+package com.fasterxml.transistore.service.sync;
+
+import java.util.*;
+
+import com.fasterxml.storemate.shared.StorableKey;
+
+/**
+ * Hash tree (Merkle tree) over the cluster keyspace, used for
+ * anti-entropy between nodes: each leaf covers one segment of the
+ * keyspace (as defined by <code>clusterKeyspaceSize</code>), and each
+ * inner node combines hashes of its two children. Nodes can compare
+ * their trees top-down, and only need to synchronize entries of
+ * leaf segments that differ.
+ *<p>
+ * Leaf hashes are order-independent (sum of per-entry digests), so
+ * that entries can be added in any order; and since they depend only
+ * on keys, content hashes and deletion status (not on modification
+ * times, which differ between nodes), nodes with identical contents
+ * have identical trees.
+ */
+public class KeyspaceHashTree
+{
+    /**
+     * Hashes of tree nodes, by level: level 0 contains leaf hashes,
+     * last level the single root hash.
+     */
+    protected final long[][] _levels;
+
+    protected KeyspaceHashTree(long[] leaves)
+    {
+        List<long[]> levels = new ArrayList<long[]>();
+        long[] level = leaves;
+        levels.add(level);
+        while (level.length > 1) {
+            long[] parent = new long[(level.length + 1) >> 1];
+            for (int i = 0; i < parent.length; ++i) {
+                int ix = i << 1;
+                parent[i] = (ix + 1 < level.length) ? _combine(level[ix], level[ix+1]) : level[ix];
+            }
+            levels.add(parent);
+            level = parent;
+        }
+        _levels = levels.toArray(new long[levels.size()][]);
+    }
+
+    /**
+     * Factory method for reconstructing a tree from leaf hashes
+     * (usually ones received from another node).
+     */
+    public static KeyspaceHashTree fromLeaves(long[] leaves)
+    {
+        if (leaves.length == 0) {
+            throw new IllegalArgumentException("Can not construct a tree without leaves");
+        }
+        return new KeyspaceHashTree(leaves.clone());
+    }
+
+    public static Builder builder(int keyspaceSize) {
+        return new Builder(keyspaceSize);
+    }
+
+    /*
+    /**********************************************************************
+    /* Accessors
+    /**********************************************************************
+     */
+
+    public int getLeafCount() {
+        return _levels[0].length;
+    }
+
+    public int getLevelCount() {
+        return _levels.length;
+    }
+
+    public long getRootHash() {
+        return _levels[_levels.length-1][0];
+    }
+
+    public long[] getLeaves() {
+        return _levels[0].clone();
+    }
+
+    /*
+    /**********************************************************************
+    /* Comparison
+    /**********************************************************************
+     */
+
+    /**
+     * Method for finding leaf segments whose hashes differ between this
+     * and given tree, by descending only into subtrees whose hashes differ.
+     *
+     * @param leafFilter Optional filter for leaves to consider (for example,
+     *   ones in keyspace range both nodes are responsible for); null to
+     *   consider all leaves. Note that if filter is used, comparison must
+     *   descend into all subtrees that contain accepted leaves, since inner
+     *   hashes also cover other leaves.
+     *
+     * @return Indexes of differing leaf segments, in ascending order
+     */
+    public List<Integer> differingLeaves(KeyspaceHashTree other, BitSet leafFilter)
+    {
+        if (other.getLeafCount() != getLeafCount()) {
+            throw new IllegalArgumentException("Can not compare trees with different leaf counts ("
+                    +getLeafCount()+" vs "+other.getLeafCount()+")");
+        }
+        List<Integer> result = new ArrayList<Integer>();
+        if (leafFilter == null) {
+            _diff(other, _levels.length-1, 0, result);
+        } else {
+            long[] mine = _levels[0];
+            long[] theirs = other._levels[0];
+            for (int i = leafFilter.nextSetBit(0); i >= 0 && i < mine.length; i = leafFilter.nextSetBit(i+1)) {
+                if (mine[i] != theirs[i]) {
+                    result.add(i);
+                }
+            }
+        }
+        return result;
+    }
+
+    protected void _diff(KeyspaceHashTree other, int level, int index, List<Integer> result)
+    {
+        if (_levels[level][index] == other._levels[level][index]) {
+            return;
+        }
+        if (level == 0) {
+            result.add(index);
+            return;
+        }
+        int child = index << 1;
+        _diff(other, level-1, child, result);
+        if (child + 1 < _levels[level-1].length) {
+            _diff(other, level-1, child+1, result);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Hashing
+    /**********************************************************************
+     */
+
+    /**
+     * Method for calculating keyspace segment (leaf index) for given
+     * routing hash.
+     */
+    public static int segmentFor(int routingHash, int keyspaceSize) {
+        return (routingHash & 0x7FFFFFFF) % keyspaceSize;
+    }
+
+    /**
+     * Method for calculating digest of a single entry.
+     */
+    public static long digestFor(StorableKey key, int contentHash, boolean deleted)
+    {
+        // 64-bit FNV-1a over key bytes, then mix in content hash and deletion status
+        long h = 0xcbf29ce484222325L;
+        byte[] b = key.asBytes();
+        for (int i = 0; i < b.length; ++i) {
+            h ^= (b[i] & 0xFF);
+            h *= 0x100000001b3L;
+        }
+        h ^= ((long) contentHash << 32) | (deleted ? 1L : 0L);
+        return _mix(h);
+    }
+
+    protected static long _combine(long left, long right) {
+        return _mix(left * 31L + right);
+    }
+
+    /**
+     * Finalization step of MurmurHash3 (64-bit), for avalanche
+     */
+    protected static long _mix(long h)
+    {
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Builder used for constructing a tree from entries, added in any order.
+     */
+    public static class Builder
+    {
+        protected final long[] _leaves;
+
+        protected long _entryCount;
+
+        public Builder(int keyspaceSize)
+        {
+            if (keyspaceSize < 1) {
+                throw new IllegalArgumentException("Invalid keyspace size ("+keyspaceSize+")");
+            }
+            _leaves = new long[keyspaceSize];
+        }
+
+        public Builder add(int routingHash, StorableKey key, int contentHash, boolean deleted)
+        {
+            _leaves[segmentFor(routingHash, _leaves.length)] += digestFor(key, contentHash, deleted);
+            ++_entryCount;
+            return this;
+        }
+
+        public long getEntryCount() {
+            return _entryCount;
+        }
+
+        public KeyspaceHashTree build() {
+            return new KeyspaceHashTree(_leaves.clone());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.fasterxml.transistore.service.sync;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Helper class for passing a sequence of items on in (approximate)
+ * priority order, in frames of bounded size, without having to keep all
+ * items in memory.
+ *<p>
+ * Items are first added in a window of bounded size; whenever the window
+ * gets full, the item with the highest priority (lowest value, as per
+ * natural ordering) is moved to the current frame, and frames are passed
+ * to the handler as soon as they are full. So ordering is exact for
+ * sequences that fit in the window, and approximate for longer ones;
+ * and with window size of 0, items are passed in the order added.
+ */
+public class PriorityWindow<T extends Comparable<? super T>>
+{
+    protected final int _frameSize;
+
+    protected final int _windowSize;
+
+    protected final Handler<T> _handler;
+
+    protected final PriorityQueue<T> _window;
+
+    protected final List<T> _frame = new ArrayList<T>();
+
+    public PriorityWindow(int frameSize, int windowSize, Handler<T> handler)
+    {
+        if (frameSize < 1) {
+            throw new IllegalArgumentException("Invalid frame size ("+frameSize+"): must be at least 1");
+        }
+        _frameSize = frameSize;
+        _windowSize = Math.max(0, windowSize);
+        _handler = handler;
+        _window = new PriorityQueue<T>(_windowSize + 1);
+    }
+
+    public void add(T item) throws IOException
+    {
+        _window.add(item);
+        if (_window.size() > _windowSize) {
+            _addToFrame(_window.poll());
+        }
+    }
+
+    /**
+     * Method to call after all items have been added, to pass the
+     * remaining items to the handler.
+     */
+    public void finish() throws IOException
+    {
+        while (!_window.isEmpty()) {
+            _addToFrame(_window.poll());
+        }
+        if (!_frame.isEmpty()) {
+            _flushFrame();
+        }
+    }
+
+    protected void _addToFrame(T item) throws IOException
+    {
+        _frame.add(item);
+        if (_frame.size() >= _frameSize) {
+            _flushFrame();
+        }
+    }
+
+    protected void _flushFrame() throws IOException
+    {
+        List<T> frame = new ArrayList<T>(_frame);
+        _frame.clear();
+        _handler.handleFrame(frame);
+    }
+
+    /**
+     * Callback interface for receiving frames of items.
+     */
+    public interface Handler<T>
+    {
+        public void handleFrame(List<T> frame) throws IOException;
+    }
+}
@@ -0,0 +1,169 @@
+package com.fasterxml.transistore.service.cache;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.shared.compress.Compression;
+
+import com.fasterxml.transistore.basic.BasicTSKeyConverter;
+import com.fasterxml.transistore.service.cfg.EntryCacheConfig;
+
+public class TestEntryCache extends TestCase
+{
+    protected final BasicTSKeyConverter _keyConverter = BasicTSKeyConverter.defaultInstance();
+
+    public void testSimple()
+    {
+        EntryCache cache = new EntryCache(_config(100000L));
+        CachedEntry entry = _entry(1, 1000L, 100);
+        assertTrue(cache.put(entry));
+        assertEquals(1, cache.getEntryCount());
+        assertSame(entry, cache.get(entry.getKey(), 1000L));
+        assertEquals(1L, cache.getHitCount());
+        assertNull(cache.get(_key(2), 1000L));
+        assertEquals(1L, cache.getMissCount());
+        assertEquals(0.5, cache.getHitRatio());
+
+        cache.invalidate(entry.getKey());
+        assertNull(cache.get(entry.getKey(), 1000L));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0L, cache.getSizeInBytes());
+    }
+
+    public void testExpiration()
+    {
+        EntryCacheConfig config = _config(100000L);
+        config.maxAgeMsecs = 5000L;
+        EntryCache cache = new EntryCache(config);
+        CachedEntry entry = _entry(1, 1000L, 100);
+        cache.put(entry);
+        assertNotNull(cache.get(entry.getKey(), 5000L));
+        // too old, should be dropped
+        assertNull(cache.get(entry.getKey(), 7000L));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testTooBig()
+    {
+        EntryCache cache = new EntryCache(_config(100000L));
+        assertFalse(cache.put(_entry(1, 1000L, cache.getMaxEntrySize() + 1)));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    /**
+     * Test to verify that frequently accessed entries are retained when
+     * a stream of one-off entries goes through the cache.
+     */
+    public void testScanResistance()
+    {
+        EntryCache cache = new EntryCache(_config(40000L));
+        final int HOT = 20;
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 0; i < HOT; ++i) {
+                if (cache.get(_key(i), 1000L) == null) {
+                    cache.put(_entry(i, 1000L, 500));
+                }
+            }
+        }
+        for (int i = 1000; i < 3000; ++i) {
+            if (cache.get(_key(i), 1000L) == null) {
+                cache.put(_entry(i, 1000L, 500));
+            }
+        }
+        int retained = 0;
+        for (int i = 0; i < HOT; ++i) {
+            if (cache.get(_key(i), 1000L) != null) {
+                ++retained;
+            }
+        }
+        assertTrue("Only "+retained+" of hot entries retained", retained >= HOT / 2);
+        assertTrue(cache.getSizeInBytes() <= 40000L);
+        assertTrue(cache.getEvictionCount() > 0L);
+    }
+
+    public void testSegments()
+    {
+        // small caches use a single segment, to keep admission policy effective
+        assertEquals(1, new EntryCache(_config(1000000L)).getSegmentCount());
+        assertEquals(4, new EntryCache(_config(4L * 1024L * 1024L)).getSegmentCount());
+        EntryCacheConfig config = _config(64L * 1024L * 1024L);
+        assertEquals(16, new EntryCache(config).getSegmentCount());
+        config.segments = 10;
+        EntryCache cache = new EntryCache(config);
+        assertEquals(8, cache.getSegmentCount());
+
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(cache.put(_entry(i, 1000L, 100)));
+        }
+        assertEquals(100, cache.getEntryCount());
+        for (int i = 0; i < 100; i += 2) {
+            cache.invalidate(_key(i));
+        }
+        assertEquals(50, cache.getEntryCount());
+        for (int i = 0; i < 100; ++i) {
+            assertEquals((i & 1) != 0, cache.get(_key(i), 1000L) != null);
+        }
+        cache.clear();
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0L, cache.getSizeInBytes());
+    }
+
+    /**
+     * Test to verify that an entry read before a concurrent invalidation
+     * is not added.
+     */
+    public void testStaleEntry()
+    {
+        EntryCache cache = new EntryCache(_config(100000L));
+        StorableKey key = _key(1);
+        long generation = cache.generationFor(key);
+        cache.invalidate(key);
+        assertFalse(cache.put(_entry(1, 1000L, 100), generation));
+        assertNull(cache.get(key, 1000L));
+
+        generation = cache.generationFor(key);
+        assertTrue(cache.put(_entry(1, 1000L, 100), generation));
+        assertNotNull(cache.get(key, 1000L));
+    }
+
+    public void testOffHeapContents()
+    {
+        ByteBuffer bb = ByteBuffer.allocateDirect(3);
+        bb.put(new byte[] { 1, 2, 3 });
+        bb.flip();
+        CachedEntry entry = new CachedEntry(_key(1), 1000L, Long.MAX_VALUE, Compression.NONE,
+                0, 3L, 3L, null, bb);
+        byte[] data = entry.getInlinedDataAsBytes();
+        assertEquals(3, data.length);
+        assertEquals(3, data[2]);
+        // and should not change state of cached buffer
+        assertEquals(3, entry.getInlinedData().remaining());
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    protected EntryCacheConfig _config(long maxBytes)
+    {
+        EntryCacheConfig config = new EntryCacheConfig();
+        config.enabled = true;
+        config.maxBytes = maxBytes;
+        config.maxEntrySize = 1000;
+        return config;
+    }
+
+    protected StorableKey _key(int index) {
+        return _keyConverter.construct("p", "/entry"+index).asStorableKey();
+    }
+
+    protected CachedEntry _entry(int index, long readTime, int size)
+    {
+        return new CachedEntry(_key(index), readTime, Long.MAX_VALUE, Compression.NONE,
+                0, size, size, null, ByteBuffer.allocate(size));
+    }
+}
@@ -0,0 +1,43 @@
+package com.fasterxml.transistore.service.cfg;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.basic.BasicTSKeyConverter;
+
+public class TestFilenameConverter extends TestCase
+{
+    protected final BasicTSKeyConverter _keyConverter = BasicTSKeyConverter.defaultInstance();
+
+    public void testHashedLayout()
+    {
+        BasicTSFilenameConverter flat = new BasicTSFilenameConverter(_keyConverter);
+        BasicTSFilenameConverter hashed = new BasicTSFilenameConverter(_keyConverter, true);
+        BasicTSKey key = _keyConverter.construct("part", "/a/b");
+
+        String flatName = flat.appendFilename(key.asStorableKey(), new StringBuilder()).toString();
+        assertTrue(flatName.startsWith("4:part"));
+        String name = hashed.appendFilename(key.asStorableKey(), new StringBuilder()).toString();
+        // two single-hex-char dirs, followed by the usual name
+        assertEquals(4 + flatName.length(), name.length());
+        assertTrue(name.substring(0, 4).matches("[0-9a-f]/[0-9a-f]/"));
+        assertEquals(flatName, name.substring(4));
+        // and must be stable
+        assertEquals(name, hashed.appendFilename(key.asStorableKey(), new StringBuilder()).toString());
+    }
+
+    public void testFanOutDistribution()
+    {
+        BasicTSFilenameConverter conv = new BasicTSFilenameConverter(_keyConverter, true);
+        // entries in the same partition should get spread out
+        Set<String> dirs = new HashSet<String>();
+        for (int i = 0; i < 200; ++i) {
+            BasicTSKey k = _keyConverter.construct("part", "/entry"+i);
+            dirs.add(conv.appendFanOutDirs(k.asStorableKey(), new StringBuilder()).toString());
+        }
+        assertTrue("Only got "+dirs.size()+" distinct dirs", dirs.size() > 50);
+    }
+}
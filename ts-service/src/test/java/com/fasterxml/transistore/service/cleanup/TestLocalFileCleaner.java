@@ -0,0 +1,127 @@
+package com.fasterxml.transistore.service.cleanup;
+
+import java.io.*;
+
+import junit.framework.TestCase;
+
+public class TestLocalFileCleaner extends TestCase
+{
+    protected final static long HOUR = 60L * 60L * 1000L;
+
+    /**
+     * Cleaner that can be used without initialization
+     */
+    static class TestCleaner extends LocalFileCleaner {
+        public TestCleaner() { super(null); }
+
+        @Override
+        protected boolean shouldStop() { return false; }
+    }
+
+    public void testBucketsByFanOutDirs() throws IOException
+    {
+        final long now = System.currentTimeMillis();
+        File root = _tempDir();
+        try {
+            File oldBucket = new File(root, "2013-01-01");
+            File oldFile = _createFile(oldBucket, "3/c", "1:old");
+            _setTimes(oldBucket, "3/c", now - 10 * HOUR);
+
+            // bucket with one recently written fan-out directory, old files
+            File newBucket = new File(root, "2013-01-02");
+            File keptFile1 = _createFile(newBucket, "0/0", "1:a");
+            File keptFile2 = _createFile(newBucket, "f/e", "1:b");
+            _setTimes(newBucket, "0/0", now - 10 * HOUR);
+            _setTimes(newBucket, "f/e", now - 10 * HOUR);
+            keptFile2.setLastModified(now - 10 * HOUR);
+            new File(newBucket, "f/e").setLastModified(now);
+
+            LocalFileCleanupStats stats = new LocalFileCleanupStats();
+            new TestCleaner()._cleanDir(root, now - HOUR, stats);
+
+            assertFalse(oldFile.exists());
+            assertFalse(oldBucket.exists());
+            // entire bucket retained, even if some files are old
+            assertTrue(keptFile1.exists());
+            assertTrue(keptFile2.exists());
+            assertEquals(1, stats.deletedFiles);
+            assertEquals(0, stats.failedDeletes);
+        } finally {
+            _delete(root);
+        }
+    }
+
+    public void testFilesWithoutFanOut() throws IOException
+    {
+        final long now = System.currentTimeMillis();
+        File root = _tempDir();
+        try {
+            File bucket = new File(root, "2013-01-01");
+            bucket.mkdirs();
+            File oldFile = _createFile(bucket, null, "1:old");
+            oldFile.setLastModified(now - 10 * HOUR);
+            File newFile = _createFile(bucket, null, "1:new");
+
+            LocalFileCleanupStats stats = new LocalFileCleanupStats();
+            new TestCleaner()._cleanDir(root, now - HOUR, stats);
+            assertFalse(oldFile.exists());
+            assertTrue(newFile.exists());
+            assertEquals(1, stats.deletedFiles);
+            assertEquals(1, stats.remainingFiles);
+        } finally {
+            _delete(root);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    protected File _tempDir() throws IOException
+    {
+        File f = File.createTempFile("ts-cleaner", "");
+        f.delete();
+        f.mkdirs();
+        return f;
+    }
+
+    protected File _createFile(File bucket, String fanOut, String name) throws IOException
+    {
+        File dir = (fanOut == null) ? bucket : new File(bucket, fanOut);
+        dir.mkdirs();
+        File f = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        return f;
+    }
+
+    /**
+     * Helper for setting modification times of files and directories of
+     * given fan-out path; deepest first, since changing directory contents
+     * updates its modification time
+     */
+    protected void _setTimes(File bucket, String fanOut, long time)
+    {
+        File leaf = new File(bucket, fanOut);
+        for (File f : leaf.listFiles()) {
+            f.setLastModified(time);
+        }
+        for (File dir = leaf; !dir.equals(bucket.getParentFile()); dir = dir.getParentFile()) {
+            dir.setLastModified(time);
+        }
+    }
+
+    protected void _delete(File f)
+    {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                _delete(child);
+            }
+        }
+        f.delete();
+    }
+}
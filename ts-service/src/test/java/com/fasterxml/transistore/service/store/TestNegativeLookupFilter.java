@@ -0,0 +1,62 @@
+package com.fasterxml.transistore.service.store;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.StorableKey;
+
+import com.fasterxml.transistore.basic.BasicTSKeyConverter;
+
+public class TestNegativeLookupFilter extends TestCase
+{
+    protected final BasicTSKeyConverter _keyConverter = BasicTSKeyConverter.defaultInstance();
+
+    public void testNotReady()
+    {
+        NegativeLookupFilter filter = new NegativeLookupFilter(1000L, 0.01);
+        // until populated, nothing is known to be missing
+        assertFalse(filter.isDefinitelyAbsent(_key(1)));
+        filter.markReady();
+        assertTrue(filter.isDefinitelyAbsent(_key(1)));
+        assertEquals(1L, filter.getDefinitelyAbsentCount());
+    }
+
+    public void testAddRemove()
+    {
+        final int COUNT = 5000;
+        NegativeLookupFilter filter = new NegativeLookupFilter(COUNT, 0.01);
+        for (int i = 0; i < COUNT; ++i) {
+            filter.add(_key(i));
+        }
+        filter.markReady();
+        // no false negatives
+        for (int i = 0; i < COUNT; ++i) {
+            assertFalse(filter.isDefinitelyAbsent(_key(i)));
+        }
+        // and false positive rate should be close to target
+        int falsePositives = 0;
+        for (int i = COUNT; i < 2*COUNT; ++i) {
+            if (!filter.isDefinitelyAbsent(_key(i))) {
+                ++falsePositives;
+            }
+        }
+        assertTrue("Too many false positives: "+falsePositives, falsePositives < (COUNT / 25));
+
+        // removing half of entries must not affect the rest
+        for (int i = 0; i < COUNT; i += 2) {
+            filter.remove(_key(i));
+        }
+        int absent = 0;
+        for (int i = 0; i < COUNT; ++i) {
+            if ((i & 1) != 0) {
+                assertFalse(filter.isDefinitelyAbsent(_key(i)));
+            } else if (filter.isDefinitelyAbsent(_key(i))) {
+                ++absent;
+            }
+        }
+        assertTrue(absent > (COUNT / 4));
+    }
+
+    protected StorableKey _key(int index) {
+        return _keyConverter.construct("p", "/entry"+index).asStorableKey();
+    }
+}
@@ -0,0 +1,230 @@
+package com.fasterxml.transistore.service.store;
+
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.shared.TimeMaster;
+import com.fasterxml.storemate.store.backend.IterationAction;
+import com.fasterxml.storemate.store.backend.IterationResult;
+
+import com.fasterxml.transistore.basic.BasicTSDeleteJobStatus;
+import com.fasterxml.transistore.basic.BasicTSDeleteJobStatus.State;
+
+/**
+ * Tests for {@link PrefixDeleter}, using a fake store that iterates over
+ * an in-memory set of keys, same way as the real store does (in key order,
+ * starting from (and including) the given key).
+ */
+public class TestPrefixDeleter extends TestCase
+{
+    public void testDeletesInBatches() throws Exception
+    {
+        FakeDeleter deleter = new FakeDeleter(3);
+        for (int i = 0; i < 10; ++i) {
+            deleter.add("ab/"+i, false);
+        }
+        BasicTSDeleteJobStatus status = deleter.startJob(_key("ab/"), "ab/");
+        assertEquals(State.QUEUED, status.state);
+        deleter.runAll();
+
+        status = deleter.findJob(status.id);
+        assertEquals(State.COMPLETED, status.state);
+        assertEquals(10L, status.deleted);
+        assertEquals(10, deleter.deletedKeys.size());
+        // 4 batches: 3 + 3 + 3 + 1
+        assertEquals(4, deleter.batches);
+        // every key deleted exactly once, in order
+        for (int i = 0; i < 10; ++i) {
+            assertEquals("ab/"+i, deleter.deletedKeys.get(i));
+        }
+    }
+
+    public void testPrefixBoundary() throws Exception
+    {
+        FakeDeleter deleter = new FakeDeleter(100);
+        deleter.add("aa/1", false);
+        deleter.add("ab", false);
+        deleter.add("ab/1", false);
+        deleter.add("ab/2", false);
+        deleter.add("ab0", false);
+        deleter.add("ac/1", false);
+        BasicTSDeleteJobStatus status = deleter.startJob(_key("ab/"), "ab/");
+        deleter.runAll();
+
+        assertEquals(Arrays.asList("ab/1", "ab/2"), deleter.deletedKeys);
+        status = deleter.findJob(status.id);
+        assertEquals(2L, status.deleted);
+        assertFalse(deleter.entries.get("ab"));
+        assertFalse(deleter.entries.get("ab0"));
+    }
+
+    public void testSkipsTombstonesAndLastKey() throws Exception
+    {
+        FakeDeleter deleter = new FakeDeleter(2);
+        deleter.add("x/1", false);
+        deleter.add("x/2", true);
+        deleter.add("x/3", false);
+        deleter.add("x/4", false);
+        deleter.add("x/5", true);
+        BasicTSDeleteJobStatus status = deleter.startJob(_key("x/"), "x/");
+        deleter.runAll();
+
+        // tombstones are scanned but not deleted again; and since the
+        // next batch starts from the last key deleted, it must not be
+        // included (or counted) twice
+        assertEquals(Arrays.asList("x/1", "x/3", "x/4"), deleter.deletedKeys);
+        status = deleter.findJob(status.id);
+        assertEquals(3L, status.deleted);
+        assertEquals(5L, status.scanned);
+    }
+
+    public void testCancelRunning() throws Exception
+    {
+        final FakeDeleter deleter = new FakeDeleter(2);
+        for (int i = 0; i < 10; ++i) {
+            deleter.add("c/"+i, false);
+        }
+        final BasicTSDeleteJobStatus status = deleter.startJob(_key("c/"), "c/");
+        // cancel while the third entry (second batch) is being deleted
+        deleter.onDelete = new Runnable() {
+            @Override
+            public void run() {
+                if (deleter.deletedKeys.size() == 3) {
+                    deleter.cancelJob(status.id);
+                }
+            }
+        };
+        deleter.runAll();
+
+        BasicTSDeleteJobStatus result = deleter.findJob(status.id);
+        assertEquals(State.CANCELLED, result.state);
+        // current batch is completed, but no more
+        assertEquals(4L, result.deleted);
+        assertEquals(4, deleter.deletedKeys.size());
+        assertTrue(result.ended > 0L);
+    }
+
+    public void testCancelQueued() throws Exception
+    {
+        FakeDeleter deleter = new FakeDeleter(2);
+        deleter.add("q/1", false);
+        BasicTSDeleteJobStatus status = deleter.startJob(_key("q/"), "q/");
+        BasicTSDeleteJobStatus result = deleter.cancelJob(status.id);
+        assertEquals(State.CANCELLED, result.state);
+        deleter.runAll();
+        assertEquals(0, deleter.deletedKeys.size());
+        assertEquals(State.CANCELLED, deleter.findJob(status.id).state);
+        assertNull(deleter.cancelJob(status.id + 1));
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Deleter that runs jobs when asked to, against an in-memory set of
+     * keys with single-byte characters (so that String ordering matches
+     * that of raw keys).
+     */
+    static class FakeDeleter extends PrefixDeleter
+    {
+        /**
+         * Entries by key; value indicates whether entry is deleted
+         */
+        public final TreeMap<String,Boolean> entries = new TreeMap<String,Boolean>();
+
+        public final List<String> deletedKeys = new ArrayList<String>();
+
+        public final List<Job> scheduled = new ArrayList<Job>();
+
+        public Runnable onDelete;
+
+        public int batches;
+
+        public FakeDeleter(int batchSize) {
+            super(null, new TimeMaster() {
+                @Override
+                public long currentTimeMillis() { return 1000L; }
+            }, null, null, batchSize);
+        }
+
+        public void add(String key, boolean deleted) {
+            entries.put(key, deleted);
+        }
+
+        public void runAll() {
+            for (Job job : scheduled) {
+                _run(job);
+            }
+            scheduled.clear();
+        }
+
+        @Override
+        protected void _schedule(Job job) {
+            scheduled.add(job);
+        }
+
+        @Override
+        protected IterationResult _collectBatch(Job job, StorableKey afterKey, List<StorableKey> batch)
+        {
+            ++batches;
+            String start = _string((afterKey == null) ? job.prefix : afterKey);
+            for (Map.Entry<String,Boolean> entry : entries.tailMap(start, true).entrySet()) {
+                StorableKey key = _key(entry.getKey());
+                IterationAction action = _verifyKey(job, afterKey, key);
+                if (action == IterationAction.TERMINATE_ITERATION) {
+                    return IterationResult.TERMINATED_FOR_KEY;
+                }
+                if (action == IterationAction.SKIP_ENTRY) {
+                    continue;
+                }
+                if (_addToBatch(job, key, entry.getValue(), batch) == IterationAction.TERMINATE_ITERATION) {
+                    return IterationResult.TERMINATED_FOR_ENTRY;
+                }
+            }
+            return IterationResult.FULLY_ITERATED;
+        }
+
+        @Override
+        protected void _deleteEntry(StorableKey key, long deletionTime) {
+            String str = _string(key);
+            entries.put(str, true);
+            deletedKeys.add(str);
+            if (onDelete != null) {
+                onDelete.run();
+            }
+        }
+
+        @Override
+        protected void _takeABreak(long batchMsecs) { }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    protected static StorableKey _key(String str)
+    {
+        try {
+            return new StorableKey(str.getBytes("ISO-8859-1"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    protected static String _string(StorableKey key)
+    {
+        try {
+            return new String(key.asBytes(), "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.fasterxml.transistore.service.store;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import com.ning.compress.lzf.LZFInputStream;
+
+import com.fasterxml.storemate.shared.ByteContainer;
+import com.fasterxml.storemate.shared.compress.Compression;
+
+import com.fasterxml.transistore.basic.BasicTSKeyConverter;
+
+public class TestStreamingEntryWriter extends TestCase
+{
+    protected final BasicTSKeyConverter _keyConverter = BasicTSKeyConverter.defaultInstance();
+
+    public void testUncompressed() throws IOException
+    {
+        // use small buffer to ensure multiple rounds
+        StreamingEntryWriter w = new StreamingEntryWriter(_keyConverter, 1000);
+        byte[] data = _data(12345);
+        File f = _tempFile();
+        StreamingEntryWriter.Result result = w.write(new ByteArrayInputStream(data), f,
+                Compression.NONE, Long.MAX_VALUE);
+        assertEquals(data.length, result.uncompressedLength);
+        assertEquals(data.length, result.storedLength);
+        assertEquals(_keyConverter.contentHashFor(ByteContainer.simple(data, 0, data.length)), result.contentHash);
+        assertEquals(data.length, f.length());
+        f.delete();
+    }
+
+    public void testCompressed() throws IOException
+    {
+        StreamingEntryWriter w = new StreamingEntryWriter(_keyConverter, 1000);
+        byte[] data = _data(70000);
+        final int expHash = _keyConverter.contentHashFor(ByteContainer.simple(data, 0, data.length));
+
+        File f = _tempFile();
+        StreamingEntryWriter.Result result = w.write(new ByteArrayInputStream(data), f,
+                Compression.LZF, Long.MAX_VALUE);
+        assertEquals(data.length, result.uncompressedLength);
+        assertEquals(f.length(), result.storedLength);
+        assertTrue(result.storedLength < data.length);
+        assertEquals(expHash, result.contentHash);
+        byte[] stored = _read(new FileInputStream(f));
+        assertEquals(_keyConverter.contentHashFor(ByteContainer.simple(stored, 0, stored.length)),
+                result.compressedContentHash);
+        assertEquals(data.length, _read(new LZFInputStream(new FileInputStream(f))).length);
+
+        result = w.write(new ByteArrayInputStream(data), f, Compression.GZIP, Long.MAX_VALUE);
+        assertEquals(expHash, result.contentHash);
+        assertEquals(data.length, _read(new GZIPInputStream(new FileInputStream(f))).length);
+        f.delete();
+    }
+
+    public void testTooLong() throws IOException
+    {
+        StreamingEntryWriter w = new StreamingEntryWriter(_keyConverter, 1000);
+        File f = _tempFile();
+        try {
+            w.write(new ByteArrayInputStream(_data(5000)), f, Compression.NONE, 4000L);
+            fail("Should not pass");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("too long"));
+        }
+        // partial file should have been removed
+        assertFalse(f.exists());
+    }
+
+    protected File _tempFile() throws IOException
+    {
+        File f = File.createTempFile("streaming", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    protected byte[] _data(int length)
+    {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            b[i] = (byte) ('a' + (i % 7) + ((i >> 6) % 3));
+        }
+        return b;
+    }
+
+    protected byte[] _read(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4000];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, count);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+}
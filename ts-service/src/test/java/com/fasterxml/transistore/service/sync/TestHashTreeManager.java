@@ -0,0 +1,239 @@
+package com.fasterxml.transistore.service.sync;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.shared.TimeMaster;
+
+import com.fasterxml.transistore.basic.BasicTSSyncListFormat;
+
+/**
+ * Tests for {@link HashTreeManager}, using a fake that lists given
+ * entries instead of iterating over a store, and builds trees using
+ * an executor that only runs tasks when asked to.
+ */
+public class TestHashTreeManager extends TestCase
+{
+    public void testTreeBuiltInBackground() throws Exception
+    {
+        FakeManager manager = new FakeManager();
+        // no tree yet: should not block, but schedule a build
+        assertNull(manager.getTree());
+        assertNull(manager.getTree());
+        assertEquals(1, manager.tasks.size());
+
+        manager.runTasks();
+        KeyspaceHashTree tree = manager.getTree();
+        assertNotNull(tree);
+        assertEquals(1, manager.builds);
+        assertEquals(0, manager.tasks.size());
+
+        // once too old, old tree is returned while new one is being built
+        manager.time.now += FakeManager.MAX_AGE + 1L;
+        assertSame(tree, manager.getTree());
+        assertEquals(1, manager.tasks.size());
+        manager.runTasks();
+        assertNotSame(tree, manager.getTree());
+        assertEquals(2, manager.builds);
+    }
+
+    public void testFramesBounded() throws Exception
+    {
+        FakeManager manager = new FakeManager();
+        for (int i = 0; i < 25; ++i) {
+            manager.entries.add(_entry(i, 3600, i));
+        }
+        FrameCollector frames = new FrameCollector();
+        manager.listSegments(new BitSet(), 10, frames);
+        assertEquals(Arrays.asList(10, 10, 5), frames.sizes);
+        // in iteration order
+        assertEquals(_key(0), frames.entries.get(0).key);
+        assertEquals(_key(24), frames.entries.get(24).key);
+    }
+
+    public void testPriorityOrder() throws Exception
+    {
+        FakeManager manager = new FakeManager();
+        manager.entries.add(_entry(0, 3600, 1L));
+        manager.entries.add(_entry(1, 60, 1L));
+        manager.entries.add(_entry(2, 3600, 5L));
+        manager.entries.add(_entry(3, -1, Long.MAX_VALUE)); // tombstone
+        FrameCollector frames = new FrameCollector();
+        manager.listSegmentsByPriority(new BitSet(), 10, frames);
+        assertEquals(Arrays.asList(4), frames.sizes);
+        // tombstone first, then shortest TTL, then newest
+        assertEquals(_key(3), frames.entries.get(0).key);
+        assertEquals(_key(1), frames.entries.get(1).key);
+        assertEquals(_key(2), frames.entries.get(2).key);
+        assertEquals(_key(0), frames.entries.get(3).key);
+    }
+
+    public void testPriorityWindowBounded() throws Exception
+    {
+        FakeManager manager = new FakeManager();
+        final int frameSize = 2;
+        final int window = frameSize * HashTreeManager.PRIORITY_WINDOW_FRAMES;
+        // long-lived entries first, filling the window; then short-lived ones
+        for (int i = 0; i < window + 4; ++i) {
+            manager.entries.add(_entry(i, 3600, 1L));
+        }
+        for (int i = 0; i < 4; ++i) {
+            manager.entries.add(_entry(100 + i, 60, 1L));
+        }
+        FrameCollector frames = new FrameCollector(manager);
+        manager.listSegmentsByPriority(new BitSet(), frameSize, frames);
+        assertEquals(window + 8, frames.entries.size());
+        // first frame passed as soon as window got full, not after listing all
+        assertEquals(Integer.valueOf(window + frameSize), frames.listedAtFrame.get(0));
+        // and short-lived ones are still listed well before the end
+        int firstShort = -1;
+        for (int i = 0; i < frames.entries.size(); ++i) {
+            if (frames.entries.get(i).key.equals(_key(100))) {
+                firstShort = i;
+            }
+        }
+        assertTrue(firstShort >= 0 && firstShort < 8);
+        for (Integer size : frames.sizes) {
+            assertTrue(size <= frameSize);
+        }
+    }
+
+    public void testHandlerFailureStopsListing() throws Exception
+    {
+        FakeManager manager = new FakeManager();
+        for (int i = 0; i < 25; ++i) {
+            manager.entries.add(_entry(i, 3600, i));
+        }
+        try {
+            manager.listSegments(new BitSet(), 10, new HashTreeManager.FrameHandler() {
+                @Override
+                public void handleFrame(List<BasicTSSyncListFormat.Entry> entries) throws IOException {
+                    throw new IOException("Broken pipe");
+                }
+            });
+            fail("Should not pass");
+        } catch (IOException e) {
+            assertEquals("Broken pipe", e.getMessage());
+        }
+        assertEquals(10, manager.listed);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    static StorableKey _key(int i) {
+        return new StorableKey(new byte[] { (byte) (i >> 8), (byte) i });
+    }
+
+    static HashTreeManager.PrioritizedEntry _entry(int i, int maxTTLSecs, long created) {
+        return new HashTreeManager.PrioritizedEntry(new BasicTSSyncListFormat.Entry(_key(i), 1L, i,
+                (maxTTLSecs < 0) ? BasicTSSyncListFormat.DELETED_LENGTH : 10L), maxTTLSecs, created);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    static class FakeTime extends TimeMaster
+    {
+        public long now = 1000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    static class FakeManager extends HashTreeManager
+    {
+        final static long MAX_AGE = 60000L;
+
+        public final List<PrioritizedEntry> entries = new ArrayList<PrioritizedEntry>();
+
+        public final List<Runnable> tasks;
+
+        public final FakeTime time;
+
+        public int builds;
+
+        public int listed;
+
+        public FakeManager() {
+            this(new ArrayList<Runnable>(), new FakeTime());
+        }
+
+        private FakeManager(final List<Runnable> tasks, FakeTime time) {
+            super(null, null, null, time, 16, MAX_AGE, 0L, new Executor() {
+                @Override
+                public void execute(Runnable r) {
+                    tasks.add(r);
+                }
+            });
+            this.tasks = tasks;
+            this.time = time;
+        }
+
+        public void runTasks() {
+            List<Runnable> toRun = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            for (Runnable r : toRun) {
+                r.run();
+            }
+        }
+
+        @Override
+        protected KeyspaceHashTree _buildTree() {
+            ++builds;
+            return KeyspaceHashTree.builder(16).build();
+        }
+
+        @Override
+        protected void _listEntries(BitSet segments, EntryCollector collector) throws IOException
+        {
+            for (PrioritizedEntry entry : entries) {
+                ++listed;
+                collector.add(entry);
+            }
+        }
+    }
+
+    static class FrameCollector implements HashTreeManager.FrameHandler
+    {
+        protected final FakeManager _manager;
+
+        public final List<Integer> sizes = new ArrayList<Integer>();
+
+        /**
+         * Number of entries listed by manager when each frame was passed
+         */
+        public final List<Integer> listedAtFrame = new ArrayList<Integer>();
+
+        public final List<BasicTSSyncListFormat.Entry> entries = new ArrayList<BasicTSSyncListFormat.Entry>();
+
+        public FrameCollector() {
+            this(null);
+        }
+
+        public FrameCollector(FakeManager manager) {
+            _manager = manager;
+        }
+
+        @Override
+        public void handleFrame(List<BasicTSSyncListFormat.Entry> frame) {
+            if (_manager != null) {
+                listedAtFrame.add(_manager.listed);
+            }
+            sizes.add(frame.size());
+            entries.addAll(frame);
+        }
+    }
+}
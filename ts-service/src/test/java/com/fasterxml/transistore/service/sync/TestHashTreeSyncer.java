@@ -0,0 +1,245 @@
+package com.fasterxml.transistore.service.sync;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.IpAndPort;
+import com.fasterxml.storemate.shared.StorableKey;
+
+import com.fasterxml.transistore.basic.BasicTSSyncListFormat;
+
+/**
+ * Tests for {@link HashTreeSyncer}, using a fake peer and local store,
+ * both of which keep entries in memory, and assign each entry to
+ * the segment given by the first byte of its key.
+ */
+public class TestHashTreeSyncer extends TestCase
+{
+    final static int KEYSPACE_SIZE = 16;
+
+    final static IpAndPort PEER = new IpAndPort("localhost:7070");
+
+    public void testIdentical() throws Exception
+    {
+        FakeSyncer syncer = new FakeSyncer();
+        syncer.addLocal(_entry(1, "a", 1, false));
+        syncer.addPeer(_entry(1, "a", 1, false));
+        HashTreeSyncStats stats = syncer.sync();
+        assertEquals(0, syncer.listings);
+        assertEquals(0, stats.differingSegments);
+    }
+
+    public void testPullsMissingAndDeletes() throws Exception
+    {
+        FakeSyncer syncer = new FakeSyncer();
+        // same in both: should not be touched
+        syncer.addLocal(_entry(1, "same", 1, false));
+        syncer.addPeer(_entry(1, "same", 1, false));
+        // missing locally: to pull
+        syncer.addPeer(_entry(2, "missing", 2, false));
+        // deleted by peer: to delete locally
+        syncer.addLocal(_entry(3, "deleted", 3, false));
+        syncer.addPeer(_entry(3, "deleted", 3, true));
+        // deleted locally: tombstone wins
+        syncer.addLocal(_entry(4, "resurrect", 4, true));
+        syncer.addPeer(_entry(4, "resurrect", 4, false));
+        // not in shared range: ignored
+        syncer.addPeer(_entry(9, "other", 9, false));
+        syncer.shared.clear(8, KEYSPACE_SIZE);
+
+        HashTreeSyncStats stats = syncer.sync();
+        assertEquals(1, syncer.listings);
+        assertEquals(Arrays.asList(2, 3, 4), syncer.listedSegments);
+        assertEquals(Arrays.asList(_key(2, "missing")), syncer.pulled);
+        assertEquals(Arrays.asList(_key(3, "deleted")), syncer.deleted);
+        assertEquals(1, stats.getDeletedEntries());
+        assertEquals(1, stats.getSkippedEntries());
+    }
+
+    public void testPullsInBatches() throws Exception
+    {
+        FakeSyncer syncer = new FakeSyncer();
+        final int count = HashTreeSyncer.PULL_BATCH_SIZE * 2 + 5;
+        for (int i = 0; i < count; ++i) {
+            syncer.addPeer(_entry(i % KEYSPACE_SIZE, "e"+i, i, false));
+        }
+        syncer.sync();
+        assertEquals(count, syncer.pulled.size());
+        assertEquals(3, syncer.pullBatches);
+    }
+
+    public void testPeerTreeNotBuilt() throws Exception
+    {
+        FakeSyncer syncer = new FakeSyncer();
+        syncer.addPeer(_entry(1, "a", 1, false));
+        syncer.peerTreeBuilt = false;
+        HashTreeSyncStats stats = syncer.sync();
+        assertEquals(0, syncer.listings);
+        assertEquals(0, stats.comparedPeers);
+    }
+
+    public void testChooseSegmentsRotates() throws Exception
+    {
+        FakeSyncer syncer = new FakeSyncer();
+        List<Integer> differing = new ArrayList<Integer>();
+        for (int i = 0; i < HashTreeSyncer.MAX_SEGMENTS_PER_ROUND + 10; ++i) {
+            differing.add(i * 2);
+        }
+        List<Integer> first = syncer._chooseSegments(differing);
+        assertEquals(HashTreeSyncer.MAX_SEGMENTS_PER_ROUND, first.size());
+        assertEquals(Integer.valueOf(0), first.get(0));
+        // next round continues where previous one stopped, wrapping around
+        List<Integer> second = syncer._chooseSegments(differing);
+        assertEquals(Integer.valueOf(HashTreeSyncer.MAX_SEGMENTS_PER_ROUND * 2), second.get(0));
+        assertEquals(Integer.valueOf(0), second.get(10));
+    }
+
+    public void testReadFrames() throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(BasicTSSyncListFormat.encode(Arrays.asList(_entry(1, "a", 1, false))));
+        bytes.write(BasicTSSyncListFormat.encode(Arrays.asList(_entry(2, "b", 2, true),
+                _entry(2, "c", 3, false))));
+        final List<BasicTSSyncListFormat.Entry> read = new ArrayList<BasicTSSyncListFormat.Entry>();
+        HashTreeManager.FrameHandler handler = new HashTreeManager.FrameHandler() {
+            @Override
+            public void handleFrame(List<BasicTSSyncListFormat.Entry> entries) {
+                read.addAll(entries);
+            }
+        };
+        // without end marker, should fail, but only after passing frames read
+        try {
+            HashTreeSyncer.readFrames(new ByteArrayInputStream(bytes.toByteArray()), handler);
+            fail("Should not pass");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("end marker"));
+        }
+        assertEquals(3, read.size());
+
+        read.clear();
+        bytes.write(BasicTSSyncListFormat.encode(Collections.<BasicTSSyncListFormat.Entry>emptyList()));
+        HashTreeSyncer.readFrames(new ByteArrayInputStream(bytes.toByteArray()), handler);
+        assertEquals(3, read.size());
+        assertTrue(read.get(1).isDeleted());
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    static StorableKey _key(int segment, String name) throws UnsupportedEncodingException
+    {
+        byte[] b = name.getBytes("UTF-8");
+        byte[] key = new byte[b.length + 1];
+        key[0] = (byte) segment;
+        System.arraycopy(b, 0, key, 1, b.length);
+        return new StorableKey(key);
+    }
+
+    static BasicTSSyncListFormat.Entry _entry(int segment, String name, int hash, boolean deleted)
+        throws UnsupportedEncodingException
+    {
+        return new BasicTSSyncListFormat.Entry(_key(segment, name), 1L, hash,
+                deleted ? BasicTSSyncListFormat.DELETED_LENGTH : 10L);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    static class FakeSyncer extends HashTreeSyncer
+    {
+        public final Map<StorableKey,BasicTSSyncListFormat.Entry> local = new LinkedHashMap<StorableKey,BasicTSSyncListFormat.Entry>();
+        public final Map<StorableKey,BasicTSSyncListFormat.Entry> peer = new LinkedHashMap<StorableKey,BasicTSSyncListFormat.Entry>();
+
+        public final BitSet shared = new BitSet();
+
+        public final List<Integer> listedSegments = new ArrayList<Integer>();
+        public final List<StorableKey> pulled = new ArrayList<StorableKey>();
+        public final List<StorableKey> deleted = new ArrayList<StorableKey>();
+
+        public boolean peerTreeBuilt = true;
+        public int listings;
+        public int pullBatches;
+
+        public FakeSyncer() {
+            super(null);
+            shared.set(0, KEYSPACE_SIZE);
+        }
+
+        public void addLocal(BasicTSSyncListFormat.Entry entry) {
+            local.put(entry.key, entry);
+        }
+
+        public void addPeer(BasicTSSyncListFormat.Entry entry) {
+            peer.put(entry.key, entry);
+        }
+
+        public HashTreeSyncStats sync() throws IOException
+        {
+            HashTreeSyncStats stats = new HashTreeSyncStats();
+            _syncWithPeer(PEER, _tree(local), shared, stats);
+            return stats;
+        }
+
+        @Override
+        protected boolean shouldStop() {
+            return false;
+        }
+
+        @Override
+        protected KeyspaceHashTree _fetchTree(IpAndPort address) {
+            return peerTreeBuilt ? _tree(peer) : null;
+        }
+
+        @Override
+        protected void _listSegments(IpAndPort address, List<Integer> segments,
+                HashTreeManager.FrameHandler handler) throws IOException
+        {
+            ++listings;
+            listedSegments.addAll(segments);
+            List<BasicTSSyncListFormat.Entry> frame = new ArrayList<BasicTSSyncListFormat.Entry>();
+            for (BasicTSSyncListFormat.Entry entry : peer.values()) {
+                if (segments.contains(_segment(entry))) {
+                    frame.add(entry);
+                }
+            }
+            handler.handleFrame(frame);
+        }
+
+        @Override
+        protected void _pull(IpAndPort address, List<StorableKey> keys, HashTreeSyncStats stats) {
+            ++pullBatches;
+            pulled.addAll(keys);
+        }
+
+        @Override
+        protected BasicTSSyncListFormat.Entry _findLocal(StorableKey key) {
+            return local.get(key);
+        }
+
+        @Override
+        protected void _softDelete(StorableKey key) {
+            deleted.add(key);
+        }
+
+        private KeyspaceHashTree _tree(Map<StorableKey,BasicTSSyncListFormat.Entry> entries)
+        {
+            KeyspaceHashTree.Builder b = KeyspaceHashTree.builder(KEYSPACE_SIZE);
+            for (BasicTSSyncListFormat.Entry entry : entries.values()) {
+                b.add(_segment(entry), entry.key, entry.hash, entry.isDeleted());
+            }
+            return b.build();
+        }
+
+        private int _segment(BasicTSSyncListFormat.Entry entry) {
+            return entry.key.asBytes()[0];
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.fasterxml.transistore.service.sync;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.storemate.shared.StorableKey;
+
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.basic.BasicTSKeyConverter;
+
+public class TestKeyspaceHashTree extends TestCase
+{
+    protected final BasicTSKeyConverter _keyConverter = BasicTSKeyConverter.defaultInstance();
+
+    public void testIdentical()
+    {
+        KeyspaceHashTree.Builder b1 = KeyspaceHashTree.builder(360);
+        KeyspaceHashTree.Builder b2 = KeyspaceHashTree.builder(360);
+        for (int i = 0; i < 1000; ++i) {
+            _add(b1, i, i, false);
+        }
+        // order of additions should not matter
+        for (int i = 999; i >= 0; --i) {
+            _add(b2, i, i, false);
+        }
+        KeyspaceHashTree t1 = b1.build();
+        KeyspaceHashTree t2 = b2.build();
+        assertEquals(360, t1.getLeafCount());
+        assertEquals(10, t1.getLevelCount()); // 360 -> 180 -> ... -> 1
+        assertEquals(t1.getRootHash(), t2.getRootHash());
+        assertTrue(t1.differingLeaves(t2, null).isEmpty());
+        // and reconstruction from leaves should give the same tree
+        assertEquals(t1.getRootHash(), KeyspaceHashTree.fromLeaves(t1.getLeaves()).getRootHash());
+    }
+
+    public void testDifferences()
+    {
+        KeyspaceHashTree.Builder b1 = KeyspaceHashTree.builder(1024);
+        KeyspaceHashTree.Builder b2 = KeyspaceHashTree.builder(1024);
+        for (int i = 0; i < 1000; ++i) {
+            _add(b1, i, i, false);
+            if (i == 10) { // missing entry
+                continue;
+            }
+            if (i == 20) { // different content
+                _add(b2, i, i+1, false);
+            } else if (i == 30) { // deleted
+                _add(b2, i, i, true);
+            } else {
+                _add(b2, i, i, false);
+            }
+        }
+        KeyspaceHashTree t1 = b1.build();
+        KeyspaceHashTree t2 = b2.build();
+        assertFalse(t1.getRootHash() == t2.getRootHash());
+
+        Set<Integer> exp = new TreeSet<Integer>();
+        for (int i : new int[] { 10, 20, 30 }) {
+            exp.add(KeyspaceHashTree.segmentFor(_keyConverter.routingHashFor(_key(i)), 1024));
+        }
+        assertEquals(new ArrayList<Integer>(exp), t1.differingLeaves(t2, null));
+
+        // and with filter, only get ones included
+        BitSet filter = new BitSet();
+        int first = exp.iterator().next();
+        filter.set(first);
+        assertEquals(Arrays.asList(first), t1.differingLeaves(t2, filter));
+    }
+
+    private BasicTSKey _key(int i) {
+        return _keyConverter.construct("partition"+(i % 7), "/entry/"+i);
+    }
+
+    private void _add(KeyspaceHashTree.Builder b, int i, int contentHash, boolean deleted) {
+        BasicTSKey key = _key(i);
+        StorableKey raw = key.asStorableKey();
+        b.add(_keyConverter.routingHashFor(key), raw, contentHash, deleted);
+    }
+}
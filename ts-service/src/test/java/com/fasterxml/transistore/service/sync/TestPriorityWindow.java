@@ -0,0 +1,105 @@
+package com.fasterxml.transistore.service.sync;
+
+import java.io.IOException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+public class TestPriorityWindow extends TestCase
+{
+    public void testPassThrough() throws Exception
+    {
+        Frames frames = new Frames();
+        PriorityWindow<Integer> window = new PriorityWindow<Integer>(2, 0, frames);
+        for (int i : new int[] { 5, 3, 4, 1, 2 }) {
+            window.add(i);
+        }
+        // frames passed as soon as full
+        assertEquals(2, frames.frames.size());
+        window.finish();
+        assertEquals(Arrays.asList(Arrays.asList(5, 3), Arrays.asList(4, 1), Arrays.asList(2)),
+                frames.frames);
+    }
+
+    public void testExactWithinWindow() throws Exception
+    {
+        Frames frames = new Frames();
+        PriorityWindow<Integer> window = new PriorityWindow<Integer>(3, 10, frames);
+        for (int i : new int[] { 5, 3, 4, 1, 2, 7, 6 }) {
+            window.add(i);
+        }
+        // nothing passed until window full, or finished
+        assertEquals(0, frames.frames.size());
+        window.finish();
+        assertEquals(Arrays.asList(Arrays.asList(1, 2, 3), Arrays.asList(4, 5, 6), Arrays.asList(7)),
+                frames.frames);
+    }
+
+    public void testBoundedWindow() throws Exception
+    {
+        Frames frames = new Frames();
+        PriorityWindow<Integer> window = new PriorityWindow<Integer>(2, 4, frames);
+        for (int i = 20; i > 10; --i) {
+            window.add(i);
+        }
+        // 10 added, 4 kept in window: so 3 frames passed, with lowest ones
+        // in window at the time; highest ones still in window
+        assertEquals(Arrays.asList(Arrays.asList(16, 15), Arrays.asList(14, 13), Arrays.asList(12, 11)),
+                frames.frames);
+        // but later ones with higher priority are passed before them
+        window.add(1);
+        window.finish();
+        assertEquals(Arrays.asList(1, 17), frames.frames.get(3));
+        assertEquals(Arrays.asList(18, 19), frames.frames.get(4));
+        assertEquals(Arrays.asList(20), frames.frames.get(5));
+        assertEquals(6, frames.frames.size());
+    }
+
+    public void testPrioritizedEntries() throws Exception
+    {
+        final List<List<HashTreeManager.PrioritizedEntry>> frames = new ArrayList<List<HashTreeManager.PrioritizedEntry>>();
+        PriorityWindow<HashTreeManager.PrioritizedEntry> window = new PriorityWindow<HashTreeManager.PrioritizedEntry>(2, 10,
+                new PriorityWindow.Handler<HashTreeManager.PrioritizedEntry>() {
+            @Override
+            public void handleFrame(List<HashTreeManager.PrioritizedEntry> frame) {
+                frames.add(frame);
+            }
+        });
+        HashTreeManager.PrioritizedEntry longLived = new HashTreeManager.PrioritizedEntry(null, 3600, 100L);
+        HashTreeManager.PrioritizedEntry shortOld = new HashTreeManager.PrioritizedEntry(null, 60, 100L);
+        HashTreeManager.PrioritizedEntry shortNew = new HashTreeManager.PrioritizedEntry(null, 60, 200L);
+        HashTreeManager.PrioritizedEntry tombstone = new HashTreeManager.PrioritizedEntry(null, -1, Long.MAX_VALUE);
+        window.add(longLived);
+        window.add(shortOld);
+        window.add(shortNew);
+        window.add(tombstone);
+        window.finish();
+
+        // tombstones first, then shortest TTL, newest first; in full frames
+        assertEquals(2, frames.size());
+        assertSame(tombstone, frames.get(0).get(0));
+        assertSame(shortNew, frames.get(0).get(1));
+        assertSame(shortOld, frames.get(1).get(0));
+        assertSame(longLived, frames.get(1).get(1));
+    }
+
+    public void testInvalid() throws Exception
+    {
+        try {
+            new PriorityWindow<Integer>(0, 10, new Frames());
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("frame size"));
+        }
+    }
+
+    static class Frames implements PriorityWindow.Handler<Integer>
+    {
+        public final List<List<Integer>> frames = new ArrayList<List<Integer>>();
+
+        @Override
+        public void handleFrame(List<Integer> frame) throws IOException {
+            frames.add(frame);
+        }
+    }
+}
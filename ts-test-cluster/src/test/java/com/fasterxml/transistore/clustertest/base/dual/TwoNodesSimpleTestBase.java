@@ -4,6 +4,7 @@ import static org.junit.Assert.assertArrayEquals;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.Map;
 
 import org.junit.Assert;
 
@@ -413,6 +414,62 @@ public abstract class TwoNodesSimpleTestBase extends ClusterTestBase
         }
     }
     
+    /**
+     * Test to verify that batch GETs find entries that the node chosen to
+     * read from does not (yet) have, as long as another replica has them.
+     */
+    public void testBatchGetWithMissingReplica() throws Exception
+    {
+        initTestLogging();
+        ClusterConfig clusterConfig = twoNodeClusterConfig(endpoint1, endpoint2, 360);
+
+        BasicTSServiceConfigForDW serviceConfig1 = createNodeConfig("fullStack2Batch_1", true, TEST_PORT1, clusterConfig);
+        final TimeMasterForClusterTesting timeMaster = new TimeMasterForClusterTesting(200L);
+        StoreForTests service1 = StoreForTests.createTestService(serviceConfig1, timeMaster, RunMode.TEST_MINIMAL);
+
+        BasicTSServiceConfigForDW serviceConfig2 = createNodeConfig("fullStack2Batch_2", true, TEST_PORT2, clusterConfig);
+        serviceConfig2.getServiceConfig().cluster = clusterConfig;
+        StoreForTests service2 = StoreForTests.createTestService(serviceConfig2, timeMaster, RunMode.TEST_MINIMAL);
+        startServices(service1, service2);
+
+        try {
+            BasicTSClientConfig clientConfig = new BasicTSClientConfigBuilder()
+                    .setMinimalOksToSucceed(2)
+                    .setOptimalOks(2)
+                    .setMaxOks(2)
+                    .setAllowRetries(false)
+                    .build();
+            BasicTSClient client = createClient(clientConfig, endpoint1, endpoint2);
+
+            // same keys as with sync test: first node for both is server 2
+            final BasicTSKey KEY1 = contentKey("testSimple2a");
+            final BasicTSKey KEY2 = contentKey("testSimple2b");
+            final BasicTSKey MISSING = contentKey("testSimple2/batch/missing");
+            final byte[] CONTENT1 = new byte[1000];
+            Arrays.fill(CONTENT1, (byte) '1');
+            final byte[] CONTENT2 = new byte[2000];
+            Arrays.fill(CONTENT2, (byte) '2');
+            assertEquals(2, client.putContent(null, KEY1, CONTENT1).completeOptimally().finish().getSuccessCount());
+            assertEquals(2, client.putContent(null, KEY2, CONTENT2).completeOptimally().finish().getSuccessCount());
+
+            // then remove first entry from server 2, as if it had not yet received it
+            service2.getEntryStore().hardDelete(StoreOperationSource.REQUEST, null, KEY1.asStorableKey(), true);
+            assertEquals(1, entryCount(service2.getEntryStore()));
+            assertEquals(2, entryCount(service1.getEntryStore()));
+
+            Map<BasicTSKey,byte[]> result = client.getContentsAsBytes(null, Arrays.asList(KEY1, KEY2, MISSING));
+            assertEquals(2, result.size());
+            assertArrayEquals(CONTENT1, result.get(KEY1));
+            assertArrayEquals(CONTENT2, result.get(KEY2));
+            assertFalse(result.containsKey(MISSING));
+        } finally {
+            service1._stop();
+            service2._stop();
+            service1.waitForStopped();
+            service2.waitForStopped();
+        }
+    }
+
     /**
      * Unit test that sets up 2-node fully replicated cluster, updates only one host
      * with two entries, and ensures that sync happens correctly.
@@ -0,0 +1,442 @@
+package com.fasterxml.transistore.clustertest.base.single;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+
+import com.fasterxml.storemate.shared.IpAndPort;
+import com.fasterxml.storemate.shared.StorableKey;
+import com.fasterxml.storemate.shared.compress.Compression;
+import com.fasterxml.storemate.store.Storable;
+import com.fasterxml.storemate.store.StoreOperationSource;
+
+import com.fasterxml.clustermate.api.ClusterMateConstants;
+import com.fasterxml.clustermate.dw.RunMode;
+
+import com.fasterxml.transistore.basic.BasicTSBatchFormat;
+import com.fasterxml.transistore.basic.BasicTSDeleteJobStatus;
+import com.fasterxml.transistore.basic.BasicTSKey;
+import com.fasterxml.transistore.basic.BasicTSListItem;
+import com.fasterxml.transistore.client.*;
+import com.fasterxml.transistore.clustertest.ClusterTestBase;
+import com.fasterxml.transistore.clustertest.StoreForTests;
+import com.fasterxml.transistore.clustertest.util.TimeMasterForClusterTesting;
+import com.fasterxml.transistore.dw.BasicTSServiceConfigForDW;
+import com.fasterxml.transistore.service.BasicTSEntry;
+import com.fasterxml.transistore.service.TSLastAccess;
+import com.fasterxml.transistore.service.cfg.BasicTSServiceConfig;
+
+/**
+ * Tests for endpoints that bypass standard ClusterMate request handling,
+ * to verify that they uphold the same invariants.
+ */
+public abstract class StreamingEndpointsTestBase extends ClusterTestBase
+{
+    final static int PORT_BASE = PORT_BASE_SINGLE + PORT_DELTA_STREAMING;
+
+    final static int STREAMING_MIN_LENGTH = 10000;
+
+    public void testStreamingPut() throws Exception
+    {
+        initTestLogging(); // reduce noise
+
+        BasicTSServiceConfigForDW serviceConfig = createSingleNodeConfig("fullStack1Streaming", true, PORT_BASE);
+        BasicTSServiceConfig tsConfig = serviceConfig.getServiceConfig();
+        tsConfig.streamingPuts = true;
+        tsConfig.streamingPutMinLength = STREAMING_MIN_LENGTH;
+        StoreForTests service = StoreForTests.createTestService(serviceConfig,
+                new TimeMasterForClusterTesting(100L), RunMode.TEST_MINIMAL);
+
+        try {
+            startServices(service);
+            final IpAndPort node = new IpAndPort("http", "localhost", PORT_BASE);
+            BasicTSClientConfig clientConfig = new BasicTSClientConfigBuilder()
+                .setOptimalOks(1)
+                .setMaxOks(1)
+                .build();
+            BasicTSClient client = createClient(clientConfig, node);
+
+            // First: a successful streaming PUT, using default TTLs
+            final BasicTSKey KEY = contentKey("testStreaming-item1");
+            final byte[] CONTENT = biggerSomewhatCompressibleData(3 * STREAMING_MIN_LENGTH);
+            assertEquals(200, _put(client.entryUrl(node, KEY), CONTENT, ""));
+
+            Storable raw = service.getEntryStore().findEntry(StoreOperationSource.ADMIN_TOOL, null,
+                    KEY.asStorableKey());
+            assertNotNull(raw);
+            // streamed entries are always written as external files
+            assertTrue(raw.hasExternalData());
+            assertEquals(tsConfig.streamingPutCompression, raw.getCompression());
+            verifyHash("content hash", rawHash(CONTENT), raw.getContentHash());
+            BasicTSEntry entry = contentEntry(raw);
+            // same last-access tracking as standard PUTs use
+            assertEquals(TSLastAccess.NONE, entry.getLastAccessUpdateMethod());
+            assertEquals(tsConfig.cfgDefaultMaxTTL.getMillis() / 1000L, entry.getMaxTTLSecs());
+            assertArrayEquals(CONTENT, client.getContentAsBytes(null, KEY));
+
+            // re-sending same content is fine (handled by standard code), different is not
+            assertEquals(200, _put(client.entryUrl(node, KEY), CONTENT, ""));
+            byte[] other = biggerSomewhatCompressibleData(3 * STREAMING_MIN_LENGTH + 1);
+            assertEquals(409, _put(client.entryUrl(node, KEY), other, ""));
+
+            // min TTL can't exceed max TTL
+            final BasicTSKey KEY2 = contentKey("testStreaming-item2");
+            assertEquals(400, _put(client.entryUrl(node, KEY2), CONTENT,
+                    "&"+ClusterMateConstants.QUERY_PARAM_MIN_TTL+"=600"
+                    +"&"+ClusterMateConstants.QUERY_PARAM_MAX_TTL+"=60"));
+            // and checksum, if passed, must match
+            assertEquals(400, _put(client.entryUrl(node, KEY2), CONTENT,
+                    "&checksum="+(rawHash(CONTENT) + 1)));
+            assertNull(service.getEntryStore().findEntry(StoreOperationSource.ADMIN_TOOL, null,
+                    KEY2.asStorableKey()));
+            assertEquals(200, _put(client.entryUrl(node, KEY2), CONTENT,
+                    "&checksum="+rawHash(CONTENT)));
+            assertArrayEquals(CONTENT, client.getContentAsBytes(null, KEY2));
+        } finally {
+            service._stop();
+            Thread.yield();
+            service.waitForStopped();
+        }
+    }
+
+    public void testBatchPut() throws Exception
+    {
+        initTestLogging(); // reduce noise
+
+        final int port = PORT_BASE + 1;
+        BasicTSServiceConfigForDW serviceConfig = createSingleNodeConfig("fullStack1Batch", true, port);
+        StoreForTests service = StoreForTests.createTestService(serviceConfig,
+                new TimeMasterForClusterTesting(100L), RunMode.TEST_MINIMAL);
+
+        try {
+            startServices(service);
+            final IpAndPort node = new IpAndPort("http", "localhost", port);
+            BasicTSClientConfig clientConfig = new BasicTSClientConfigBuilder()
+                .setOptimalOks(1)
+                .setMaxOks(1)
+                .build();
+            BasicTSClient client = createClient(clientConfig, node);
+
+            final BasicTSKey SMALL = contentKey("testBatch-small");
+            final BasicTSKey BIG = contentKey("testBatch-big");
+            final byte[] SMALL_CONTENT = "tiny".getBytes("UTF-8");
+            final byte[] BIG_CONTENT = biggerSomewhatCompressibleData(3500);
+            Map<BasicTSKey,byte[]> entries = new LinkedHashMap<BasicTSKey,byte[]>();
+            entries.put(SMALL, SMALL_CONTENT);
+            entries.put(BIG, BIG_CONTENT);
+            TSBatchPutResult result = client.putContents(null, entries);
+            assertTrue(result.succeeded());
+            assertEquals(2, result.getSucceeded().size());
+
+            // store decides on compression, same as with regular PUTs
+            Storable raw = service.getEntryStore().findEntry(StoreOperationSource.ADMIN_TOOL, null,
+                    SMALL.asStorableKey());
+            assertNotNull(raw);
+            assertEquals(Compression.NONE, raw.getCompression());
+            verifyHash("content hash", rawHash(SMALL_CONTENT), raw.getContentHash());
+            raw = service.getEntryStore().findEntry(StoreOperationSource.ADMIN_TOOL, null,
+                    BIG.asStorableKey());
+            assertNotNull(raw);
+            assertEquals(Compression.LZF, raw.getCompression());
+            assertArrayEquals(BIG_CONTENT, client.getContentAsBytes(null, BIG));
+
+            // re-sending same content is fine
+            assertTrue(client.putContents(null, entries).succeeded());
+
+            // but not once entry has been deleted: tombstone is a conflict
+            assertTrue(client.deleteContent(null, SMALL)
+                    .completeOptimally()
+                    .result().succeededMinimally());
+            result = client.putContents(null, entries);
+            assertEquals(Collections.singletonList(SMALL), result.getFailed());
+            assertEquals(Collections.singletonList(BIG), result.getSucceeded());
+
+            // and keys must be valid TransiStore keys (partition id length in header)
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(1);
+            BasicTSBatchFormat.writeEntry(out, new StorableKey(new byte[] { 0x7F, 0, 'a' }),
+                    SMALL_CONTENT);
+            out.close();
+            String url = client.entryUrl(node, SMALL);
+            url = url.substring(0, url.indexOf("store/entry")) + "store/entriesBatch";
+            assertEquals(400, _send(url, "PUT", bytes.toByteArray()));
+
+            // TTLs are validated same as with single-entry PUTs
+            final BasicTSKey TTL_KEY = contentKey("testBatch-ttl");
+            bytes = new ByteArrayOutputStream();
+            out = new DataOutputStream(bytes);
+            out.writeInt(1);
+            BasicTSBatchFormat.writeEntry(out, TTL_KEY.asStorableKey(), SMALL_CONTENT);
+            out.close();
+            assertEquals(400, _send(url+"?"+ClusterMateConstants.QUERY_PARAM_MAX_TTL+"=-5",
+                    "PUT", bytes.toByteArray()));
+            assertEquals(400, _send(url+"?"+ClusterMateConstants.QUERY_PARAM_MIN_TTL+"=600&"
+                    +ClusterMateConstants.QUERY_PARAM_MAX_TTL+"=60", "PUT", bytes.toByteArray()));
+            assertNull(service.getEntryStore().findEntry(StoreOperationSource.ADMIN_TOOL, null,
+                    TTL_KEY.asStorableKey()));
+
+            // and both min and max TTL given by caller are used
+            TSPutCallParameters params = new TSPutCallParameters().withTTL(3600).withMinTTL(60);
+            assertTrue(client.putContents(params, Collections.singletonMap(TTL_KEY, SMALL_CONTENT)).succeeded());
+            BasicTSEntry entry = contentEntry(service.getEntryStore().findEntry(StoreOperationSource.ADMIN_TOOL,
+                    null, TTL_KEY.asStorableKey()));
+            assertEquals(3600, entry.getMaxTTLSecs());
+            assertEquals(60, entry.getMinTTLSinceAccessSecs());
+        } finally {
+            service._stop();
+            Thread.yield();
+            service.waitForStopped();
+        }
+    }
+
+    public void testPrefixDelete() throws Exception
+    {
+        initTestLogging(); // reduce noise
+
+        final int port = PORT_BASE + 2;
+        BasicTSServiceConfigForDW serviceConfig = createSingleNodeConfig("fullStack1PrefixDelete", true, port);
+        StoreForTests service = StoreForTests.createTestService(serviceConfig,
+                new TimeMasterForClusterTesting(100L), RunMode.TEST_MINIMAL);
+
+        try {
+            startServices(service);
+            final IpAndPort node = new IpAndPort("http", "localhost", port);
+            BasicTSClientConfig clientConfig = new BasicTSClientConfigBuilder()
+                .setOptimalOks(1)
+                .setMaxOks(1)
+                .build();
+            BasicTSClient client = createClient(clientConfig, node);
+
+            final byte[] CONTENT = "stuff".getBytes("UTF-8");
+            List<BasicTSKey> doomed = new ArrayList<BasicTSKey>();
+            Map<BasicTSKey,byte[]> entries = new LinkedHashMap<BasicTSKey,byte[]>();
+            for (int i = 0; i < 5; ++i) {
+                BasicTSKey key = contentKey("part1", "/dir/item"+i);
+                doomed.add(key);
+                entries.put(key, CONTENT);
+            }
+            // just outside of the prefix, either by path or partition
+            List<BasicTSKey> kept = Arrays.asList(contentKey("part1", "/dir"),
+                    contentKey("part1", "/dir0/item"), contentKey("part12", "/dir/item"));
+            for (BasicTSKey key : kept) {
+                entries.put(key, CONTENT);
+            }
+            assertTrue(client.putContents(null, entries).succeeded());
+
+            final BasicTSKey PREFIX = contentKey("part1", "/dir/");
+            Map<IpAndPort,BasicTSDeleteJobStatus> jobs = client.deleteByPrefix(PREFIX);
+            assertEquals(1, jobs.size());
+            BasicTSDeleteJobStatus status = jobs.get(node);
+            assertNotNull(status);
+            for (int i = 0; i < 100 && status.state != BasicTSDeleteJobStatus.State.COMPLETED; ++i) {
+                Thread.sleep(50L);
+                status = client.findDeleteJob(node, PREFIX, status.id);
+            }
+            assertEquals(BasicTSDeleteJobStatus.State.COMPLETED, status.state);
+            assertEquals(doomed.size(), (int) status.deleted);
+
+            // tombstones left for synchronization
+            for (BasicTSKey key : doomed) {
+                Storable raw = service.getEntryStore().findEntry(StoreOperationSource.ADMIN_TOOL, null,
+                        key.asStorableKey());
+                assertNotNull(raw);
+                assertTrue(raw.isDeleted());
+                assertNull(client.getContentAsBytes(null, key));
+            }
+            for (BasicTSKey key : kept) {
+                assertArrayEquals(CONTENT, client.getContentAsBytes(null, key));
+            }
+
+            // finished jobs can not be cancelled any more; unknown ones not found
+            assertEquals(BasicTSDeleteJobStatus.State.COMPLETED,
+                    client.cancelDeleteJob(node, PREFIX, status.id).state);
+            assertNull(client.findDeleteJob(node, PREFIX, status.id + 100));
+        } finally {
+            service._stop();
+            Thread.yield();
+            service.waitForStopped();
+        }
+    }
+
+    public void testPrefixDeleteCancel() throws Exception
+    {
+        initTestLogging(); // reduce noise
+
+        final int port = PORT_BASE + 4;
+        BasicTSServiceConfigForDW serviceConfig = createSingleNodeConfig("fullStack1PrefixDeleteCancel", true, port);
+        StoreForTests service = StoreForTests.createTestService(serviceConfig,
+                new TimeMasterForClusterTesting(100L), RunMode.TEST_MINIMAL);
+
+        try {
+            startServices(service);
+            final IpAndPort node = new IpAndPort("http", "localhost", port);
+            BasicTSClientConfig clientConfig = new BasicTSClientConfigBuilder()
+                .setOptimalOks(1)
+                .setMaxOks(1)
+                .build();
+            BasicTSClient client = createClient(clientConfig, node);
+
+            final byte[] CONTENT = "stuff".getBytes("UTF-8");
+            Map<BasicTSKey,byte[]> entries = new LinkedHashMap<BasicTSKey,byte[]>();
+            for (int i = 0; i < 50; ++i) {
+                entries.put(contentKey("part2", "/dir/item"+i), CONTENT);
+            }
+            assertTrue(client.putContents(null, entries).succeeded());
+
+            // jobs are run one at a time: second one queued behind the first
+            final BasicTSKey PREFIX = contentKey("part2", "/dir/");
+            BasicTSDeleteJobStatus first = client.deleteByPrefix(PREFIX).get(node);
+            BasicTSDeleteJobStatus second = client.deleteByPrefix(PREFIX).get(node);
+            assertNotNull(first);
+            assertNotNull(second);
+            assertTrue(second.id > first.id);
+
+            // cancellation stops job unless it had already completed
+            BasicTSDeleteJobStatus cancelled = client.cancelDeleteJob(node, PREFIX, second.id);
+            assertNotNull(cancelled);
+            assertEquals(second.id, cancelled.id);
+            assertTrue("Unexpected state "+cancelled.state,
+                    cancelled.state != BasicTSDeleteJobStatus.State.FAILED
+                    && cancelled.state != BasicTSDeleteJobStatus.State.QUEUED);
+
+            // and status can then be checked, until job finishes
+            BasicTSDeleteJobStatus status = cancelled;
+            for (int i = 0; i < 100 && status.state == BasicTSDeleteJobStatus.State.RUNNING; ++i) {
+                Thread.sleep(50L);
+                status = client.findDeleteJob(node, PREFIX, second.id);
+            }
+            if (cancelled.state == BasicTSDeleteJobStatus.State.COMPLETED) {
+                assertEquals(BasicTSDeleteJobStatus.State.COMPLETED, status.state);
+            } else {
+                assertEquals(BasicTSDeleteJobStatus.State.CANCELLED, status.state);
+                assertTrue(status.ended >= status.started);
+            }
+            // cancelling again does not change finished state
+            assertEquals(status.state, client.cancelDeleteJob(node, PREFIX, second.id).state);
+
+            // nor does it affect the other job, which deletes everything
+            status = first;
+            for (int i = 0; i < 100 && status.state != BasicTSDeleteJobStatus.State.COMPLETED; ++i) {
+                Thread.sleep(50L);
+                status = client.findDeleteJob(node, PREFIX, first.id);
+            }
+            assertEquals(BasicTSDeleteJobStatus.State.COMPLETED, status.state);
+            for (BasicTSKey key : entries.keySet()) {
+                assertNull(client.getContentAsBytes(null, key));
+            }
+
+            // unknown jobs can not be cancelled
+            assertNull(client.cancelDeleteJob(node, PREFIX, second.id + 100));
+        } finally {
+            service._stop();
+            Thread.yield();
+            service.waitForStopped();
+        }
+    }
+
+    public void testStreamingList() throws Exception
+    {
+        initTestLogging(); // reduce noise
+
+        final int port = PORT_BASE + 3;
+        BasicTSServiceConfigForDW serviceConfig = createSingleNodeConfig("fullStack1StreamingList", true, port);
+        StoreForTests service = StoreForTests.createTestService(serviceConfig,
+                new TimeMasterForClusterTesting(100L), RunMode.TEST_MINIMAL);
+
+        try {
+            startServices(service);
+            final IpAndPort node = new IpAndPort("http", "localhost", port);
+            BasicTSClientConfig clientConfig = new BasicTSClientConfigBuilder()
+                .setOptimalOks(1)
+                .setMaxOks(1)
+                .build();
+            BasicTSClient client = createClient(clientConfig, node);
+
+            final byte[] CONTENT = "listed".getBytes("UTF-8");
+            Map<BasicTSKey,byte[]> entries = new LinkedHashMap<BasicTSKey,byte[]>();
+            for (int i = 0; i < 25; ++i) {
+                entries.put(contentKey("listPart", String.format("/list/item%03d", i)), CONTENT);
+            }
+            // not included in listing
+            entries.put(contentKey("listPart", "/other"), CONTENT);
+            assertTrue(client.putContents(null, entries).succeeded());
+
+            final BasicTSKey PREFIX = contentKey("listPart", "/list/");
+            final List<String> paths = new ArrayList<String>();
+            TSListItemHandler handler = new TSListItemHandler() {
+                @Override
+                public boolean handleItem(BasicTSListItem item) {
+                    paths.add(contentKey(item.getKey()).getPath());
+                    return true;
+                }
+            };
+
+            // full listing: no cursor returned
+            assertNull(client.listContentStreaming(PREFIX, null, 0L, handler));
+            assertEquals(25, paths.size());
+            for (int i = 0; i < 25; ++i) {
+                assertEquals(String.format("/list/item%03d", i), paths.get(i));
+            }
+
+            // truncated due to maximum: cursor to continue from
+            paths.clear();
+            String cursor = client.listContentStreaming(PREFIX, null, 10L, handler);
+            assertNotNull(cursor);
+            assertEquals(10, paths.size());
+            cursor = client.listContentStreaming(PREFIX, cursor, 10L, handler);
+            assertNotNull(cursor);
+            assertNull(client.listContentStreaming(PREFIX, cursor, 10L, handler));
+            assertEquals(25, paths.size());
+            assertEquals(new LinkedHashSet<String>(paths).size(), paths.size());
+            assertEquals("/list/item024", paths.get(24));
+
+            // deleted entries are not listed
+            assertTrue(client.deleteContent(null, contentKey("listPart", "/list/item000"))
+                    .completeOptimally()
+                    .result().succeededMinimally());
+            paths.clear();
+            assertNull(client.listContentStreaming(PREFIX, null, 0L, handler));
+            assertEquals(24, paths.size());
+            assertEquals("/list/item001", paths.get(0));
+        } finally {
+            service._stop();
+            Thread.yield();
+            service.waitForStopped();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    /**
+     * Helper method for sending a PUT with declared content length,
+     * as streaming PUT handling requires.
+     *
+     * @return Response status code
+     */
+    protected int _put(String url, byte[] content, String extraParams) throws IOException
+    {
+        return _send(url + extraParams, "PUT", content);
+    }
+
+    protected int _send(String url, String method, byte[] content) throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod(method);
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(content.length);
+        OutputStream out = conn.getOutputStream();
+        out.write(content);
+        out.close();
+        int status = conn.getResponseCode();
+        conn.disconnect();
+        return status;
+    }
+}